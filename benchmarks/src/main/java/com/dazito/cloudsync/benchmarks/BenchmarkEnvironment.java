@@ -0,0 +1,98 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Sets up the engine for the benchmarks that need one, in a directory of their own below
+ * {@code target/benchmark-data}: a config.json with a single backup, and the Derby database and task journal. The
+ * directories are kept between runs, as populating large databases and directory trees takes much longer than the
+ * benchmarks themselves; a directory is only reused once it has been prepared completely.
+ */
+final class BenchmarkEnvironment {
+
+    private static final String PREPARED_MARKER = "prepared";
+
+    private BenchmarkEnvironment() {
+    }
+
+    static Path getDirectory(String name) {
+        return Paths.get("target", "benchmark-data", name).toAbsolutePath();
+    }
+
+    static boolean isPrepared(Path directory) {
+        return Files.exists(directory.resolve(PREPARED_MARKER));
+    }
+
+    static void markPrepared(Path directory) throws IOException {
+        Files.createFile(directory.resolve(PREPARED_MARKER));
+    }
+
+    /**
+     * Removes what is left of a directory that was not prepared completely.
+     */
+    static void reset(Path directory) throws IOException {
+        if (Files.exists(directory)) {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Creates an engine whose database and journal are kept in the given directory, with one backup of the given
+     * root directory. Must be called once per JVM, which JMH forks for every benchmark.
+     */
+    static Injector createInjector(Path directory, Path backupRoot) throws IOException {
+        return createInjector(directory, backupRoot, Collections.emptyMap());
+    }
+
+    /**
+     * Same as {@link #createInjector(Path, Path)}, with the given settings added to the config.
+     */
+    static Injector createInjector(Path directory, Path backupRoot, Map<String, Object> settings) throws IOException {
+        Files.createDirectories(directory);
+        StringBuilder extra = new StringBuilder();
+        settings.forEach((name, value) -> extra.append("  \"").append(name).append("\": ").append(value).append(",\n"));
+        String config = "{\n"
+                + "  \"taskJournalPath\": " + quote(directory.resolve("tasks.journal")) + ",\n"
+                + "  \"chunkIndexDirectory\": " + quote(directory.resolve("chunks")) + ",\n"
+                + "  \"deltaSignatureDirectory\": " + quote(directory.resolve("signatures")) + ",\n"
+                // every file gets a record of its own right away, rather than once its pack is uploaded
+                + "  \"packThreshold\": 0,\n"
+                + extra
+                + "  \"backups\": [ { \"name\": \"benchmark\", \"root\": " + quote(backupRoot) + " } ]\n"
+                + "}\n";
+        Files.write(directory.resolve("config.json"), config.getBytes(StandardCharsets.UTF_8));
+
+        // the persistence unit's relative database path is resolved against the Derby home
+        System.setProperty("derby.system.home", directory.toString());
+        return Guice.createInjector(new BenchmarkModule(directory));
+    }
+
+    private static String quote(Path path) {
+        return "\"" + path.toString().replace("\\", "\\\\") + "\"";
+    }
+}
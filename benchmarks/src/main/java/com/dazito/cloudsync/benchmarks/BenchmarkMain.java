@@ -0,0 +1,73 @@
+package com.dazito.cloudsync.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Runs the benchmarks like JMH's own main class, taking the same options, but with the GC profiler and JSON results
+ * by default, so that allocation rates are always reported and every run leaves a file that can be compared with
+ * later runs. The results are written to {@code jmh-<commit>.json}, named after the commit that was measured.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        CommandLineOptions options;
+        try {
+            options = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+                || options.shouldListProfilers() || options.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (options.getProfilers().isEmpty()) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        if (!options.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+            if (!options.getResult().hasValue()) {
+                builder.result("jmh-" + getRunName() + ".json");
+            }
+        }
+        new Runner(builder.build()).run();
+    }
+
+    // the commit that is being measured, or the time of the run outside of a git checkout
+    private static String getRunName() {
+        try {
+            Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(git.getInputStream(), StandardCharsets.UTF_8))) {
+                String commit = reader.readLine();
+                if (git.waitFor() == 0 && commit != null && !commit.isEmpty()) {
+                    return commit.trim();
+                }
+            }
+        } catch (IOException e) {
+            // no git
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+    }
+}
@@ -0,0 +1,35 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.cloud.CloudStore;
+import com.dazito.cloudsync.engine.db.DataStore;
+import com.dazito.cloudsync.engine.db.jpa.JPADataStore;
+import com.dazito.cloudsync.engine.event.CloudSyncRxBus;
+import com.dazito.cloudsync.engine.event.CloudSyncRxBusImpl;
+import com.dazito.cloudsync.engine.util.config.Config;
+import com.google.inject.AbstractModule;
+import net.jmob.guice.conf.core.ConfigurationModule;
+
+import java.nio.file.Path;
+
+/**
+ * Binds the engine the way the BackupEngineModule does, but with the config of a benchmark and a cloud store that
+ * doesn't upload anything.
+ */
+class BenchmarkModule extends AbstractModule {
+
+    private final Path configDirectory;
+
+    BenchmarkModule(Path configDirectory) {
+        this.configDirectory = configDirectory;
+    }
+
+    @Override
+    protected void configure() {
+        install(new ConfigurationModule().fromPath(configDirectory.toFile()));
+        requestInjection(Config.class);
+
+        bind(CloudStore.class).to(NullCloudStore.class);
+        bind(DataStore.class).to(JPADataStore.class);
+        bind(CloudSyncRxBus.class).to(CloudSyncRxBusImpl.class);
+    }
+}
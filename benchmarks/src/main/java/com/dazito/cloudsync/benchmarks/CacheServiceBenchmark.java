@@ -0,0 +1,61 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.util.CacheService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up the backup of a file system event by its backup directory, which happens for every event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheServiceBenchmark {
+
+    @Param({"1", "16"})
+    private int backups;
+
+    private CacheService cacheService;
+    private Path[] directories;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setup() {
+        cacheService = new CacheService();
+        directories = new Path[backups];
+        for (int i = 0; i < backups; i++) {
+            Path directory = Paths.get("/home/user/backup-" + i).toAbsolutePath();
+            cacheService.cacheBackup(directory, new Backup("backup-" + i, directory));
+            // events carry paths of their own, equal to but not the same instance as the cached ones
+            directories[i] = Paths.get(directory.toString());
+        }
+    }
+
+    @Benchmark
+    public Optional<Backup> getBackup(Cursor cursor) {
+        cursor.next = (cursor.next + 1) % backups;
+        return cacheService.getBackup(directories[cursor.next]);
+    }
+}
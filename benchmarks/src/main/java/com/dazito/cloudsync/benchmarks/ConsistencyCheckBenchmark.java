@@ -0,0 +1,102 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.BackupEngine;
+import com.dazito.cloudsync.engine.cloud.CloudStore;
+import com.dazito.cloudsync.engine.db.DataStore;
+import com.dazito.cloudsync.engine.journal.TaskJournal;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.google.inject.Injector;
+import lombok.extern.slf4j.Slf4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the startup consistency check of a backup whose files are all in the local database already, which is
+ * the common case: a walk of the directory tree merged with the records, finding nothing to do.
+ *
+ * <p>The tree of every size is generated on the first run, and the first consistency check records all of its files.
+ * Both are kept in {@code target/benchmark-data} for later runs.
+ */
+@Slf4j
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsistencyCheckBenchmark {
+
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final int DIRECTORIES_PER_DIRECTORY = 10;
+
+    @Param({"10000", "100000"})
+    private int files;
+
+    private BackupEngine engine;
+    private Backup backup;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        Path directory = BenchmarkEnvironment.getDirectory("consistency-" + files);
+        boolean prepared = BenchmarkEnvironment.isPrepared(directory);
+        if (!prepared) {
+            BenchmarkEnvironment.reset(directory);
+            generate(directory.resolve("root"));
+        }
+
+        Injector injector = BenchmarkEnvironment.createInjector(directory, directory.resolve("root"));
+        injector.getInstance(TaskJournal.class).open();
+        engine = injector.getInstance(BackupEngine.class);
+        injector.getInstance(CloudStore.class).start();
+        DataStore dataStore = injector.getInstance(DataStore.class);
+        backup = dataStore.getBackup(directory.resolve("root").toString());
+
+        if (!prepared) {
+            log.info("Recording the {} files of the tree", files);
+            engine.runConsistencyCheck(backup);
+            // the files are hashed and recorded asynchronously
+            while (dataStore.getPathIndex(backup).size() < files) {
+                Thread.sleep(100);
+            }
+            dataStore.flush(1, TimeUnit.MINUTES);
+            BenchmarkEnvironment.markPrepared(directory);
+        }
+    }
+
+    @Benchmark
+    public void runConsistencyCheck() {
+        engine.runConsistencyCheck(backup);
+    }
+
+    /*
+     * Spreads the files over a tree of directories, FILES_PER_DIRECTORY files each, which is closer to a real backup
+     * than one flat directory.
+     */
+    private void generate(Path root) throws IOException {
+        log.info("Generating a tree of {} files", files);
+        byte[] content = new byte[512];
+        for (int file = 0; file < files; file++) {
+            Path directory = root;
+            for (int d = file / FILES_PER_DIRECTORY; d > 0; d /= DIRECTORIES_PER_DIRECTORY) {
+                directory = directory.resolve("directory-" + d % DIRECTORIES_PER_DIRECTORY);
+            }
+            Files.createDirectories(directory);
+            content[0] = (byte) file;
+            Files.write(directory.resolve("file-" + file + ".txt"), content);
+        }
+    }
+}
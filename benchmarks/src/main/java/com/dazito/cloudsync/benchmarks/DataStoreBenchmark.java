@@ -0,0 +1,111 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.db.DataStore;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.model.LocalRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up the record of a path in the local database, which the engine does for file system events the
+ * path index can't answer, at different numbers of records.
+ *
+ * <p>The database of every size is populated on the first run, with plain JDBC batch inserts rather than through the
+ * engine, and kept in {@code target/benchmark-data} for later runs. Populating ten million records takes several
+ * minutes and about 2 GB of disk.
+ */
+@Slf4j
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataStoreBenchmark {
+
+    private static final int FILES_PER_DIRECTORY = 1000;
+    private static final int INSERT_BATCH_SIZE = 10000;
+
+    @Param({"10000", "1000000", "10000000"})
+    private int records;
+
+    private DataStore dataStore;
+    private Backup backup;
+    private Path root;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        Path directory = BenchmarkEnvironment.getDirectory("records-" + records);
+        boolean prepared = BenchmarkEnvironment.isPrepared(directory);
+        if (!prepared) {
+            BenchmarkEnvironment.reset(directory);
+        }
+
+        // the files themselves are never looked at, so the backup's directory doesn't need to exist
+        root = directory.resolve("root");
+        dataStore = BenchmarkEnvironment.createInjector(directory, root).getInstance(DataStore.class);
+        backup = dataStore.getBackup(root.toString());
+
+        if (!prepared) {
+            populate();
+            BenchmarkEnvironment.markPrepared(directory);
+        }
+    }
+
+    @Benchmark
+    public LocalRecord getLocalRecord() {
+        return dataStore.getLocalRecord(backup, getPath(ThreadLocalRandom.current().nextInt(records)));
+    }
+
+    @Benchmark
+    public LocalRecord getMissingLocalRecord() {
+        return dataStore.getLocalRecord(backup, getPath(records + ThreadLocalRandom.current().nextInt(records)));
+    }
+
+    private Path getPath(int file) {
+        return root.resolve("directory-" + file / FILES_PER_DIRECTORY).resolve("file-" + file + ".txt");
+    }
+
+    /*
+     * The schema has been created by the data store already, and the connection goes to the same embedded database.
+     */
+    private void populate() throws SQLException {
+        log.info("Populating the database with {} records", records);
+        try (Connection connection = DriverManager.getConnection("jdbc:derby:./db/backupDB", "test", "test");
+             PreparedStatement insert = connection.prepareStatement(
+                     "insert into RECORD (BACKUP_ID, FILEPATH, LASTMODIFIEDTIME, SIZE, PACKOFFSET, PACKLENGTH) values (?, ?, ?, ?, 0, 0)")) {
+            connection.setAutoCommit(false);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < records; i++) {
+                insert.setLong(1, backup.getId());
+                insert.setString(2, backup.getRelativePath(getPath(i)));
+                insert.setLong(3, now - i * 1000L);
+                insert.setLong(4, 1024 + i % 65536);
+                insert.addBatch();
+                if ((i + 1) % INSERT_BATCH_SIZE == 0 || i == records - 1) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+        }
+    }
+}
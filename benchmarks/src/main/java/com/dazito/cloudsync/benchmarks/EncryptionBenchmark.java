@@ -0,0 +1,135 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm;
+import com.dazito.cloudsync.engine.cloud.part.PartTarget;
+import com.dazito.cloudsync.engine.cloud.part.PartUploader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of encryption with the throughput of uploads. {@code encryptPart} encrypts a part that is
+ * in memory already; {@code rawUpload} and {@code encryptedUpload} upload a file in parts, without and with
+ * encryption, through the {@link PartUploader} the cloud stores use. The parts are handed to a target that drops
+ * them, so the raw upload measures reading the file in parallel parts, the ceiling of every upload, and the encrypted
+ * upload shows how much of it encryption takes away. One operation is one MB, so the scores are in MB/s; compare them
+ * with the bandwidth of the uplink (a 10 Gbit/s link moves about 1200 MB/s). Run with e.g. {@code -t 4} to see how
+ * encryption scales with the number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncryptionBenchmark {
+
+    static final int PART_MB = 16;
+    private static final int PART_SIZE = PART_MB * 1024 * 1024;
+
+    // uploaded as four parts of the default part size, which are all in flight at once
+    static final int FILE_MB = 64;
+
+    private static final String OBJECT_KEY = "benchmark/file.bin";
+
+    private ByteBuffer plaintext;
+    private ByteBuffer ciphertext;
+    private SegmentedAesGcm.FileEncryptor encryptor;
+
+    /**
+     * The file and the uploader, shared by all threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Upload {
+        private Path file;
+        private PartUploader uploader;
+        private SegmentedAesGcm encryption;
+
+        @Setup
+        public void setup() throws IOException {
+            Path directory = BenchmarkEnvironment.getDirectory("encryption");
+            BenchmarkEnvironment.reset(directory);
+            uploader = BenchmarkEnvironment.createInjector(directory, directory.resolve("root")).getInstance(PartUploader.class);
+            encryption = new SegmentedAesGcm(newKey());
+
+            byte[] data = new byte[FILE_MB * 1024 * 1024];
+            new Random(42).nextBytes(data);
+            file = Files.write(directory.resolve("file.bin"), data);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Files.delete(file);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        byte[] data = new byte[PART_SIZE];
+        new Random(42).nextBytes(data);
+        plaintext = ByteBuffer.allocateDirect(PART_SIZE);
+        plaintext.put(data).flip();
+        ciphertext = ByteBuffer.allocate((int) SegmentedAesGcm.getCiphertextSize(PART_SIZE));
+        encryptor = new SegmentedAesGcm(newKey()).newEncryptor(OBJECT_KEY);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PART_MB)
+    public ByteBuffer encryptPart() throws IOException {
+        ciphertext.clear();
+        encryptor.encrypt(0, plaintext.duplicate(), true, ciphertext);
+        ciphertext.flip();
+        return ciphertext;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_MB)
+    public void rawUpload(Upload upload) throws IOException {
+        upload.uploader.upload(upload.file, new DroppingTarget(), null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_MB)
+    public void encryptedUpload(Upload upload) throws IOException {
+        // every upload derives a key of its own, as the cloud stores do
+        upload.uploader.upload(upload.file, new DroppingTarget(), upload.encryption.newEncryptor(OBJECT_KEY));
+    }
+
+    private static byte[] newKey() {
+        byte[] key = new byte[32];
+        new Random(7).nextBytes(key);
+        return key;
+    }
+
+    private static final class DroppingTarget implements PartTarget {
+        @Override
+        public String uploadPart(int partNumber, ByteBuffer data) {
+            return Integer.toString(partNumber);
+        }
+
+        @Override
+        public void complete(List<String> partIds) {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}
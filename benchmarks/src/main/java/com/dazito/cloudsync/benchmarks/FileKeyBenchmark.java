@@ -0,0 +1,57 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.cloud.aws.AwsCloudStore;
+import com.dazito.cloudsync.engine.model.Backup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures deriving the object key of a file from its path, which every S3 upload, delete and move does. The paths
+ * are taken in turn from a set of paths at different depths of the backup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileKeyBenchmark {
+
+    private static final int PATHS = 1024;
+
+    private Backup backup;
+    private Path[] paths;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Path root = Paths.get("/home/user/Documents").toAbsolutePath();
+        backup = new Backup("benchmark", root);
+        paths = new Path[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            Path directory = root;
+            for (int depth = 0; depth < i % 8; depth++) {
+                directory = directory.resolve("directory-" + depth);
+            }
+            paths[i] = directory.resolve("file-" + i + ".txt");
+        }
+    }
+
+    @Benchmark
+    public String getFileKey() {
+        next = (next + 1) & (PATHS - 1);
+        return AwsCloudStore.getFileKey(backup, paths[next]);
+    }
+}
@@ -0,0 +1,61 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.model.LocalRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares checking a file against its record by path, which reads the file's attributes with one system call per
+ * attribute, with checking it against attributes that were already read during a directory walk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LocalRecordBenchmark {
+
+    private Path file;
+    private LocalRecord record;
+    private BasicFileAttributes attributes;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("local-record-benchmark", ".txt");
+        Files.write(file, new byte[4096]);
+        record = LocalRecord.create(new Backup("benchmark", file.getParent()), file).get();
+        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public boolean matchesPath() {
+        return record.matches(file);
+    }
+
+    @Benchmark
+    public boolean matchesAttributes() {
+        return record.matches(attributes);
+    }
+}
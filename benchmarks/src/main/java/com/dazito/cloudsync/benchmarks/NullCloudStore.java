@@ -0,0 +1,78 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.cloud.CloudStore;
+import com.dazito.cloudsync.engine.cloud.Transfer;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.util.Task;
+import com.dazito.cloudsync.engine.util.TaskQueue;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cloud store that completes every task right away, so that benchmarks of the engine measure the engine only.
+ */
+@Singleton
+class NullCloudStore implements CloudStore {
+
+    private final TaskQueue taskQueue;
+
+    @Inject
+    NullCloudStore(TaskQueue taskQueue) {
+        this.taskQueue = taskQueue;
+    }
+
+    @Override
+    public void start() {
+        taskQueue.toObserverable().subscribe(this::process);
+    }
+
+    @Override
+    public void createContainer(Backup backup) {
+    }
+
+    @Override
+    public Transfer uploadFile(Backup backup, Path p, String contentHash, Runnable onSuccess) {
+        return complete(onSuccess);
+    }
+
+    @Override
+    public void removeFile(Backup backup, Path p, Runnable onSuccess) {
+        run(onSuccess);
+    }
+
+    @Override
+    public Transfer uploadPack(Backup backup, Path packPath, ByteBuffer data, Runnable onSuccess) {
+        return complete(onSuccess);
+    }
+
+    @Override
+    public Transfer moveFile(Backup backup, Path source, Path target, String contentHash, Runnable onSuccess) {
+        return complete(onSuccess);
+    }
+
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        return true;
+    }
+
+    private void process(Task task) {
+        run(task.getRunnable());
+    }
+
+    private static Transfer complete(Runnable onSuccess) {
+        Transfer transfer = new Transfer();
+        transfer.complete();
+        run(onSuccess);
+        return transfer;
+    }
+
+    private static void run(Runnable onSuccess) {
+        if (onSuccess != null) {
+            onSuccess.run();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.db.DataStore;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.model.LocalRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many new records per second the local database takes, as after a burst of uploads. With a record
+ * batch size of 1 every write is committed on its own, as before writes were grouped, so the score is also the
+ * commits per second; with the default batch size, writes are committed in batches and inserted in JDBC batches.
+ *
+ * <p>Every run starts with an empty database in {@code target/benchmark-data}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordWriteBenchmark {
+
+    private static final int WRITES_PER_INVOCATION = 1000;
+
+    @Param({"1", "1000"})
+    private int recordBatchSize;
+
+    private DataStore dataStore;
+    private Backup backup;
+    private Path root;
+    private BasicFileAttributes attributes;
+    private int written;
+
+    @Setup
+    public void setup() throws IOException {
+        Path directory = BenchmarkEnvironment.getDirectory("record-writes-" + recordBatchSize);
+        BenchmarkEnvironment.reset(directory);
+
+        // the files themselves are never looked at, so the backup's directory doesn't need to exist
+        root = directory.resolve("root");
+        dataStore = BenchmarkEnvironment.createInjector(directory, root,
+                Collections.singletonMap("recordBatchSize", recordBatchSize)).getInstance(DataStore.class);
+        backup = dataStore.getBackup(root.toString());
+
+        Path file = directory.resolve("file.txt");
+        Files.write(file, new byte[512]);
+        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITES_PER_INVOCATION)
+    public boolean writeRecords() {
+        for (int i = 0; i < WRITES_PER_INVOCATION; i++) {
+            Path path = root.resolve("directory-" + written / 1000).resolve("file-" + written++ + ".txt");
+            dataStore.updateLocalRecord(backup, LocalRecord.create(backup, path, attributes));
+        }
+        return dataStore.flush(1, TimeUnit.MINUTES);
+    }
+}
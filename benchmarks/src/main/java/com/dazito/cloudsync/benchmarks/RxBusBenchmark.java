@@ -0,0 +1,76 @@
+package com.dazito.cloudsync.benchmarks;
+
+import com.dazito.cloudsync.engine.event.BackupEvent;
+import com.dazito.cloudsync.engine.event.CloudSyncRxBus;
+import com.dazito.cloudsync.engine.event.CloudSyncRxBusImpl;
+import io.reactivex.disposables.Disposable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Measures the throughput of file system events through the event bus to a subscriber, one at a time and in the
+ * batches the watcher sends. One operation is one event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RxBusBenchmark {
+
+    static final int BATCH_SIZE = 100;
+
+    private CloudSyncRxBus bus;
+    private Disposable subscription;
+    private BackupEvent event;
+    private List<BackupEvent> batch;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        bus = new CloudSyncRxBusImpl();
+        subscription = bus.getBackupEventObservable().subscribe(blackhole::consume);
+
+        Path backupPath = Paths.get("/home/user/Documents").toAbsolutePath();
+        event = new BackupEvent(ENTRY_MODIFY, backupPath.resolve("file.txt"), backupPath);
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(new BackupEvent(ENTRY_MODIFY, backupPath.resolve("file-" + i + ".txt"), backupPath));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        subscription.dispose();
+    }
+
+    @Benchmark
+    public void setBackupEvent() {
+        bus.setBackupEvent(event);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void setBackupEvents() {
+        bus.setBackupEvents(batch);
+    }
+}
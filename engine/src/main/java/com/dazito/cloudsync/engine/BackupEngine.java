@@ -1,34 +1,74 @@
 package com.dazito.cloudsync.engine;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.dazito.cloudsync.engine.cloud.CloudStore;
+import com.dazito.cloudsync.engine.cloud.Transfer;
 import com.dazito.cloudsync.engine.db.DataStore;
+import com.dazito.cloudsync.engine.db.PathIndex;
 import com.dazito.cloudsync.engine.event.BackupEvent;
+import com.dazito.cloudsync.engine.event.BackupEventCoalescer;
 import com.dazito.cloudsync.engine.event.CloudSyncRxBus;
+import com.dazito.cloudsync.engine.event.MoveDetector;
+import com.dazito.cloudsync.engine.journal.TaskJournal;
+import com.dazito.cloudsync.engine.metrics.Counter;
+import com.dazito.cloudsync.engine.metrics.Histogram;
+import com.dazito.cloudsync.engine.metrics.Metrics;
 import com.dazito.cloudsync.engine.model.Backup;
 import com.dazito.cloudsync.engine.model.LocalRecord;
+import com.dazito.cloudsync.engine.model.Pack;
+import com.dazito.cloudsync.engine.pack.PackCompactor;
+import com.dazito.cloudsync.engine.pack.SmallFilePacker;
+import com.dazito.cloudsync.engine.scan.ConsistencyReconciler;
+import com.dazito.cloudsync.engine.scan.DirtyDirectoryTracker;
+import com.dazito.cloudsync.engine.scan.FileScanner;
+import com.dazito.cloudsync.engine.scan.ScanResult;
+import com.dazito.cloudsync.engine.scan.ScannedFile;
 import com.dazito.cloudsync.engine.util.CacheService;
+import com.dazito.cloudsync.engine.util.ContentHasher;
 import com.dazito.cloudsync.engine.util.Task;
 import com.dazito.cloudsync.engine.util.TaskQueue;
+import com.dazito.cloudsync.engine.util.Threads;
 import com.dazito.cloudsync.engine.util.WatchDir;
+import com.dazito.cloudsync.engine.util.config.Config;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
-import io.reactivex.schedulers.Schedulers;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.inject.Inject;
 
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
 @Slf4j
 public class BackupEngine {
+    // how long shutdown waits for files that are queued to be hashed
+    private static final long SHUTDOWN_HASH_TIMEOUT_SECONDS = 30;
+    // how long shutdown waits for the jobs the cloud store has taken, e.g. uploads in flight
+    private static final long SHUTDOWN_UPLOAD_TIMEOUT_SECONDS = 60;
+    // how long shutdown waits for the records of the jobs that ended to be committed to the local database
+    private static final long SHUTDOWN_FLUSH_TIMEOUT_SECONDS = 30;
+
     // local data store
     private final DataStore localDataStore;
 
@@ -43,6 +83,42 @@ public class BackupEngine {
 
     private CacheService cacheService;
 
+    // walks the backup directories for consistency checks
+    private final FileScanner fileScanner;
+
+    // collapses bursts of file system events
+    private final BackupEventCoalescer eventCoalescer;
+
+    // rescans directories whose file system events were lost
+    private final DirtyDirectoryTracker dirtyDirectoryTracker;
+
+    // records pending tasks across restarts
+    private final TaskJournal taskJournal;
+
+    // hashes file contents before they are uploaded
+    private final ContentHasher contentHasher;
+    // the files that have been handed to the hasher and not passed on yet, with their backups
+    private final Map<Path, Backup> beingHashed = new ConcurrentHashMap<>();
+
+    // pairs deletes and creates of moved files
+    private final MoveDetector moveDetector;
+
+    // packs small files together, and compacts the packs
+    private final SmallFilePacker packer;
+    private final PackCompactor packCompactor;
+
+    private final Config config;
+
+    // instruments the engine, the event metrics are kept as they are recorded for every event
+    private final Metrics metrics;
+    private final Map<WatchEvent.Kind<?>, Counter> eventCounts = new HashMap<>();
+    private final Histogram eventLag;
+
+    // the threads file system events are handled on
+    private final Threads threads;
+
+    private WatchDir watchDir;
+
     public static void main(String[] args) {
         Injector injector = Guice.createInjector(new BackupEngineModule());
         BackupEngine backupEngine = injector.getInstance(BackupEngine.class);
@@ -50,86 +126,317 @@ public class BackupEngine {
     }
 
     @Inject
-    private BackupEngine(DataStore dataStore, CloudStore cloudStore, TaskQueue taskQueue, CloudSyncRxBus cloudSyncRxBus, CacheService cacheService) {
+    private BackupEngine(DataStore dataStore, CloudStore cloudStore, TaskQueue taskQueue, CloudSyncRxBus cloudSyncRxBus, CacheService cacheService,
+                         FileScanner fileScanner, BackupEventCoalescer eventCoalescer,
+                         DirtyDirectoryTracker dirtyDirectoryTracker, TaskJournal taskJournal, ContentHasher contentHasher,
+                         MoveDetector moveDetector, SmallFilePacker packer, PackCompactor packCompactor, Metrics metrics,
+                         Threads threads, Config config) {
         this.localDataStore = dataStore;
         this.cloudStore = cloudStore;
         this.taskQueue = taskQueue;
         this.cloudSyncRxBus = cloudSyncRxBus;
         this.cacheService = cacheService;
+        this.fileScanner = fileScanner;
+        this.eventCoalescer = eventCoalescer;
+        this.dirtyDirectoryTracker = dirtyDirectoryTracker;
+        this.taskJournal = taskJournal;
+        this.contentHasher = contentHasher;
+        this.moveDetector = moveDetector;
+        this.packer = packer;
+        this.packCompactor = packCompactor;
+        this.config = config;
+        this.metrics = metrics;
+        this.threads = threads;
+
+        for (WatchEvent.Kind<?> kind : new WatchEvent.Kind<?>[] { ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE, OVERFLOW }) {
+            eventCounts.put(kind, metrics.counter("cloudsync_events_total", "File system events received from the watcher",
+                    "kind", kind.name()));
+        }
+        this.eventLag = metrics.histogram("cloudsync_event_lag_seconds",
+                "Time events waited on the event bus, after coalescing, before they were handled", Histogram.LATENCY_SECONDS);
     }
 
     private void start() {
+        metrics.start();
+
+        // the cloud store takes the tasks of the queue from here on
+        cloudStore.start();
+
         // load backup model
         List<Backup> backupList = localDataStore.getBackupList();
 
-        // for each backup, we need to ensure that there is a corresponding container in the cloud, and
-        // because the app is just booting up, we need to do a full consistency check on each backup
-        backupList.forEach(backup -> {
+        // small files are packed from the consistency check on
+        packer.start(this::uploadPack);
+
+        // find out which tasks were still pending when we last stopped, and whether we stopped cleanly
+        TaskJournal.Recovery recovery = openTaskJournal();
+
+        // because the app is just booting up, we need to do a full consistency check on each backup - the database
+        // only reflects what happened while we were running, so a clean shutdown is only trusted if the config says
+        // that the backup folders don't change while we are stopped
+        boolean skipScan = recovery.isCleanShutdown() && config.isSkipScanAfterCleanShutdown();
+
+        // for each backup, we need to ensure that there is a corresponding container in the cloud
+        for (Backup backup : backupList) {
+
             // Cache all Backups
             cacheService.cacheBackup(backup.getRootDirectory(), backup);
 
+            // load the in-memory record index, which is used from here on to check file system events
+            PathIndex index = localDataStore.getPathIndex(backup);
+            log.debug("Loaded {} records of backup ::{}:: into the path index, using {} KB",
+                    index.size(), backup.getBackupName(), index.getMemoryUsage() / 1024);
+
             // make a backup container on Azure Storage if it doesn't currently exist
             validateBackupContainerExists(backup);
+        }
 
-            // run a startup consistency check to make sure we are consistent between local filesystem, local database,
-            // and remote storage
-            runConsistencyCheck(backup);
-        });
+        // run a startup consistency check to make sure we are consistent between local filesystem, local database,
+        // and remote storage
+        if (skipScan) {
+            log.info("Previous run shut down cleanly, skipping the consistency check");
+            resumePendingTasks(backupList, recovery);
+        } else {
+            runConsistencyChecks(backupList);
+        }
+
+        // make sure that the journal ends cleanly when we are stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "backup-engine-shutdown"));
+
+        if (packer.isEnabled()) {
+            packCompactor.start(backupList);
+        }
 
         // start up the folder watcher to watch for changes at runtime
         startFolderWatcher(backupList);
     }
 
+    private TaskJournal.Recovery openTaskJournal() {
+        try {
+            return taskJournal.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open the task journal", e);
+        }
+    }
+
+    /*
+     * Tasks that were still pending when the previous run stopped are checked again - they may well have been
+     * superseded by another change since.
+     */
+    private void resumePendingTasks(List<Backup> backupList, TaskJournal.Recovery recovery) {
+        log.info("Resuming {} pending tasks", recovery.getPendingIntents().size());
+        for (TaskJournal.Intent intent : recovery.getPendingIntents()) {
+            backupList.stream()
+                    .filter(backup -> backup.getId() == intent.getBackupId())
+                    .findFirst()
+                    .ifPresent(backup -> {
+                        if (intent.getType() == Task.Type.DELETE_FILE) {
+                            removeFile(backup, intent.getPath());
+                        } else if (intent.getType() == Task.Type.UPLOAD_PACK) {
+                            intent.getPackedPaths().forEach(path -> checkFile(backup, path));
+                        } else if (intent.getType() == Task.Type.MOVE_FILE) {
+                            // the delete is held back first, so that the file is detected as moved once more
+                            removeFile(backup, intent.getSourcePath());
+                            checkFile(backup, intent.getPath());
+                        } else {
+                            checkFile(backup, intent.getPath());
+                        }
+                    });
+        }
+    }
+
+    private void shutdown() {
+        log.info("Shutting down");
+        try {
+            if (watchDir != null) {
+                watchDir.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to stop watching for file system events", e);
+        }
+
+        // files that are being hashed become tasks once they are hashed - those that are still waiting to be hashed
+        // when the hasher gives up are recorded to be resumed on the next start
+        if (!contentHasher.shutdown(SHUTDOWN_HASH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            beingHashed.forEach((path, backup) ->
+                    taskJournal.logIntent(Task.create(Task.Type.REPLACE_FILE, backup, path, null)));
+        }
+
+        // nor have the files in packs that are still being filled
+        packer.drainPending().forEach((backup, paths) -> paths.forEach(path ->
+                taskJournal.logIntent(Task.create(Task.Type.UPLOAD_FILE, backup, path, null))));
+
+        // deletes that are held back for move detection have not become tasks yet either
+        for (MoveDetector.HeldDelete heldDelete : moveDetector.drainPending()) {
+            taskJournal.logIntent(Task.create(Task.Type.DELETE_FILE, heldDelete.getBackup(), heldDelete.getRecord().getPath(), null));
+        }
+
+        // events that are still held back have not become tasks yet, so record them to be resumed on the next start
+        for (BackupEvent event : eventCoalescer.drainPending()) {
+            cacheService.getBackup(event.getBackupPath()).ifPresent(backup -> {
+                Task.Type type = event.getKind() == ENTRY_DELETE ? Task.Type.DELETE_FILE : Task.Type.REPLACE_FILE;
+                taskJournal.logIntent(Task.create(type, backup, event.getPath(), null));
+            });
+        }
+
+        // the jobs the cloud store has taken write their records and complete their tasks as they end - a job that is
+        // still running when the records are flushed may complete its task without its record, so the next start
+        // has to do a full check then
+        boolean storeStopped = cloudStore.shutdown(SHUTDOWN_UPLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        // the completions in the journal must not get ahead of the records they wrote
+        boolean recordsFlushed = localDataStore.flush(SHUTDOWN_FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!recordsFlushed) {
+            log.warn("Timed out writing the records to the local database, the next start will do a full check");
+        }
+
+        // if events were lost and their directories not rescanned yet, the next start needs to do a full check
+        taskJournal.close(storeStopped && recordsFlushed && !dirtyDirectoryTracker.hasDirtyDirectories());
+
+        metrics.stop();
+    }
+
     private void validateBackupContainerExists(Backup backup) {
         cloudStore.createContainer(backup);
     }
 
     /*
+     * Checks all backups at the same time, each walk streamed into the merge with its records, and returns once every
+     * backup is checked. The I/O of the walks is limited per device by the scanner, so backups on different devices
+     * are walked in parallel, while those on the same device share its limit.
+     */
+    private void runConsistencyChecks(List<Backup> backupList) {
+        ExecutorService checks = threads.newExecutor("consistency-check",
+                Math.max(1, Math.min(backupList.size(), config.getScanParallelism())), true);
+        try {
+            CompletableFuture.allOf(backupList.stream()
+                    .map(backup -> CompletableFuture.runAsync(() -> runConsistencyCheck(backup), checks))
+                    .toArray(CompletableFuture<?>[]::new))
+                    .join();
+        } finally {
+            checks.shutdown();
+        }
+    }
+
+    /**
      * Checks the consistency of a backup against the local database for that backup:
      *  1) Are there files in the local database that are not visible on the filesystem? Remove from cloud!
      *  2) Are there files in the file system that are not in the local database? Upload to cloud!
      *  3) Do properties (file size, last modified, etc) of any file differ from the local database? Replace file in cloud!
+     *
+     * All three checks are answered in a single pass, by merging the path ordered records from the local database
+     * with a path ordered walk of the file system, which is streamed into the merge as it goes.
      */
-    private void runConsistencyCheck(Backup backup) {
+    public void runConsistencyCheck(Backup backup) {
         log.info("Performing consistency check for backup ::{}:: in directory ::{}::",
                 backup.getBackupName(), backup.getRootDirectoryString());
 
-        // check 1 - remove files from Cloud Storage which no longer exist on the file system
-        localDataStore
-                .getBackupRecords(backup)
-                .filter(record -> !Files.exists(record.getPath()))
-                .forEach(record -> removeFile(backup, record));
+        long start = System.nanoTime();
+        ConsistencyReconciler.Result result;
+        try (Stream<LocalRecord> records = localDataStore.getBackupRecords(backup)) {
+            result = reconcile(backup, records, fileScanner.scan(backup.getRootDirectory()));
+        } catch (RuntimeException e) {
+            log.error("Unable to scan backup ::{}::, skipping the rest of its consistency check", backup.getBackupName(), e);
+            return;
+        }
+        recordConsistencyCheck(backup, result, System.nanoTime() - start);
 
-        // checks 2 and 3 - looking for local file system changes that have not been uploaded yet
-        try {
-            Files.find(backup.getRootDirectory(), 10000, (path, attributes) -> attributes.isRegularFile())
-                    .forEach(p -> checkFile(backup, p));
-        } catch (IOException e) {
-            e.printStackTrace();
+       log.info("Consistency check for backup ::{}:: in directory ::{}:: is now complete: {}",
+               backup.getBackupName(), backup.getRootDirectoryString(), result);
+    }
+
+    /*
+     * The duration of a check covers both the walk and the merge with the records, as the two run together.
+     */
+    private void recordConsistencyCheck(Backup backup, ConsistencyReconciler.Result result, long nanos) {
+        String name = backup.getBackupName();
+        long checked = result.getNewFiles() + result.getChangedFiles() + result.getUnchangedFiles();
+        metrics.histogram("cloudsync_consistency_check_duration_seconds", "Time taken by consistency checks",
+                Histogram.LATENCY_SECONDS, "backup", name).observeNanos(nanos);
+        metrics.counter("cloudsync_consistency_check_files_total", "Files checked by consistency checks",
+                "backup", name).add(checked);
+        metrics.gauge("cloudsync_consistency_check_files_per_second", "Files checked per second by the last consistency check",
+                "backup", name).set(nanos > 0 ? checked * 1e9 / nanos : 0);
+    }
+
+    /*
+     * Runs the consistency check for a single directory of a backup, whose file system events may have been lost.
+     */
+    private void rescanDirectory(Backup backup, Path directory) {
+        ScanResult files = fileScanner.scan(directory);
+
+        ConsistencyReconciler.Result result;
+        try (Stream<LocalRecord> records = localDataStore.getBackupRecords(backup, directory)) {
+            result = reconcile(backup, records, files);
         }
+        log.info("Rescan of ::{}:: is now complete: {}", directory, result);
+    }
 
-       log.info("Consistency check for backup ::{}:: in directory ::{}:: is now complete",
-               backup.getBackupName(), backup.getRootDirectoryString() );
+    private ConsistencyReconciler.Result reconcile(Backup backup, Stream<LocalRecord> records, ScanResult files) {
+        // a file that is missing in one part of the tree may show up as new in another, which the walk can get to
+        // much later, so held deletes are kept until the walk is done
+        moveDetector.startWalk();
+        try {
+            return ConsistencyReconciler.reconcile(backup, records.iterator(), files.iterator(), new ConsistencyReconciler.Listener() {
+                @Override public void onNewFile(ScannedFile file) {
+                    uploadNewFile(backup, file.getPath());
+                }
+
+                @Override public void onChangedFile(LocalRecord record, ScannedFile file) {
+                    replaceFile(backup, file.getPath(), record);
+                }
+
+                @Override public void onMissingFile(LocalRecord record) {
+                    removeFile(backup, record);
+                }
+            });
+        } finally {
+            moveDetector.endWalk();
+        }
     }
 
     private void startFolderWatcher(List<Backup> backupList) {
         try {
-            // Subscribe to listen for BackupEvent events
-			cloudSyncRxBus.getBackupEventObservable()
-					.observeOn(Schedulers.computation())
+            // Subscribe to listen for BackupEvent events, with bursts of events for the same file collapsed into one
+			// Count the events as they come from the watcher, before they are coalesced
+			cloudSyncRxBus.getBackupEventObservable().subscribe(this::countEvent);
+
+			// An upload of a file that changes again is cancelled right away, unless it has got far already, and the
+			// coalesced event uploads it anew
+			cloudSyncRxBus.getBackupEventObservable().subscribe(this::cancelSupersededUpload);
+
+			eventCoalescer.coalesce(cloudSyncRxBus.getBackupEventObservable())
+					.observeOn(threads.newScheduler("event-handler"))
 					.subscribe(this::handleBackupEvent);
 
+			// Rescan directories whose events were lost
+			dirtyDirectoryTracker.start(this::rescanDirectory);
+
 			// Start watching the directory
-            new WatchDir(backupList, true, cloudSyncRxBus);
+            watchDir = new WatchDir(backupList, true, cloudSyncRxBus);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void countEvent(BackupEvent backupEvent) {
+        Counter count = eventCounts.get(backupEvent.getKind());
+        if (count != null) {
+            count.increment();
+        }
+    }
+
+    private void cancelSupersededUpload(BackupEvent backupEvent) {
+        if (backupEvent.getKind() != OVERFLOW && taskQueue.cancelUpload(backupEvent.getPath())) {
+            log.debug("Cancelled the upload of {}, it has changed again", backupEvent.getPath());
+        }
+    }
+
     // Appropriately handle BackupEvents, check the event type and act accordingly
     private void handleBackupEvent(final BackupEvent backupEvent) {
+        eventLag.observeNanos(System.nanoTime() - backupEvent.getCreatedNanos());
         log.debug("Received a new event: {} - {} on thread: {}",
-                backupEvent.getWatchEvent().kind().toString(),
+                backupEvent.getKind().toString(),
                 backupEvent.getPath(),
                 Thread.currentThread().toString()
         );
@@ -145,9 +452,21 @@ public class BackupEngine {
                     return newBackup;
                 });
 
-        WatchEvent.Kind eventKind = backupEvent.getWatchEvent().kind();
+        WatchEvent.Kind<?> eventKind = backupEvent.getKind();
 
-        if (eventKind == ENTRY_CREATE || eventKind == ENTRY_MODIFY) {
+        if (eventKind == OVERFLOW) {
+            // we don't know what happened in this directory, so it has to be rescanned
+            dirtyDirectoryTracker.markDirty(backup, backupEvent.getPath());
+        }
+        else if (eventKind == ENTRY_CREATE && Files.isDirectory(backupEvent.getPath(), NOFOLLOW_LINKS)) {
+            // a directory that is moved or copied in shows up as a single event, so its files have to be found
+            try {
+                rescanDirectory(backup, backupEvent.getPath());
+            } catch (RuntimeException e) {
+                log.error("Unable to scan the new directory {}", backupEvent.getPath(), e);
+            }
+        }
+        else if (eventKind == ENTRY_CREATE || eventKind == ENTRY_MODIFY) {
             checkFile(backup, backupEvent.getPath());
         }
         else if (eventKind == ENTRY_DELETE) {
@@ -157,45 +476,229 @@ public class BackupEngine {
     }
 
     private void checkFile(Backup backup, Path path) {
-        LocalRecord localRecord = localDataStore.getLocalRecord(backup, path);
-        if (localRecord == null) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // the file has already gone again - its delete event will follow
+            log.debug("Unable to read attributes of {}: {}", path, e.getMessage());
+            return;
+        }
+        if (!attributes.isRegularFile()) {
+            return;
+        }
+
+        long state = localDataStore.getPathIndex(backup)
+                .lookup(backup.getRelativePath(path), attributes.lastModifiedTime().toMillis(), attributes.size());
+        if (state == PathIndex.NOT_FOUND) {
             // we don't know about this file - we should add it to our upload list!
             uploadNewFile(backup, path);
         }
-        else {
-            // we do know of this file, but we must ensure that the file system version matches
-            // what we have in our database
-            if (!localRecord.matches(path)) {
-                // what we have recorded does not match with what the file is reporting,
-                // so we must delete the old file on Azure and replace it with this file
+        else if (state != PathIndex.UNCHANGED) {
+            // we do know of this file, but what we have recorded does not match with what the file is reporting,
+            // so we must delete the old file on Azure and replace it with this file
+            LocalRecord localRecord = localDataStore.getLocalRecord(state);
+            if (localRecord != null) {
                 replaceFile(backup, path, localRecord);
             }
         }
     }
 
     private void uploadNewFile(Backup backup, Path p) {
-        taskQueue.send(Task.create(Task.Type.UPLOAD_FILE, backup, p, () -> {
-            // on success, create new LocalRecord
-            LocalRecord.create(backup, p).ifPresent(record -> localDataStore.updateLocalRecord(backup, record));
+        // a new file that looks like a file that was just deleted may have been moved here, if the hashes agree -
+        // otherwise nothing is decided by its hash, which is only worth reading the file for if a delta upload needs it
+        MoveDetector.HeldDelete claimed = moveDetector.claim(backup, p);
+        hashFile(backup, p, attributes -> claimed != null || isDeltaUpload(attributes), (attributes, hash) -> {
+            // the delete may only have arrived while the file was being hashed
+            MoveDetector.HeldDelete source = claimed != null ? claimed : hash != null ? moveDetector.claim(backup, p) : null;
+            if (source != null) {
+                if (moveDetector.isSameContent(source, hash)) {
+                    moveFile(backup, source.getRecord(), p, attributes, hash);
+                    return;
+                }
+                moveDetector.release(source);
+            }
+
+            if (packer.add(backup, p, hash, null)) {
+                return;
+            }
+            taskQueue.send(Task.create(Task.Type.UPLOAD_FILE, backup, p, hash, () -> {
+                // on success, create new LocalRecord - of the file as it was hashed, it may have changed since
+                LocalRecord record = LocalRecord.create(backup, p, attributes);
+                record.setContentHash(hash);
+                localDataStore.updateLocalRecord(backup, record);
+            }));
+        }, () -> {
+            if (claimed != null) {
+                moveDetector.release(claimed);
+            }
+        });
+    }
+
+    /*
+     * The file of the given record has been moved to the given path, so its object is moved within the cloud store.
+     */
+    private void moveFile(Backup backup, LocalRecord source, Path target, BasicFileAttributes attributes, String hash) {
+        log.debug("Detected that {} was moved to {}", source.getPath(), target);
+        if (source.getPackId() != null) {
+            // the content stays where it is in its pack, only the record moves - the new record is written first, so
+            // that the pack never looks unreferenced to the compactor in between
+            LocalRecord record = LocalRecord.create(backup, target, attributes);
+            record.setContentHash(hash);
+            record.setPack(source.getPackId(), source.getPackOffset(), source.getPackLength());
+            localDataStore.updateLocalRecord(backup, record);
+            localDataStore.deleteLocalRecord(source);
+            return;
+        }
+
+        taskQueue.send(Task.createMove(backup, source.getPath(), target, hash, () -> {
+            // on success, the record of the old path is replaced by one for the new path
+            localDataStore.deleteLocalRecord(source);
+            LocalRecord record = LocalRecord.create(backup, target, attributes);
+            record.setContentHash(hash);
+            localDataStore.updateLocalRecord(backup, record);
         }));
     }
 
     private void replaceFile(Backup backup, Path p, LocalRecord localRecord) {
-        taskQueue.send(Task.create(Task.Type.REPLACE_FILE, backup, p, () -> {
-            // on success, update existing LocalRecord
-            localRecord.update(backup, p);
-            localDataStore.updateLocalRecord(backup, localRecord);
-        }));
+        // a file whose size changed has changed content, so the hash is only read when the size is the same, or if a
+        // delta upload needs it
+        Predicate<BasicFileAttributes> needsHash = attributes ->
+                attributes.size() == localRecord.getSize() || isDeltaUpload(attributes);
+        hashFile(backup, p, needsHash, (attributes, hash) -> {
+            if (hash != null && hash.equals(localRecord.getContentHash())) {
+                // only the metadata changed, e.g. after a touch or a checkout, so there is nothing to upload
+                log.debug("Content of {} is unchanged, updating its record only", p);
+                localRecord.update(backup, p, attributes);
+                localDataStore.updateLocalRecord(backup, localRecord);
+                return;
+            }
+
+            if (packer.add(backup, p, hash, localRecord)) {
+                return;
+            }
+            taskQueue.send(Task.create(Task.Type.REPLACE_FILE, backup, p, hash, () -> {
+                // on success, update existing LocalRecord with the file as it was hashed - its content is no longer in
+                // a pack, if it was before
+                localRecord.update(backup, p, attributes);
+                localRecord.setContentHash(hash);
+                localRecord.setPack(null, 0, 0);
+                localDataStore.updateLocalRecord(backup, localRecord);
+            }));
+        }, () -> { });
     }
 
-    private void removeFile(Backup backup, Path p) {
-        LocalRecord localRecord = localDataStore.getLocalRecord(backup, p);
-        if (localRecord == null) {
-            // something odd - we are trying to remove a file from the cloud that isn't in the local data store
-            // TODO handle this appropriately
+    /*
+     * A pack of small files has been sealed. Once it has been uploaded, the records of its files point into it.
+     */
+    private void uploadPack(SmallFilePacker.SealedPack pack) {
+        Backup backup = pack.getBackup();
+        Task task = Task.createPack(backup, pack.getPath(), pack.getData(), pack.getPaths(), () -> {
+            // the pack itself is written last, so that the compactor never sees a pack without the records pointing into it
+            for (SmallFilePacker.Entry entry : pack.getEntries()) {
+                LocalRecord record = entry.getRecord();
+                if (record == null) {
+                    record = LocalRecord.create(backup, entry.getPath()).orElse(null);
+                    if (record == null) {
+                        // gone again, its delete event will follow
+                        continue;
+                    }
+                } else if (record.getPackId() == null) {
+                    // the file was an object of its own until now
+                    cloudStore.removeFile(backup, entry.getPath(), null);
+                }
+
+                // what is recorded is what was packed, the file may have changed since
+                record.setLastModifiedTime(entry.getLastModifiedTime());
+                record.setSize(entry.getLength());
+                record.setContentHash(entry.getContentHash());
+                record.setPack(pack.getId(), entry.getOffset(), entry.getLength());
+                localDataStore.updateLocalRecord(backup, record);
+            }
+            localDataStore.updatePack(new Pack(pack.getId(), backup, pack.getData().remaining()));
+        });
+        taskQueue.send(task);
+
+        // the packer holds back further packs until this one's upload has ended, one way or another
+        Transfer transfer = task.getTransfer();
+        if (transfer != null) {
+            transfer.whenDone(pack::release);
         } else {
+            pack.release();
+        }
+    }
+
+    /*
+     * Hashes the file on the hasher's threads, so that files are hashed in parallel, and passes the hash on, together
+     * with the attributes the file had before it was read. Those are what gets recorded: if the file changes while it
+     * is hashed or uploaded, its recorded modification time is older than the file's, so the change isn't missed.
+     *
+     * Files whose attributes show that their hash is not needed are passed on right away, with a null hash.
+     */
+    private void hashFile(Backup backup, Path p, Predicate<BasicFileAttributes> needsHash,
+                          BiConsumer<BasicFileAttributes, String> then, Runnable orElse) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // the file has gone again, its delete event will follow
+            log.debug("Unable to read attributes of {}: {}", p, e.getMessage());
+            orElse.run();
+            return;
+        }
+        if (!needsHash.test(attributes)) {
+            then.accept(attributes, null);
+            return;
+        }
+
+        CompletableFuture<String> hashing;
+        // until the file has been hashed, its change is only known here - see shutdown()
+        beingHashed.put(p, backup);
+        try {
+            hashing = contentHasher.hash(p);
+        } catch (RejectedExecutionException e) {
+            beingHashed.remove(p, backup);
+            log.debug("Not hashing {}, shutting down", p);
+            orElse.run();
+            return;
+        }
+        hashing.whenComplete((hash, error) -> {
+            try {
+                if (error != null) {
+                    // most likely the file has gone again, its delete event will follow
+                    log.debug("Unable to hash {}: {}", p, error.getMessage());
+                    orElse.run();
+                } else {
+                    then.accept(attributes, hash);
+                }
+            } finally {
+                // a file that failed because the hasher gave up on it is recorded by shutdown()
+                if (error == null || !contentHasher.isShutdown()) {
+                    beingHashed.remove(p, backup);
+                }
+            }
+        });
+    }
+
+    // a delta upload keeps the signature of what it uploaded, which is checked against the object by its hash
+    private boolean isDeltaUpload(BasicFileAttributes attributes) {
+        return config.isDeltaUploads() && attributes.size() >= config.getMultipartThreshold();
+    }
+
+    private void removeFile(Backup backup, Path p) {
+        long recordId = localDataStore.getPathIndex(backup).getRecordId(backup.getRelativePath(p));
+        LocalRecord localRecord = recordId == PathIndex.NOT_FOUND ? null : localDataStore.getLocalRecord(recordId);
+        if (localRecord != null) {
             removeFile(backup, localRecord);
+            return;
+        }
+
+        // a directory that is deleted or moved away shows up as a single event, so all of the records below it go
+        List<LocalRecord> records;
+        try (Stream<LocalRecord> recordsBelow = localDataStore.getBackupRecords(backup, p)) {
+            records = recordsBelow.collect(Collectors.toList());
         }
+        records.forEach(record -> removeFile(backup, record));
     }
 
     /*
@@ -203,8 +706,16 @@ public class BackupEngine {
      * therefore remove the LocalRecord from the local data store, and also from Azure Storage.
      */
     private void removeFile(Backup backup, LocalRecord localRecord) {
-        taskQueue.send(Task.create(Task.Type.DELETE_FILE, backup, localRecord.getPath(), () -> {
-            localDataStore.deleteLocalRecord(localRecord);
-        }));
+        // the file may show up elsewhere in a moment, in which case it is moved rather than deleted
+        moveDetector.holdDelete(backup, localRecord, () -> {
+            if (localRecord.getPackId() != null) {
+                // the content stays in its pack until the pack is compacted
+                localDataStore.deleteLocalRecord(localRecord);
+                return;
+            }
+            taskQueue.send(Task.create(Task.Type.DELETE_FILE, backup, localRecord.getPath(), () -> {
+                localDataStore.deleteLocalRecord(localRecord);
+            }));
+        });
     }
 }
\ No newline at end of file
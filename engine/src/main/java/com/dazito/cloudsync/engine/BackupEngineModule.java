@@ -2,14 +2,19 @@ package com.dazito.cloudsync.engine;
 
 import com.dazito.cloudsync.engine.cloud.CloudStore;
 import com.dazito.cloudsync.engine.cloud.aws.AwsCloudStore;
+import com.dazito.cloudsync.engine.cloud.azure.AzureCloudStore;
+import com.dazito.cloudsync.engine.cloud.simulated.SimulatedCloudStore;
 import com.dazito.cloudsync.engine.db.DataStore;
 import com.dazito.cloudsync.engine.db.jpa.JPADataStore;
 import com.dazito.cloudsync.engine.event.CloudSyncRxBus;
 import com.dazito.cloudsync.engine.event.CloudSyncRxBusImpl;
 import com.dazito.cloudsync.engine.util.config.Config;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 import net.jmob.guice.conf.core.ConfigurationModule;
 
+import javax.inject.Provider;
+import javax.inject.Singleton;
 import java.io.File;
 
 public class BackupEngineModule extends AbstractModule {
@@ -19,9 +24,23 @@ public class BackupEngineModule extends AbstractModule {
         install(new ConfigurationModule().fromPath(new File("./")));
         requestInjection(Config.class);
 
-//        bind(CloudStore.class).to(AzureCloudStore.class);
-        bind(CloudStore.class).to(AwsCloudStore.class);
         bind(DataStore.class).to(JPADataStore.class);
         bind(CloudSyncRxBus.class).to(CloudSyncRxBusImpl.class);
     }
-}
\ No newline at end of file
+
+    // only the configured store is created, as every store takes the tasks of the task queue once created
+    @Provides @Singleton
+    CloudStore provideCloudStore(Config config, Provider<AwsCloudStore> aws, Provider<AzureCloudStore> azure,
+                                 Provider<SimulatedCloudStore> simulated) {
+        switch (config.getCloudStore().toLowerCase()) {
+            case "aws":
+                return aws.get();
+            case "azure":
+                return azure.get();
+            case "simulated":
+                return simulated.get();
+            default:
+                throw new IllegalArgumentException("Unknown cloud store '" + config.getCloudStore() + "'");
+        }
+    }
+}
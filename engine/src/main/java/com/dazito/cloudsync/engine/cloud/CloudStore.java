@@ -2,13 +2,49 @@ package com.dazito.cloudsync.engine.cloud;
 
 import com.dazito.cloudsync.engine.model.Backup;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 
 public interface CloudStore {
 
+    // the metadata key of the hex encoded SHA-256 of an uploaded file's content
+    String CONTENT_HASH_METADATA_KEY = "cloudsync-sha256";
+
+    /**
+     * Starts taking the tasks of the task queue, which are not taken before. Called once, before tasks are sent.
+     */
+    void start();
+
     void createContainer(Backup backup);
 
-    void uploadFile(Backup backup, Path p, Runnable onSuccess);
+    /**
+     * Uploads a file, and returns the handle of the upload, by which it can be cancelled, e.g. once the file has
+     * changed again. The success runnable is not run if the upload is cancelled.
+     */
+    Transfer uploadFile(Backup backup, Path p, String contentHash, Runnable onSuccess);
 
     void removeFile(Backup backup, Path p, Runnable onSuccess);
+
+    /**
+     * Uploads a pack of small files to the key of the given pack path. Packs are encrypted if encryption is enabled,
+     * but never compressed, so that the files in them can be read with ranged reads.
+     */
+    Transfer uploadPack(Backup backup, Path packPath, ByteBuffer data, Runnable onSuccess);
+
+    /**
+     * Moves an uploaded file to the key of another path within the cloud store, by copying it there and deleting
+     * the original, so the content does not have to be uploaded again. If the copy fails, e.g. because the original
+     * was never uploaded, the file is uploaded from the new path instead, and the returned handle is that of the upload
+     * from then on. Encrypted files are always uploaded from the new path, as an encrypted object can only be
+     * decrypted under the key it was uploaded to.
+     */
+    Transfer moveFile(Backup backup, Path source, Path target, String contentHash, Runnable onSuccess);
+
+    /**
+     * Sends the deletes that are still being batched, stops taking jobs and waits up to the given time for the jobs
+     * it has taken to end, so that their success runnables have run. Jobs that are still queued after that are dropped,
+     * their tasks remain pending in the journal. Returns whether all jobs ended in time.
+     */
+    boolean shutdown(long timeout, TimeUnit unit);
 }
@@ -0,0 +1,195 @@
+package com.dazito.cloudsync.engine.cloud;
+
+import com.dazito.cloudsync.engine.util.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The handle of a job a cloud store has been given, e.g. the upload of a file, by which the job can be cancelled
+ * while it is queued or running. A job that is cancelled before it starts is skipped. A job that is cancelled while it
+ * runs is interrupted, which aborts the request in flight and, for an upload in parts, the upload as a whole.
+ *
+ * <p>A store runs its job wrapped with {@link #guard(Runnable)}, and only runs the success runnable of the job if
+ * {@link #complete()} returns true. Whatever happens, a job is then either completed or cancelled, never both.
+ *
+ * <p>Right before the request that makes an upload visible, e.g. the PUT of a whole object or the completion of a
+ * multipart upload, the job calls {@link #commitCurrent()}. The store may apply such a request even if the job is
+ * interrupted while it waits for the response, so from then on the job can't be cancelled anymore, and completes for
+ * its success runnable to record what was uploaded.
+ */
+public final class Transfer {
+
+    // the transfer of the job running on the current thread
+    private static final ThreadLocal<Transfer> CURRENT = new ThreadLocal<>();
+
+    private boolean cancelled;
+    private boolean committing;
+    private boolean completed;
+    // set while the job runs, and interrupted if the job is cancelled meanwhile
+    private Thread runner;
+    // System.nanoTime() when the job started to run
+    private long startedAt;
+    // the transfer that carries on this one, e.g. the upload a move falls back to
+    private Transfer next;
+    // whether the job has ended, one way or another, and what is to be run once it has
+    private boolean done;
+    private final List<Runnable> whenDone = new ArrayList<>();
+
+    /**
+     * Cancels the job, and returns whether it was cancelled. A job that has completed already, or has sent the
+     * request that makes its upload visible, can't be cancelled.
+     */
+    public synchronized boolean cancel() {
+        if (next != null) {
+            return next.cancel();
+        }
+        if (completed || committing) {
+            return false;
+        }
+        if (!cancelled) {
+            cancelled = true;
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns how far the job has got. A job that failed has ended without completing nor being cancelled. A job
+     * that was handed over is as far as the transfer that carries it on.
+     */
+    public synchronized Task.Status getStatus() {
+        if (next != null) {
+            return next.getStatus();
+        }
+        if (completed) {
+            return Task.Status.COMPLETE;
+        }
+        if (cancelled) {
+            return Task.Status.CANCELLED;
+        }
+        if (runner != null) {
+            return Task.Status.IN_PROGRESS;
+        }
+        return done ? Task.Status.FAILED : Task.Status.QUEUED;
+    }
+
+    /**
+     * Returns for how long the job has been running, 0 if it isn't running. A job that was handed over has been
+     * running for as long as the transfer that carries it on.
+     */
+    public synchronized long getRunningNanos() {
+        if (next != null) {
+            return next.getRunningNanos();
+        }
+        return runner == null ? 0 : System.nanoTime() - startedAt;
+    }
+
+    /**
+     * Wraps the job of this transfer, so that it is skipped if it is cancelled before it starts, and interrupted if
+     * it is cancelled while it runs.
+     */
+    public Runnable guard(Runnable job) {
+        return () -> {
+            boolean skipped;
+            synchronized (this) {
+                skipped = cancelled;
+                if (!skipped) {
+                    runner = Thread.currentThread();
+                    startedAt = System.nanoTime();
+                }
+            }
+            if (skipped) {
+                end();
+                return;
+            }
+            CURRENT.set(this);
+            try {
+                job.run();
+            } finally {
+                CURRENT.remove();
+                synchronized (this) {
+                    runner = null;
+                    done = true;
+                    if (cancelled) {
+                        // the interrupt was meant for the job, not for whatever runs on this thread next
+                        Thread.interrupted();
+                    }
+                }
+                end();
+            }
+        };
+    }
+
+    /**
+     * Marks the job running on the current thread as about to send the request that makes its upload visible, after
+     * which it can't be cancelled anymore. Returns false if it has been cancelled already, in which case the request
+     * must not be sent. Jobs that don't run under a transfer are never cancelled.
+     */
+    public static boolean commitCurrent() {
+        Transfer transfer = CURRENT.get();
+        return transfer == null || transfer.commit();
+    }
+
+    private synchronized boolean commit() {
+        if (cancelled) {
+            return false;
+        }
+        committing = true;
+        return true;
+    }
+
+    /**
+     * Marks the job as completed, unless it has been cancelled. Returns whether it completed, i.e. whether its
+     * success runnable is to be run.
+     */
+    public synchronized boolean complete() {
+        if (cancelled) {
+            return false;
+        }
+        completed = true;
+        return true;
+    }
+
+    /**
+     * Runs the given runnable once the job has ended, whether it completed, failed or was skipped, or right away if
+     * it has ended already. Jobs that don't run guarded end when they complete. The runnable runs on the thread the
+     * job ended on, without holding the lock of the transfer.
+     */
+    public void whenDone(Runnable runnable) {
+        synchronized (this) {
+            if (!done && !(completed && runner == null)) {
+                whenDone.add(runnable);
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+    // the runnables are run outside of the lock, as they may take locks of their own
+    private void end() {
+        List<Runnable> runnables;
+        synchronized (this) {
+            done = true;
+            runnables = new ArrayList<>(whenDone);
+            whenDone.clear();
+        }
+        runnables.forEach(Runnable::run);
+    }
+
+    /**
+     * Hands the rest of the job over to another transfer, which is cancelled instead of this one from then on.
+     */
+    public synchronized void handOver(Transfer transfer) {
+        next = transfer;
+        if (cancelled) {
+            transfer.cancel();
+        }
+    }
+}
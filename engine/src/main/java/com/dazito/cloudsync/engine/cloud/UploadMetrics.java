@@ -0,0 +1,61 @@
+package com.dazito.cloudsync.engine.cloud;
+
+import com.dazito.cloudsync.engine.cloud.throttle.UploadGovernor;
+import com.dazito.cloudsync.engine.metrics.Counter;
+import com.dazito.cloudsync.engine.metrics.Histogram;
+import com.dazito.cloudsync.engine.metrics.Metrics;
+
+/**
+ * The upload metrics of a cloud store, labelled with the store's name. An upload is that of a file or a pack as a
+ * whole, from the moment its job starts until the object is complete, whatever number of requests it took.
+ */
+public class UploadMetrics {
+
+    private final Histogram duration;
+    private final Histogram throughput;
+    private final Counter bytes;
+    private final Counter uploads;
+    private final Counter failures;
+    private final Counter cancellations;
+
+    public UploadMetrics(Metrics metrics, String store, UploadGovernor governor) {
+        duration = metrics.histogram("cloudsync_upload_duration_seconds", "Time taken to upload a file or pack",
+                Histogram.LATENCY_SECONDS, "store", store);
+        throughput = metrics.histogram("cloudsync_upload_throughput_bytes_per_second", "Rate at which a file or pack was uploaded",
+                Histogram.BYTES_PER_SECOND, "store", store);
+        bytes = metrics.counter("cloudsync_uploaded_bytes_total", "Bytes of the files and packs uploaded, before compression and encryption",
+                "store", store);
+        uploads = metrics.counter("cloudsync_uploads_total", "Files and packs uploaded", "store", store);
+        failures = metrics.counter("cloudsync_upload_failures_total", "Uploads of files and packs that failed", "store", store);
+        cancellations = metrics.counter("cloudsync_upload_cancellations_total",
+                "Uploads of files and packs that were cancelled, as the file changed again", "store", store);
+
+        metrics.gauge("cloudsync_upload_concurrency_limit", "Upload requests allowed in flight", governor::getConcurrencyLimit,
+                "store", store);
+        metrics.gauge("cloudsync_upload_requests_in_flight", "Upload requests in flight", governor::getRequestsInFlight,
+                "store", store);
+        metrics.gauge("cloudsync_upload_rate_bytes_per_second", "Recent upload rate as seen by the upload governor",
+                governor::getUploadRate, "store", store);
+    }
+
+    /**
+     * Records a completed upload of the given number of bytes, which started at the given {@link System#nanoTime()}.
+     */
+    public void uploaded(long size, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        duration.observeNanos(nanos);
+        if (nanos > 0) {
+            throughput.observe(size * 1e9 / nanos);
+        }
+        bytes.add(size);
+        uploads.increment();
+    }
+
+    public void failed() {
+        failures.increment();
+    }
+
+    public void cancelled() {
+        cancellations.increment();
+    }
+}
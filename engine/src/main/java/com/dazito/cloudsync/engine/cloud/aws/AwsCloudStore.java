@@ -1,28 +1,76 @@
 package com.dazito.cloudsync.engine.cloud.aws;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.dazito.cloudsync.engine.cloud.CloudStore;
+import com.dazito.cloudsync.engine.cloud.Transfer;
+import com.dazito.cloudsync.engine.cloud.UploadMetrics;
+import com.dazito.cloudsync.engine.cloud.chunk.ChunkStore;
+import com.dazito.cloudsync.engine.cloud.chunk.ChunkedUploader;
+import com.dazito.cloudsync.engine.cloud.compress.CompressionStage;
+import com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm;
+import com.dazito.cloudsync.engine.cloud.delta.BlockSignature;
+import com.dazito.cloudsync.engine.cloud.delta.DeltaTarget;
+import com.dazito.cloudsync.engine.cloud.delta.DeltaUploader;
+import com.dazito.cloudsync.engine.cloud.delete.DeleteBatcher;
+import com.dazito.cloudsync.engine.cloud.part.PartTarget;
+import com.dazito.cloudsync.engine.cloud.part.PartUploader;
+import com.dazito.cloudsync.engine.cloud.throttle.UploadGovernor;
 import lombok.extern.slf4j.Slf4j;
+import com.dazito.cloudsync.engine.metrics.Metrics;
 import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.schedule.TaskScheduler;
 import com.dazito.cloudsync.engine.util.Task;
 import com.dazito.cloudsync.engine.util.TaskQueue;
+import com.dazito.cloudsync.engine.util.Threads;
 import com.dazito.cloudsync.engine.util.config.Config;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 @Slf4j
 public class AwsCloudStore implements CloudStore {
 	private static final String BACKUP_CONTAINER_KEY = "BACKUP_CONTAINER";
+	// S3 copies objects of up to 5 GB in one request, larger objects have to be copied part by part
+	private static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+	private static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+	// S3 deletes up to 1000 keys per DeleteObjects request
+	private static final int DELETE_BATCH_SIZE = 1000;
+	// Attempts made to abort a multipart upload before its parts are left to the bucket's lifecycle rules
+	private static final int ABORT_ATTEMPTS = 3;
 	
 	// Subscribe to task events
 	private final TaskQueue taskQueue;
@@ -32,13 +80,33 @@ public class AwsCloudStore implements CloudStore {
 	private final Regions region;
 	// Amazon S3 bucket name. The bucket name must be unique across S3.
 	private String bucket;
+	// Uploads files as deduplicated chunks, null if files are uploaded as single objects
+	private final ChunkedUploader chunkedUploader;
+	// Uploads large files as multipart uploads
+	private final PartUploader partUploader;
+	// Compresses files of backups that are configured to be compressed
+	private final CompressionStage compressionStage;
+	// Encrypts uploads if an encryption key is configured
+	private final SegmentedAesGcm encryption;
+	// Uploads changed large files as a delta of their previous version
+	private final DeltaUploader deltaUploader;
 	
-	private final ExecutorService awsExecutor = Executors.newFixedThreadPool(5);
+	// Runs jobs in the order of the scheduler, their requests are limited by the governor
+	private final ExecutorService awsExecutor;
+	// Orders the jobs of the executor
+	private final TaskScheduler scheduler;
+	// Adapts the number of requests in flight, and caps the upload rate
+	private final UploadGovernor governor;
+	// Collects deletes into DeleteObjects requests
+	private final DeleteBatcher deleteBatcher;
+	
+	private final UploadMetrics uploadMetrics;
 	
 	@Inject
-	public AwsCloudStore(TaskQueue taskQueue, Config config) {
+	public AwsCloudStore(TaskQueue taskQueue, ChunkedUploader chunkedUploader, PartUploader partUploader,
+			CompressionStage compressionStage, SegmentedAesGcm encryption, DeltaUploader deltaUploader,
+			TaskScheduler scheduler, Metrics metrics, Config config) {
 		this.taskQueue = taskQueue;
-		this.taskQueue.toObserverable().subscribe(this::process);
 		this.region = Regions.fromName(config.getAwsRegion());
 		
 		BasicAWSCredentials awsCredentials = new BasicAWSCredentials(config.getAwsAccessKey(), config.getAwsSecretKey());
@@ -49,6 +117,23 @@ public class AwsCloudStore implements CloudStore {
 				.build();
 		
 		this.bucket = config.getAwsBucket();
+		this.chunkedUploader = config.isChunkedUploadMode() ? chunkedUploader : null;
+		this.partUploader = partUploader;
+		this.compressionStage = compressionStage;
+		this.encryption = encryption;
+		this.deltaUploader = deltaUploader;
+		this.governor = new UploadGovernor(config, AwsCloudStore::isThrottled);
+		this.uploadMetrics = new UploadMetrics(metrics, "aws", governor);
+		this.scheduler = scheduler;
+		this.awsExecutor = scheduler.newExecutor("aws-upload", config.getUploadConcurrencyMax(), governor::getConcurrencyLimit);
+		this.deleteBatcher = new DeleteBatcher(DELETE_BATCH_SIZE, config.getDeleteBatchDelayMillis(), scheduler.fastLane(awsExecutor), this::deleteObjects);
+	}
+	
+	@Override
+	public void start() {
+		scheduler.start();
+		compressionStage.start();
+		taskQueue.toObserverable().subscribe(this::process);
 	}
 	
 	@Override
@@ -63,38 +148,267 @@ public class AwsCloudStore implements CloudStore {
 	}
 	
 	@Override
-	public void uploadFile(Backup backup, Path path, Runnable onSuccess) {
+	public Transfer uploadFile(Backup backup, Path path, String contentHash, Runnable onSuccess) {
 		log.debug("Uploading file: '{}'", path.toString());
-		awsExecutor.submit(() -> {
+		Transfer transfer = new Transfer();
+		awsExecutor.execute(scheduler.uploadJob(backup, path, transfer.guard(() -> {
+			long start = System.nanoTime();
+			long size = path.toFile().length();
 			String fileKey = getFileKey(backup, path);
-			s3Client.putObject(bucket, fileKey, path.toFile());
+			InputStream stream = null;
+			try {
+				if(chunkedUploader != null) {
+					chunkedUploader.upload(new S3ChunkStore(backup, contentHash), fileKey, path);
+				} else if((stream = compressionStage.open(backup, path)) != null) {
+					if(encryption.isEnabled()) {
+						stream = encryption.encrypt(stream, fileKey);
+					}
+					partUploader.upload(stream, new S3PartTarget(backup, fileKey, CompressionStage.DEFLATE, contentHash));
+				} else if(partUploader.isMultipart(path.toFile().length())) {
+					if(deltaUploader.isEnabled() && !encryption.isEnabled()) {
+						deltaUploader.upload(getNamespace(), fileKey, path, contentHash, new S3DeltaTarget(backup, fileKey, contentHash));
+					} else {
+						partUploader.upload(path, new S3PartTarget(backup, fileKey, null, contentHash), encryption.isEnabled() ? encryption.newEncryptor(fileKey) : null);
+					}
+				} else if(encryption.isEnabled()) {
+					stream = encryption.encrypt(Files.newInputStream(path), fileKey);
+					partUploader.upload(stream, new S3PartTarget(backup, fileKey, null, contentHash));
+				} else {
+					ObjectMetadata metadata = new ObjectMetadata();
+					if(contentHash != null) {
+						metadata.addUserMetadata(CONTENT_HASH_METADATA_KEY, contentHash);
+					}
+					if(!Transfer.commitCurrent()) {
+						throw new InterruptedIOException("Upload of '" + path + "' was cancelled");
+					}
+					governed(backup, size, () ->
+							s3Client.putObject(new PutObjectRequest(bucket, fileKey, path.toFile()).withMetadata(metadata)));
+				}
+			} catch (Exception e) {
+				if(transfer.isCancelled()) {
+					log.debug("Upload of '{}' cancelled", path.toString());
+					uploadMetrics.cancelled();
+					return;
+				}
+				log.error("Unable to upload '{}'", path.toString(), e);
+				uploadMetrics.failed();
+				return;
+			} finally {
+				closeQuietly(stream);
+			}
 			
+			if(!transfer.complete()) {
+				// the file changed again while its last request was in flight
+				log.debug("Upload of '{}' cancelled", path.toString());
+				uploadMetrics.cancelled();
+				return;
+			}
+			uploadMetrics.uploaded(size, start);
 			log.debug("'{}' uploaded with key '{}'", path.toString(), fileKey);
 			if(onSuccess != null) {
 				onSuccess.run();
 			}
-		});
+		})));
+		return transfer;
+	}
+	
+	@Override
+	public Transfer uploadPack(Backup backup, Path packPath, ByteBuffer data, Runnable onSuccess) {
+		Transfer transfer = new Transfer();
+		awsExecutor.execute(scheduler.job(TaskScheduler.SchedulingClass.INTERACTIVE, backup, data.remaining(), transfer.guard(() -> {
+			long start = System.nanoTime();
+			String packKey = getFileKey(backup, packPath);
+			InputStream stream = new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			try {
+				if(encryption.isEnabled()) {
+					stream = encryption.encrypt(stream, packKey);
+				}
+				partUploader.upload(stream, new S3PartTarget(backup, packKey, null, null));
+			} catch (Exception e) {
+				if(transfer.isCancelled()) {
+					log.debug("Upload of pack '{}' cancelled", packKey);
+					uploadMetrics.cancelled();
+					return;
+				}
+				log.error("Unable to upload pack '{}'", packKey, e);
+				uploadMetrics.failed();
+				return;
+			} finally {
+				closeQuietly(stream);
+			}
+			
+			if(!transfer.complete()) {
+				log.debug("Upload of pack '{}' cancelled", packKey);
+				uploadMetrics.cancelled();
+				return;
+			}
+			uploadMetrics.uploaded(data.remaining(), start);
+			log.debug("Pack of {} bytes uploaded with key '{}'", data.remaining(), packKey);
+			if(onSuccess != null) {
+				onSuccess.run();
+			}
+		})));
+		return transfer;
 	}
 	
 	@Override
 	public void removeFile(Backup backup, Path p, Runnable onSuccess) {
-		String fileKey = getFileKey(backup, p);
-		s3Client.deleteObject(bucket, fileKey);
+		if(deltaUploader.isEnabled()) {
+			deltaUploader.forget(getNamespace(), getFileKey(backup, p));
+		}
+		deleteBatcher.delete(backup, p, onSuccess);
+	}
+	
+	/**
+	 * Deletes the objects of a batch of files with a single DeleteObjects request, and returns the files whose
+	 * objects could not be deleted.
+	 */
+	private Collection<Path> deleteObjects(Backup backup, List<Path> paths) throws IOException {
+		Map<String, Path> fileKeys = new LinkedHashMap<>();
+		for(Path path : paths) {
+			fileKeys.put(getFileKey(backup, path), path);
+		}
 		
-		log.debug("Deleted file: '{}' with key '{}'", p.toString(), fileKey);
+		DeleteObjectsRequest request = new DeleteObjectsRequest(bucket)
+				.withKeys(fileKeys.keySet().toArray(new String[0]))
+				.withQuiet(true);
+		try {
+			governed(backup, 0, () -> s3Client.deleteObjects(request));
+			log.debug("Deleted {} keys", fileKeys.size());
+			return Collections.emptyList();
+		} catch (MultiObjectDeleteException e) {
+			// the other keys of the request have been deleted
+			List<Path> failed = new ArrayList<>();
+			for(MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+				log.error("Unable to delete key '{}': {} {}", error.getKey(), error.getCode(), error.getMessage());
+				failed.add(fileKeys.get(error.getKey()));
+			}
+			return failed;
+		}
+	}
+	
+	@Override
+	public Transfer moveFile(Backup backup, Path source, Path target, String contentHash, Runnable onSuccess) {
+		if(encryption.isEnabled()) {
+			// an encrypted object authenticates its key, so a copy of it under the target key could not be decrypted
+			return uploadFile(backup, target, contentHash, () -> removeFile(backup, source, onSuccess));
+		}
+		Transfer transfer = new Transfer();
+		awsExecutor.execute(scheduler.job(TaskScheduler.SchedulingClass.FAST, backup, 0, transfer.guard(() -> {
+			String sourceKey = getFileKey(backup, source);
+			String targetKey = getFileKey(backup, target);
+			try {
+				governed(backup, 0, () -> {
+					copyObject(sourceKey, targetKey);
+					return null;
+				});
+			} catch (IOException | AmazonClientException e) {
+				if(transfer.isCancelled()) {
+					log.debug("Move of '{}' to '{}' cancelled", sourceKey, targetKey);
+					return;
+				}
+				log.warn("Unable to copy '{}' to '{}', uploading '{}' instead", sourceKey, targetKey, target.toString(), e);
+				transfer.handOver(uploadFile(backup, target, contentHash, () -> removeFile(backup, source, onSuccess)));
+				return;
+			}
+			
+			if(deltaUploader.isEnabled()) {
+				deltaUploader.move(getNamespace(), sourceKey, targetKey);
+			}
+			log.debug("Copied key '{}' to '{}'", sourceKey, targetKey);
+			// the move completes once the original has been deleted - if the delete fails, the task stays pending and
+			// is resumed on the next start
+			removeFile(backup, source, transfer.complete() ? onSuccess : null);
+		})));
+		return transfer;
+	}
+	
+	/**
+	 * Copies an object within the bucket, keeping its metadata. In chunked mode this copies the manifest only, as
+	 * the chunks are shared by every file that contains them.
+	 */
+	private void copyObject(String sourceKey, String targetKey) {
+		ObjectMetadata sourceMetadata = s3Client.getObjectMetadata(bucket, sourceKey);
+		long size = sourceMetadata.getContentLength();
+		if(size <= MAX_COPY_SIZE) {
+			s3Client.copyObject(bucket, sourceKey, bucket, targetKey);
+			return;
+		}
+		
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setUserMetadata(sourceMetadata.getUserMetadata());
+		String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, targetKey, metadata)).getUploadId();
+		boolean completed = false;
+		try {
+			List<PartETag> eTags = new ArrayList<>();
+			for(long offset = 0; offset < size; offset += COPY_PART_SIZE) {
+				CopyPartRequest request = new CopyPartRequest()
+						.withSourceBucketName(bucket)
+						.withSourceKey(sourceKey)
+						.withDestinationBucketName(bucket)
+						.withDestinationKey(targetKey)
+						.withUploadId(uploadId)
+						.withPartNumber(eTags.size() + 1)
+						.withFirstByte(offset)
+						.withLastByte(Math.min(offset + COPY_PART_SIZE, size) - 1);
+				eTags.add(s3Client.copyPart(request).getPartETag());
+			}
+			s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, targetKey, uploadId, eTags));
+			completed = true;
+		} finally {
+			if(!completed) {
+				abortMultipartUpload(targetKey, uploadId);
+			}
+		}
+	}
+	
+	/*
+	 * The parts of an upload that is neither completed nor aborted are kept, and billed, until a lifecycle rule of the
+	 * bucket removes them, so the abort is retried. A failure to abort is logged rather than thrown, so that it
+	 * doesn't hide the failure that made the upload be aborted.
+	 */
+	private void abortMultipartUpload(String key, String uploadId) {
+		for(int attempt = 1; ; attempt++) {
+			try {
+				s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+				return;
+			} catch (RuntimeException e) {
+				if(attempt == ABORT_ATTEMPTS) {
+					log.warn("Unable to abort the multipart upload '{}' of '{}', its parts are left in the bucket", uploadId, key, e);
+					return;
+				}
+				log.debug("Abort of the multipart upload '{}' of '{}' failed (attempt {} of {}), retrying", uploadId, key, attempt, ABORT_ATTEMPTS, e);
+			}
+		}
+	}
+	
+	@Override
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		deleteBatcher.flush();
+		if (!Threads.stop(awsExecutor, timeout, unit)) {
+			log.warn("Gave up waiting for the S3 jobs to end, the rest are resumed on the next start");
+			return false;
+		}
+		return true;
 	}
 	
 	private void process(Task task) {
 		switch (task.getType()) {
 			case UPLOAD_FILE:
-				uploadFile(task.getBackup(), task.getPath(), task.getRunnable());
+				task.setTransfer(uploadFile(task.getBackup(), task.getPath(), task.getContentHash(), task.getRunnable()));
 				break;
 			case REPLACE_FILE:
-				uploadFile(task.getBackup(), task.getPath(), task.getRunnable());
+				task.setTransfer(uploadFile(task.getBackup(), task.getPath(), task.getContentHash(), task.getRunnable()));
 				break;
 			case DELETE_FILE:
 				removeFile(task.getBackup(), task.getPath(), task.getRunnable());
 				break;
+			case MOVE_FILE:
+				task.setTransfer(moveFile(task.getBackup(), task.getSourcePath(), task.getPath(), task.getContentHash(), task.getRunnable()));
+				break;
+			case UPLOAD_PACK:
+				task.setTransfer(uploadPack(task.getBackup(), task.getPath(), task.getPackData(), task.getRunnable()));
+				break;
 		}
 	}
 	
@@ -109,30 +423,248 @@ public class AwsCloudStore implements CloudStore {
 	 * @param path
 	 * @return a {@link String} representing the file key
 	 */
-	private String getFileKey(Backup backup, Path path) {
-		// Parameter path => F:\cloud-sync\folder1\subfolder1\fileSubFolder1.txt
-		// basePath can be 'F:\cloud-sync' or 'F:\cloud-sync\' - ending with separator or not
-		String basePath = backup.getRootDirectory().getParent().toString();
-		if(basePath.endsWith(File.separator)) {
-			// Remove the separator to avoid PatternSyntaxException with "\"
-			basePath = basePath.substring(0, basePath.length() - 1);
+	public static String getFileKey(Backup backup, Path path) {
+		// the part that comes from the root directory is derived once per backup
+		return backup.getObjectKey(path);
+	}
+	
+	private class S3ChunkStore implements ChunkStore {
+		private final Backup backup;
+		private final String contentHash;
+		
+		S3ChunkStore(Backup backup, String contentHash) {
+			this.backup = backup;
+			this.contentHash = contentHash;
 		}
 		
-		// basePath => F:\cloud-sync
-		// path => F:\cloud-sync\folder1\subfolder1\fileSubFolder1.txt
-		// fileKey will be => folder1\subfolder1\fileSubFolder1.txt
-		String fileKey = path.toString().replace(basePath, "");
+		@Override
+		public String getNamespace() {
+			return AwsCloudStore.this.getNamespace();
+		}
 		
-		// In case fileKey starts with separator, remove it
-		if(fileKey.startsWith(File.separator)) {
-			// Remove the file separator from the beginning of the key
-			fileKey = fileKey.substring(1, fileKey.length());
+		@Override
+		public void putChunk(String key, ByteBuffer chunk) throws IOException {
+			put(key, chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining(), null);
 		}
 		
-		// Amazon S3 uses "/" as file separator so in case we are using "\" replace it with "/"
-		fileKey = fileKey.replace("\\", "/");
-		log.debug("File '{}' has fileKey => '{}'", path.toString(), fileKey);
+		@Override
+		public void putManifest(String key, byte[] manifest) throws IOException {
+			put(key, manifest, 0, manifest.length, "chunk-manifest");
+		}
 		
-		return fileKey;
+		private void put(String key, byte[] bytes, int offset, int length, String format) throws IOException {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(length);
+			if(format != null) {
+				metadata.addUserMetadata("cloudsync-format", format);
+				if(contentHash != null) {
+					metadata.addUserMetadata(CONTENT_HASH_METADATA_KEY, contentHash);
+				}
+			}
+			if(encryption.isEnabled()) {
+				metadata.addUserMetadata(SegmentedAesGcm.ENCRYPTION_METADATA_KEY, SegmentedAesGcm.ALGORITHM);
+			}
+			governed(backup, length, () -> s3Client.putObject(bucket, key, new ByteArrayInputStream(bytes, offset, length), metadata));
+		}
+	}
+	
+	/**
+	 * Runs a request to S3 under the governor. Failures other than S3's own runtime exceptions are rethrown as an
+	 * {@link IOException}.
+	 */
+	private <T> T governed(Backup backup, long bytes, UploadGovernor.Request<T> request) throws IOException {
+		try {
+			return governor.run(backup, bytes, request);
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send a request");
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
+	// S3 answers 503 SlowDown when it wants requests to slow down
+	private static boolean isThrottled(Exception e) {
+		return e instanceof AmazonServiceException
+				&& (((AmazonServiceException) e).getStatusCode() == 503 || "SlowDown".equals(((AmazonServiceException) e).getErrorCode()));
+	}
+	
+	private String getNamespace() {
+		return "s3-" + bucket;
+	}
+	
+	public UploadGovernor getGovernor() {
+		return governor;
+	}
+	
+	private static void closeQuietly(InputStream in) {
+		if(in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.debug("Unable to close stream", e);
+			}
+		}
+	}
+	
+	private class S3PartTarget implements PartTarget {
+		private final Backup backup;
+		private final String key;
+		// The codec the content is compressed with, null if it is not compressed
+		private final String codec;
+		// The SHA-256 of the uncompressed, unencrypted content
+		private final String contentHash;
+		// The ETag of the object parts are copied from, null if no parts are copied
+		private final String sourceETag;
+		// The multipart upload is only created once the first part is uploaded
+		private String uploadId;
+		// Set once the upload is aborted, parts that are still running must not create another multipart upload
+		private boolean aborted;
+		// The ETag of the object the upload created, once it has completed
+		private String completedETag;
+		
+		S3PartTarget(Backup backup, String key, String codec, String contentHash) {
+			this(backup, key, codec, contentHash, null);
+		}
+		
+		S3PartTarget(Backup backup, String key, String codec, String contentHash, String sourceETag) {
+			this.backup = backup;
+			this.key = key;
+			this.codec = codec;
+			this.contentHash = contentHash;
+			this.sourceETag = sourceETag;
+		}
+		
+		@Override
+		public String uploadPart(int partNumber, ByteBuffer data) throws IOException {
+			return governed(backup, data.remaining(), () -> {
+				UploadPartRequest request = new UploadPartRequest()
+						.withBucketName(bucket)
+						.withKey(key)
+						.withUploadId(getUploadId())
+						.withPartNumber(partNumber)
+						.withPartSize(data.remaining())
+						.withInputStream(new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining()));
+				return s3Client.uploadPart(request).getETag();
+			});
+		}
+		
+		@Override
+		public String copyPart(int partNumber, long sourceOffset, int length) throws IOException {
+			CopyPartResult result = governed(backup, 0, () -> s3Client.copyPart(new CopyPartRequest()
+					.withSourceBucketName(bucket)
+					.withSourceKey(key)
+					.withDestinationBucketName(bucket)
+					.withDestinationKey(key)
+					.withUploadId(getUploadId())
+					.withPartNumber(partNumber)
+					.withFirstByte(sourceOffset)
+					.withLastByte(sourceOffset + length - 1)
+					.withMatchingETagConstraint(sourceETag)));
+			// The client returns null if the constraint isn't met
+			if(result == null) {
+				throw new IOException("'" + key + "' changed while parts were copied from it");
+			}
+			return result.getETag();
+		}
+		
+		@Override
+		public void uploadWhole(ByteBuffer data) throws IOException {
+			ObjectMetadata metadata = getMetadata();
+			metadata.setContentLength(data.remaining());
+			completedETag = governed(backup, data.remaining(), () ->
+					s3Client.putObject(bucket, key, new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining()), metadata)).getETag();
+		}
+		
+		@Override
+		public void complete(List<String> partIds) throws IOException {
+			List<PartETag> eTags = new ArrayList<>(partIds.size());
+			for(int i = 0; i < partIds.size(); i++) {
+				eTags.add(new PartETag(i + 1, partIds.get(i)));
+			}
+			completedETag = governed(backup, 0, () -> s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, getUploadId(), eTags))).getETag();
+		}
+		
+		@Override
+		public synchronized void abort() {
+			aborted = true;
+			if(uploadId != null) {
+				abortMultipartUpload(key, uploadId);
+			}
+		}
+		
+		private synchronized String getUploadId() throws IOException {
+			if(aborted) {
+				throw new InterruptedIOException("Upload of '" + key + "' was aborted");
+			}
+			if(uploadId == null) {
+				uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, getMetadata())).getUploadId();
+			}
+			return uploadId;
+		}
+		
+		private ObjectMetadata getMetadata() {
+			ObjectMetadata metadata = new ObjectMetadata();
+			if(codec != null) {
+				metadata.addUserMetadata(CompressionStage.CODEC_METADATA_KEY, codec);
+			}
+			if(contentHash != null) {
+				metadata.addUserMetadata(CONTENT_HASH_METADATA_KEY, contentHash);
+			}
+			if(encryption.isEnabled()) {
+				metadata.addUserMetadata(SegmentedAesGcm.ENCRYPTION_METADATA_KEY, SegmentedAesGcm.ALGORITHM);
+			}
+			return metadata;
+		}
+	}
+	
+	private class S3DeltaTarget implements DeltaTarget {
+		private final Backup backup;
+		private final String key;
+		private final String contentHash;
+		// The ETag of the current object, parts are only copied from this version of it
+		private String eTag;
+		private S3PartTarget upload;
+		
+		S3DeltaTarget(Backup backup, String key, String contentHash) {
+			this.backup = backup;
+			this.key = key;
+			this.contentHash = contentHash;
+		}
+		
+		@Override
+		public boolean isCurrent(BlockSignature previous) throws IOException {
+			if(previous.getObjectVersion() != null) {
+				// The parts are copied on the condition that the object still has the ETag it was uploaded with, which
+				// saves a HEAD request per upload: if the object changed since, the first copy fails and the file is
+				// uploaded as a whole
+				eTag = previous.getObjectVersion();
+				return true;
+			}
+			ObjectMetadata metadata;
+			try {
+				metadata = governed(backup, 0, () -> s3Client.getObjectMetadata(bucket, key));
+			} catch (AmazonServiceException e) {
+				if(e.getStatusCode() == 404) {
+					return false;
+				}
+				throw e;
+			}
+			eTag = metadata.getETag();
+			return previous.getContentHash().equals(metadata.getUserMetaDataOf(CONTENT_HASH_METADATA_KEY));
+		}
+		
+		@Override
+		public PartTarget newUpload(BlockSignature previous) {
+			upload = new S3PartTarget(backup, key, null, contentHash, previous != null ? eTag : null);
+			return upload;
+		}
+		
+		@Override
+		public String getUploadedVersion() {
+			return upload != null ? upload.completedETag : null;
+		}
 	}
 }
@@ -1,41 +1,127 @@
 package com.dazito.cloudsync.engine.cloud.azure;
 
+import com.microsoft.azure.storage.AccessCondition;
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyStatus;
 import com.dazito.cloudsync.engine.cloud.CloudStore;
+import com.dazito.cloudsync.engine.cloud.Transfer;
+import com.dazito.cloudsync.engine.cloud.UploadMetrics;
+import com.dazito.cloudsync.engine.cloud.chunk.ChunkStore;
+import com.dazito.cloudsync.engine.cloud.chunk.ChunkedUploader;
+import com.dazito.cloudsync.engine.cloud.compress.CompressionStage;
+import com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm;
+import com.dazito.cloudsync.engine.cloud.delta.BlockSignature;
+import com.dazito.cloudsync.engine.cloud.delta.DeltaTarget;
+import com.dazito.cloudsync.engine.cloud.delta.DeltaUploader;
+import com.dazito.cloudsync.engine.cloud.delete.DeleteBatcher;
+import com.dazito.cloudsync.engine.cloud.part.PartTarget;
+import com.dazito.cloudsync.engine.cloud.part.PartUploader;
+import com.dazito.cloudsync.engine.cloud.throttle.UploadGovernor;
+import com.dazito.cloudsync.engine.metrics.Metrics;
 import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.schedule.TaskScheduler;
 import com.dazito.cloudsync.engine.util.Task;
 import com.dazito.cloudsync.engine.util.TaskQueue;
+import com.dazito.cloudsync.engine.util.Threads;
 import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Singleton
 public class AzureCloudStore implements CloudStore {
 
     private static final String BACKUP_CONTAINER_KEY = "BACKUP_CONTAINER";
 
+    // how often the state of a server-side copy is checked until it has completed
+    private static final long COPY_POLL_MILLIS = 500;
+
+    // deletes are collected into batches of up to this many blobs, which are deleted concurrently
+    private static final int DELETE_BATCH_SIZE = 1000;
+    private static final int DELETE_PARALLELISM = 16;
+
+    // azure metadata names must be valid C# identifiers
+    private static final String CODEC_METADATA_KEY = CompressionStage.CODEC_METADATA_KEY.replace("-", "");
+    private static final String ENCRYPTION_METADATA_KEY = SegmentedAesGcm.ENCRYPTION_METADATA_KEY.replace("-", "");
+    private static final String CONTENT_HASH_METADATA_KEY = CloudStore.CONTENT_HASH_METADATA_KEY.replace("-", "");
+
     // azure
     private final CloudBlobClient serviceClient;
 
     // subscribe to task events
     private final TaskQueue taskQueue;
 
-    private final ExecutorService azureExecutor = Executors.newFixedThreadPool(5);
+    // uploads files as deduplicated chunks, null if files are uploaded as single blobs
+    private final ChunkedUploader chunkedUploader;
+
+    // uploads large files as separately uploaded blocks
+    private final PartUploader partUploader;
+
+    // compresses files of backups that are configured to be compressed
+    private final CompressionStage compressionStage;
+
+    // encrypts uploads if an encryption key is configured
+    private final SegmentedAesGcm encryption;
+
+    // uploads changed large files as a delta of their previous version
+    private final DeltaUploader deltaUploader;
+
+    // runs jobs in the order of the scheduler, their requests are limited by the governor
+    private final ExecutorService azureExecutor;
+    // orders the jobs of the executor
+    private final TaskScheduler scheduler;
+    private final ExecutorService deleteExecutor;
+
+    // collects deletes into batches
+    private final DeleteBatcher deleteBatcher;
+
+    // adapts the number of requests in flight, and caps the upload rate
+    private final UploadGovernor governor;
+
+    private final UploadMetrics uploadMetrics;
 
     @Inject
-    public AzureCloudStore(TaskQueue taskQueue, Config config) {
+    public AzureCloudStore(TaskQueue taskQueue, ChunkedUploader chunkedUploader, PartUploader partUploader,
+                           CompressionStage compressionStage, SegmentedAesGcm encryption, DeltaUploader deltaUploader,
+                           TaskScheduler scheduler, Threads threads, Metrics metrics, Config config) {
         this.taskQueue = taskQueue;
-        this.taskQueue.toObserverable().subscribe(this::process);
+        this.chunkedUploader = config.isChunkedUploadMode() ? chunkedUploader : null;
+        this.partUploader = partUploader;
+        this.compressionStage = compressionStage;
+        this.encryption = encryption;
+        this.deltaUploader = deltaUploader;
+        this.governor = new UploadGovernor(config, AzureCloudStore::isThrottled);
+        this.uploadMetrics = new UploadMetrics(metrics, "azure", governor);
+        this.scheduler = scheduler;
+        this.azureExecutor = scheduler.newExecutor("azure-upload", config.getUploadConcurrencyMax(), governor::getConcurrencyLimit);
+        this.deleteExecutor = threads.newExecutor("azure-delete", DELETE_PARALLELISM, false);
+        this.deleteBatcher = new DeleteBatcher(DELETE_BATCH_SIZE, config.getDeleteBatchDelayMillis(), scheduler.fastLane(azureExecutor), this::deleteBlobs);
 
         CloudBlobClient _serviceClient = null;
         try {
@@ -55,6 +141,13 @@ public class AzureCloudStore implements CloudStore {
         serviceClient = _serviceClient;
     }
 
+    @Override
+    public void start() {
+        scheduler.start();
+        compressionStage.start();
+        taskQueue.toObserverable().subscribe(this::process);
+    }
+
     @Override
     public void createContainer(Backup backup) {
         try {
@@ -73,48 +166,411 @@ public class AzureCloudStore implements CloudStore {
     }
 
     @Override
-    public void uploadFile(Backup backup, Path p, Runnable onSuccess) {
-        azureExecutor.submit(() -> {
+    public Transfer uploadFile(Backup backup, Path p, String contentHash, Runnable onSuccess) {
+        Transfer transfer = new Transfer();
+        azureExecutor.execute(scheduler.uploadJob(backup, p, transfer.guard(() -> {
+            long start = System.nanoTime();
+            long size = p.toFile().length();
             try {
-                System.out.println("Uploading file " + p);
-                CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(p.toString());
-                blob.upload(Files.newInputStream(p), Files.size(p));
-                if (onSuccess != null) {
-                    onSuccess.run();
+                log.debug("Uploading file {}", p);
+                if (chunkedUploader != null) {
+                    chunkedUploader.upload(new BlobChunkStore(backup, getContainer(backup), contentHash), p.toString(), p);
+                } else {
+                    CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(p.toString());
+                    if (contentHash != null) {
+                        blob.getMetadata().put(CONTENT_HASH_METADATA_KEY, contentHash);
+                    }
+                    if (encryption.isEnabled()) {
+                        blob.getMetadata().put(ENCRYPTION_METADATA_KEY, SegmentedAesGcm.ALGORITHM);
+                    }
+                    try (InputStream compressed = compressionStage.open(backup, p)) {
+                        if (compressed != null) {
+                            blob.getMetadata().put(CODEC_METADATA_KEY, CompressionStage.DEFLATE);
+                            try (InputStream stream = encryption.isEnabled() ? encryption.encrypt(compressed, blob.getName()) : compressed) {
+                                partUploader.upload(stream, new BlockPartTarget(backup, blob));
+                            }
+                        } else if (partUploader.isMultipart(size) && deltaUploader.isEnabled() && !encryption.isEnabled()) {
+                            deltaUploader.upload(getNamespace(backup), p.toString(), p, contentHash, new BlobDeltaTarget(backup, blob));
+                        } else if (partUploader.isMultipart(size)) {
+                            partUploader.upload(p, new BlockPartTarget(backup, blob), encryption.isEnabled() ? encryption.newEncryptor(blob.getName()) : null);
+                        } else if (encryption.isEnabled()) {
+                            try (InputStream encrypted = encryption.encrypt(Files.newInputStream(p), blob.getName())) {
+                                partUploader.upload(encrypted, new BlockPartTarget(backup, blob));
+                            }
+                        } else {
+                            if (!Transfer.commitCurrent()) {
+                                throw new InterruptedIOException("Upload of " + p + " was cancelled");
+                            }
+                            governor.run(backup, size, () -> {
+                                try (InputStream in = Files.newInputStream(p)) {
+                                    blob.upload(in, size);
+                                }
+                                return null;
+                            });
+                        }
+                    }
                 }
-                System.out.println("Uploading complete for " + p);
             } catch (Exception e) {
-                e.printStackTrace();
+                if (transfer.isCancelled()) {
+                    log.debug("Uploading cancelled for {}", p);
+                    uploadMetrics.cancelled();
+                    return;
+                }
+                uploadMetrics.failed();
+                log.error("Unable to upload {}", p, e);
+                return;
             }
-        });
+
+            if (!transfer.complete()) {
+                // the file changed again while its last request was in flight
+                log.debug("Uploading cancelled for {}", p);
+                uploadMetrics.cancelled();
+                return;
+            }
+            uploadMetrics.uploaded(size, start);
+            log.debug("Uploading complete for {}", p);
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+        })));
+        return transfer;
     }
 
     @Override
-    public void removeFile(Backup backup, Path p, Runnable onSuccess) {
-        azureExecutor.submit(() -> {
+    public Transfer uploadPack(Backup backup, Path packPath, ByteBuffer data, Runnable onSuccess) {
+        Transfer transfer = new Transfer();
+        azureExecutor.execute(scheduler.job(TaskScheduler.SchedulingClass.INTERACTIVE, backup, data.remaining(), transfer.guard(() -> {
+            long start = System.nanoTime();
             try {
-                System.out.println("Deleting file " + p);
-                CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(p.toString());
-                blob.delete();
-                if (onSuccess != null) {
-                    onSuccess.run();
+                log.debug("Uploading pack {}", packPath);
+                CloudBlockBlob blob = getContainer(backup).getBlockBlobReference(packPath.toString());
+                InputStream pack = new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                if (encryption.isEnabled()) {
+                    blob.getMetadata().put(ENCRYPTION_METADATA_KEY, SegmentedAesGcm.ALGORITHM);
+                    pack = encryption.encrypt(pack, blob.getName());
+                }
+                try (InputStream stream = pack) {
+                    partUploader.upload(stream, new BlockPartTarget(backup, blob));
                 }
-                System.out.println("Deleting complete for " + p);
             } catch (Exception e) {
-                e.printStackTrace();
+                if (transfer.isCancelled()) {
+                    log.debug("Uploading cancelled for pack {}", packPath);
+                    uploadMetrics.cancelled();
+                    return;
+                }
+                uploadMetrics.failed();
+                log.error("Unable to upload pack {}", packPath, e);
+                return;
+            }
+
+            if (!transfer.complete()) {
+                log.debug("Uploading cancelled for pack {}", packPath);
+                uploadMetrics.cancelled();
+                return;
+            }
+            uploadMetrics.uploaded(data.remaining(), start);
+            log.debug("Uploading complete for pack {}", packPath);
+            if (onSuccess != null) {
+                onSuccess.run();
             }
+        })));
+        return transfer;
+    }
+
+    @Override
+    public void removeFile(Backup backup, Path p, Runnable onSuccess) {
+        if (deltaUploader.isEnabled()) {
+            deltaUploader.forget(getNamespace(backup), p.toString());
+        }
+        deleteBatcher.delete(backup, p, onSuccess);
+    }
+
+    /*
+     * This version of the storage SDK has no batch delete, so the blobs of a batch are deleted concurrently. Returns
+     * the files whose blobs could not be deleted.
+     */
+    private Collection<Path> deleteBlobs(Backup backup, List<Path> paths) {
+        List<CompletableFuture<Path>> deletes = new ArrayList<>(paths.size());
+        for (Path p : paths) {
+            deletes.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    governor.run(backup, 0, () -> getContainer(backup).getBlockBlobReference(p.toString()).deleteIfExists());
+                    return null;
+                } catch (Exception e) {
+                    log.warn("Unable to delete {}: {}", p, e.getMessage());
+                    return p;
+                }
+            }, deleteExecutor));
+        }
+
+        List<Path> failed = new ArrayList<>();
+        for (CompletableFuture<Path> delete : deletes) {
+            Path p = delete.join();
+            if (p != null) {
+                failed.add(p);
+            }
+        }
+        log.debug("Deleted {} of {} files", paths.size() - failed.size(), paths.size());
+        return failed;
+    }
+
+    @Override
+    public Transfer moveFile(Backup backup, Path source, Path target, String contentHash, Runnable onSuccess) {
+        if (encryption.isEnabled()) {
+            // an encrypted blob authenticates its name, so a copy of it under the target name could not be decrypted
+            return uploadFile(backup, target, contentHash, () -> removeFile(backup, source, onSuccess));
+        }
+        Transfer transfer = new Transfer();
+        azureExecutor.execute(scheduler.job(TaskScheduler.SchedulingClass.FAST, backup, 0, transfer.guard(() -> {
+            try {
+                log.debug("Moving file {} to {}", source, target);
+                CloudBlockBlob sourceBlob = getContainer(backup).getBlockBlobReference(source.toString());
+                CloudBlockBlob targetBlob = getContainer(backup).getBlockBlobReference(target.toString());
+                copyBlob(backup, sourceBlob, targetBlob);
+            } catch (Exception e) {
+                if (transfer.isCancelled()) {
+                    log.debug("Moving cancelled for {}", target);
+                    return;
+                }
+                log.warn("Unable to copy {}, uploading {} instead", source, target, e);
+                transfer.handOver(uploadFile(backup, target, contentHash, () -> removeFile(backup, source, onSuccess)));
+                return;
+            }
+
+            if (deltaUploader.isEnabled()) {
+                // a copy keeps the committed blocks and their ids
+                deltaUploader.move(getNamespace(backup), source.toString(), target.toString());
+            }
+            log.debug("Copying complete for {}", target);
+            // the move completes once the original has been deleted - if the delete fails, the task stays pending and
+            // is resumed on the next start
+            removeFile(backup, source, transfer.complete() ? onSuccess : null);
+        })));
+        return transfer;
+    }
+
+    /*
+     * Copies a blob within the storage account, keeping its metadata. Copies run asynchronously on the service side,
+     * so this waits until the copy has completed - between the requests, so that the wait holds no request slot.
+     */
+    private void copyBlob(Backup backup, CloudBlockBlob source, CloudBlockBlob target) throws Exception {
+        governor.run(backup, 0, () -> {
+            target.startCopy(source);
+            target.downloadAttributes();
+            return null;
         });
+        while (target.getCopyState().getStatus() == CopyStatus.PENDING) {
+            Thread.sleep(COPY_POLL_MILLIS);
+            governor.run(backup, 0, () -> {
+                target.downloadAttributes();
+                return null;
+            });
+        }
+        if (target.getCopyState().getStatus() != CopyStatus.SUCCESS) {
+            throw new IOException("Copy of " + source.getName() + " ended as " + target.getCopyState().getStatus()
+                    + ": " + target.getCopyState().getStatusDescription());
+        }
+    }
+
+    // the service answers 503 Server Busy, or 500 Operation Timed Out, when it wants requests to slow down
+    private static boolean isThrottled(Exception e) {
+        return e instanceof StorageException
+                && (((StorageException) e).getHttpStatusCode() == 503 || ((StorageException) e).getHttpStatusCode() == 500);
+    }
+
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        deleteBatcher.flush();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // the delete batches run on the upload executor, and hand their blobs over to the delete executor
+        boolean ended = Threads.stop(azureExecutor, timeout, unit)
+                && Threads.stop(deleteExecutor, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (!ended) {
+            deleteExecutor.shutdownNow();
+            log.warn("Gave up waiting for the Azure jobs to end, the rest are resumed on the next start");
+        }
+        return ended;
+    }
+
+    public UploadGovernor getGovernor() {
+        return governor;
     }
 
     private void process(Task task) {
         switch (task.getType()) {
             case UPLOAD_FILE:
-            case REPLACE_FILE: uploadFile(task.getBackup(), task.getPath(), task.getRunnable()); break;
+            case REPLACE_FILE: task.setTransfer(uploadFile(task.getBackup(), task.getPath(), task.getContentHash(), task.getRunnable())); break;
             case DELETE_FILE: removeFile(task.getBackup(), task.getPath(), task.getRunnable()); break;
+            case MOVE_FILE: task.setTransfer(moveFile(task.getBackup(), task.getSourcePath(), task.getPath(), task.getContentHash(), task.getRunnable())); break;
+            case UPLOAD_PACK: task.setTransfer(uploadPack(task.getBackup(), task.getPath(), task.getPackData(), task.getRunnable())); break;
         }
     }
 
     private CloudBlobContainer getContainer(Backup backup) {
         return backup.getRuntimeProperty(BACKUP_CONTAINER_KEY, CloudBlobContainer.class);
     }
+
+    private String getNamespace(Backup backup) {
+        return "azure-" + getContainer(backup).getName();
+    }
+
+    private class BlobChunkStore implements ChunkStore {
+        private final Backup backup;
+        private final CloudBlobContainer container;
+        private final String contentHash;
+
+        BlobChunkStore(Backup backup, CloudBlobContainer container, String contentHash) {
+            this.backup = backup;
+            this.container = container;
+            this.contentHash = contentHash;
+        }
+
+        @Override
+        public String getNamespace() {
+            return "azure-" + container.getName();
+        }
+
+        @Override
+        public void putChunk(String key, ByteBuffer chunk) throws IOException {
+            put(key, chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining(), null);
+        }
+
+        @Override
+        public void putManifest(String key, byte[] manifest) throws IOException {
+            put(key, manifest, 0, manifest.length, "chunk-manifest");
+        }
+
+        private void put(String key, byte[] bytes, int offset, int length, String format) throws IOException {
+            try {
+                CloudBlockBlob blob = container.getBlockBlobReference(key);
+                if (format != null) {
+                    blob.getMetadata().put("cloudsyncformat", format);
+                    if (contentHash != null) {
+                        blob.getMetadata().put(CONTENT_HASH_METADATA_KEY, contentHash);
+                    }
+                }
+                if (encryption.isEnabled()) {
+                    blob.getMetadata().put(ENCRYPTION_METADATA_KEY, SegmentedAesGcm.ALGORITHM);
+                }
+                governor.run(backup, length, () -> {
+                    blob.uploadFromByteArray(bytes, offset, length);
+                    return null;
+                });
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Unable to upload " + key, e);
+            }
+        }
+    }
+
+    private class BlockPartTarget implements PartTarget {
+        private final Backup backup;
+        private final CloudBlockBlob blob;
+        // the signature of the blob whose committed blocks are reused, null if none are
+        private final BlockSignature previous;
+        // the ETag of the blob whose committed blocks are reused
+        private final String previousETag;
+        private final Set<String> reusedIds = new HashSet<>();
+
+        BlockPartTarget(Backup backup, CloudBlockBlob blob) {
+            this(backup, blob, null, null);
+        }
+
+        BlockPartTarget(Backup backup, CloudBlockBlob blob, BlockSignature previous, String previousETag) {
+            this.backup = backup;
+            this.blob = blob;
+            this.previous = previous;
+            this.previousETag = previousETag;
+        }
+
+        @Override
+        public String uploadPart(int partNumber, ByteBuffer data) throws Exception {
+            // new blocks are numbered after the reused ones, so that no id stands for two blocks
+            String blockId = blockId((previous != null ? previous.getMaxNumber() : 0) + partNumber);
+            governor.run(backup, data.remaining(), () -> {
+                blob.uploadBlock(blockId, new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining()), data.remaining());
+                return null;
+            });
+            return blockId;
+        }
+
+        @Override
+        public void uploadWhole(ByteBuffer data) throws Exception {
+            governor.run(backup, data.remaining(), () -> {
+                blob.uploadFromByteArray(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                return null;
+            });
+        }
+
+        @Override
+        public String copyPart(int partNumber, long sourceOffset, int length) {
+            // the block is already committed to the blob, and is simply listed again
+            String blockId = blockId(previous.getBlockAt(sourceOffset).getNumber());
+            synchronized (reusedIds) {
+                reusedIds.add(blockId);
+            }
+            return blockId;
+        }
+
+        @Override
+        public void complete(List<String> partIds) throws Exception {
+            List<BlockEntry> blocks = new ArrayList<>(partIds.size());
+            for (String blockId : partIds) {
+                blocks.add(reusedIds.contains(blockId) ? new BlockEntry(blockId, BlockSearchMode.COMMITTED) : new BlockEntry(blockId));
+            }
+            // reused blocks must still be those of the blob the signature was taken of
+            AccessCondition condition = previousETag != null ? AccessCondition.generateIfMatchCondition(previousETag) : null;
+            governor.run(backup, 0, () -> {
+                blob.commitBlockList(blocks, condition, null, null);
+                return null;
+            });
+        }
+
+        @Override
+        public void abort() {
+            // uncommitted blocks are discarded by the service after a week
+        }
+    }
+
+    // block ids must all have the same length
+    private static String blockId(int number) {
+        return Base64.getEncoder().encodeToString(String.format("%08d", number).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private class BlobDeltaTarget implements DeltaTarget {
+        private final Backup backup;
+        // carries the metadata of the new version
+        private final CloudBlockBlob blob;
+        private String eTag;
+
+        BlobDeltaTarget(Backup backup, CloudBlockBlob blob) {
+            this.backup = backup;
+            this.blob = blob;
+        }
+
+        @Override
+        public boolean isCurrent(BlockSignature previous) throws Exception {
+            // a separate reference, as reading the attributes replaces the metadata of the reference
+            CloudBlockBlob current = getContainer(backup).getBlockBlobReference(blob.getName());
+            try {
+                governor.run(backup, 0, () -> {
+                    current.downloadAttributes();
+                    return null;
+                });
+            } catch (StorageException e) {
+                if (e.getHttpStatusCode() == 404) {
+                    return false;
+                }
+                throw e;
+            }
+            eTag = current.getProperties().getEtag();
+            return previous.getContentHash().equals(current.getMetadata().get(CONTENT_HASH_METADATA_KEY));
+        }
+
+        @Override
+        public PartTarget newUpload(BlockSignature previous) {
+            return previous != null ? new BlockPartTarget(backup, blob, previous, eTag) : new BlockPartTarget(backup, blob);
+        }
+    }
 }
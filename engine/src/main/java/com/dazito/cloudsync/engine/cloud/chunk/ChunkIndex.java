@@ -0,0 +1,156 @@
+package com.dazito.cloudsync.engine.cloud.chunk;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The set of chunks that are known to exist in a chunk store, so that a chunk can be skipped without asking the store
+ * whether it already has it. Chunks are identified by the first 16 bytes of their SHA-256 digest, which are kept in
+ * an open addressing table of longs, and appended to a file on local disk so the index survives restarts.
+ *
+ * <p>A chunk is only added once it has been uploaded. If the index file is lost or misses the last few entries after
+ * a crash, the affected chunks are simply uploaded again, which is harmless as their keys are derived from their
+ * content.
+ */
+@Slf4j
+public class ChunkIndex implements AutoCloseable {
+
+    static final int ENTRY_BYTES = 16;
+
+    private static final float MAX_LOAD = 0.6f;
+
+    private final Path indexFile;
+    private final FileChannel channel;
+
+    // two longs per slot, a slot whose longs are both 0 is empty
+    private long[] table;
+    private int size;
+
+    public ChunkIndex(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        this.table = new long[2 * 1024];
+
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        this.channel = FileChannel.open(indexFile, CREATE, READ, WRITE, APPEND);
+        load();
+    }
+
+    public synchronized boolean contains(byte[] digest) {
+        long high = getLong(digest, 0);
+        long low = getLong(digest, 8);
+        int slot = slot(high, low);
+        return table[slot] != 0 || table[slot + 1] != 0;
+    }
+
+    /**
+     * Adds the chunk with the given digest, once it has been stored.
+     */
+    public synchronized void add(byte[] digest) throws IOException {
+        long high = getLong(digest, 0);
+        long low = getLong(digest, 8);
+        if (insert(high, low)) {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES).putLong(high).putLong(low);
+            entry.flip();
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void load() throws IOException {
+        long entries = channel.size() / ENTRY_BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_BYTES * 4096);
+        long position = 0;
+        long end = entries * ENTRY_BYTES;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            position += buffer.remaining();
+            while (buffer.remaining() >= ENTRY_BYTES) {
+                insert(buffer.getLong(), buffer.getLong());
+            }
+        }
+
+        if (channel.size() != end) {
+            // a torn entry at the end of the file, cut it off so that new entries stay aligned
+            channel.truncate(end);
+        }
+        log.debug("Loaded {} chunks from {}", size, indexFile);
+    }
+
+    private boolean insert(long high, long low) {
+        if (high == 0 && low == 0) {
+            // the empty slot marker, a digest starting with 16 zero bytes is not going to happen
+            return false;
+        }
+        int slot = slot(high, low);
+        if (table[slot] != 0 || table[slot + 1] != 0) {
+            return false;
+        }
+        table[slot] = high;
+        table[slot + 1] = low;
+        size++;
+        if (size > (table.length / 2) * MAX_LOAD) {
+            grow();
+        }
+        return true;
+    }
+
+    // returns the slot holding the given digest, or the empty slot where it belongs
+    private int slot(long high, long low) {
+        int mask = table.length / 2 - 1;
+        // the digest is uniformly distributed already, so its bits can be used as the hash directly
+        int index = (int) high & mask;
+        while (true) {
+            int slot = index * 2;
+            if ((table[slot] == 0 && table[slot + 1] == 0) || (table[slot] == high && table[slot + 1] == low)) {
+                return slot;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        size = 0;
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0 || old[i + 1] != 0) {
+                insert(old[i], old[i + 1]);
+            }
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
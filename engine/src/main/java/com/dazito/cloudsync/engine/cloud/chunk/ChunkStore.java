@@ -0,0 +1,19 @@
+package com.dazito.cloudsync.engine.cloud.chunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The operations a cloud store provides to {@link ChunkedUploader} to store chunks and manifests.
+ */
+public interface ChunkStore {
+
+    /**
+     * A name for the key space the chunks are stored in, e.g. the bucket. Chunks are deduplicated within it.
+     */
+    String getNamespace();
+
+    void putChunk(String key, ByteBuffer chunk) throws IOException;
+
+    void putManifest(String key, byte[] manifest) throws IOException;
+}
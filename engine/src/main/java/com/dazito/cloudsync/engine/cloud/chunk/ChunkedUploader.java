@@ -0,0 +1,177 @@
+package com.dazito.cloudsync.engine.cloud.chunk;
+
+import com.dazito.cloudsync.engine.cloud.Transfer;
+import com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm;
+import com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm.FileEncryptor;
+import com.dazito.cloudsync.engine.util.BufferPool;
+import com.dazito.cloudsync.engine.util.ObjectPool;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Uploads files in chunked mode: the file is split by the {@link ContentDefinedChunker}, every chunk is stored under
+ * a key derived from its SHA-256 digest, and only chunks that are not in the local {@link ChunkIndex} are uploaded.
+ * The object at the file's own key is then a manifest, listing the chunks that make up the file:
+ *
+ * <pre>
+ * int     magic "CSM1"
+ * long    file size
+ * int     number of chunks
+ * n times 32 byte SHA-256 digest, int chunk length
+ * </pre>
+ *
+ * If encryption is enabled, chunks and manifests are encrypted with {@link SegmentedAesGcm}, while chunk keys remain
+ * the digests of the plaintext, so that chunks are still deduplicated. A key is derived once per file, and its
+ * manifest and new chunks are all encrypted with it.
+ *
+ * <p>Chunks are shared between files and backups, so deleting a file only deletes its manifest. Chunks that are no
+ * longer referenced by any manifest are left in the store.
+ */
+@Slf4j
+@Singleton
+public class ChunkedUploader {
+
+    public static final String CHUNK_KEY_PREFIX = "chunks/";
+
+    private static final int MANIFEST_MAGIC = 0x43534D31; // CSM1
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ContentDefinedChunker chunker;
+    private final Path indexDirectory;
+    private final Map<String, ChunkIndex> indexes = new ConcurrentHashMap<>();
+    private final SegmentedAesGcm encryption;
+    private final BufferPool ciphertextBuffers;
+
+    private final ObjectPool<MessageDigest> sha256;
+
+    @Inject
+    public ChunkedUploader(SegmentedAesGcm encryption, Config config) {
+        this.encryption = encryption;
+        int average = config.getChunkAverageSize();
+        this.chunker = new ContentDefinedChunker(average / 4, average, average * 4);
+        this.indexDirectory = Paths.get(config.getChunkIndexDirectory());
+        this.ciphertextBuffers = new BufferPool(config.getUploadConcurrencyMax(), false);
+        this.sha256 = new ObjectPool<>(config.getUploadConcurrencyMax(), () -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public void upload(ChunkStore store, String manifestKey, Path path) throws IOException {
+        MessageDigest digest = sha256.acquire();
+        try {
+            upload(store, manifestKey, path, digest);
+        } finally {
+            sha256.release(digest);
+        }
+    }
+
+    private void upload(ChunkStore store, String manifestKey, Path path, MessageDigest digest) throws IOException {
+        ChunkIndex index = getIndex(store.getNamespace());
+        FileEncryptor encryptor = encryption.isEnabled() ? encryption.newEncryptor(manifestKey) : null;
+        digest.reset();
+
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        DataOutputStream manifest = new DataOutputStream(manifestBytes);
+        long[] stats = new long[3]; // chunks, uploaded chunks, uploaded bytes
+
+        try (FileChannel in = FileChannel.open(path, READ)) {
+            manifest.writeInt(MANIFEST_MAGIC);
+            manifest.writeLong(in.size());
+            manifest.writeInt(0); // the number of chunks, patched below
+
+            chunker.split(in, chunk -> {
+                digest.update(chunk.duplicate());
+                byte[] hash = digest.digest();
+                stats[0]++;
+                if (!index.contains(hash)) {
+                    putChunk(store, getChunkKey(hash), chunk.duplicate(), encryptor);
+                    index.add(hash);
+                    stats[1]++;
+                    stats[2] += chunk.remaining();
+                }
+                manifest.write(hash);
+                manifest.writeInt(chunk.remaining());
+            });
+        }
+
+        byte[] bytes = manifestBytes.toByteArray();
+        ByteBuffer.wrap(bytes).putInt(12, (int) stats[0]);
+        if (encryptor != null) {
+            ByteBuffer encrypted = ByteBuffer.allocate((int) SegmentedAesGcm.getCiphertextSize(bytes.length));
+            encryptor.encrypt(0, ByteBuffer.wrap(bytes), true, encrypted);
+            bytes = encrypted.array();
+        }
+        // the manifest makes the new version of the file visible
+        if (!Transfer.commitCurrent()) {
+            throw new InterruptedIOException("Upload of '" + path + "' was cancelled");
+        }
+        store.putManifest(manifestKey, bytes);
+
+        log.debug("'{}' stored as {} chunks, uploaded {} new chunks with {} bytes", path, stats[0], stats[1], stats[2]);
+    }
+
+    // chunk keys are derived from the plaintext, every chunk is encrypted on its own with the key of the file that
+    // uploaded it
+    private void putChunk(ChunkStore store, String key, ByteBuffer chunk, FileEncryptor encryptor) throws IOException {
+        if (encryptor == null) {
+            store.putChunk(key, chunk);
+            return;
+        }
+        ByteBuffer ciphertext = ciphertextBuffers.acquire((int) SegmentedAesGcm.getCiphertextSize(chunker.getMaxSize()));
+        try {
+            encryptor.forObject(key).encrypt(0, chunk, true, ciphertext);
+            ciphertext.flip();
+            store.putChunk(key, ciphertext);
+        } finally {
+            ciphertextBuffers.release(ciphertext);
+        }
+    }
+
+    public static String getChunkKey(byte[] digest) {
+        StringBuilder key = new StringBuilder(CHUNK_KEY_PREFIX.length() + 3 + digest.length * 2);
+        key.append(CHUNK_KEY_PREFIX);
+        // a short prefix directory spreads the chunks over the key space
+        appendHex(key, digest[0]);
+        key.append('/');
+        for (byte b : digest) {
+            appendHex(key, b);
+        }
+        return key.toString();
+    }
+
+    private ChunkIndex getIndex(String namespace) {
+        return indexes.computeIfAbsent(namespace, ns -> {
+            try {
+                return new ChunkIndex(indexDirectory.resolve(ns.replaceAll("[^A-Za-z0-9._-]", "_") + ".idx"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static void appendHex(StringBuilder builder, byte b) {
+        builder.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
@@ -0,0 +1,118 @@
+package com.dazito.cloudsync.engine.cloud.chunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a stream of bytes into variable sized chunks whose boundaries depend on the content only, using a Gear
+ * rolling hash with normalized chunking (FastCDC). Inserting or removing bytes in the middle of a file therefore only
+ * changes the chunks around the edit - the boundaries of every other chunk, and with them their content addressed
+ * keys, stay the same.
+ */
+public final class ContentDefinedChunker {
+
+    /**
+     * Receives the chunks. The buffer is only valid for the duration of the call.
+     */
+    public interface ChunkConsumer {
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // the table must never change, as it defines where chunk boundaries are, so it is generated with a
+        // fixed SplitMix64 sequence rather than a Random whose implementation could change
+        long seed = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+
+    // before the average size is reached a harder mask (more bits) is used, after it an easier one, which narrows
+    // the chunk size distribution around the average
+    private final long maskBeforeAverage;
+    private final long maskAfterAverage;
+
+    public ContentDefinedChunker(int minSize, int averageSize, int maxSize) {
+        if (minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= average <= max");
+        }
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+        this.maskBeforeAverage = topBits(bits + 2);
+        this.maskAfterAverage = topBits(Math.max(1, bits - 2));
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void split(ReadableByteChannel in, ChunkConsumer consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(maxSize * 2);
+        byte[] data = buffer.array();
+        boolean eof = false;
+        int start = 0;
+
+        while (true) {
+            // make sure a full chunk is available, unless we've reached the end of the input
+            if (!eof && buffer.position() - start < maxSize) {
+                buffer.limit(buffer.position()).position(start);
+                buffer.compact();
+                start = 0;
+                while (buffer.hasRemaining() && !eof) {
+                    eof = in.read(buffer) < 0;
+                }
+            }
+
+            int available = buffer.position() - start;
+            if (available == 0) {
+                return;
+            }
+
+            int length = cut(data, start, Math.min(available, maxSize));
+            ByteBuffer chunk = ByteBuffer.wrap(data, start, length).slice();
+            consumer.accept(chunk);
+            start += length;
+        }
+    }
+
+    private int cut(byte[] data, int start, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+
+        int normal = Math.min(averageSize, available);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[start + i] & 0xFF];
+            if ((hash & maskBeforeAverage) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < available; i++) {
+            hash = (hash << 1) + GEAR[data[start + i] & 0xFF];
+            if ((hash & maskAfterAverage) == 0) {
+                return i + 1;
+            }
+        }
+        return available;
+    }
+
+    private static long topBits(int bits) {
+        return -1L << (64 - bits);
+    }
+}
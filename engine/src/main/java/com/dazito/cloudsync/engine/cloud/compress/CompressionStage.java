@@ -0,0 +1,226 @@
+package com.dazito.cloudsync.engine.cloud.compress;
+
+import com.dazito.cloudsync.engine.metrics.Counter;
+import com.dazito.cloudsync.engine.metrics.Metrics;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.util.config.Config;
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Optionally compresses files on their way to the cloud store, as configured per backup. The compressed content is
+ * produced while it is being read by the upload, so files are neither buffered nor written to temporary files.
+ *
+ * <p>Before a file is compressed, its first block is compressed as a sample. Files whose sample doesn't get noticeably
+ * smaller, such as media files or archives, are uploaded as they are, so that no CPU time is spent on them.
+ * Compressed objects carry the codec in their metadata under {@link #CODEC_METADATA_KEY}. The files compressed and
+ * skipped, the bytes in and out and the CPU time spent are exported as metrics, besides being logged now and then.
+ */
+@Slf4j
+@Singleton
+public class CompressionStage {
+
+    public static final String CODEC_METADATA_KEY = "cloudsync-codec";
+    // zlib format, as for the HTTP deflate content coding
+    public static final String DEFLATE = "deflate";
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // files whose sample compresses to more than this fraction of its size are not compressed
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    private static final int DISABLED = Integer.MIN_VALUE;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Config config;
+    // the compression level per backup id
+    private final Map<Long, Integer> levels = new ConcurrentHashMap<>();
+
+    private final Counter compressedFiles;
+    private final Counter skippedFiles;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final Counter cpuNanos;
+    private long lastReportedFiles;
+    private Disposable reporting;
+
+    @Inject
+    public CompressionStage(Config config, Metrics metrics) {
+        this.config = config;
+        String files = "Files that were sampled for compression";
+        this.compressedFiles = metrics.counter("cloudsync_compression_files_total", files, "outcome", "compressed");
+        this.skippedFiles = metrics.counter("cloudsync_compression_files_total", files, "outcome", "skipped");
+        Counter in = metrics.counter("cloudsync_compression_bytes_in_total",
+                "Bytes of the files that were compressed");
+        Counter out = metrics.counter("cloudsync_compression_bytes_out_total",
+                "Bytes the compressed files were compressed to");
+        Counter cpu = metrics.counter("cloudsync_compression_cpu_nanoseconds_total",
+                "CPU time spent compressing, samples included");
+        this.bytesIn = in;
+        this.bytesOut = out;
+        this.cpuNanos = cpu;
+        metrics.gauge("cloudsync_compression_ratio",
+                "Compressed size divided by the original size of all compressed files", () -> ratio(in.get(), out.get()));
+        metrics.gauge("cloudsync_compression_cpu_seconds_per_megabyte", "CPU time spent compressing per MB of input",
+                () -> cpuNanosPerMegabyte(in.get(), cpu.get()) / 1e9);
+    }
+
+    /**
+     * Starts logging the compression figures now and then. Does nothing if it has been started already.
+     */
+    public synchronized void start() {
+        if (reporting == null) {
+            reporting = Observable.interval(REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS)
+                    .subscribe(tick -> report());
+        }
+    }
+
+    /**
+     * Returns a stream of the compressed content of the file, or null if the file is to be uploaded as it is. The
+     * codec of the returned stream is {@link #DEFLATE}.
+     */
+    public InputStream open(Backup backup, Path path) throws IOException {
+        int level = levels.computeIfAbsent(backup.getId(), id -> getLevel(backup));
+        if (level == DISABLED) {
+            return null;
+        }
+        if (!isWorthCompressing(path, level)) {
+            skippedFiles.increment();
+            return null;
+        }
+        compressedFiles.increment();
+        return new MeteredDeflaterInputStream(Files.newInputStream(path), new Deflater(level));
+    }
+
+    public long getCompressedFileCount() {
+        return compressedFiles.get();
+    }
+
+    public long getSkippedFileCount() {
+        return skippedFiles.get();
+    }
+
+    // compressed size divided by the original size of all compressed files so far
+    public double getCompressionRatio() {
+        return ratio(bytesIn.get(), bytesOut.get());
+    }
+
+    public long getCpuNanosPerMegabyte() {
+        return cpuNanosPerMegabyte(bytesIn.get(), cpuNanos.get());
+    }
+
+    private static double ratio(long in, long out) {
+        return in == 0 ? 1 : (double) out / in;
+    }
+
+    private static long cpuNanosPerMegabyte(long in, long cpuNanos) {
+        return in == 0 ? 0 : cpuNanos * (1024 * 1024) / in;
+    }
+
+    private int getLevel(Backup backup) {
+        String codec = config.getBackupConfig(backup).map(Config.BackupConfig::getCompression).orElse(null);
+        if (codec == null || codec.equalsIgnoreCase("none")) {
+            return DISABLED;
+        }
+        if (!codec.equalsIgnoreCase(DEFLATE)) {
+            log.warn("Unsupported compression '{}' for backup ::{}::, uploading uncompressed", codec, backup.getBackupName());
+            return DISABLED;
+        }
+        return config.getBackupConfig(backup).get().getCompressionLevel();
+    }
+
+    private boolean isWorthCompressing(Path path, int level) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            while (sample.hasRemaining() && channel.read(sample) >= 0) {
+                // keep reading until the sample is full or the file ends
+            }
+        }
+        if (sample.position() == 0) {
+            return false;
+        }
+
+        long start = cpuTime();
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(sample.array(), 0, sample.position());
+            deflater.finish();
+            byte[] output = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed <= sample.position() * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+            cpuNanos.add(cpuTime() - start);
+        }
+    }
+
+    private void report() {
+        long files = compressedFiles.get() + skippedFiles.get();
+        if (files != lastReportedFiles) {
+            log.info("Compression: {} files compressed, {} skipped, ratio {}, {} ms CPU per MB",
+                    compressedFiles.get(), skippedFiles.get(), String.format("%.3f", getCompressionRatio()),
+                    String.format("%.2f", getCpuNanosPerMegabyte() / 1_000_000.0));
+            lastReportedFiles = files;
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /*
+     * Accounts the bytes and the CPU time spent compressing, and releases the deflater when the stream is closed.
+     */
+    private class MeteredDeflaterInputStream extends DeflaterInputStream {
+        private boolean closed;
+
+        MeteredDeflaterInputStream(InputStream in, Deflater deflater) {
+            super(in, deflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = cpuTime();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                cpuNanos.add(cpuTime() - start);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                bytesIn.add(def.getBytesRead());
+                bytesOut.add(def.getBytesWritten());
+                def.end();
+            }
+            super.close();
+        }
+    }
+}
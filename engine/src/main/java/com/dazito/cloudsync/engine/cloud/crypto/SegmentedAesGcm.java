@@ -0,0 +1,443 @@
+package com.dazito.cloudsync.engine.cloud.crypto;
+
+import com.dazito.cloudsync.engine.util.BufferPool;
+import com.dazito.cloudsync.engine.util.ObjectPool;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side encryption of uploads with AES-256-GCM over fixed size segments, along the lines of Tink's streaming
+ * AEAD. Every segment is encrypted and authenticated on its own, so the segments of a file can be encrypted in any
+ * order and on any number of threads, e.g. by the threads uploading the parts of a large file.
+ *
+ * <p>Every file gets a random salt, from which its own key is derived with HKDF-SHA256, so nonces only need to be
+ * unique within a file. The nonce of a segment is a random prefix, the segment index and a flag marking the last
+ * segment, which prevents segments from being reordered or the file from being truncated unnoticed. The key of the
+ * object is authenticated along with every segment, so that objects can't be swapped in the store unnoticed either.
+ * This binds an object to its key: a copy of it under another key can't be decrypted, so an encrypted object must
+ * never be relocated within the store, only uploaded again. An encrypted object is laid out as:
+ *
+ * <pre>
+ * byte     version
+ * int      plaintext segment size
+ * 32 bytes salt
+ * 7 bytes  nonce prefix
+ * segments of (plaintext segment size + 16 byte tag), the last one possibly shorter
+ * </pre>
+ *
+ * The master key is read from the key file given by the encryptionKeyFile setting, which holds 32 base64 encoded
+ * bytes. Without it, uploads are not encrypted.
+ *
+ * <p>Streams are encrypted and decrypted with direct buffers taken from a pool, so a stream allocates nothing for its
+ * segments; the number of streams that can be open at once is bounded by the number of pooled buffers.
+ */
+@Slf4j
+@Singleton
+public class SegmentedAesGcm {
+
+    public static final String ENCRYPTION_METADATA_KEY = "cloudsync-encryption";
+    public static final String ALGORITHM = "aes256-gcm-hkdf-sha256";
+
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+    public static final int TAG_SIZE = 16;
+    public static final int HEADER_SIZE = 1 + 4 + 32 + 7;
+
+    // version 1 didn't authenticate the object key
+    private static final byte VERSION = 2;
+    private static final int SALT_SIZE = 32;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    private static final byte[] KEY_INFO = "cloudsync segmented aes-gcm".getBytes(StandardCharsets.US_ASCII);
+
+    // a stream's buffer holds the segment it is at, the segment after it and the result, with or without the header
+    // and the tag, whichever way it goes
+    private static final int STREAM_BUFFER_SIZE = 3 * SEGMENT_SIZE + HEADER_SIZE + 2 * TAG_SIZE;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Cipher instances are expensive to create, so they are reused - encryption is bound by the CPU, so there is no
+    // point in keeping more of them than there are cores
+    private static final ObjectPool<Cipher> CIPHERS = new ObjectPool<>(Runtime.getRuntime().availableProcessors(), () -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final byte[] masterKey;
+
+    // the buffers of the streams that are open, every stream takes one for as long as it is open
+    private final BufferPool streamBuffers;
+
+    @Inject
+    public SegmentedAesGcm(Config config) {
+        this(readKey(config.getEncryptionKeyFile()), config.getMultipartBuffers());
+    }
+
+    /**
+     * Creates an encryption with the given master key, which allows as many streams to be open at once as there are
+     * cores.
+     */
+    public SegmentedAesGcm(byte[] masterKey) {
+        this(masterKey, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SegmentedAesGcm(byte[] masterKey, int maxStreams) {
+        if (masterKey != null && masterKey.length != 32) {
+            throw new IllegalArgumentException("The encryption key must be 32 bytes long");
+        }
+        this.masterKey = masterKey;
+        this.streamBuffers = new BufferPool(maxStreams, true);
+    }
+
+    public boolean isEnabled() {
+        return masterKey != null;
+    }
+
+    /**
+     * Starts the encryption of a new file, stored under the given object key, with its own salt and derived key.
+     */
+    public FileEncryptor newEncryptor(String objectKey) {
+        byte[] salt = new byte[SALT_SIZE];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        RANDOM.nextBytes(salt);
+        RANDOM.nextBytes(noncePrefix);
+        return new FileEncryptor(deriveKey(salt), salt, noncePrefix, associatedData(objectKey), new AtomicLong());
+    }
+
+    /**
+     * Returns a stream of the encrypted content of the given stream, which is stored under the given object key. The
+     * given stream is closed along with the returned one, or right away if this fails, e.g. as it is interrupted while
+     * all stream buffers are in use.
+     */
+    public InputStream encrypt(InputStream plaintext, String objectKey) throws IOException {
+        try {
+            return new EncryptingInputStream(plaintext, streamBuffers, newEncryptor(objectKey));
+        } catch (IOException e) {
+            plaintext.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a stream of the decrypted content of the given stream of an object that is stored under the given
+     * object key, e.g. to restore it. Reading fails with an IOException if the object has been changed, truncated or
+     * stored under another key. The given stream is closed along with the returned one, or right away if this fails.
+     */
+    public InputStream decrypt(InputStream ciphertext, String objectKey) throws IOException {
+        if (!isEnabled()) {
+            throw new IllegalStateException("There is no encryption key to decrypt with");
+        }
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            new DataInputStream(ciphertext).readFully(header);
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            byte version = fields.get();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported encryption version " + version);
+            }
+            int segmentSize = fields.getInt();
+            if (segmentSize != SEGMENT_SIZE) {
+                throw new IOException("Unsupported segment size " + segmentSize);
+            }
+            byte[] salt = new byte[SALT_SIZE];
+            byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+            fields.get(salt).get(noncePrefix);
+            // version 1 authenticated nothing along with the segments
+            byte[] associatedData = version == 1 ? null : associatedData(objectKey);
+            return new DecryptingInputStream(ciphertext, streamBuffers, deriveKey(salt), noncePrefix, associatedData);
+        } catch (IOException e) {
+            ciphertext.close();
+            throw e;
+        }
+    }
+
+    public static long getCiphertextSize(long plaintextSize) {
+        long segments = Math.max(1, (plaintextSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        return HEADER_SIZE + plaintextSize + segments * TAG_SIZE;
+    }
+
+    private SecretKeySpec deriveKey(byte[] salt) {
+        try {
+            // HKDF extract and the first block of expand, which is all the 32 bytes of an AES-256 key need
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+            byte[] pseudoRandomKey = hmac.doFinal(masterKey);
+            hmac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            hmac.update(KEY_INFO);
+            hmac.update((byte) 1);
+            return new SecretKeySpec(hmac.doFinal(), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] associatedData(String objectKey) {
+        return objectKey.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // the nonce of a segment: the nonce prefix, the segment index and whether it is the last one
+    private static GCMParameterSpec nonce(byte[] noncePrefix, long segment, boolean last) {
+        byte[] nonce = new byte[12];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_SIZE);
+        nonce[7] = (byte) (segment >>> 24);
+        nonce[8] = (byte) (segment >>> 16);
+        nonce[9] = (byte) (segment >>> 8);
+        nonce[10] = (byte) segment;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+
+    private static byte[] readKey(String keyFile) {
+        if (keyFile == null) {
+            return null;
+        }
+        Path path = Paths.get(keyFile);
+        try {
+            byte[] key = Base64.getDecoder().decode(new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim());
+            log.info("Uploads are encrypted with the key in {}", path);
+            return key;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read the encryption key file " + path, e);
+        }
+    }
+
+    /**
+     * Encrypts the segments of one file.
+     */
+    public static final class FileEncryptor {
+        private final SecretKeySpec key;
+        private final byte[] salt;
+        private final byte[] noncePrefix;
+        // the object key, authenticated with every segment
+        private final byte[] associatedData;
+        // the objects encrypted with the key so far, shared by all encryptors of the key
+        private final AtomicLong objects;
+
+        private FileEncryptor(SecretKeySpec key, byte[] salt, byte[] noncePrefix, byte[] associatedData, AtomicLong objects) {
+            this.key = key;
+            this.salt = salt;
+            this.noncePrefix = noncePrefix;
+            this.associatedData = associatedData;
+            this.objects = objects;
+        }
+
+        /**
+         * Returns the encryptor of another object stored along with this file, e.g. one of its chunks, which is
+         * encrypted with the key of this file rather than with one derived for it alone. Its header carries the salt
+         * of this file, so it can still be decrypted on its own. Every object of the key gets a nonce prefix of its
+         * own, the one of this file plus a number, so that no nonce is ever used twice with the key.
+         */
+        public FileEncryptor forObject(String objectKey) {
+            long number = objects.incrementAndGet();
+            byte[] prefix = noncePrefix.clone();
+            for (int i = NONCE_PREFIX_SIZE - 1; i >= 0 && number != 0; i--) {
+                int sum = (prefix[i] & 0xff) + (int) (number & 0xff);
+                prefix[i] = (byte) sum;
+                number = (number >>> 8) + (sum >>> 8);
+            }
+            return new FileEncryptor(key, salt, prefix, associatedData(objectKey), objects);
+        }
+
+        /**
+         * Encrypts the given plaintext, which starts at the given offset of the file, into the output buffer. The
+         * offset must be at a segment boundary, and the plaintext must consist of whole segments unless it ends the
+         * file. At offset 0, the header is written first.
+         *
+         * @return the number of bytes written
+         */
+        public int encrypt(long offset, ByteBuffer plaintext, boolean endOfFile, ByteBuffer out) throws IOException {
+            if (offset % SEGMENT_SIZE != 0) {
+                throw new IllegalArgumentException("Encryption must start at a segment boundary");
+            }
+            int start = out.position();
+            if (offset == 0) {
+                out.put(VERSION).putInt(SEGMENT_SIZE).put(salt).put(noncePrefix);
+            }
+
+            long segment = offset / SEGMENT_SIZE;
+            int limit = plaintext.limit();
+            do {
+                int end = Math.min(limit, plaintext.position() + SEGMENT_SIZE);
+                plaintext.limit(end);
+                encryptSegment(segment++, endOfFile && end == limit, plaintext, out);
+                plaintext.limit(limit);
+            } while (plaintext.hasRemaining());
+            return out.position() - start;
+        }
+
+        private void encryptSegment(long segment, boolean last, ByteBuffer plaintext, ByteBuffer out) throws IOException {
+            Cipher cipher = CIPHERS.acquire();
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, nonce(noncePrefix, segment, last));
+                cipher.updateAAD(associatedData);
+                cipher.doFinal(plaintext, out);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to encrypt segment " + segment, e);
+            } finally {
+                CIPHERS.release(cipher);
+            }
+        }
+    }
+
+    /*
+     * Encrypts or decrypts a stream one segment at a time. The segment after the current one is read ahead, as the
+     * last segment has to be known before it is processed. The stream's buffer is taken from the pool when it is
+     * opened, and returned when it is closed.
+     */
+    private abstract static class SegmentedStream extends InputStream {
+        private final InputStream in;
+        private final ReadableByteChannel channel;
+        private final BufferPool pool;
+
+        private ByteBuffer buffer;
+        private ByteBuffer current;
+        private ByteBuffer next;
+        private final ByteBuffer out;
+        private long segment;
+        private boolean done;
+
+        SegmentedStream(InputStream in, BufferPool pool, int segmentLength, int outLength) throws IOException {
+            this.in = in;
+            this.channel = Channels.newChannel(in);
+            this.pool = pool;
+            buffer = pool.acquire(STREAM_BUFFER_SIZE);
+            current = buffer.slice(0, segmentLength);
+            next = buffer.slice(segmentLength, segmentLength);
+            out = buffer.slice(2 * segmentLength, outLength);
+            out.limit(0);
+        }
+
+        // processes the given segment, whose index is given, into the output buffer
+        abstract void process(long segment, boolean last, ByteBuffer in, ByteBuffer out) throws IOException;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!out.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, out.remaining());
+            out.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                if (buffer != null) {
+                    // the buffer is someone else's from now on
+                    done = true;
+                    out.limit(0);
+                    pool.release(buffer);
+                    buffer = null;
+                }
+            }
+        }
+
+        private boolean fill() throws IOException {
+            if (done) {
+                return false;
+            }
+            if (segment == 0) {
+                readSegment(current);
+            }
+            boolean last = current.limit() < current.capacity() || !readSegment(next);
+
+            out.clear();
+            process(segment++, last, current, out);
+            out.flip();
+
+            ByteBuffer swap = current;
+            current = next;
+            next = swap;
+            done = last;
+            return true;
+        }
+
+        // reads a full segment unless the stream ends, returns false if there was nothing left to read
+        private boolean readSegment(ByteBuffer segment) throws IOException {
+            segment.clear();
+            int read;
+            do {
+                read = channel.read(segment);
+            } while (read >= 0 && segment.hasRemaining());
+            segment.flip();
+            return segment.hasRemaining();
+        }
+    }
+
+    private static final class EncryptingInputStream extends SegmentedStream {
+        private final FileEncryptor encryptor;
+
+        EncryptingInputStream(InputStream in, BufferPool pool, FileEncryptor encryptor) throws IOException {
+            super(in, pool, SEGMENT_SIZE, HEADER_SIZE + SEGMENT_SIZE + TAG_SIZE);
+            this.encryptor = encryptor;
+        }
+
+        @Override
+        void process(long segment, boolean last, ByteBuffer plaintext, ByteBuffer out) throws IOException {
+            encryptor.encrypt(segment * SEGMENT_SIZE, plaintext, last, out);
+        }
+    }
+
+    private static final class DecryptingInputStream extends SegmentedStream {
+        private final SecretKeySpec key;
+        private final byte[] noncePrefix;
+        private final byte[] associatedData;
+
+        DecryptingInputStream(InputStream in, BufferPool pool, SecretKeySpec key, byte[] noncePrefix, byte[] associatedData)
+                throws IOException {
+            super(in, pool, SEGMENT_SIZE + TAG_SIZE, SEGMENT_SIZE);
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.associatedData = associatedData;
+        }
+
+        @Override
+        void process(long segment, boolean last, ByteBuffer ciphertext, ByteBuffer out) throws IOException {
+            Cipher cipher = CIPHERS.acquire();
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, nonce(noncePrefix, segment, last));
+                if (associatedData != null) {
+                    cipher.updateAAD(associatedData);
+                }
+                cipher.doFinal(ciphertext, out);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to decrypt segment " + segment + ", the object has been changed, truncated "
+                        + "or stored under another key", e);
+            } finally {
+                CIPHERS.release(cipher);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.dazito.cloudsync.engine.cloud.delete;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the deletes of a backup's files into batches, so that a cloud store can delete many objects per request,
+ * e.g. with S3's DeleteObjects. A batch is sent once it holds the maximum number of files, or once the maximum delay
+ * has passed since its first file. Batches are sent on the given executor, never on the thread that adds a delete.
+ *
+ * <p>A store reports which files of a batch it could not delete, and the success runnable of every other file is
+ * run, so a file's record is only removed once the delete of its own object has been confirmed.
+ */
+@Slf4j
+public class DeleteBatcher {
+
+    /**
+     * Deletes the objects of a batch of files of one backup.
+     */
+    @FunctionalInterface
+    public interface BatchDelete {
+        /**
+         * Deletes the objects of the given files, and returns the files whose objects could not be deleted.
+         */
+        Collection<Path> delete(Backup backup, List<Path> paths) throws Exception;
+    }
+
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final Executor executor;
+    private final BatchDelete batchDelete;
+
+    // the batch that is being filled for each backup, keyed by backup id, guarded by this
+    private final Map<Long, Batch> batches = new HashMap<>();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "delete-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Batch {
+        private final Backup backup;
+        private final List<Path> paths = new ArrayList<>();
+        private final List<Runnable> onSuccess = new ArrayList<>();
+
+        Batch(Backup backup) {
+            this.backup = backup;
+        }
+    }
+
+    public DeleteBatcher(int maxBatchSize, long maxDelayMillis, Executor executor, BatchDelete batchDelete) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.executor = executor;
+        this.batchDelete = batchDelete;
+    }
+
+    /**
+     * Queues the delete of the given file's object. The runnable, if any, is run once the delete is confirmed.
+     */
+    public void delete(Backup backup, Path p, Runnable onSuccess) {
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = batches.get(backup.getId());
+            if (batch == null) {
+                Batch created = new Batch(backup);
+                batches.put(backup.getId(), created);
+                timer.schedule(() -> sendIfPending(created), maxDelayMillis, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.paths.add(p);
+            batch.onSuccess.add(onSuccess);
+            if (batch.paths.size() >= maxBatchSize) {
+                batches.remove(backup.getId());
+                full = batch;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends the batches that are still being filled right away, e.g. on shutdown.
+     */
+    public void flush() {
+        List<Batch> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        pending.forEach(this::send);
+    }
+
+    private void sendIfPending(Batch batch) {
+        synchronized (this) {
+            // a batch that filled up has already been sent
+            if (!batches.remove(batch.backup.getId(), batch)) {
+                return;
+            }
+        }
+        send(batch);
+    }
+
+    private void send(Batch batch) {
+        executor.execute(() -> {
+            Collection<Path> failed;
+            try {
+                failed = new HashSet<>(batchDelete.delete(batch.backup, batch.paths));
+            } catch (Exception e) {
+                log.error("Unable to delete a batch of {} files of backup ::{}::", batch.paths.size(),
+                        batch.backup.getBackupName(), e);
+                return;
+            }
+
+            for (int i = 0; i < batch.paths.size(); i++) {
+                Runnable onSuccess = batch.onSuccess.get(i);
+                if (onSuccess != null && !failed.contains(batch.paths.get(i))) {
+                    try {
+                        onSuccess.run();
+                    } catch (RuntimeException e) {
+                        log.error("Unable to complete the delete of {}", batch.paths.get(i), e);
+                    }
+                }
+            }
+            log.debug("Deleted {} of {} files of backup ::{}:: in one batch", batch.paths.size() - failed.size(),
+                    batch.paths.size(), batch.backup.getBackupName());
+        });
+    }
+}
@@ -0,0 +1,156 @@
+package com.dazito.cloudsync.engine.cloud.delta;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The signature of an object that was uploaded in parts: the weak checksum and SHA-256 of every part, in order. The
+ * parts of a full upload all have the block size except the last one; the parts of a delta upload can be longer.
+ */
+@Getter
+public final class BlockSignature {
+
+    // version 1 had no object version
+    private static final int VERSION = 2;
+
+    // the content hash of the object, which tells whether the signature still describes the object in the store
+    private final String contentHash;
+    // what identifies the uploaded object in the store, e.g. its ETag, null if it isn't known
+    private final String objectVersion;
+    // the length of the blocks that are looked for in a new version of the file
+    private final int blockSize;
+    private final List<Block> blocks;
+
+    /**
+     * A part of the object.
+     */
+    @Getter
+    public static final class Block {
+        private final long offset;
+        private final int length;
+        // the number the part was uploaded under, parts of a delta upload are numbered after the highest number of
+        // the signature they are based on, so that stores which name parts by number (Azure block ids) never reuse
+        // a name within the object
+        private final int number;
+        private final int weak;
+        private final byte[] strong;
+
+        Block(long offset, int length, int number, int weak, byte[] strong) {
+            this.offset = offset;
+            this.length = length;
+            this.number = number;
+            this.weak = weak;
+            this.strong = strong;
+        }
+    }
+
+    BlockSignature(String contentHash, String objectVersion, int blockSize, List<Block> blocks) {
+        this.contentHash = contentHash;
+        this.objectVersion = objectVersion;
+        this.blockSize = blockSize;
+        this.blocks = Collections.unmodifiableList(blocks);
+    }
+
+    public long getSize() {
+        if (blocks.isEmpty()) {
+            return 0;
+        }
+        Block last = blocks.get(blocks.size() - 1);
+        return last.offset + last.length;
+    }
+
+    public int getMaxNumber() {
+        int max = 0;
+        for (Block block : blocks) {
+            max = Math.max(max, block.number);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the block that starts at the given offset of the object, or null if no block starts there.
+     */
+    public Block getBlockAt(long offset) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long blockOffset = blocks.get(middle).offset;
+            if (blockOffset < offset) {
+                low = middle + 1;
+            } else if (blockOffset > offset) {
+                high = middle - 1;
+            } else {
+                return blocks.get(middle);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns this signature without the object version, for an object that was copied to another key, which may
+     * have given it another version.
+     */
+    BlockSignature withoutObjectVersion() {
+        return new BlockSignature(contentHash, null, blockSize, blocks);
+    }
+
+    static BlockSignature read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unknown signature version " + version + " in " + file);
+            }
+            String contentHash = in.readUTF();
+            String objectVersion = version > 1 ? in.readUTF() : "";
+            int blockSize = in.readInt();
+            int count = in.readInt();
+            List<Block> blocks = new ArrayList<>(count);
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                int number = in.readInt();
+                int weak = in.readInt();
+                byte[] strong = new byte[in.readUnsignedByte()];
+                in.readFully(strong);
+                blocks.add(new Block(offset, length, number, weak, strong));
+                offset += length;
+            }
+            return new BlockSignature(contentHash, objectVersion.isEmpty() ? null : objectVersion, blockSize, blocks);
+        }
+    }
+
+    /*
+     * Written to a temporary file that replaces the signature once complete, so that a crash leaves either the old or
+     * the new signature behind.
+     */
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(contentHash);
+            out.writeUTF(objectVersion != null ? objectVersion : "");
+            out.writeInt(blockSize);
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                out.writeInt(block.length);
+                out.writeInt(block.number);
+                out.writeInt(block.weak);
+                out.writeByte(block.strong.length);
+                out.write(block.strong);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
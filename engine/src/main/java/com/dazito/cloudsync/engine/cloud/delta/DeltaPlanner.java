@@ -0,0 +1,218 @@
+package com.dazito.cloudsync.engine.cloud.delta;
+
+import com.dazito.cloudsync.engine.cloud.part.PartUploader.Part;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Works out which parts of a new version of a file can be copied from the uploaded object, the way rsync does: a
+ * window of the block size is moved along the file one byte at a time, and wherever its weak checksum and then its
+ * SHA-256 equal those of a block of the object, that block is copied instead of uploaded. Blocks are found wherever
+ * they moved to, so an insertion only costs the blocks around it.
+ *
+ * <p>The bytes between copied blocks are uploaded in parts of the block size. A remainder shorter than that is
+ * uploaded together with the following block rather than on its own, as S3 requires every part but the last to be at
+ * least 5 MB.
+ */
+class DeltaPlanner {
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    // a delta that would upload more than this fraction of the file is not worth it, the file is uploaded as a whole,
+    // which also brings its parts back to the block size
+    private static final double MAX_UPLOADED_FRACTION = 0.5;
+
+    /**
+     * Returns the parts the file should be uploaded as, or null if it should be uploaded as a whole.
+     */
+    List<Part> plan(Path path, BlockSignature previous) throws IOException {
+        int blockSize = previous.getBlockSize();
+        Map<Integer, List<BlockSignature.Block>> blocksByWeak = new HashMap<>();
+        for (BlockSignature.Block block : previous.getBlocks()) {
+            // only blocks of the block size can match the window
+            if (block.getLength() == blockSize) {
+                blocksByWeak.computeIfAbsent(block.getWeak(), weak -> new ArrayList<>(1)).add(block);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            long size = channel.size();
+            if (blocksByWeak.isEmpty() || size < blockSize) {
+                return null;
+            }
+
+            Parts parts = new Parts(blockSize);
+            SequentialReader reader = new SequentialReader(channel);
+            RollingChecksum checksum = new RollingChecksum(blockSize);
+            // the bytes of the window, kept as a ring: the byte at the position is at head, so the byte leaving the
+            // window as it moves along is always at hand, and candidates are hashed without reading the file again
+            byte[] window = new byte[blockSize];
+            int head = 0;
+            MessageDigest sha256 = newSha256();
+            long position = 0;
+            long literalStart = 0;
+            BlockSignature.Block expected = null;
+
+            fill(checksum, reader, window);
+            while (true) {
+                BlockSignature.Block match = null;
+                List<BlockSignature.Block> candidates = blocksByWeak.get(checksum.get());
+                if (candidates != null) {
+                    sha256.update(window, head, blockSize - head);
+                    sha256.update(window, 0, head);
+                    byte[] strong = sha256.digest();
+                    match = find(candidates, strong, expected);
+                }
+
+                if (match != null) {
+                    parts.literal(literalStart, position);
+                    parts.copy(position, match);
+                    position += blockSize;
+                    literalStart = position;
+                    expected = previous.getBlockAt(match.getOffset() + blockSize);
+                    if (position + blockSize > size) {
+                        break;
+                    }
+                    checksum.reset();
+                    fill(checksum, reader, window);
+                    head = 0;
+                } else {
+                    if (position + blockSize >= size) {
+                        break;
+                    }
+                    byte in = reader.next();
+                    checksum.roll(window[head], in);
+                    window[head] = in;
+                    head = head + 1 == blockSize ? 0 : head + 1;
+                    position++;
+                }
+            }
+            parts.literal(literalStart, size);
+            parts.finish(size);
+
+            if (parts.uploaded > size * MAX_UPLOADED_FRACTION) {
+                return null;
+            }
+            return parts.parts;
+        }
+    }
+
+    // prefers the block that follows the last copied one, which is the common case of a file changed in place
+    private static BlockSignature.Block find(List<BlockSignature.Block> candidates, byte[] strong, BlockSignature.Block expected) {
+        if (expected != null && candidates.contains(expected) && Arrays.equals(expected.getStrong(), strong)) {
+            return expected;
+        }
+        for (BlockSignature.Block candidate : candidates) {
+            if (Arrays.equals(candidate.getStrong(), strong)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static void fill(RollingChecksum checksum, SequentialReader reader, byte[] window) throws IOException {
+        for (int i = 0; i < window.length; i++) {
+            window[i] = reader.next();
+            checksum.add(window[i]);
+        }
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Collects the parts in file order, holding back a remainder of uploaded bytes until it can be joined with the
+     * part that follows it.
+     */
+    private static final class Parts {
+        private final int blockSize;
+        private final List<Part> parts = new ArrayList<>();
+        private long pendingStart = -1;
+        private long uploaded;
+
+        Parts(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        void literal(long start, long end) {
+            if (pendingStart >= 0) {
+                start = pendingStart;
+                pendingStart = -1;
+            }
+            while (end - start >= blockSize) {
+                read(start, blockSize);
+                start += blockSize;
+            }
+            if (start < end) {
+                pendingStart = start;
+            }
+        }
+
+        void copy(long offset, BlockSignature.Block block) {
+            if (pendingStart >= 0) {
+                // the block is uploaded along with the remainder before it, it is the same in the file
+                read(pendingStart, (int) (offset + blockSize - pendingStart));
+                pendingStart = -1;
+            } else {
+                parts.add(Part.copy(offset, blockSize, block.getOffset()));
+            }
+        }
+
+        void finish(long size) {
+            if (pendingStart >= 0) {
+                read(pendingStart, (int) (size - pendingStart));
+                pendingStart = -1;
+            }
+        }
+
+        private void read(long offset, int length) {
+            parts.add(Part.read(offset, length));
+            uploaded += length;
+        }
+    }
+
+    /*
+     * Reads a file one byte at a time, through a buffer.
+     */
+    private static final class SequentialReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // file offset of the next byte to be read
+        private long position;
+
+        SequentialReader(FileChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        byte next() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                if (channel.read(buffer, position) <= 0) {
+                    throw new EOFException("File was truncated while it was compared");
+                }
+                buffer.flip();
+            }
+            position++;
+            return buffer.get();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.dazito.cloudsync.engine.cloud.delta;
+
+import com.dazito.cloudsync.engine.cloud.part.PartTarget;
+
+/**
+ * The object of a cloud store that a file is uploaded to by the {@link DeltaUploader}.
+ */
+public interface DeltaTarget {
+
+    /**
+     * Returns whether the current object is still the one the given signature was taken of, i.e. whether parts can be
+     * copied from it; false if there is no object. Parts copied by a delta upload must come from this version of the
+     * object, so stores should make the copies, or the completion of the upload, conditional on it - a store that
+     * does can rely on that condition rather than look at the object first.
+     */
+    boolean isCurrent(BlockSignature previous) throws Exception;
+
+    /**
+     * Starts an upload of the object in parts. For a delta upload, the signature of the object it replaces is given,
+     * and {@link PartTarget#copyPart} is called for the parts that are copied; parts that are uploaded are numbered
+     * after the highest number in that signature. For a full upload, the signature is null.
+     */
+    PartTarget newUpload(BlockSignature previous);
+
+    /**
+     * Returns what identifies the object created by the last upload, e.g. its ETag, which is kept with its signature;
+     * null if the store doesn't need it.
+     */
+    default String getUploadedVersion() {
+        return null;
+    }
+}
@@ -0,0 +1,159 @@
+package com.dazito.cloudsync.engine.cloud.delta;
+
+import com.dazito.cloudsync.engine.cloud.part.PartUploader;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Uploads large files so that a new version of a file only sends the blocks that changed. The signature of every
+ * object uploaded in parts is kept on local disk, and when the file is uploaded again, the parts that are unchanged
+ * are copied within the cloud store from the current object, see {@link DeltaPlanner}.
+ *
+ * <p>A signature is only used while the content hash stored with the object equals the one it was taken for, and
+ * any failure of a delta upload falls back to a full upload, so a lost or stale signature costs bandwidth but never
+ * correctness. Only objects whose content is the file as it is can be delta uploaded, i.e. objects that are neither
+ * compressed nor encrypted.
+ */
+@Slf4j
+@Singleton
+public class DeltaUploader {
+
+    private final boolean enabled;
+    private final Path signatureDirectory;
+    private final PartUploader partUploader;
+    private final DeltaPlanner planner = new DeltaPlanner();
+
+    @Inject
+    public DeltaUploader(PartUploader partUploader, Config config) {
+        this.partUploader = partUploader;
+        this.enabled = config.isDeltaUploads();
+        this.signatureDirectory = Paths.get(config.getDeltaSignatureDirectory());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Uploads a file in parts, as a delta of the current object if its signature is known, and keeps the signature
+     * of the uploaded object for the next upload.
+     *
+     * @param namespace identifies the bucket or container the key belongs to
+     */
+    public void upload(String namespace, String key, Path path, String contentHash, DeltaTarget target) throws IOException {
+        Path signatureFile = getSignatureFile(namespace, key);
+        BlockSignature previous = load(signatureFile);
+        if (previous != null) {
+            try {
+                if (uploadDelta(signatureFile, path, contentHash, previous, target)) {
+                    return;
+                }
+            } catch (Exception e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // cancelled rather than failed, so there is nothing to fall back to
+                    throw new InterruptedIOException("Delta upload of '" + path + "' was cancelled");
+                }
+                log.warn("Delta upload of '{}' failed, uploading it as a whole", path, e);
+            }
+        }
+
+        SigningTarget signing = new SigningTarget(target.newUpload(null), null);
+        partUploader.upload(path, signing, null);
+        save(signatureFile, contentHash, signing, target.getUploadedVersion(), 0);
+    }
+
+    /**
+     * Moves the signature of an object along with the object, after it was copied to another key.
+     */
+    public void move(String namespace, String sourceKey, String targetKey) {
+        Path source = getSignatureFile(namespace, sourceKey);
+        try {
+            // the copy can have another version than the object it was copied from
+            BlockSignature.read(source).withoutObjectVersion().write(getSignatureFile(namespace, targetKey));
+            Files.delete(source);
+        } catch (NoSuchFileException e) {
+            // the object has no signature
+        } catch (IOException e) {
+            log.warn("Unable to move the signature of '{}' to '{}'", sourceKey, targetKey, e);
+        }
+    }
+
+    /**
+     * Forgets the signature of an object that is deleted.
+     */
+    public void forget(String namespace, String key) {
+        try {
+            Files.deleteIfExists(getSignatureFile(namespace, key));
+        } catch (IOException e) {
+            log.warn("Unable to delete the signature of '{}'", key, e);
+        }
+    }
+
+    private boolean uploadDelta(Path signatureFile, Path path, String contentHash, BlockSignature previous,
+                                DeltaTarget target) throws Exception {
+        if (!target.isCurrent(previous)) {
+            log.debug("The signature of '{}' doesn't match the object anymore", path);
+            return false;
+        }
+        List<PartUploader.Part> parts = planner.plan(path, previous);
+        if (parts == null) {
+            log.debug("'{}' changed too much for a delta upload", path);
+            return false;
+        }
+
+        SigningTarget signing = new SigningTarget(target.newUpload(previous), previous);
+        partUploader.upload(path, parts, signing);
+        save(signatureFile, contentHash, signing, target.getUploadedVersion(), previous.getBlockSize());
+
+        long sent = parts.stream().filter(part -> !part.isCopy()).mapToLong(PartUploader.Part::getLength).sum();
+        long copied = parts.stream().filter(PartUploader.Part::isCopy).mapToLong(PartUploader.Part::getLength).sum();
+        log.info("'{}' uploaded as a delta, {} bytes sent and {} bytes copied", path, sent, copied);
+        return true;
+    }
+
+    private BlockSignature load(Path signatureFile) {
+        if (!enabled || !Files.exists(signatureFile)) {
+            return null;
+        }
+        try {
+            return BlockSignature.read(signatureFile);
+        } catch (IOException e) {
+            log.warn("Unable to read the signature {}", signatureFile, e);
+            return null;
+        }
+    }
+
+    private void save(Path signatureFile, String contentHash, SigningTarget signing, String objectVersion, int blockSize) {
+        try {
+            if (contentHash == null) {
+                // without a content hash the signature could never be checked against the object
+                Files.deleteIfExists(signatureFile);
+                return;
+            }
+            Files.createDirectories(signatureDirectory);
+            signing.toSignature(contentHash, objectVersion, blockSize).write(signatureFile);
+        } catch (IOException e) {
+            log.warn("Unable to save the signature {}", signatureFile, e);
+        }
+    }
+
+    private Path getSignatureFile(String namespace, String key) {
+        byte[] digest = DeltaPlanner.newSha256().digest((namespace + "/" + key).getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            name.append(String.format("%02x", b));
+        }
+        return signatureDirectory.resolve(name.toString());
+    }
+}
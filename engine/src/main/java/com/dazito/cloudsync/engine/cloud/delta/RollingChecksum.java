@@ -0,0 +1,55 @@
+package com.dazito.cloudsync.engine.cloud.delta;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The weak checksum of rsync: two 16 bit sums over a window of bytes, which can be moved along by one byte in constant
+ * time. A match of the weak checksum only makes a block a candidate, it is confirmed by its SHA-256.
+ */
+final class RollingChecksum {
+
+    private final int windowSize;
+    // kept modulo 2^32, only the low 16 bits of each are used
+    private int a;
+    private int b;
+
+    RollingChecksum(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Returns the checksum of the remaining bytes of the buffer, without moving its position.
+     */
+    static int of(ByteBuffer data) {
+        RollingChecksum checksum = new RollingChecksum(data.remaining());
+        for (int i = data.position(); i < data.limit(); i++) {
+            checksum.add(data.get(i));
+        }
+        return checksum.get();
+    }
+
+    /**
+     * Adds the next byte while the window is being filled.
+     */
+    void add(byte in) {
+        a += in & 0xff;
+        b += a;
+    }
+
+    /**
+     * Moves the full window along by one byte.
+     */
+    void roll(byte out, byte in) {
+        a += (in & 0xff) - (out & 0xff);
+        b += a - windowSize * (out & 0xff);
+    }
+
+    void reset() {
+        a = 0;
+        b = 0;
+    }
+
+    int get() {
+        return (a & 0xffff) | (b << 16);
+    }
+}
@@ -0,0 +1,83 @@
+package com.dazito.cloudsync.engine.cloud.delta;
+
+import com.dazito.cloudsync.engine.cloud.part.PartTarget;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Passes the parts of an upload on to its target, and takes down the signature of every part on the way, so that the
+ * signature of the uploaded object costs no extra read of the file.
+ */
+class SigningTarget implements PartTarget {
+
+    private final PartTarget target;
+    // the signature of the object the upload replaces, null for a full upload
+    private final BlockSignature previous;
+    private final int numberBase;
+
+    // the signature of every part by part number, the offsets are filled in at the end
+    private final Map<Integer, BlockSignature.Block> parts = new ConcurrentHashMap<>();
+
+    SigningTarget(PartTarget target, BlockSignature previous) {
+        this.target = target;
+        this.previous = previous;
+        this.numberBase = previous != null ? previous.getMaxNumber() : 0;
+    }
+
+    @Override
+    public String uploadPart(int partNumber, ByteBuffer data) throws Exception {
+        sign(partNumber, data);
+        return target.uploadPart(partNumber, data);
+    }
+
+    @Override
+    public void uploadWhole(ByteBuffer data) throws Exception {
+        sign(1, data);
+        target.uploadWhole(data);
+    }
+
+    @Override
+    public String copyPart(int partNumber, long sourceOffset, int length) throws Exception {
+        BlockSignature.Block source = previous.getBlockAt(sourceOffset);
+        parts.put(partNumber, new BlockSignature.Block(0, length, source.getNumber(), source.getWeak(), source.getStrong()));
+        return target.copyPart(partNumber, sourceOffset, length);
+    }
+
+    @Override
+    public void complete(List<String> partIds) throws Exception {
+        target.complete(partIds);
+    }
+
+    @Override
+    public void abort() {
+        target.abort();
+    }
+
+    /**
+     * Returns the signature of the uploaded object, once the upload has completed.
+     *
+     * @param blockSize the block size of the replaced object for a delta upload, 0 to take the size of the first part
+     */
+    BlockSignature toSignature(String contentHash, String objectVersion, int blockSize) {
+        List<BlockSignature.Block> blocks = new ArrayList<>(parts.size());
+        long offset = 0;
+        for (int partNumber = 1; partNumber <= parts.size(); partNumber++) {
+            BlockSignature.Block part = parts.get(partNumber);
+            blocks.add(new BlockSignature.Block(offset, part.getLength(), part.getNumber(), part.getWeak(), part.getStrong()));
+            offset += part.getLength();
+        }
+        return new BlockSignature(contentHash, objectVersion, blockSize > 0 ? blockSize : blocks.get(0).getLength(), blocks);
+    }
+
+    private void sign(int partNumber, ByteBuffer data) {
+        MessageDigest sha256 = DeltaPlanner.newSha256();
+        sha256.update(data.duplicate());
+        parts.put(partNumber, new BlockSignature.Block(0, data.remaining(), numberBase + partNumber,
+                RollingChecksum.of(data), sha256.digest()));
+    }
+}
@@ -0,0 +1,44 @@
+package com.dazito.cloudsync.engine.cloud.part;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single upload of one object in parts, e.g. an S3 multipart upload or a set of Azure blocks. Parts may be uploaded
+ * concurrently and in any order.
+ */
+public interface PartTarget {
+
+    /**
+     * Uploads one part and returns what identifies it in {@link #complete(List)}, e.g. its ETag or block id. Part
+     * numbers start at 1.
+     */
+    String uploadPart(int partNumber, ByteBuffer data) throws Exception;
+
+    /**
+     * Uploads data that fits into a single part as a whole. Stores that can upload an object in one request should
+     * override this, rather than creating a multipart upload of a single part.
+     */
+    default void uploadWhole(ByteBuffer data) throws Exception {
+        complete(Collections.singletonList(uploadPart(1, data)));
+    }
+
+    /**
+     * Copies a range of the object this upload replaces as a part, instead of uploading its content again, and returns
+     * what identifies the part in {@link #complete(List)}. Only called on the targets of delta uploads.
+     */
+    default String copyPart(int partNumber, long sourceOffset, int length) throws Exception {
+        throw new UnsupportedOperationException("Parts can't be copied to this target");
+    }
+
+    /**
+     * Assembles the object from the parts, given in part number order.
+     */
+    void complete(List<String> partIds) throws Exception;
+
+    /**
+     * Discards the parts uploaded so far.
+     */
+    void abort();
+}
@@ -0,0 +1,439 @@
+package com.dazito.cloudsync.engine.cloud.part;
+
+import com.dazito.cloudsync.engine.cloud.Transfer;
+import com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm.FileEncryptor;
+import com.dazito.cloudsync.engine.util.BufferPool;
+import com.dazito.cloudsync.engine.util.Threads;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm.HEADER_SIZE;
+import static com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm.SEGMENT_SIZE;
+import static com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm.TAG_SIZE;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Uploads large files as a number of parts, several of them at the same time. Every part is read with a positional
+ * read of its range of the file, so parts don't depend on each other, and a part that fails is retried on its own
+ * rather than restarting the whole file.
+ *
+ * <p>Parts are uploaded on an executor shared by all files, while the number of parts of one file that are in
+ * flight at once is limited by the per file parallelism. Part buffers, including those of streams, are pooled and
+ * reused, which bounds the memory used for buffering to the number of parts uploaded at once times the part size
+ * (twice that when encrypting).
+ */
+@Slf4j
+@Singleton
+public class PartUploader {
+
+    // the maximum number of parts of an S3 multipart upload; the part size is raised for files that would need more
+    private static final int MAX_PARTS = 10_000;
+
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+    // read from a stream before a part buffer is taken for it
+    private static final int HEAD_SIZE = 64 * 1024;
+
+    private final long threshold;
+    private final int partSize;
+    private final int parallelism;
+    private final int retries;
+
+    private final ExecutorService partExecutor;
+    private final BufferPool buffers;
+    private final BufferPool plaintextBuffers;
+
+    /**
+     * A part of an upload whose parts are given explicitly, read from a range of the file or copied from a range of
+     * the object the upload replaces.
+     */
+    @Getter
+    public static final class Part {
+        private final long offset;
+        private final int length;
+        // offset of the copied range in the replaced object, -1 if the part is read from the file
+        private final long sourceOffset;
+
+        private Part(long offset, int length, long sourceOffset) {
+            this.offset = offset;
+            this.length = length;
+            this.sourceOffset = sourceOffset;
+        }
+
+        public static Part read(long offset, int length) {
+            return new Part(offset, length, -1);
+        }
+
+        public static Part copy(long offset, int length, long sourceOffset) {
+            return new Part(offset, length, sourceOffset);
+        }
+
+        public boolean isCopy() {
+            return sourceOffset >= 0;
+        }
+    }
+
+    @Inject
+    public PartUploader(Config config, Threads threads) {
+        this.threshold = config.getMultipartThreshold();
+        this.partSize = config.getMultipartPartSize();
+        this.parallelism = config.getMultipartParallelism();
+        this.retries = config.getMultipartRetries();
+
+        this.partExecutor = threads.newExecutor("part-upload", config.getMultipartThreads(), true);
+        // parts wait for buffers when all of them are in use - a part that is encrypted always takes its plaintext
+        // buffer before its ciphertext buffer, so no two parts can wait for each other's buffers
+        this.buffers = new BufferPool(config.getMultipartBuffers(), false);
+        this.plaintextBuffers = new BufferPool(config.getMultipartBuffers(), true);
+    }
+
+    /**
+     * Whether a file of the given size should be uploaded in parts.
+     */
+    public boolean isMultipart(long size) {
+        return size >= threshold;
+    }
+
+    public void upload(Path path, PartTarget target) throws IOException {
+        upload(path, target, null);
+    }
+
+    /**
+     * Uploads a file in parts, encrypting every part on the thread that uploads it, so that large files are encrypted
+     * on as many cores as they have parts in flight.
+     */
+    public void upload(Path path, PartTarget target, FileEncryptor encryptor) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            long size = channel.size();
+            long effectivePartSize = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+            if (encryptor != null) {
+                // parts must consist of whole segments
+                effectivePartSize = Math.max(SEGMENT_SIZE, effectivePartSize / SEGMENT_SIZE * SEGMENT_SIZE);
+            }
+            int parts = (int) Math.max(1, (size + effectivePartSize - 1) / effectivePartSize);
+
+            Parts uploads = new Parts(target);
+            try {
+                for (int i = 0; i < parts && uploads.awaitSlot(); i++) {
+                    int partNumber = i + 1;
+                    long offset = i * effectivePartSize;
+                    int length = (int) Math.min(effectivePartSize, size - offset);
+                    boolean last = partNumber == parts;
+                    uploads.submit(() -> uploadPart(target, channel, partNumber, offset, length, encryptor, last));
+                }
+                uploads.complete();
+                log.debug("'{}' uploaded in {} parts of {} bytes", path, parts, effectivePartSize);
+            } catch (IOException e) {
+                throw new IOException("Unable to upload " + path, e);
+            } finally {
+                uploads.abortUnlessEnded();
+            }
+        }
+    }
+
+    /**
+     * Uploads a file as the given parts, in order. Parts that are copies are made with
+     * {@link PartTarget#copyPart(int, long, int)} rather than read from the file.
+     */
+    public void upload(Path path, List<Part> parts, PartTarget target) throws IOException {
+        if (parts.size() > MAX_PARTS) {
+            throw new IOException("Unable to upload more than " + MAX_PARTS + " parts");
+        }
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            Parts uploads = new Parts(target);
+            try {
+                for (int i = 0; i < parts.size() && uploads.awaitSlot(); i++) {
+                    int partNumber = i + 1;
+                    Part part = parts.get(i);
+                    if (part.isCopy()) {
+                        uploads.submit(() -> retrying(partNumber, () -> target.copyPart(partNumber, part.sourceOffset, part.length)));
+                    } else {
+                        uploads.submit(() -> uploadPart(target, channel, partNumber, part.offset, part.length, null, false));
+                    }
+                }
+                uploads.complete();
+            } catch (IOException e) {
+                throw new IOException("Unable to upload " + path, e);
+            } finally {
+                uploads.abortUnlessEnded();
+            }
+        }
+    }
+
+    /**
+     * Uploads a stream of unknown length, e.g. compressed content, in parts. The stream is read sequentially on the
+     * calling thread, so every part that is in flight needs its own buffer, taken from the pool like the buffers of
+     * file parts. A stream that fits into a single part is uploaded with {@link PartTarget#uploadWhole(ByteBuffer)};
+     * its first bytes are read into a buffer of their own, so that a small stream is uploaded from a buffer sized to
+     * its content rather than taking a whole part buffer.
+     */
+    public void upload(InputStream in, PartTarget target) throws IOException {
+        byte[] head = new byte[Math.min(HEAD_SIZE, partSize)];
+        int headLength = readFully(in, head, 0, head.length);
+        if (headLength < head.length) {
+            uploadWhole(target, ByteBuffer.wrap(Arrays.copyOf(head, headLength)));
+            return;
+        }
+        ByteBuffer first = buffers.acquire(partSize);
+        first.put(head);
+        first = readPart(in, first);
+        if (first.limit() < partSize) {
+            try {
+                uploadWhole(target, first);
+            } finally {
+                buffers.release(first);
+            }
+            return;
+        }
+
+        Parts uploads = new Parts(target);
+        ByteBuffer next = first;
+        try {
+            for (int partNumber = 1; next != null && uploads.awaitSlot(); partNumber++) {
+                if (partNumber > MAX_PARTS) {
+                    throw new IOException("Unable to upload more than " + MAX_PARTS + " parts");
+                }
+                ByteBuffer part = next;
+                int number = partNumber;
+                // the part is released by its upload, so its limit is read before it is submitted
+                boolean full = part.limit() == partSize;
+                next = null;
+                uploads.submit(() -> {
+                    try {
+                        return uploadPart(target, number, part);
+                    } finally {
+                        buffers.release(part);
+                    }
+                });
+                if (full) {
+                    next = readPart(in, buffers.acquire(partSize));
+                    if (!next.hasRemaining()) {
+                        buffers.release(next);
+                        next = null;
+                    }
+                }
+            }
+            uploads.complete();
+        } catch (IOException e) {
+            uploads.fail(e);
+        } finally {
+            if (next != null) {
+                buffers.release(next);
+            }
+            uploads.abortUnlessEnded();
+        }
+    }
+
+    private void uploadWhole(PartTarget target, ByteBuffer data) throws IOException {
+        if (!Transfer.commitCurrent()) {
+            throw new InterruptedIOException("Upload was cancelled");
+        }
+        try {
+            retrying(1, () -> {
+                target.uploadWhole(data.duplicate());
+                return null;
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private String uploadPart(PartTarget target, int partNumber, ByteBuffer data) throws Exception {
+        return retrying(partNumber, () -> target.uploadPart(partNumber, data.duplicate()));
+    }
+
+    private String retrying(int partNumber, Callable<String> upload) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return upload.call();
+            } catch (Exception e) {
+                if (attempt > retries || Thread.currentThread().isInterrupted()) {
+                    // an interrupted part has been cancelled, along with its upload
+                    throw e;
+                }
+                log.warn("Upload of part {} failed (attempt {} of {}), retrying", partNumber, attempt, retries + 1, e);
+                TimeUnit.MILLISECONDS.sleep(RETRY_BACKOFF_MILLIS * attempt);
+            }
+        }
+    }
+
+    // reads a part of the file, encrypting it if an encryptor is given, into pooled buffers that are returned once the
+    // part is uploaded
+    private String uploadPart(PartTarget target, FileChannel channel, int partNumber, long offset, int length,
+                              FileEncryptor encryptor, boolean last) throws Exception {
+        if (encryptor == null) {
+            ByteBuffer buffer = buffers.acquire(length);
+            try {
+                return uploadPart(target, partNumber, read(channel, partNumber, offset, buffer));
+            } finally {
+                buffers.release(buffer);
+            }
+        }
+
+        // the plaintext is read into a direct buffer, which saves a copy, and encrypted into the heap buffer that is
+        // handed to the cloud store client
+        ByteBuffer plaintext = plaintextBuffers.acquire(length);
+        int segments = (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        ByteBuffer ciphertext = buffers.acquire((offset == 0 ? HEADER_SIZE : 0) + length + segments * TAG_SIZE);
+        try {
+            encryptor.encrypt(offset, read(channel, partNumber, offset, plaintext), last, ciphertext);
+            ciphertext.flip();
+            return uploadPart(target, partNumber, ciphertext);
+        } finally {
+            plaintextBuffers.release(plaintext);
+            buffers.release(ciphertext);
+        }
+    }
+
+    private ByteBuffer read(FileChannel channel, int partNumber, long offset, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("File was truncated while uploading part " + partNumber);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // reads the rest of a part from the stream into a pooled buffer, which is released if reading fails
+    private ByteBuffer readPart(InputStream in, ByteBuffer buffer) throws IOException {
+        try {
+            int length = readFully(in, buffer.array(), buffer.position(), partSize - buffer.position());
+            buffer.limit(buffer.position() + length).position(0);
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            buffers.release(buffer);
+            throw e;
+        }
+    }
+
+    // reads until the given length is read or the stream ends, and returns the number of bytes read
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        int read;
+        while (total < length && (read = in.read(buffer, offset + total, length - total)) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    /*
+     * The parts of one upload: limits how many of them are in flight, stops submitting parts once one has failed, and
+     * completes or aborts the upload.
+     */
+    private class Parts {
+        private final PartTarget target;
+        private final Semaphore inFlight = new Semaphore(parallelism);
+        private final AtomicBoolean failed = new AtomicBoolean();
+        private final List<Future<String>> results = new ArrayList<>();
+        // set once the upload is completed or aborted
+        private boolean ended;
+
+        Parts(PartTarget target) {
+            this.target = target;
+        }
+
+        // waits until another part may be submitted, returns false if the upload has failed already
+        boolean awaitSlot() throws IOException {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+            if (failed.get()) {
+                inFlight.release();
+                return false;
+            }
+            return true;
+        }
+
+        void submit(Callable<String> part) {
+            results.add(partExecutor.submit(() -> {
+                try {
+                    return part.call();
+                } catch (Exception e) {
+                    failed.set(true);
+                    throw e;
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        }
+
+        void complete() throws IOException {
+            try {
+                List<String> partIds = new ArrayList<>(results.size());
+                for (Future<String> result : results) {
+                    partIds.add(result.get());
+                }
+                if (!Transfer.commitCurrent()) {
+                    throw new InterruptedIOException("Upload was cancelled");
+                }
+                target.complete(partIds);
+                ended = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            } catch (ExecutionException e) {
+                fail(e.getCause());
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void fail(Throwable cause) throws IOException {
+            abortUnlessEnded();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+
+        /*
+         * Aborts the upload if it was left by anything else than complete() or fail(), e.g. a part that couldn't be
+         * submitted, so that an upload that was created is never left behind.
+         */
+        void abortUnlessEnded() {
+            if (!ended) {
+                abort();
+            }
+        }
+
+        private void abort() {
+            ended = true;
+            results.forEach(result -> result.cancel(true));
+            // an upload that is cancelled by interrupting it is still aborted, which the client would refuse to do on
+            // an interrupted thread
+            boolean interrupted = Thread.interrupted();
+            try {
+                target.abort();
+            } catch (RuntimeException e) {
+                log.warn("Unable to abort the upload", e);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
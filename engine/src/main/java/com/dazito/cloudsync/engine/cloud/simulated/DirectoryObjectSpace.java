@@ -0,0 +1,78 @@
+package com.dazito.cloudsync.engine.cloud.simulated;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Keeps the objects of the simulated cloud store as files below a directory, at the path of their key, so that the
+ * uploaded content can be inspected and compared with the backup.
+ */
+class DirectoryObjectSpace implements ObjectSpace {
+
+    private final Path root;
+
+    DirectoryObjectSpace(Path root) {
+        this.root = root;
+    }
+
+    /*
+     * Written to a temporary file that replaces the object once complete, so that an object is never seen half
+     * written, as with a real cloud store.
+     */
+    @Override
+    public void put(String key, List<byte[]> parts) throws IOException {
+        Path file = getFile(key);
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                for (byte[] part : parts) {
+                    out.write(part);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        try {
+            return Files.readAllBytes(getFile(key));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(getFile(key));
+    }
+
+    @Override
+    public boolean copy(String sourceKey, String targetKey) throws IOException {
+        Path source = getFile(sourceKey);
+        if (!Files.exists(source)) {
+            return false;
+        }
+        Path target = getFile(targetKey);
+        Files.createDirectories(target.getParent());
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    private Path getFile(String key) throws IOException {
+        Path file = root.resolve(key).normalize();
+        if (!file.startsWith(root.normalize())) {
+            throw new IOException("Key '" + key + "' is outside of " + root);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,48 @@
+package com.dazito.cloudsync.engine.cloud.simulated;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the objects of the simulated cloud store in memory, which suits benchmarks of many small files.
+ */
+class MemoryObjectSpace implements ObjectSpace {
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String key, List<byte[]> parts) {
+        int size = 0;
+        for (byte[] part : parts) {
+            size += part.length;
+        }
+        byte[] content = new byte[size];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, content, offset, part.length);
+            offset += part.length;
+        }
+        objects.put(key, content);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return objects.get(key);
+    }
+
+    @Override
+    public void delete(String key) {
+        objects.remove(key);
+    }
+
+    @Override
+    public boolean copy(String sourceKey, String targetKey) {
+        byte[] content = objects.get(sourceKey);
+        if (content == null) {
+            return false;
+        }
+        objects.put(targetKey, content);
+        return true;
+    }
+}
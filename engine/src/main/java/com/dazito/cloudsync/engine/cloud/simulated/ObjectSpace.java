@@ -0,0 +1,35 @@
+package com.dazito.cloudsync.engine.cloud.simulated;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Where the simulated cloud store keeps its objects, by key.
+ */
+interface ObjectSpace {
+
+    /**
+     * Stores an object made of the given parts, in order, replacing any object with the same key.
+     */
+    void put(String key, List<byte[]> parts) throws IOException;
+
+    /**
+     * Returns the content of an object, or null if there is none.
+     */
+    byte[] get(String key) throws IOException;
+
+    void delete(String key) throws IOException;
+
+    /**
+     * Copies an object to another key, returns false if there is no object to copy.
+     */
+    boolean copy(String sourceKey, String targetKey) throws IOException;
+
+    /**
+     * Returns a space in the given directory, or in memory if the directory is null.
+     */
+    static ObjectSpace create(String directory) {
+        return directory != null ? new DirectoryObjectSpace(Paths.get(directory)) : new MemoryObjectSpace();
+    }
+}
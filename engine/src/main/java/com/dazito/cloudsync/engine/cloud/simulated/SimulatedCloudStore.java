@@ -0,0 +1,377 @@
+package com.dazito.cloudsync.engine.cloud.simulated;
+
+import com.dazito.cloudsync.engine.cloud.CloudStore;
+import com.dazito.cloudsync.engine.cloud.Transfer;
+import com.dazito.cloudsync.engine.cloud.UploadMetrics;
+import com.dazito.cloudsync.engine.cloud.aws.AwsCloudStore;
+import com.dazito.cloudsync.engine.cloud.compress.CompressionStage;
+import com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm;
+import com.dazito.cloudsync.engine.cloud.delete.DeleteBatcher;
+import com.dazito.cloudsync.engine.cloud.part.PartTarget;
+import com.dazito.cloudsync.engine.cloud.part.PartUploader;
+import com.dazito.cloudsync.engine.cloud.throttle.UploadGovernor;
+import com.dazito.cloudsync.engine.metrics.Metrics;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.schedule.TaskScheduler;
+import com.dazito.cloudsync.engine.util.Task;
+import com.dazito.cloudsync.engine.util.TaskQueue;
+import com.dazito.cloudsync.engine.util.Threads;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cloud store that keeps its objects in a local directory or in memory, behind a simulated network and service,
+ * see {@link SimulatedLink}. Uploads, batched deletes and moves go through the same scheduler, upload governor and
+ * part uploader as they do for S3, with the same object keys, so that their concurrency, batching and retries can be
+ * measured without credentials or a connection.
+ *
+ * <p>Compression and encryption apply as they do for S3. Chunked mode and delta uploads are not simulated, files are
+ * uploaded whole or in parts.
+ */
+@Slf4j
+@Singleton
+public class SimulatedCloudStore implements CloudStore {
+
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private final ObjectSpace objects;
+    private final SimulatedLink link;
+
+    private final PartUploader partUploader;
+    private final CompressionStage compressionStage;
+    private final SegmentedAesGcm encryption;
+
+    private final TaskQueue taskQueue;
+
+    // runs jobs in the order of the scheduler, their requests are limited by the governor
+    private final ExecutorService executor;
+    private final TaskScheduler scheduler;
+    private final UploadGovernor governor;
+    private final UploadMetrics uploadMetrics;
+
+    // collects deletes into batches
+    private final DeleteBatcher deleteBatcher;
+
+    @Inject
+    public SimulatedCloudStore(TaskQueue taskQueue, PartUploader partUploader, CompressionStage compressionStage,
+                               SegmentedAesGcm encryption, TaskScheduler scheduler, Metrics metrics, Config config) {
+        this.objects = ObjectSpace.create(config.getSimulatedStoreDirectory());
+        this.link = new SimulatedLink(config, metrics);
+        this.partUploader = partUploader;
+        this.compressionStage = compressionStage;
+        this.encryption = encryption;
+        this.governor = new UploadGovernor(config, e -> e instanceof SimulatedThrottlingException);
+        this.uploadMetrics = new UploadMetrics(metrics, "simulated", governor);
+        this.scheduler = scheduler;
+        this.executor = scheduler.newExecutor("simulated-upload", config.getUploadConcurrencyMax(), governor::getConcurrencyLimit);
+        this.deleteBatcher = new DeleteBatcher(DELETE_BATCH_SIZE, config.getDeleteBatchDelayMillis(), scheduler.fastLane(executor), this::deleteObjects);
+        this.taskQueue = taskQueue;
+
+        log.info("Simulating the cloud store, objects are kept {}", config.getSimulatedStoreDirectory() != null
+                ? "in " + config.getSimulatedStoreDirectory() : "in memory");
+    }
+
+    @Override
+    public void start() {
+        scheduler.start();
+        compressionStage.start();
+        taskQueue.toObserverable().subscribe(this::process);
+    }
+
+    @Override
+    public void createContainer(Backup backup) {
+    }
+
+    @Override
+    public Transfer uploadFile(Backup backup, Path path, String contentHash, Runnable onSuccess) {
+        Transfer transfer = new Transfer();
+        executor.execute(scheduler.uploadJob(backup, path, transfer.guard(() -> {
+            long start = System.nanoTime();
+            long size = path.toFile().length();
+            String key = AwsCloudStore.getFileKey(backup, path);
+            InputStream stream = null;
+            try {
+                if ((stream = compressionStage.open(backup, path)) != null) {
+                    if (encryption.isEnabled()) {
+                        stream = encryption.encrypt(stream, key);
+                    }
+                    partUploader.upload(stream, new SimulatedPartTarget(backup, key));
+                } else if (partUploader.isMultipart(size)) {
+                    partUploader.upload(path, new SimulatedPartTarget(backup, key), encryption.isEnabled() ? encryption.newEncryptor(key) : null);
+                } else if (encryption.isEnabled()) {
+                    stream = encryption.encrypt(Files.newInputStream(path), key);
+                    partUploader.upload(stream, new SimulatedPartTarget(backup, key));
+                } else {
+                    byte[] content = Files.readAllBytes(path);
+                    if (!Transfer.commitCurrent()) {
+                        throw new InterruptedIOException("Upload of '" + path + "' was cancelled");
+                    }
+                    request(backup, content.length, () -> {
+                        objects.put(key, Collections.singletonList(content));
+                        return null;
+                    });
+                }
+            } catch (Exception e) {
+                if (transfer.isCancelled()) {
+                    log.debug("Upload of '{}' cancelled", path);
+                    uploadMetrics.cancelled();
+                    return;
+                }
+                log.error("Unable to upload '{}'", path, e);
+                uploadMetrics.failed();
+                return;
+            } finally {
+                closeQuietly(stream);
+            }
+
+            if (!transfer.complete()) {
+                // the file changed again while its last request was in flight
+                log.debug("Upload of '{}' cancelled", path);
+                uploadMetrics.cancelled();
+                return;
+            }
+            uploadMetrics.uploaded(size, start);
+            log.debug("'{}' uploaded with key '{}'", path, key);
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+        })));
+        return transfer;
+    }
+
+    @Override
+    public Transfer uploadPack(Backup backup, Path packPath, ByteBuffer data, Runnable onSuccess) {
+        Transfer transfer = new Transfer();
+        executor.execute(scheduler.job(TaskScheduler.SchedulingClass.INTERACTIVE, backup, data.remaining(), transfer.guard(() -> {
+            long start = System.nanoTime();
+            String key = AwsCloudStore.getFileKey(backup, packPath);
+            byte[] content = new byte[data.remaining()];
+            data.duplicate().get(content);
+            try {
+                if (encryption.isEnabled()) {
+                    try (InputStream stream = encryption.encrypt(new ByteArrayInputStream(content), key)) {
+                        partUploader.upload(stream, new SimulatedPartTarget(backup, key));
+                    }
+                } else {
+                    request(backup, content.length, () -> {
+                        objects.put(key, Collections.singletonList(content));
+                        return null;
+                    });
+                }
+            } catch (Exception e) {
+                if (transfer.isCancelled()) {
+                    log.debug("Upload of pack '{}' cancelled", key);
+                    uploadMetrics.cancelled();
+                    return;
+                }
+                log.error("Unable to upload pack '{}'", key, e);
+                uploadMetrics.failed();
+                return;
+            }
+
+            if (!transfer.complete()) {
+                log.debug("Upload of pack '{}' cancelled", key);
+                uploadMetrics.cancelled();
+                return;
+            }
+            uploadMetrics.uploaded(content.length, start);
+            log.debug("Pack of {} bytes uploaded with key '{}'", content.length, key);
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+        })));
+        return transfer;
+    }
+
+    @Override
+    public void removeFile(Backup backup, Path p, Runnable onSuccess) {
+        deleteBatcher.delete(backup, p, onSuccess);
+    }
+
+    /*
+     * A batch is deleted with a single request, like an S3 DeleteObjects request, which fails as a whole.
+     */
+    private Collection<Path> deleteObjects(Backup backup, List<Path> paths) throws IOException {
+        request(backup, 0, () -> {
+            for (Path path : paths) {
+                objects.delete(AwsCloudStore.getFileKey(backup, path));
+            }
+            return null;
+        });
+        log.debug("Deleted {} keys", paths.size());
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Transfer moveFile(Backup backup, Path source, Path target, String contentHash, Runnable onSuccess) {
+        if (encryption.isEnabled()) {
+            // an encrypted object authenticates its key, so a copy of it under the target key could not be decrypted
+            return uploadFile(backup, target, contentHash, () -> removeFile(backup, source, onSuccess));
+        }
+        Transfer transfer = new Transfer();
+        executor.execute(scheduler.job(TaskScheduler.SchedulingClass.FAST, backup, 0, transfer.guard(() -> {
+            String sourceKey = AwsCloudStore.getFileKey(backup, source);
+            String targetKey = AwsCloudStore.getFileKey(backup, target);
+            try {
+                boolean copied = request(backup, 0, () -> objects.copy(sourceKey, targetKey));
+                if (!copied) {
+                    throw new IOException("There is no object '" + sourceKey + "'");
+                }
+            } catch (IOException e) {
+                if (transfer.isCancelled()) {
+                    log.debug("Move of '{}' to '{}' cancelled", sourceKey, targetKey);
+                    return;
+                }
+                log.warn("Unable to copy '{}' to '{}', uploading '{}' instead", sourceKey, targetKey, target, e);
+                transfer.handOver(uploadFile(backup, target, contentHash, () -> removeFile(backup, source, onSuccess)));
+                return;
+            }
+
+            log.debug("Copied key '{}' to '{}'", sourceKey, targetKey);
+            // the move completes once the original has been deleted - if the delete fails, the task stays pending and
+            // is resumed on the next start
+            removeFile(backup, source, transfer.complete() ? onSuccess : null);
+        })));
+        return transfer;
+    }
+
+    /**
+     * Returns the content of the object with the given key, or null if there is none, without simulating a request.
+     */
+    public byte[] getObject(String key) throws IOException {
+        return objects.get(key);
+    }
+
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        deleteBatcher.flush();
+        if (!Threads.stop(executor, timeout, unit)) {
+            log.warn("Gave up waiting for the simulated jobs to end, the rest are resumed on the next start");
+            return false;
+        }
+        return true;
+    }
+
+    public UploadGovernor getGovernor() {
+        return governor;
+    }
+
+    private void process(Task task) {
+        switch (task.getType()) {
+            case UPLOAD_FILE:
+            case REPLACE_FILE:
+                task.setTransfer(uploadFile(task.getBackup(), task.getPath(), task.getContentHash(), task.getRunnable()));
+                break;
+            case DELETE_FILE:
+                removeFile(task.getBackup(), task.getPath(), task.getRunnable());
+                break;
+            case MOVE_FILE:
+                task.setTransfer(moveFile(task.getBackup(), task.getSourcePath(), task.getPath(), task.getContentHash(), task.getRunnable()));
+                break;
+            case UPLOAD_PACK:
+                task.setTransfer(uploadPack(task.getBackup(), task.getPath(), task.getPackData(), task.getRunnable()));
+                break;
+        }
+    }
+
+    /**
+     * Runs a request to the simulated store under the governor: the request goes over the simulated link, sending the
+     * given number of bytes, and is then applied to the objects.
+     */
+    private <T> T request(Backup backup, long bytes, UploadGovernor.Request<T> request) throws IOException {
+        try {
+            return governor.run(backup, bytes, () -> {
+                link.request(bytes);
+                return request.call();
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.debug("Unable to close stream", e);
+            }
+        }
+    }
+
+    /*
+     * Keeps the parts of an upload until it is completed, the way a multipart upload does.
+     */
+    private class SimulatedPartTarget implements PartTarget {
+        private final Backup backup;
+        private final String key;
+        private final Map<String, byte[]> parts = new ConcurrentHashMap<>();
+
+        SimulatedPartTarget(Backup backup, String key) {
+            this.backup = backup;
+            this.key = key;
+        }
+
+        @Override
+        public String uploadPart(int partNumber, ByteBuffer data) throws IOException {
+            byte[] content = new byte[data.remaining()];
+            data.duplicate().get(content);
+            return request(backup, content.length, () -> {
+                String partId = "part-" + partNumber;
+                parts.put(partId, content);
+                return partId;
+            });
+        }
+
+        @Override
+        public void uploadWhole(ByteBuffer data) throws IOException {
+            byte[] content = new byte[data.remaining()];
+            data.duplicate().get(content);
+            request(backup, content.length, () -> {
+                objects.put(key, Collections.singletonList(content));
+                return null;
+            });
+        }
+
+        @Override
+        public void complete(List<String> partIds) throws IOException {
+            request(backup, 0, () -> {
+                List<byte[]> content = new ArrayList<>(partIds.size());
+                for (String partId : partIds) {
+                    content.add(parts.get(partId));
+                }
+                objects.put(key, content);
+                return null;
+            });
+            parts.clear();
+        }
+
+        @Override
+        public void abort() {
+            parts.clear();
+        }
+    }
+}
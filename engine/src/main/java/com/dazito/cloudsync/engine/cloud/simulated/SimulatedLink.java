@@ -0,0 +1,101 @@
+package com.dazito.cloudsync.engine.cloud.simulated;
+
+import com.dazito.cloudsync.engine.cloud.throttle.BandwidthLimiter;
+import com.dazito.cloudsync.engine.metrics.Counter;
+import com.dazito.cloudsync.engine.metrics.Metrics;
+import com.dazito.cloudsync.engine.util.config.Config;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates the network and the service behind a cloud store. Every request takes the configured latency, then
+ * transfers its content at the rate of a single connection and, together with all other requests, at the rate of the
+ * link. Requests are throttled at random at the configured rate, and whenever more of them are in flight than the
+ * service accepts, so that the upload governor has a limit to find. A request that isn't throttled may still fail at
+ * random once its content has been sent.
+ */
+class SimulatedLink {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final long requestBandwidth;
+    // null if the link has no cap
+    private final BandwidthLimiter linkLimiter;
+    private final int maxRequests;
+    private final double throttleRate;
+    private final double failureRate;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Counter completed;
+    private final Counter throttled;
+    private final Counter failed;
+
+    SimulatedLink(Config config, Metrics metrics) {
+        this.latencyMillis = config.getSimulatedLatencyMillis();
+        this.jitterMillis = config.getSimulatedLatencyJitterMillis();
+        this.requestBandwidth = config.getSimulatedRequestBandwidth();
+        this.linkLimiter = BandwidthLimiter.create(config.getSimulatedBandwidth(), null);
+        this.maxRequests = config.getSimulatedMaxRequests();
+        this.throttleRate = config.getSimulatedThrottleRate();
+        this.failureRate = config.getSimulatedFailureRate();
+
+        String help = "Requests to the simulated cloud store by outcome";
+        this.completed = metrics.counter("cloudsync_simulated_requests_total", help, "outcome", "completed");
+        this.throttled = metrics.counter("cloudsync_simulated_requests_total", help, "outcome", "throttled");
+        this.failed = metrics.counter("cloudsync_simulated_requests_total", help, "outcome", "failed");
+    }
+
+    /**
+     * Simulates a request that sends the given number of bytes, returning once it is complete.
+     *
+     * @throws SimulatedThrottlingException if the request is throttled
+     * @throws IOException if the request fails
+     */
+    void request(long bytes) throws IOException, InterruptedException {
+        int concurrent = inFlight.incrementAndGet();
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long latency = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            if ((maxRequests > 0 && concurrent > maxRequests) || random.nextDouble() < throttleRate) {
+                throttled.increment();
+                throw new SimulatedThrottlingException("Simulated throttling, " + concurrent + " requests in flight");
+            }
+
+            if (bytes > 0) {
+                transfer(bytes);
+            }
+
+            if (random.nextDouble() < failureRate) {
+                failed.increment();
+                throw new IOException("Simulated failure of a request of " + bytes + " bytes");
+            }
+            completed.increment();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    // the transfer takes as long as the slower of the connection and the link allow
+    private void transfer(long bytes) throws InterruptedException {
+        long start = System.nanoTime();
+        if (linkLimiter != null) {
+            linkLimiter.acquire(bytes);
+        }
+        if (requestBandwidth > 0) {
+            long remaining = (long) (bytes * NANOS_PER_SECOND / requestBandwidth) - (System.nanoTime() - start);
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.dazito.cloudsync.engine.cloud.simulated;
+
+import java.io.IOException;
+
+/**
+ * A request rejected by the simulated cloud store as one too many, like an S3 503 SlowDown.
+ */
+class SimulatedThrottlingException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    SimulatedThrottlingException(String message) {
+        super(message);
+    }
+}
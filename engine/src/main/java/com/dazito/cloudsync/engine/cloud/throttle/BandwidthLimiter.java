@@ -0,0 +1,113 @@
+package com.dazito.cloudsync.engine.cloud.throttle;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that caps the rate at which bytes are uploaded. The rate may follow a daily schedule of time
+ * windows, e.g. {@code 08:00-18:00=1000000,18:00-22:00=5000000}: within a window its rate applies, outside of every
+ * window the base rate. A window may wrap around midnight, and a rate of 0 means unlimited.
+ *
+ * <p>Requests take their bytes up front and may take more than there are tokens, after which they wait for the debt
+ * to be paid back. The bucket holds up to one second worth of tokens, so an idle link allows a short burst.
+ */
+public class BandwidthLimiter {
+
+    private final long baseBytesPerSecond;
+    private final List<Window> schedule;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private static final class Window {
+        private final LocalTime from;
+        private final LocalTime to;
+        private final long bytesPerSecond;
+
+        Window(LocalTime from, LocalTime to, long bytesPerSecond) {
+            this.from = from;
+            this.to = to;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        boolean contains(LocalTime time) {
+            if (from.isBefore(to)) {
+                return !time.isBefore(from) && time.isBefore(to);
+            }
+            // wraps around midnight
+            return !time.isBefore(from) || time.isBefore(to);
+        }
+    }
+
+    private BandwidthLimiter(long baseBytesPerSecond, List<Window> schedule) {
+        this.baseBytesPerSecond = baseBytesPerSecond;
+        this.schedule = schedule;
+    }
+
+    /**
+     * Creates a limiter with the given base rate and schedule, or returns null if neither limits anything.
+     *
+     * @param schedule comma separated windows of {@code HH:mm-HH:mm=bytesPerSecond}, may be null
+     */
+    public static BandwidthLimiter create(long baseBytesPerSecond, String schedule) {
+        List<Window> windows = new ArrayList<>();
+        if (schedule != null) {
+            for (String window : schedule.split(",")) {
+                window = window.trim();
+                if (window.isEmpty()) {
+                    continue;
+                }
+                int dash = window.indexOf('-');
+                int equals = window.indexOf('=');
+                if (dash < 0 || equals < dash) {
+                    throw new IllegalArgumentException("Invalid bandwidth schedule window: " + window);
+                }
+                windows.add(new Window(LocalTime.parse(window.substring(0, dash).trim()),
+                        LocalTime.parse(window.substring(dash + 1, equals).trim()),
+                        Long.parseLong(window.substring(equals + 1).trim())));
+            }
+        }
+        if (baseBytesPerSecond <= 0 && windows.stream().allMatch(window -> window.bytesPerSecond <= 0)) {
+            return null;
+        }
+        return new BandwidthLimiter(baseBytesPerSecond, windows);
+    }
+
+    /**
+     * The rate that applies right now, in bytes per second, 0 if unlimited.
+     */
+    public long getBytesPerSecond() {
+        LocalTime now = LocalTime.now();
+        for (Window window : schedule) {
+            if (window.contains(now)) {
+                return window.bytesPerSecond;
+            }
+        }
+        return baseBytesPerSecond;
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket, waiting as long as the rate requires.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long rate = getBytesPerSecond();
+            long now = System.nanoTime();
+            if (rate <= 0) {
+                tokens = 0;
+                lastRefill = now;
+                return;
+            }
+            tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
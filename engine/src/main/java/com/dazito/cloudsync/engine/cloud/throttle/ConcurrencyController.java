@@ -0,0 +1,168 @@
+package com.dazito.cloudsync.engine.cloud.throttle;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight against a cloud store, and adapts the limit to what the link and the
+ * service can take. Every few seconds the throughput of the last window is compared with the one before: while the
+ * limit was reached and the throughput went up, the limit is raised by one. It is lowered by one when the average
+ * request latency rises well above the lowest latency seen, and cut by a quarter when the service throttles
+ * requests.
+ *
+ * <p>Only requests that upload content count towards the latency. Requests without content, e.g. deletes, copies or
+ * the completion of a multipart upload, take a time of their own that says little about congestion of the link, and
+ * would pull the average down or up with the mix of requests rather than with the load.
+ */
+@Slf4j
+public class ConcurrencyController {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    // throughput has to improve by this factor for the limit to be raised further
+    private static final double IMPROVEMENT = 1.05;
+    // latency above this factor of the lowest latency seen counts as a sign of congestion
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // the lowest latency seen creeps up by this factor per window, so that it follows lasting changes
+    private static final double BASELINE_DRIFT = 1.02;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFree = lock.newCondition();
+
+    private int limit;
+    private int inFlight;
+
+    // statistics of the current window
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    // requests with content, and their summed latency
+    private long windowRequests;
+    private long windowLatencyNanos;
+    private boolean windowSaturated;
+    private boolean windowThrottled;
+
+    private double lastThroughput;
+    private double baselineLatencyNanos = Double.MAX_VALUE;
+    private volatile double throughput;
+
+    public ConcurrencyController(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Waits until another request may be started.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= limit) {
+                windowSaturated = true;
+                slotFree.await();
+            }
+            inFlight++;
+            if (inFlight == limit) {
+                windowSaturated = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a request, with the number of bytes it transferred and how long it took.
+     *
+     * @param throttled whether the service rejected the request as too many
+     */
+    public void release(long bytes, long latencyNanos, boolean throttled) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (bytes > 0) {
+                windowBytes += bytes;
+                windowRequests++;
+                windowLatencyNanos += latencyNanos;
+            }
+
+            if (throttled && !windowThrottled) {
+                // back off right away, but only once per window, as the other requests in flight see the same
+                windowThrottled = true;
+                setLimit(limit * 3 / 4, "the service is throttling requests");
+            }
+
+            long now = System.nanoTime();
+            if (now - windowStart >= WINDOW_NANOS) {
+                adjust(now);
+            }
+            slotFree.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The throughput of the last complete window, in bytes per second.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    private void adjust(long now) {
+        double seconds = (now - windowStart) / 1e9;
+        double currentThroughput = windowBytes / seconds;
+        double latency = windowRequests > 0 ? (double) windowLatencyNanos / windowRequests : 0;
+
+        if (windowRequests > 0) {
+            baselineLatencyNanos = Math.min(baselineLatencyNanos * BASELINE_DRIFT, latency);
+        }
+        if (!windowThrottled && windowSaturated) {
+            if (latency > baselineLatencyNanos * LATENCY_TOLERANCE) {
+                setLimit(limit - 1, "request latency is rising");
+            } else if (currentThroughput > lastThroughput * IMPROVEMENT) {
+                setLimit(limit + 1, "throughput is improving");
+            }
+        }
+
+        throughput = currentThroughput;
+        lastThroughput = currentThroughput;
+        windowStart = now;
+        windowBytes = 0;
+        windowRequests = 0;
+        windowLatencyNanos = 0;
+        windowSaturated = inFlight >= limit;
+        windowThrottled = false;
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if (newLimit != limit) {
+            log.debug("Concurrency limit {} -> {}, {}", limit, newLimit, reason);
+            limit = newLimit;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.dazito.cloudsync.engine.cloud.throttle;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Runs the requests of a cloud store under the adaptive {@link ConcurrencyController} and the configured bandwidth
+ * caps, the global one and the one of the request's backup. Every request a store makes should go through
+ * {@link #run}, with the number of bytes it uploads, so that the controller sees the throughput, the latency and the
+ * throttling of all of them.
+ */
+@Slf4j
+public class UploadGovernor {
+
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    /**
+     * A request to the cloud store.
+     */
+    @FunctionalInterface
+    public interface Request<T> {
+        T call() throws Exception;
+    }
+
+    private final Config config;
+    // tells whether a failed request was rejected by the service as too many
+    private final Predicate<Exception> isThrottled;
+    private final ConcurrencyController concurrency;
+    private final BandwidthLimiter globalLimiter;
+    private final Map<Long, Optional<BandwidthLimiter>> backupLimiters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reportThread = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "upload-governor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public UploadGovernor(Config config, Predicate<Exception> isThrottled) {
+        this.config = config;
+        this.isThrottled = isThrottled;
+        this.concurrency = new ConcurrencyController(config.getUploadConcurrency(), 1, config.getUploadConcurrencyMax());
+        this.globalLimiter = BandwidthLimiter.create(config.getBandwidthLimit(), config.getBandwidthSchedule());
+        reportThread.scheduleAtFixedRate(this::report, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs a request that uploads the given number of bytes for the given backup, 0 for requests without content.
+     */
+    public <T> T run(Backup backup, long bytes, Request<T> request) throws Exception {
+        if (bytes > 0) {
+            if (globalLimiter != null) {
+                globalLimiter.acquire(bytes);
+            }
+            BandwidthLimiter backupLimiter = getBackupLimiter(backup);
+            if (backupLimiter != null) {
+                backupLimiter.acquire(bytes);
+            }
+        }
+
+        concurrency.acquire();
+        long start = System.nanoTime();
+        boolean throttled = false;
+        try {
+            return request.call();
+        } catch (Exception e) {
+            throttled = isThrottled.test(e);
+            throw e;
+        } finally {
+            concurrency.release(throttled ? 0 : bytes, System.nanoTime() - start, throttled);
+        }
+    }
+
+    public int getConcurrencyLimit() {
+        return concurrency.getLimit();
+    }
+
+    public int getRequestsInFlight() {
+        return concurrency.getInFlight();
+    }
+
+    /**
+     * The upload rate of the last few seconds, in bytes per second.
+     */
+    public double getUploadRate() {
+        return concurrency.getThroughput();
+    }
+
+    private BandwidthLimiter getBackupLimiter(Backup backup) {
+        if (backup == null) {
+            return null;
+        }
+        return backupLimiters.computeIfAbsent(backup.getId(), id -> config.getBackupConfig(backup)
+                .map(backupConfig -> BandwidthLimiter.create(backupConfig.getBandwidthLimit(), backupConfig.getBandwidthSchedule())))
+                .orElse(null);
+    }
+
+    private void report() {
+        if (concurrency.getInFlight() > 0 || concurrency.getThroughput() > 0) {
+            log.info("Uploads: {} of {} requests in flight, {} KB/s", concurrency.getInFlight(), concurrency.getLimit(),
+                    (long) (concurrency.getThroughput() / 1024));
+        }
+    }
+}
@@ -2,9 +2,12 @@ package com.dazito.cloudsync.engine.db;
 
 import com.dazito.cloudsync.engine.model.Backup;
 import com.dazito.cloudsync.engine.model.LocalRecord;
+import com.dazito.cloudsync.engine.model.Pack;
 
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 public interface DataStore {
@@ -15,9 +18,49 @@ public interface DataStore {
 
     LocalRecord getLocalRecord(Backup backup, Path p);
 
+    LocalRecord getLocalRecord(long id);
+
+    /**
+     * Returns the in-memory index of the records of the given backup, loading it on first use. The index is kept up
+     * to date by {@link #updateLocalRecord} and {@link #deleteLocalRecord}.
+     */
+    PathIndex getPathIndex(Backup backup);
+
     void updateLocalRecord(Backup backup, LocalRecord record);
 
+    /**
+     * Returns all records of the given backup, ordered by file path. The stream is backed by an open database cursor
+     * and must be closed once consumed.
+     */
     Stream<LocalRecord> getBackupRecords(Backup backup);
 
+    /**
+     * Same as {@link #getBackupRecords(Backup)}, restricted to the records below the given directory.
+     */
+    Stream<LocalRecord> getBackupRecords(Backup backup, Path directory);
+
     void deleteLocalRecord(LocalRecord record);
+
+    List<Pack> getPacks(Backup backup);
+
+    /**
+     * Returns the number of bytes of each pack of the given backup that are still referenced by records, keyed by
+     * pack id. Packs that no record refers to anymore are left out.
+     */
+    Map<String, Long> getPackLiveBytes(Backup backup);
+
+    /**
+     * Returns the records whose content is in the given pack. The stream must be closed once consumed.
+     */
+    Stream<LocalRecord> getPackedRecords(Pack pack);
+
+    void updatePack(Pack pack);
+
+    void deletePack(Pack pack);
+
+    /**
+     * Writes are applied asynchronously. Waits until all writes that have been made so far are committed, or until
+     * the timeout has passed. Returns whether they were committed.
+     */
+    boolean flush(long timeout, TimeUnit unit);
 }
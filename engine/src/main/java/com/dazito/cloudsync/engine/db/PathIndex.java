@@ -0,0 +1,436 @@
+package com.dazito.cloudsync.engine.db;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A compact, in-memory index of the {@link com.dazito.cloudsync.engine.model.LocalRecord}s of a single backup, keyed
+ * by the file path relative to the backup root. It answers the "do we know this file, and has it changed?" question
+ * asked for every file system event without a round trip to the database.
+ *
+ * <p>Nothing is stored per file as an object. Paths are UTF-8 encoded, length prefixed and appended to a single byte
+ * arena; last modified time, size and record id live in parallel {@code long} arrays; and the hash table is an
+ * {@code int} array of entry numbers probed linearly. That is roughly 36 bytes per file plus the path bytes. Lookups
+ * encode the {@link CharSequence} they are given on the fly, so they do not allocate.
+ */
+public final class PathIndex {
+
+    // returned by lookup() when the path is not in the index
+    public static final long NOT_FOUND = -1;
+
+    // returned by lookup() when the path is in the index and the file has not changed
+    public static final long UNCHANGED = -2;
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    // the largest array that can be allocated, some VMs reserve a few header words in an array
+    static final int MAX_ARENA_SIZE = Integer.MAX_VALUE - 8;
+
+    private final StampedLock lock = new StampedLock();
+
+    // hash table of entry number + 1, 0 marks an empty slot
+    private int[] table;
+
+    // per entry data, indexed by entry number
+    private int[] pathOffsets;
+    private long[] lastModifiedTimes;
+    private long[] sizes;
+    private long[] recordIds;
+
+    // length prefixed UTF-8 paths
+    private byte[] arena;
+    private int arenaSize;
+    private int garbageBytes;
+
+    // entry numbers below this have been handed out, freed ones are kept on a stack for reuse
+    private int entryCount;
+    private int[] freeEntries;
+    private int freeCount;
+
+    private int size;
+
+    public PathIndex() {
+        this(1024);
+    }
+
+    public PathIndex(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        table = new int[tableSizeFor(capacity)];
+        pathOffsets = new int[capacity];
+        lastModifiedTimes = new long[capacity];
+        sizes = new long[capacity];
+        recordIds = new long[capacity];
+        arena = new byte[(int) Math.min(MAX_ARENA_SIZE, capacity * 16L)];
+        freeEntries = new int[16];
+    }
+
+    /**
+     * Looks up the given path and compares it against the given file attributes.
+     *
+     * @return {@link #NOT_FOUND} if the path is unknown, {@link #UNCHANGED} if it is known and both last modified time
+     * and size match, or otherwise the id of the record that is out of date
+     */
+    public long lookup(CharSequence path, long lastModifiedTime, long size) {
+        long stamp = lock.readLock();
+        try {
+            int entry = find(path);
+            if (entry < 0) {
+                return NOT_FOUND;
+            }
+            if (lastModifiedTimes[entry] == lastModifiedTime && sizes[entry] == size) {
+                return UNCHANGED;
+            }
+            return recordIds[entry];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the id of the record stored for the given path, or {@link #NOT_FOUND}
+     */
+    public long getRecordId(CharSequence path) {
+        long stamp = lock.readLock();
+        try {
+            int entry = find(path);
+            return entry < 0 ? NOT_FOUND : recordIds[entry];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void put(CharSequence path, long recordId, long lastModifiedTime, long size) {
+        long stamp = lock.writeLock();
+        try {
+            int entry = find(path);
+            if (entry < 0) {
+                entry = newEntry(path);
+                insert(entry, hash(path));
+                this.size++;
+                if (this.size > table.length * LOAD_FACTOR) {
+                    rehash(table.length * 2);
+                }
+            }
+            recordIds[entry] = recordId;
+            lastModifiedTimes[entry] = lastModifiedTime;
+            sizes[entry] = size;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void remove(CharSequence path) {
+        long stamp = lock.writeLock();
+        try {
+            int mask = table.length - 1;
+            int slot = hash(path) & mask;
+            int value;
+            while ((value = table[slot]) != 0) {
+                if (equalsPath(value - 1, path)) {
+                    deleteSlot(slot);
+                    release(value - 1);
+                    size--;
+                    if (garbageBytes > arenaSize / 2 && arenaSize > 1 << 20) {
+                        compactArena();
+                    }
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the approximate number of bytes of heap used by this index
+     */
+    public long getMemoryUsage() {
+        long stamp = lock.readLock();
+        try {
+            return (long) table.length * 4 + (long) pathOffsets.length * (4 + 8 + 8 + 8) + arena.length + freeEntries.length * 4L;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // --- hash table --------------------------------------------------------------------------------------------------
+
+    private int find(CharSequence path) {
+        int mask = table.length - 1;
+        int slot = hash(path) & mask;
+        int value;
+        while ((value = table[slot]) != 0) {
+            if (equalsPath(value - 1, path)) {
+                return value - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(int entry, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry + 1;
+    }
+
+    // backward shift deletion, so that linear probing never needs tombstones
+    private void deleteSlot(int slot) {
+        int mask = table.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next] != 0) {
+            int home = hashEntry(table[next] - 1) & mask;
+            // move the entry into the hole unless its home slot lies cyclically in (hole, next]
+            boolean canMove = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (canMove) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+
+    private void rehash(int newLength) {
+        table = new int[newLength];
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (pathOffsets[entry] >= 0) {
+                insert(entry, hashEntry(entry));
+            }
+        }
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = Integer.highestOneBit((int) (capacity / LOAD_FACTOR));
+        return size < capacity / LOAD_FACTOR ? size << 1 : size;
+    }
+
+    // --- entries -----------------------------------------------------------------------------------------------------
+
+    private int newEntry(CharSequence path) {
+        int entry;
+        if (freeCount > 0) {
+            entry = freeEntries[--freeCount];
+        } else {
+            if (entryCount == pathOffsets.length) {
+                int capacity = entryCount + (entryCount >> 1);
+                pathOffsets = Arrays.copyOf(pathOffsets, capacity);
+                lastModifiedTimes = Arrays.copyOf(lastModifiedTimes, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                recordIds = Arrays.copyOf(recordIds, capacity);
+            }
+            entry = entryCount++;
+        }
+        pathOffsets[entry] = appendPath(path);
+        return entry;
+    }
+
+    private void release(int entry) {
+        int offset = pathOffsets[entry];
+        int length = readLength(offset);
+        garbageBytes += varIntSize(length) + length;
+        pathOffsets[entry] = -1;
+        if (freeCount == freeEntries.length) {
+            freeEntries = Arrays.copyOf(freeEntries, freeCount * 2);
+        }
+        freeEntries[freeCount++] = entry;
+    }
+
+    private void compactArena() {
+        byte[] compacted = new byte[Math.max(arena.length / 2, arenaSize - garbageBytes + 1024)];
+        int position = 0;
+        for (int entry = 0; entry < entryCount; entry++) {
+            int offset = pathOffsets[entry];
+            if (offset >= 0) {
+                int length = readLength(offset);
+                int total = varIntSize(length) + length;
+                System.arraycopy(arena, offset, compacted, position, total);
+                pathOffsets[entry] = position;
+                position += total;
+            }
+        }
+        arena = compacted;
+        arenaSize = position;
+        garbageBytes = 0;
+    }
+
+    // --- path encoding -----------------------------------------------------------------------------------------------
+
+    private int appendPath(CharSequence path) {
+        int length = utf8Length(path);
+        long required = (long) arenaSize + varIntSize(length) + length;
+        if (required > arena.length) {
+            if (required > MAX_ARENA_SIZE && garbageBytes > 0) {
+                // the paths that were removed may make room
+                required -= garbageBytes;
+                compactArena();
+            }
+            if (required > arena.length) {
+                arena = Arrays.copyOf(arena, arenaCapacity(arena.length, required));
+            }
+        }
+
+        int offset = arenaSize;
+        int position = writeLength(offset, length);
+        for (int i = 0; i < path.length(); i++) {
+            int codePoint = codePointAt(path, i);
+            if (codePoint > 0xFFFF) {
+                i++;
+            }
+            position = encode(codePoint, position);
+        }
+        arenaSize = position;
+        return offset;
+    }
+
+    // grows the arena by half, in long as that overflows an int from 1.4 GB on, up to the largest array there can be
+    static int arenaCapacity(int length, long required) {
+        if (required > MAX_ARENA_SIZE) {
+            throw new IllegalStateException("The paths of the index need " + required + " bytes, more than the "
+                    + MAX_ARENA_SIZE + " an index can hold");
+        }
+        return (int) Math.min(MAX_ARENA_SIZE, Math.max(required, (long) length + (length >> 1)));
+    }
+
+    private int encode(int codePoint, int position) {
+        if (codePoint < 0x80) {
+            arena[position++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            arena[position++] = (byte) (0xC0 | (codePoint >> 6));
+            arena[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            arena[position++] = (byte) (0xE0 | (codePoint >> 12));
+            arena[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            arena[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            arena[position++] = (byte) (0xF0 | (codePoint >> 18));
+            arena[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            arena[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            arena[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return position;
+    }
+
+    private boolean equalsPath(int entry, CharSequence path) {
+        int offset = pathOffsets[entry];
+        int length = readLength(offset);
+        int position = offset + varIntSize(length);
+        int end = position + length;
+
+        for (int i = 0; i < path.length(); i++) {
+            int codePoint = codePointAt(path, i);
+            if (codePoint > 0xFFFF) {
+                i++;
+            }
+            int bytes = utf8Length(codePoint);
+            if (position + bytes > end || decode(position, bytes) != codePoint) {
+                return false;
+            }
+            position += bytes;
+        }
+        return position == end;
+    }
+
+    private int decode(int position, int bytes) {
+        switch (bytes) {
+            case 1: return arena[position];
+            case 2: return ((arena[position] & 0x1F) << 6) | (arena[position + 1] & 0x3F);
+            case 3: return ((arena[position] & 0x0F) << 12) | ((arena[position + 1] & 0x3F) << 6) | (arena[position + 2] & 0x3F);
+            default: return ((arena[position] & 0x07) << 18) | ((arena[position + 1] & 0x3F) << 12)
+                    | ((arena[position + 2] & 0x3F) << 6) | (arena[position + 3] & 0x3F);
+        }
+    }
+
+    // FNV-1a over the code points of the path, so that it can be computed from both a CharSequence and the arena
+    private static int hash(CharSequence path) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < path.length(); i++) {
+            int codePoint = codePointAt(path, i);
+            if (codePoint > 0xFFFF) {
+                i++;
+            }
+            hash = (hash ^ codePoint) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private int hashEntry(int entry) {
+        int offset = pathOffsets[entry];
+        int length = readLength(offset);
+        int position = offset + varIntSize(length);
+        int end = position + length;
+
+        int hash = 0x811C9DC5;
+        while (position < end) {
+            int lead = arena[position] & 0xFF;
+            int bytes = lead < 0x80 ? 1 : lead < 0xE0 ? 2 : lead < 0xF0 ? 3 : 4;
+            hash = (hash ^ decode(position, bytes)) * 0x01000193;
+            position += bytes;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    // unpaired surrogates are replaced by '?', as String.getBytes(UTF_8) does
+    private static int codePointAt(CharSequence path, int index) {
+        char c = path.charAt(index);
+        if (Character.isHighSurrogate(c) && index + 1 < path.length() && Character.isLowSurrogate(path.charAt(index + 1))) {
+            return Character.toCodePoint(c, path.charAt(index + 1));
+        }
+        return Character.isSurrogate(c) ? '?' : c;
+    }
+
+    private static int utf8Length(CharSequence path) {
+        int length = 0;
+        for (int i = 0; i < path.length(); i++) {
+            int codePoint = codePointAt(path, i);
+            if (codePoint > 0xFFFF) {
+                i++;
+            }
+            length += utf8Length(codePoint);
+        }
+        return length;
+    }
+
+    private static int utf8Length(int codePoint) {
+        return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+    }
+
+    private int writeLength(int position, int length) {
+        while (length >= 0x80) {
+            arena[position++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        arena[position++] = (byte) length;
+        return position;
+    }
+
+    private int readLength(int position) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = arena[position++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return length;
+    }
+
+    private static int varIntSize(int length) {
+        return length < 0x80 ? 1 : length < 0x4000 ? 2 : length < 0x200000 ? 3 : 4;
+    }
+}
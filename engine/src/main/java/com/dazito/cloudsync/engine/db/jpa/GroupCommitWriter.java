@@ -0,0 +1,183 @@
+package com.dazito.cloudsync.engine.db.jpa;
+
+import com.dazito.cloudsync.engine.metrics.Histogram;
+import com.dazito.cloudsync.engine.metrics.Metrics;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Applies the writes of the {@link JPADataStore} on a single thread, grouping them into batches that are committed
+ * in one transaction each. A batch is closed once it holds the maximum number of writes, or once the maximum delay
+ * has passed since its first write, so a burst of upload completions costs a handful of commits instead of one
+ * commit per file, while a single write is still committed after a short delay.
+ *
+ * <p>If a batch fails to commit, its writes are retried one transaction each, so that one bad write only loses
+ * itself.
+ *
+ * <p>The writer has an entity manager of its own, which only its thread uses, as entity managers are not
+ * thread-safe. Writes are given that entity manager, and it is cleared after every commit, so that it doesn't hold
+ * on to every entity it has written.
+ */
+@Slf4j
+class GroupCommitWriter {
+
+    private static final long REPORT_INTERVAL_MILLIS = 60_000;
+
+    private final EntityManager entityManager;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+
+    private final Histogram commitLatency;
+    private final Histogram commitSize;
+
+    private long commits;
+    private long writes;
+    private long lastReportAt = System.currentTimeMillis();
+    private long lastReportedCommits;
+    private long lastReportedWrites;
+
+    private static final class Write {
+        private final Consumer<EntityManager> apply;
+        private final Runnable afterCommit;
+        // whether the batch is to be committed right after this write, rather than waiting for more
+        private final boolean flush;
+
+        Write(Consumer<EntityManager> apply, Runnable afterCommit, boolean flush) {
+            this.apply = apply;
+            this.afterCommit = afterCommit;
+            this.flush = flush;
+        }
+    }
+
+    GroupCommitWriter(EntityManager entityManager, int maxBatchSize, long maxDelayMillis, Metrics metrics,
+                      ThreadFactory threadFactory) {
+        this.entityManager = entityManager;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.commitLatency = metrics.histogram("cloudsync_db_commit_duration_seconds",
+                "Time taken to apply and commit a batch of writes to the local database", Histogram.LATENCY_SECONDS);
+        this.commitSize = metrics.histogram("cloudsync_db_commit_writes", "Writes committed to the local database together",
+                Histogram.exponentialBuckets(1, 2, 14));
+        metrics.gauge("cloudsync_db_pending_writes", "Writes to the local database waiting to be committed", queue::size);
+
+        threadFactory.newThread(this::writeLoop).start();
+    }
+
+    /**
+     * Queues a write. The afterCommit runnable, if any, is run on the writer thread once the write is committed.
+     */
+    void submit(Consumer<EntityManager> apply, Runnable afterCommit) {
+        queue.add(new Write(apply, afterCommit, false));
+    }
+
+    /**
+     * Commits every write that has been submitted so far without waiting for more, and waits for them to be
+     * committed, or for the timeout to pass. Returns whether they were committed.
+     */
+    boolean flush(long timeout, TimeUnit unit) {
+        CountDownLatch flushed = new CountDownLatch(1);
+        // a write without changes, which completes once everything before it has been committed
+        queue.add(new Write(entityManager -> { }, flushed::countDown, true));
+        try {
+            return flushed.await(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>(maxBatchSize);
+        while (true) {
+            try {
+                Write next = queue.take();
+                batch.add(next);
+                long deadline = System.currentTimeMillis() + maxDelayMillis;
+                while (!next.flush && batch.size() < maxBatchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                if (!commit(batch)) {
+                    log.warn("Committing a batch of {} writes failed, retrying them one by one", batch.size());
+                    for (Write write : batch) {
+                        commit(Collections.singletonList(write));
+                    }
+                }
+                batch.clear();
+                report();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean commit(List<Write> batch) {
+        EntityTransaction transaction = entityManager.getTransaction();
+        long start = System.nanoTime();
+        try {
+            transaction.begin();
+            for (Write write : batch) {
+                write.apply.accept(entityManager);
+            }
+            transaction.commit();
+            commitLatency.observeNanos(System.nanoTime() - start);
+            commitSize.observe(batch.size());
+        } catch (RuntimeException e) {
+            log.error("Unable to commit {} writes", batch.size(), e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            return false;
+        } finally {
+            entityManager.clear();
+        }
+
+        commits++;
+        writes += batch.size();
+        for (Write write : batch) {
+            if (write.afterCommit != null) {
+                try {
+                    write.afterCommit.run();
+                } catch (RuntimeException e) {
+                    log.error("Unable to run an after commit action", e);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReportAt < REPORT_INTERVAL_MILLIS || writes == lastReportedWrites) {
+            return;
+        }
+        double seconds = (now - lastReportAt) / 1000.0;
+        long newCommits = commits - lastReportedCommits;
+        long newWrites = writes - lastReportedWrites;
+        log.info("Database writes: {} writes/s in {} commits/s, {} writes per commit",
+                String.format("%.1f", newWrites / seconds), String.format("%.1f", newCommits / seconds),
+                String.format("%.1f", (double) newWrites / newCommits));
+        lastReportAt = now;
+        lastReportedCommits = commits;
+        lastReportedWrites = writes;
+    }
+}
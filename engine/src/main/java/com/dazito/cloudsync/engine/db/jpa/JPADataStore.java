@@ -1,37 +1,76 @@
 package com.dazito.cloudsync.engine.db.jpa;
 
+import com.dazito.cloudsync.engine.metrics.Histogram;
+import com.dazito.cloudsync.engine.metrics.Metrics;
 import com.dazito.cloudsync.engine.model.Backup;
 import com.dazito.cloudsync.engine.model.LocalRecord;
+import com.dazito.cloudsync.engine.model.Pack;
 import com.dazito.cloudsync.engine.db.DataStore;
+import com.dazito.cloudsync.engine.db.PathIndex;
+import com.dazito.cloudsync.engine.util.Threads;
 import com.dazito.cloudsync.engine.util.config.Config;
 
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.Cursor;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.persistence.*;
+import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * The local database. Entity managers are not thread-safe: writes are applied by the {@link GroupCommitWriter} on an
+ * entity manager of its own, while every read uses an entity manager of its own that is closed once it is done, so
+ * the entities returned are detached. Entities are still read from the shared cache of the factory.
+ */
 @Singleton
 public class JPADataStore implements DataStore {
 
     private static final String PERSISTENCE_UNIT_NAME = "backupDB";
-    private EntityManagerFactory factory;
-    private EntityManager entityManager;
+    private static final int CURSOR_PAGE_SIZE = 1000;
+    private static final long INIT_FLUSH_TIMEOUT_SECONDS = 60;
+    private final EntityManagerFactory factory;
 
     private final Config config;
 
-    private ExecutorService dbThread = Executors.newSingleThreadExecutor();
+    // applies all writes on a single thread, committing them in batches
+    private final GroupCommitWriter writer;
+
+    // in-memory record indexes, keyed by backup id
+    private final Map<Long, PathIndex> pathIndexes = new ConcurrentHashMap<>();
+
+    // latency of the queries on the engine's paths, by query
+    private final Histogram getBackupLatency;
+    private final Histogram getLocalRecordLatency;
+    private final Histogram getLocalRecordByIdLatency;
+    private final Histogram loadPathIndexLatency;
 
     @Inject
-    JPADataStore(Config config) {
+    JPADataStore(Config config, Metrics metrics, Threads threads) {
         this.config = config;
+        this.getBackupLatency = queryLatency(metrics, "getBackup");
+        this.getLocalRecordLatency = queryLatency(metrics, "getLocalRecord");
+        this.getLocalRecordByIdLatency = queryLatency(metrics, "getLocalRecordById");
+        this.loadPathIndexLatency = queryLatency(metrics, "loadPathIndex");
 
         factory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME);
-        entityManager = factory.createEntityManager();
+        writer = new GroupCommitWriter(factory.createEntityManager(), config.getRecordBatchSize(),
+                config.getRecordBatchDelayMillis(), metrics, threads.newThreadFactory("db-writer", true));
 
         init();
     }
@@ -39,8 +78,7 @@ public class JPADataStore implements DataStore {
     private void init() {
         // get the configured backup sets from the local Config file
         // and the backups that have previously been instantiated and loaded into the local DB
-        Query q = entityManager.createQuery("select b from Backup b");
-        List<Backup> backupsInDB = q.getResultList();
+        List<Backup> backupsInDB = getBackupList();
 
         // now we reconcile...
         // Anything in the config file that is not in the DB, we create in the DB
@@ -50,7 +88,7 @@ public class JPADataStore implements DataStore {
         config.getBackupConfig().forEach(backupConfig -> {
             boolean exists = backupsInDB.stream().anyMatch(backup -> Config.BackupConfig.match(backupConfig, backup));
             if (!exists) {
-                transact(() -> {
+                transact(entityManager -> {
                     Backup backup = new Backup(backupConfig.getName(), Paths.get(backupConfig.getRoot()));
                     entityManager.persist(backup);
                 });
@@ -61,70 +99,303 @@ public class JPADataStore implements DataStore {
         backupsInDB.forEach(backup -> {
             boolean noMatch = config.getBackupConfig().noneMatch(backupConfig -> Config.BackupConfig.match(backupConfig, backup));
             if (noMatch) {
-                transact(() -> entityManager.remove(backup));
+                transact(entityManager -> entityManager.remove(entityManager.merge(backup)));
+            } else if (backup.getSchemaVersion() == null) {
+                relativizeRecordPaths(backup);
             }
         });
+        alignRecordIds();
+        if (!flush(INIT_FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Unable to set up the backups in the local database");
+        }
+    }
+
+    /*
+     * Records used to take their ids from an identity column. The id table must hand out ids above the highest of
+     * those, so that new records don't collide with the records written before.
+     */
+    private void alignRecordIds() {
+        transact(entityManager -> {
+            Long maxId = entityManager.createQuery("select max(r.id) from LocalRecord r", Long.class).getSingleResult();
+            if (maxId != null) {
+                // the table and columns of the record id generator, see LocalRecord
+                entityManager.createNativeQuery("update id_sequence set next_id = ? where name = 'record' and next_id < ?")
+                        .setParameter(1, maxId)
+                        .setParameter(2, maxId)
+                        .executeUpdate();
+            }
+        });
+    }
+
+    /*
+     * Records used to hold the full path of their file. The paths of records written before that are cut down to the
+     * path relative to the backup root, which leaves the records written since as they are. This is schema version 1,
+     * which the backup is marked with in the same transaction, so the update only runs once.
+     */
+    private void relativizeRecordPaths(Backup backup) {
+        String root = backup.getRootDirectoryString();
+        String prefix = root.endsWith(File.separator) ? root : root + File.separator;
+        transact(entityManager -> {
+            entityManager
+                    .createQuery("update LocalRecord r set r.relativePath = substring(r.relativePath, :start) where r.backup = :backup and r.relativePath like :prefix escape '!'")
+                    .setParameter("start", prefix.length() + 1)
+                    .setParameter("backup", backup)
+                    .setParameter("prefix", likePrefix(prefix))
+                    .executeUpdate();
+            backup.setSchemaVersion(Backup.SCHEMA_VERSION);
+            entityManager.merge(backup);
+        });
     }
 
     @Override
     public Backup getBackup(String rootDirectoryString) {
-        TypedQuery<Backup> query = entityManager.createQuery(
-                "select b from Backup b where b.rootDirectoryString = :rootDirectory", Backup.class
-        );
-
-        query.setParameter("rootDirectory", rootDirectoryString);
-        return query.getSingleResult();
+        long start = System.nanoTime();
+        try {
+            return read(entityManager -> entityManager
+                    .createQuery("select b from Backup b where b.rootDirectoryString = :rootDirectory", Backup.class)
+                    .setParameter("rootDirectory", rootDirectoryString)
+                    .getSingleResult());
+        } finally {
+            getBackupLatency.observeNanos(System.nanoTime() - start);
+        }
     }
 
     public List<Backup> getBackupList() {
-        return entityManager.createQuery("select b from Backup b").getResultList();
+        return read(entityManager -> entityManager.createQuery("select b from Backup b", Backup.class).getResultList());
     }
 
     @Override
     public LocalRecord getLocalRecord(Backup backup, Path p) {
         // the same path might be in multiple backup sets - we should ensure we are looking at the right one
+        long start = System.nanoTime();
         try {
-            return (LocalRecord) entityManager
-                    .createQuery("select r from LocalRecord r where r.filePath = :filePath and r.backup = :backup")
-                    .setParameter("filePath", p.toString())
+            return read(entityManager -> entityManager
+                    .createQuery("select r from LocalRecord r where r.relativePath = :relativePath and r.backup = :backup", LocalRecord.class)
+                    .setParameter("relativePath", backup.getRelativePath(p))
                     .setParameter("backup", backup)
-                    .getSingleResult();
+                    .getSingleResult());
         } catch (NoResultException e) {
             return null;
+        } finally {
+            getLocalRecordLatency.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public LocalRecord getLocalRecord(long id) {
+        long start = System.nanoTime();
+        try {
+            return read(entityManager -> entityManager.find(LocalRecord.class, id));
+        } finally {
+            getLocalRecordByIdLatency.observeNanos(System.nanoTime() - start);
         }
     }
 
+    @Override
+    public PathIndex getPathIndex(Backup backup) {
+        return pathIndexes.computeIfAbsent(backup.getId(), id -> loadPathIndex(backup));
+    }
+
+    private PathIndex loadPathIndex(Backup backup) {
+        long start = System.nanoTime();
+        PathIndex index = read(entityManager -> loadPathIndex(entityManager, backup));
+        loadPathIndexLatency.observeNanos(System.nanoTime() - start);
+        return index;
+    }
+
+    private PathIndex loadPathIndex(EntityManager entityManager, Backup backup) {
+        long count = entityManager
+                .createQuery("select count(r) from LocalRecord r where r.backup = :backup", Long.class)
+                .setParameter("backup", backup)
+                .getSingleResult();
+
+        // only read the indexed columns - there is no need to build a LocalRecord entity for every file
+        PathIndex index = new PathIndex((int) count);
+        Cursor cursor = (Cursor) entityManager
+                .createQuery("select r.id, r.relativePath, r.lastModifiedTime, r.size from LocalRecord r where r.backup = :backup")
+                .setParameter("backup", backup)
+                .setHint(QueryHints.CURSOR, HintValues.TRUE)
+                .setHint(QueryHints.CURSOR_PAGE_SIZE, CURSOR_PAGE_SIZE)
+                .getSingleResult();
+        try {
+            int rows = 0;
+            while (cursor.hasNext()) {
+                Object[] row = (Object[]) cursor.next();
+                index.put((String) row[1], (Long) row[0], (Long) row[2], (Long) row[3]);
+                if (++rows % CURSOR_PAGE_SIZE == 0) {
+                    // drop the rows we have already consumed from the cursor's cache, page by page
+                    cursor.clear();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return index;
+    }
+
+    private static Histogram queryLatency(Metrics metrics, String query) {
+        return metrics.histogram("cloudsync_db_query_duration_seconds", "Time taken by queries of the local database",
+                Histogram.LATENCY_SECONDS, "query", query);
+    }
+
     @Override
     public void updateLocalRecord(Backup backup, LocalRecord record) {
-        transact(() -> {
-            final boolean added = backup.addRecord(record);
-            if (added) {
-                entityManager.persist(backup);
+        // the record is written on its own - going through the backup would load and persist all of its records
+        transact(entityManager -> {
+            if (record.getId() == null) {
+                entityManager.persist(record);
+            } else if (!entityManager.contains(record)) {
+                entityManager.merge(record);
+            }
+        }, () -> {
+            // the index only holds committed records, so it is updated once the record is
+            PathIndex index = pathIndexes.get(backup.getId());
+            if (index != null) {
+                index.put(record.relativePath(), record.getId(), record.getLastModifiedTime(), record.getSize());
             }
         });
     }
 
     @Override
     public void deleteLocalRecord(LocalRecord record) {
-        transact(() -> {
-            record.getBackup().removeRecord(record);
-            entityManager.persist(record.getBackup());
-            entityManager.remove(record);
+        transact(entityManager -> {
+            entityManager.remove(entityManager.contains(record) ? record : entityManager.merge(record));
+        }, () -> {
+            PathIndex index = pathIndexes.get(record.getBackup().getId());
+            if (index != null) {
+                index.remove(record.relativePath());
+            }
         });
     }
 
     @Override
     public Stream<LocalRecord> getBackupRecords(Backup backup) {
-        return entityManager.createQuery("select r from LocalRecord r where r.backup = :backup", LocalRecord.class)
+        return streamRecords(entityManager -> entityManager
+                .createQuery("select r from LocalRecord r where r.backup = :backup order by r.relativePath")
+                .setParameter("backup", backup));
+    }
+
+    @Override
+    public Stream<LocalRecord> getBackupRecords(Backup backup, Path directory) {
+        String relativeDirectory = backup.getRelativePath(directory);
+        if (relativeDirectory.isEmpty()) {
+            return getBackupRecords(backup);
+        }
+        return streamRecords(entityManager -> entityManager
+                .createQuery("select r from LocalRecord r where r.backup = :backup and r.relativePath like :prefix escape '!' order by r.relativePath")
                 .setParameter("backup", backup)
-                .getResultStream();
+                .setParameter("prefix", likePrefix(relativeDirectory + File.separator)));
     }
 
-    private void transact(Runnable r) {
-        dbThread.submit(() -> {
-            entityManager.getTransaction().begin();
-            r.run();
-            entityManager.getTransaction().commit();
-        });
+    // a pattern for the LIKE operator that matches the strings starting with the given prefix, escaped with '!'
+    private static String likePrefix(String prefix) {
+        return prefix.replaceAll("([!%_])", "!$1") + "%";
+    }
+
+    @Override
+    public List<Pack> getPacks(Backup backup) {
+        return read(entityManager -> entityManager.createQuery("select p from Pack p where p.backup = :backup", Pack.class)
+                .setParameter("backup", backup)
+                .getResultList());
+    }
+
+    @Override
+    public Map<String, Long> getPackLiveBytes(Backup backup) {
+        List<Object[]> rows = read(entityManager -> entityManager
+                .createQuery("select r.packId, sum(r.packLength) from LocalRecord r where r.backup = :backup and r.packId is not null group by r.packId", Object[].class)
+                .setParameter("backup", backup)
+                .getResultList());
+
+        Map<String, Long> liveBytes = new HashMap<>(rows.size() * 2);
+        for (Object[] row : rows) {
+            liveBytes.put((String) row[0], ((Number) row[1]).longValue());
+        }
+        return liveBytes;
+    }
+
+    @Override
+    public Stream<LocalRecord> getPackedRecords(Pack pack) {
+        return streamRecords(entityManager -> entityManager
+                .createQuery("select r from LocalRecord r where r.packId = :packId")
+                .setParameter("packId", pack.getId()));
+    }
+
+    @Override
+    public void updatePack(Pack pack) {
+        transact(entityManager -> entityManager.merge(pack));
+    }
+
+    @Override
+    public void deletePack(Pack pack) {
+        transact(entityManager -> entityManager.remove(entityManager.contains(pack) ? pack : entityManager.merge(pack)));
+    }
+
+    /*
+     * Runs a read on an entity manager of its own, which is closed once the read is done.
+     */
+    private <T> T read(Function<EntityManager, T> read) {
+        EntityManager entityManager = factory.createEntityManager();
+        try {
+            return read.apply(entityManager);
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    /*
+     * The entity manager of the stream is closed along with the stream.
+     */
+    private Stream<LocalRecord> streamRecords(Function<EntityManager, Query> query) {
+        EntityManager entityManager = factory.createEntityManager();
+        Cursor cursor;
+        try {
+            // stream through a cursor rather than materialising every record of a large backup in one list
+            cursor = (Cursor) query.apply(entityManager)
+                    .setHint(QueryHints.CURSOR, HintValues.TRUE)
+                    .setHint(QueryHints.CURSOR_PAGE_SIZE, CURSOR_PAGE_SIZE)
+                    .getSingleResult();
+        } catch (RuntimeException e) {
+            entityManager.close();
+            throw e;
+        }
+
+        Iterator<LocalRecord> iterator = new Iterator<LocalRecord>() {
+            private int read;
+
+            @Override public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override public LocalRecord next() {
+                LocalRecord record = (LocalRecord) cursor.next();
+                if (++read % CURSOR_PAGE_SIZE == 0) {
+                    // drop the records we have already handed out from the cursor's cache, page by page
+                    cursor.clear();
+                }
+                return record;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                .onClose(() -> {
+                    try {
+                        cursor.close();
+                    } finally {
+                        entityManager.close();
+                    }
+                });
+    }
+
+    private void transact(Consumer<EntityManager> write) {
+        transact(write, null);
+    }
+
+    // the write is applied on the writer's thread, with the writer's entity manager
+    private void transact(Consumer<EntityManager> write, Runnable afterCommit) {
+        writer.submit(write, afterCommit);
+    }
+
+    @Override
+    public boolean flush(long timeout, TimeUnit unit) {
+        return writer.flush(timeout, unit);
     }
 }
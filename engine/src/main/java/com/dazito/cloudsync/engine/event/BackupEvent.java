@@ -11,13 +11,29 @@ import java.nio.file.WatchEvent;
 public class BackupEvent {
 
 	private final WatchEvent watchEvent;
+	private final WatchEvent.Kind<?> kind;
 	private final Path path;
 
 	// The path to the backup folder
 	private final Path backupPath;
 
+	// System.nanoTime() when the event was created, to measure how long it waits before it is handled
+	private final long createdNanos = System.nanoTime();
+
 	public BackupEvent(WatchEvent watchEvent, Path fullPath, Path backupPath) {
 		this.watchEvent = watchEvent;
+		this.kind = watchEvent.kind();
+		this.path = fullPath;
+		this.backupPath = backupPath;
+	}
+
+	/**
+	 * Creates an event that doesn't originate from a single {@link WatchEvent}, e.g. the net result of several
+	 * coalesced events.
+	 */
+	public BackupEvent(WatchEvent.Kind<?> kind, Path fullPath, Path backupPath) {
+		this.watchEvent = null;
+		this.kind = kind;
 		this.path = fullPath;
 		this.backupPath = backupPath;
 	}
@@ -0,0 +1,191 @@
+package com.dazito.cloudsync.engine.event;
+
+import com.dazito.cloudsync.engine.util.config.Config;
+import io.reactivex.Observable;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Collapses bursts of {@link BackupEvent}s for the same path into a single event. A single editor save or log
+ * rotation easily produces a CREATE followed by several MODIFY events, each of which would otherwise end up as a
+ * separate upload of the same file.
+ *
+ * <p>Events are held back until no further event arrived for their path within the quiet window (or until the
+ * maximum delay has passed, so that a file that is written to continuously still gets backed up), and are then
+ * replaced by their net effect: CREATE followed by DELETE cancels out, any number of MODIFY events become one, and
+ * DELETE followed by CREATE becomes a MODIFY.
+ */
+@Slf4j
+@Singleton
+public class BackupEventCoalescer {
+
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    private final long quietWindowMillis;
+    private final long maxDelayMillis;
+
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    private final Subject<BackupEvent> coalesced = PublishSubject.<BackupEvent>create().toSerialized();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong emitted = new AtomicLong();
+    private final AtomicLong absorbed = new AtomicLong();
+    private long lastReportedAbsorbed;
+
+    @Inject
+    public BackupEventCoalescer(Config config) {
+        this.quietWindowMillis = config.getEventQuietWindowMillis();
+        this.maxDelayMillis = Math.max(quietWindowMillis, config.getEventMaxDelayMillis());
+    }
+
+    /**
+     * Subscribes to the given raw events, and returns the coalesced events.
+     */
+    public Observable<BackupEvent> coalesce(Observable<BackupEvent> events) {
+        if (quietWindowMillis <= 0) {
+            return events;
+        }
+
+        events.subscribe(this::accept);
+
+        long sweepInterval = Math.max(10, quietWindowMillis / 4);
+        Observable.interval(sweepInterval, sweepInterval, TimeUnit.MILLISECONDS).subscribe(tick -> flush());
+        Observable.interval(REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS).subscribe(tick -> report());
+
+        return coalesced;
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getEmittedCount() {
+        return emitted.get();
+    }
+
+    // the number of events that never reached the engine, because a later event for the same path superseded them
+    public long getAbsorbedCount() {
+        return absorbed.get();
+    }
+
+    private void accept(BackupEvent event) {
+        received.incrementAndGet();
+        if (event.getKind() == OVERFLOW) {
+            // not an event for the path itself, but a notice that events were lost - pass it on right away
+            emitted.incrementAndGet();
+            coalesced.onNext(event);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        pending.compute(event.getPath(), (path, current) -> {
+            if (current == null) {
+                return new Pending(event, now);
+            }
+            current.add(event, now);
+            return current;
+        });
+    }
+
+    private void flush() {
+        long now = System.currentTimeMillis();
+        List<BackupEvent> ready = new ArrayList<>();
+
+        for (Path path : pending.keySet()) {
+            pending.computeIfPresent(path, (p, current) -> {
+                if (now - current.lastEventAt < quietWindowMillis && now - current.firstEventAt < maxDelayMillis) {
+                    return current;
+                }
+                if (current.net == null) {
+                    absorbed.addAndGet(current.count);
+                } else {
+                    absorbed.addAndGet(current.count - 1);
+                    ready.add(new BackupEvent(current.net, p, current.backupPath));
+                }
+                return null;
+            });
+        }
+
+        emitted.addAndGet(ready.size());
+        ready.forEach(coalesced::onNext);
+    }
+
+    /**
+     * Removes and returns the net effect of all events that are currently held back, e.g. on shutdown.
+     */
+    public List<BackupEvent> drainPending() {
+        List<BackupEvent> drained = new ArrayList<>();
+        for (Path path : pending.keySet()) {
+            Pending current = pending.remove(path);
+            if (current != null && current.net != null) {
+                drained.add(new BackupEvent(current.net, path, current.backupPath));
+            }
+        }
+        return drained;
+    }
+
+    private void report() {
+        long absorbedNow = absorbed.get();
+        if (absorbedNow != lastReportedAbsorbed) {
+            log.info("Event coalescing: {} events received, {} passed on, {} absorbed",
+                    received.get(), emitted.get(), absorbedNow);
+            lastReportedAbsorbed = absorbedNow;
+        }
+    }
+
+    private static final class Pending {
+        private final Path backupPath;
+        private final long firstEventAt;
+        private long lastEventAt;
+        private int count;
+
+        // the net effect of all events so far, null if they cancelled each other out
+        private WatchEvent.Kind<?> net;
+
+        Pending(BackupEvent event, long now) {
+            this.backupPath = event.getBackupPath();
+            this.firstEventAt = now;
+            this.lastEventAt = now;
+            this.count = 1;
+            this.net = event.getKind();
+        }
+
+        void add(BackupEvent event, long now) {
+            lastEventAt = now;
+            count++;
+            net = combine(net, event.getKind());
+        }
+
+        private static WatchEvent.Kind<?> combine(WatchEvent.Kind<?> net, WatchEvent.Kind<?> next) {
+            if (net == null) {
+                // the file did not exist before this burst
+                return next == ENTRY_DELETE ? null : ENTRY_CREATE;
+            }
+            if (net == ENTRY_CREATE) {
+                return next == ENTRY_DELETE ? null : ENTRY_CREATE;
+            }
+            if (net == ENTRY_DELETE) {
+                // deleted and recreated within the window, so the file was replaced
+                return next == ENTRY_DELETE ? ENTRY_DELETE : ENTRY_MODIFY;
+            }
+            return next == ENTRY_DELETE ? ENTRY_DELETE : ENTRY_MODIFY;
+        }
+    }
+}
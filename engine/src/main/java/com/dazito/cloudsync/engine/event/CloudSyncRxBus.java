@@ -2,8 +2,11 @@ package com.dazito.cloudsync.engine.event;
 
 import io.reactivex.Observable;
 
+import java.util.List;
+
 public interface CloudSyncRxBus {
 
 	void setBackupEvent(BackupEvent backupEvent);
+	void setBackupEvents(List<BackupEvent> backupEvents);
 	Observable<BackupEvent> getBackupEventObservable();
 }
@@ -3,6 +3,8 @@ package com.dazito.cloudsync.engine.event;
 import io.reactivex.Observable;
 import io.reactivex.subjects.PublishSubject;
 
+import java.util.List;
+
 public class CloudSyncRxBusImpl implements CloudSyncRxBus{
 
 	private PublishSubject<BackupEvent> subject = PublishSubject.create();
@@ -12,6 +14,11 @@ public class CloudSyncRxBusImpl implements CloudSyncRxBus{
 		subject.onNext(backupEvent);
 	}
 
+	@Override
+	public void setBackupEvents(List<BackupEvent> backupEvents) {
+		backupEvents.forEach(subject::onNext);
+	}
+
 	@Override
 	public Observable<BackupEvent> getBackupEventObservable() {
 		return subject;
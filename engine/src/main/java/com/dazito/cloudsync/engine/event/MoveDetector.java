@@ -0,0 +1,231 @@
+package com.dazito.cloudsync.engine.event;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.model.LocalRecord;
+import com.dazito.cloudsync.engine.scan.DirtyDirectoryTracker;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs the deletes and creates that a rename or move shows up as, so that a moved file is copied within the cloud
+ * store instead of being deleted and uploaded again.
+ *
+ * <p>The delete of a record is held back for a short window. A new file that shows up in the meantime with the same
+ * size and modification time - which a rename or a move within the same file system keeps - claims the held delete.
+ * The claim is only a candidate: the move is confirmed once the new file has been hashed and its hash equals the one
+ * recorded for the deleted file. A claim that isn't confirmed is released, which runs the delete after all. Records
+ * from before content hashes were recorded can't be confirmed, so their deletes are never held.
+ *
+ * <p>A moved directory shows up as the deletes of all of its files at once, while their creates come one by one, and
+ * may only come with the rescan of a directory or the walk of a consistency check that gets to them much later. Held
+ * deletes therefore don't expire while such a walk is under way or pending, nor while files keep claiming held
+ * deletes, up to a limit.
+ */
+@Singleton
+public class MoveDetector {
+
+    // a delete that has been held back this many windows runs, however many files are still claiming held deletes
+    private static final int MAX_HOLD_WINDOWS = 30;
+
+    private final long windowMillis;
+    private final DirtyDirectoryTracker dirtyDirectoryTracker;
+
+    // held deletes by the size and modification time of the deleted file, guarded by this
+    private final Map<Key, List<HeldDelete>> held = new HashMap<>();
+
+    // the number of walks under way that may still claim held deletes, and when a delete was last claimed, guarded
+    // by this
+    private int walks;
+    private long lastClaimAt;
+
+    private final ScheduledExecutorService expiryThread = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "move-detector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @EqualsAndHashCode
+    private static final class Key {
+        private final long backupId;
+        private final long size;
+        private final long lastModifiedTime;
+
+        Key(long backupId, long size, long lastModifiedTime) {
+            this.backupId = backupId;
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+        }
+    }
+
+    /**
+     * The delete of a record, held back in case the file shows up under another path.
+     */
+    public static final class HeldDelete {
+        @Getter private final Backup backup;
+        @Getter private final LocalRecord record;
+        private final Runnable delete;
+        private final long heldAt = System.currentTimeMillis();
+        private ScheduledFuture<?> expiry;
+
+        private HeldDelete(Backup backup, LocalRecord record, Runnable delete) {
+            this.backup = backup;
+            this.record = record;
+            this.delete = delete;
+        }
+    }
+
+    @Inject
+    public MoveDetector(Config config, DirtyDirectoryTracker dirtyDirectoryTracker) {
+        this.windowMillis = config.getMoveDetectionWindowMillis();
+        this.dirtyDirectoryTracker = dirtyDirectoryTracker;
+    }
+
+    /**
+     * Holds back the delete of the given record. Unless a new file claims it within the window, the delete is run.
+     */
+    public void holdDelete(Backup backup, LocalRecord record, Runnable delete) {
+        if (windowMillis <= 0 || record.getContentHash() == null) {
+            delete.run();
+            return;
+        }
+
+        HeldDelete heldDelete = new HeldDelete(backup, record, delete);
+        synchronized (this) {
+            held.computeIfAbsent(keyOf(backup, record), key -> new ArrayList<>(1)).add(heldDelete);
+            heldDelete.expiry = expiryThread.schedule(() -> expire(heldDelete), windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Claims a held delete the new file at the given path may have been moved from, or returns null if there is none.
+     * A delete of a file with the same name is preferred. The claimed delete no longer runs by itself: the caller
+     * must either confirm the move with {@link #isSameContent} or {@link #release} it.
+     */
+    public HeldDelete claim(Backup backup, Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+
+        Key key = new Key(backup.getId(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        synchronized (this) {
+            List<HeldDelete> candidates = held.get(key);
+            if (candidates == null) {
+                return null;
+            }
+
+            int match = 0;
+            for (int i = 0; i < candidates.size(); i++) {
+                if (candidates.get(i).record.getFileName().equals(path.getFileName().toString())) {
+                    match = i;
+                    break;
+                }
+            }
+            HeldDelete claimed = candidates.remove(match);
+            if (candidates.isEmpty()) {
+                held.remove(key);
+            }
+            claimed.expiry.cancel(false);
+            lastClaimAt = System.currentTimeMillis();
+            return claimed;
+        }
+    }
+
+    /**
+     * Tells whether the claimed delete and the new file with the given hash are the same content.
+     */
+    public boolean isSameContent(HeldDelete claimed, String contentHash) {
+        return claimed.record.getContentHash().equals(contentHash);
+    }
+
+    /**
+     * Tells that a walk has started which may find the files that held deletes were moved to, e.g. the rescan of a
+     * directory. Held deletes don't expire until every walk that has started has {@link #endWalk() ended}.
+     */
+    public synchronized void startWalk() {
+        walks++;
+    }
+
+    public synchronized void endWalk() {
+        walks--;
+    }
+
+    /**
+     * Runs a claimed delete after all, as the new file turned out not to be a move of it.
+     */
+    public void release(HeldDelete claimed) {
+        claimed.delete.run();
+    }
+
+    /**
+     * Removes and returns every delete that is still held back, e.g. on shutdown, so that they are not lost.
+     */
+    public synchronized List<HeldDelete> drainPending() {
+        List<HeldDelete> drained = new ArrayList<>();
+        for (List<HeldDelete> heldDeletes : held.values()) {
+            for (HeldDelete heldDelete : heldDeletes) {
+                heldDelete.expiry.cancel(false);
+                drained.add(heldDelete);
+            }
+        }
+        held.clear();
+        return drained;
+    }
+
+    private void expire(HeldDelete heldDelete) {
+        synchronized (this) {
+            Key key = keyOf(heldDelete.backup, heldDelete.record);
+            List<HeldDelete> candidates = held.get(key);
+            if (candidates == null || !candidates.contains(heldDelete)) {
+                // claimed in the meantime
+                return;
+            }
+
+            long holdFor = holdFor(heldDelete);
+            if (holdFor > 0) {
+                heldDelete.expiry = expiryThread.schedule(() -> expire(heldDelete), holdFor, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            candidates.remove(heldDelete);
+            if (candidates.isEmpty()) {
+                held.remove(key);
+            }
+        }
+        heldDelete.delete.run();
+    }
+
+    // how much longer the given held delete is held, guarded by this
+    private long holdFor(HeldDelete heldDelete) {
+        if (walks > 0 || dirtyDirectoryTracker.hasDirtyDirectories()) {
+            return windowMillis;
+        }
+        long now = System.currentTimeMillis();
+        if (now - heldDelete.heldAt >= windowMillis * MAX_HOLD_WINDOWS) {
+            return 0;
+        }
+        return lastClaimAt + windowMillis - now;
+    }
+
+    private static Key keyOf(Backup backup, LocalRecord record) {
+        return new Key(backup.getId(), record.getSize(), record.getLastModifiedTime());
+    }
+}
@@ -0,0 +1,360 @@
+package com.dazito.cloudsync.engine.journal;
+
+import com.dazito.cloudsync.engine.util.Task;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only journal of {@link Task} intents and completions on local disk. It lets the engine tell, on startup,
+ * which tasks were still pending when it last stopped, and whether it stopped cleanly - in which case the database
+ * plus the pending tasks reflect every change the engine saw, and the full consistency check can be skipped if the
+ * backup folders are known not to change while the engine is stopped.
+ *
+ * <p>Records are written by a single writer thread. It takes everything that has been queued since its last write,
+ * writes it in one go and then syncs the file once, so the cost of an fsync is shared by every record of the batch.
+ * Callers never wait for the sync: if the engine crashes before a batch reaches the disk, the journal will not end in
+ * a clean shutdown marker, so the next startup falls back to the full consistency check anyway.
+ *
+ * <p>Every record carries a CRC, so that a record torn by a crash is detected and ends the replay. Once the journal
+ * has grown past a threshold, it is compacted by rewriting only the intents that are still pending.
+ */
+@Slf4j
+@Singleton
+public class TaskJournal {
+
+    private static final int MAGIC = 0x43535431; // CST1
+
+    private static final byte INTENT = 1;
+    private static final byte COMPLETION = 2;
+    private static final byte CLEAN_SHUTDOWN = 3;
+
+    // the journal is compacted once this many bytes have been appended since the last compaction
+    private static final long COMPACTION_THRESHOLD = 64L * 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Path journalPath;
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    // the encoded intent records of all tasks that have not completed yet, used for compaction
+    private final Map<Long, ByteBuffer> pending = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+    private final CountDownLatch writerStopped = new CountDownLatch(1);
+    private volatile boolean closing;
+    private volatile ByteBuffer shutdownMarker;
+    private Thread writer;
+
+    private FileChannel channel;
+    private long bytesSinceCompaction;
+
+    /**
+     * A task that was still pending when the journal was last closed.
+     */
+    @Getter
+    public static class Intent {
+        private final Task.Type type;
+        private final long backupId;
+        private final Path path;
+        // where the file was moved from, for moves only
+        private final Path sourcePath;
+        // the files in the pack, for pack uploads only
+        private final List<Path> packedPaths;
+
+        Intent(Task.Type type, long backupId, Path path, Path sourcePath, List<Path> packedPaths) {
+            this.type = type;
+            this.backupId = backupId;
+            this.path = path;
+            this.sourcePath = sourcePath;
+            this.packedPaths = packedPaths;
+        }
+    }
+
+    /**
+     * What was found in the journal on startup.
+     */
+    @Getter
+    public static class Recovery {
+        private final boolean cleanShutdown;
+        private final Collection<Intent> pendingIntents;
+
+        Recovery(boolean cleanShutdown, Collection<Intent> pendingIntents) {
+            this.cleanShutdown = cleanShutdown;
+            this.pendingIntents = pendingIntents;
+        }
+    }
+
+    @Inject
+    public TaskJournal(Config config) {
+        this.journalPath = Paths.get(config.getTaskJournalPath());
+    }
+
+    /**
+     * Reads the journal left behind by the previous run, and then starts a new, empty journal. Must be called before
+     * any task is logged.
+     */
+    public synchronized Recovery open() throws IOException {
+        Recovery recovery = read();
+        log.info("Task journal {}: previous run {}, {} pending tasks", journalPath,
+                recovery.isCleanShutdown() ? "shut down cleanly" : "did not shut down cleanly",
+                recovery.getPendingIntents().size());
+
+        Files.createDirectories(journalPath.toAbsolutePath().getParent());
+        channel = FileChannel.open(journalPath, CREATE, WRITE, TRUNCATE_EXISTING);
+        writeFully(header());
+        channel.force(true);
+
+        writer = new Thread(this::writeLoop, "task-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return recovery;
+    }
+
+    public long logIntent(Task task) {
+        long id = nextId.getAndIncrement();
+        byte[] path = task.getPath().toString().getBytes(StandardCharsets.UTF_8);
+        // moves carry the path the file was moved from after the path it was moved to, pack uploads the paths of
+        // the files in the pack
+        List<byte[]> extraPaths = new ArrayList<>();
+        if (task.getType() == Task.Type.MOVE_FILE) {
+            extraPaths.add(task.getSourcePath().toString().getBytes(StandardCharsets.UTF_8));
+        } else if (task.getType() == Task.Type.UPLOAD_PACK) {
+            for (Path packedPath : task.getPackedPaths()) {
+                extraPaths.add(packedPath.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int extraLength = task.getType() == Task.Type.UPLOAD_PACK ? 4 : 0;
+        for (byte[] extraPath : extraPaths) {
+            extraLength += 4 + extraPath.length;
+        }
+
+        ByteBuffer record = record(INTENT, id, 1 + 8 + 4 + path.length + extraLength);
+        record.put((byte) task.getType().ordinal())
+                .putLong(task.getBackup().getId())
+                .putInt(path.length)
+                .put(path);
+        if (task.getType() == Task.Type.UPLOAD_PACK) {
+            record.putInt(extraPaths.size());
+        }
+        for (byte[] extraPath : extraPaths) {
+            record.putInt(extraPath.length).put(extraPath);
+        }
+        ByteBuffer sealed = seal(record);
+        pending.put(id, sealed);
+        queue.add(sealed.duplicate());
+        return id;
+    }
+
+    public void logCompletion(long id) {
+        if (pending.remove(id) != null) {
+            queue.add(seal(record(COMPLETION, id, 0)));
+        }
+    }
+
+    /**
+     * Writes everything that is still queued and stops the writer thread. Unless the engine is known to have missed
+     * file system changes, the journal is ended with the clean shutdown marker.
+     */
+    public void close(boolean cleanShutdown) {
+        if (writer == null || closing) {
+            return;
+        }
+        // the marker wakes the writer up, which stops once it has written everything up to and including it
+        closing = true;
+        shutdownMarker = cleanShutdown ? seal(record(CLEAN_SHUTDOWN, 0, 0)) : seal(record(COMPLETION, 0, 0));
+        queue.add(shutdownMarker);
+        try {
+            writerStopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Task journal closed with {} pending tasks", pending.size());
+    }
+
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            boolean stopped = false;
+            while (!stopped) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                for (ByteBuffer record : batch) {
+                    stopped |= record == shutdownMarker;
+                    bytesSinceCompaction += record.remaining();
+                    writeFully(record);
+                }
+                channel.force(false);
+                batch.clear();
+
+                if (bytesSinceCompaction > COMPACTION_THRESHOLD && !closing) {
+                    compact();
+                }
+            }
+            channel.close();
+        } catch (IOException | InterruptedException e) {
+            // without a clean shutdown marker the next startup runs a full consistency check, so nothing is lost
+            log.error("Unable to write to the task journal {}", journalPath, e);
+        } finally {
+            writerStopped.countDown();
+        }
+    }
+
+    /*
+     * Rewrites the journal with only the intents that are still pending. Runs on the writer thread, so no records
+     * can be appended in the meantime.
+     */
+    private void compact() throws IOException {
+        Path compacted = journalPath.resolveSibling(journalPath.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer header = header();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            for (ByteBuffer record : pending.values()) {
+                ByteBuffer copy = record.duplicate();
+                while (copy.hasRemaining()) {
+                    out.write(copy);
+                }
+            }
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(compacted, journalPath, REPLACE_EXISTING, ATOMIC_MOVE);
+        channel = FileChannel.open(journalPath, WRITE, APPEND);
+        log.debug("Compacted the task journal to {} pending tasks", pending.size());
+        bytesSinceCompaction = 0;
+    }
+
+    private Recovery read() throws IOException {
+        Map<Long, Intent> intents = new LinkedHashMap<>();
+        boolean clean = false;
+        if (!Files.exists(journalPath)) {
+            return new Recovery(false, intents.values());
+        }
+
+        // streamed one record at a time, so that only the pending intents are held in memory, however long the journal
+        // has grown - and read rather than mapped: a mapping lives until it is garbage collected, and on Windows a
+        // mapped file can't be truncated, which open() does right after
+        long remaining = Files.size(journalPath);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath), READ_BUFFER_SIZE))) {
+            if (remaining < 4 || in.readInt() != MAGIC) {
+                log.warn("Ignoring task journal {} with an unknown format", journalPath);
+                return new Recovery(false, intents.values());
+            }
+            remaining -= 4;
+
+            while (remaining >= 8) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                remaining -= 8;
+                if (length < 9 || length > remaining) {
+                    // a file that is cut short ends the replay like a torn record
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                remaining -= length;
+                ByteBuffer payload = ByteBuffer.wrap(record);
+                if (crc(payload.duplicate()) != crc) {
+                    // a record torn by a crash - nothing after it can be trusted
+                    break;
+                }
+
+                byte type = payload.get();
+                long id = payload.getLong();
+                clean = type == CLEAN_SHUTDOWN;
+                if (type == INTENT) {
+                    Task.Type taskType = Task.Type.values()[payload.get()];
+                    long backupId = payload.getLong();
+                    Path path = readPath(payload);
+                    Path sourcePath = taskType == Task.Type.MOVE_FILE ? readPath(payload) : null;
+                    List<Path> packedPaths = null;
+                    if (taskType == Task.Type.UPLOAD_PACK) {
+                        int count = payload.getInt();
+                        packedPaths = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            packedPaths.add(readPath(payload));
+                        }
+                    }
+                    intents.put(id, new Intent(taskType, backupId, path, sourcePath, packedPaths));
+                } else if (type == COMPLETION) {
+                    intents.remove(id);
+                }
+            }
+        }
+        return new Recovery(clean, new ArrayList<>(intents.values()));
+    }
+
+    private static Path readPath(ByteBuffer payload) {
+        byte[] path = new byte[payload.getInt()];
+        payload.get(path);
+        return Paths.get(new String(path, StandardCharsets.UTF_8));
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC);
+        header.flip();
+        return header;
+    }
+
+    // a record is: length, crc, then the payload of type, task id and the type specific body
+    private static ByteBuffer record(byte type, long id, int bodyLength) {
+        ByteBuffer record = ByteBuffer.allocate(8 + 1 + 8 + bodyLength);
+        record.position(8);
+        return record.put(type).putLong(id);
+    }
+
+    private static ByteBuffer seal(ByteBuffer record) {
+        int length = record.position() - 8;
+        ByteBuffer payload = record.duplicate();
+        payload.flip().position(8);
+        record.putInt(0, length).putInt(4, crc(payload));
+        record.flip();
+        return record;
+    }
+
+    private static int crc(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
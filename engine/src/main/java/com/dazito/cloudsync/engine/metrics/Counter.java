@@ -0,0 +1,47 @@
+package com.dazito.cloudsync.engine.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up. Increments are lock-free and spread over cells under contention, see {@link LongAdder}.
+ */
+public final class Counter extends Metric {
+
+    private static final String[] ATTRIBUTES = { "Count" };
+
+    private final LongAdder count = new LongAdder();
+
+    Counter() { }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    @Override
+    String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out, String name, String labels) {
+        writeSample(out, name, labels, get());
+    }
+
+    @Override
+    String[] getAttributeNames() {
+        return ATTRIBUTES;
+    }
+
+    @Override
+    Object getAttribute(String attribute) {
+        return get();
+    }
+}
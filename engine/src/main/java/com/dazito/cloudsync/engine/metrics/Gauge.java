@@ -0,0 +1,50 @@
+package com.dazito.cloudsync.engine.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value that goes up and down. Either it is read from a supplier whenever it is collected, which costs nothing in
+ * between, or it holds the last value it was set to.
+ */
+public final class Gauge extends Metric {
+
+    private static final String[] ATTRIBUTES = { "Value" };
+
+    private final DoubleSupplier supplier;
+    private volatile double value;
+
+    Gauge(DoubleSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    /**
+     * Sets the value of a gauge that has no supplier.
+     */
+    public void set(double value) {
+        this.value = value;
+    }
+
+    public double get() {
+        return supplier != null ? supplier.getAsDouble() : value;
+    }
+
+    @Override
+    String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out, String name, String labels) {
+        writeSample(out, name, labels, get());
+    }
+
+    @Override
+    String[] getAttributeNames() {
+        return ATTRIBUTES;
+    }
+
+    @Override
+    Object getAttribute(String attribute) {
+        return get();
+    }
+}
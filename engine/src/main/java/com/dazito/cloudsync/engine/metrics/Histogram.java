@@ -0,0 +1,151 @@
+package com.dazito.cloudsync.engine.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observations into buckets of fixed upper bounds, the way Prometheus histograms do, so that percentiles can
+ * be estimated over any time range from the scraped counts. An observation costs a binary search over the bounds and
+ * two lock-free increments; the buckets are only summed up when the histogram is collected.
+ */
+public final class Histogram extends Metric {
+
+    // 1 ms to 5 min
+    public static final double[] LATENCY_SECONDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300
+    };
+
+    // 64 KB/s to 1 GB/s
+    public static final double[] BYTES_PER_SECOND = exponentialBuckets(64 * 1024, 2, 15);
+
+    private static final String[] ATTRIBUTES = { "Count", "Sum", "Mean", "P50", "P90", "P99" };
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final double[] bounds;
+    // one more than there are bounds, the last one counts the observations above the highest bound
+    private final LongAdder[] buckets;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        Arrays.sort(this.bounds);
+        this.buckets = new LongAdder[this.bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public static double[] exponentialBuckets(double start, double factor, int count) {
+        double[] bounds = new double[count];
+        for (int i = 0; i < count; i++) {
+            bounds[i] = start * Math.pow(factor, i);
+        }
+        return bounds;
+    }
+
+    public void observe(double value) {
+        int bucket = Arrays.binarySearch(bounds, value);
+        // a value equal to a bound belongs to that bound's bucket, anything else to the next higher bound
+        buckets[bucket >= 0 ? bucket : -bucket - 1].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Observes a duration, measured with {@link System#nanoTime()}, in seconds.
+     */
+    public void observeNanos(long nanos) {
+        observe(nanos / NANOS_PER_SECOND);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it falls into, i.e. the value it is at most. Returns
+     * the highest bound if it lies above all bounds, and 0 without observations.
+     */
+    public double getPercentile(double percentile) {
+        long[] counts = getCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bounds[i];
+            }
+        }
+        return bounds[bounds.length - 1];
+    }
+
+    private long[] getCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    @Override
+    String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out, String name, String labels) {
+        String separator = labels.isEmpty() ? "" : labels + ",";
+        long[] counts = getCounts();
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            writeSample(out, name + "_bucket", separator + "le=\"" + bounds[i] + "\"", cumulative);
+        }
+        cumulative += counts[bounds.length];
+        writeSample(out, name + "_bucket", separator + "le=\"+Inf\"", cumulative);
+        writeSample(out, name + "_sum", labels, getSum());
+        writeSample(out, name + "_count", labels, cumulative);
+    }
+
+    @Override
+    String[] getAttributeNames() {
+        return ATTRIBUTES;
+    }
+
+    @Override
+    Object getAttribute(String attribute) {
+        switch (attribute) {
+            case "Count":
+                return getCount();
+            case "Sum":
+                return getSum();
+            case "Mean":
+                long count = getCount();
+                return count > 0 ? getSum() / count : 0.0;
+            case "P50":
+                return getPercentile(50);
+            case "P90":
+                return getPercentile(90);
+            case "P99":
+                return getPercentile(99);
+            default:
+                return null;
+        }
+    }
+}
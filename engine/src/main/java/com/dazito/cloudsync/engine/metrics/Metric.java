@@ -0,0 +1,42 @@
+package com.dazito.cloudsync.engine.metrics;
+
+/**
+ * A single time series, i.e. a metric with one set of label values.
+ */
+abstract class Metric {
+
+    /**
+     * The Prometheus type of the metric.
+     */
+    abstract String getType();
+
+    /**
+     * Appends the samples of the series in the Prometheus text format.
+     *
+     * @param labels the labels of the series as they go between the braces, empty for none
+     */
+    abstract void writeSamples(StringBuilder out, String name, String labels);
+
+    /**
+     * The names of the attributes the series has as an MBean.
+     */
+    abstract String[] getAttributeNames();
+
+    abstract Object getAttribute(String attribute);
+
+    static void writeSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,68 @@
+package com.dazito.cloudsync.engine.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import java.util.Arrays;
+
+/**
+ * Exposes a series over JMX, with read-only attributes that are read from the series whenever they are asked for.
+ */
+class MetricMBean implements DynamicMBean {
+
+    private final Metric metric;
+    private final MBeanInfo info;
+
+    MetricMBean(Metric metric, String help) {
+        this.metric = metric;
+        MBeanAttributeInfo[] attributes = Arrays.stream(metric.getAttributeNames())
+                .map(name -> new MBeanAttributeInfo(name, metric.getAttribute(name).getClass().getName(), help,
+                        true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        this.info = new MBeanInfo(metric.getClass().getName(), help, attributes, null, new MBeanOperationInfo[0], null);
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (!Arrays.asList(metric.getAttributeNames()).contains(attribute)) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return metric.getAttribute(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Object value = metric.getAttribute(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}
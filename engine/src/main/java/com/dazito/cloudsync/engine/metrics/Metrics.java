@@ -0,0 +1,182 @@
+package com.dazito.cloudsync.engine.metrics;
+
+import com.dazito.cloudsync.engine.util.config.Config;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of the engine. Every series is registered as an MBean under {@code com.dazito.cloudsync:type=Metrics}
+ * as it is created, and, if a metrics port is configured, all of them are served in the Prometheus text format at
+ * {@code http://localhost:<port>/metrics}.
+ *
+ * <p>Series are created once and kept by the code that records them, so that recording never looks anything up:
+ * counters and histograms only touch lock-free adders, and gauges are read from their suppliers when collected.
+ * Labels are given as name and value pairs.
+ */
+@Slf4j
+@Singleton
+public class Metrics {
+
+    private static final String DOMAIN = "com.dazito.cloudsync";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final int port;
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    // by name, so that the series of a metric are served together and in a stable order
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private HttpServer server;
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        // by their labels as they are written between the braces
+        private final Map<String, Metric> series = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    @Inject
+    public Metrics(Config config) {
+        this.port = config.getMetricsPort();
+    }
+
+    /**
+     * Starts serving the metrics over HTTP, if a port is configured. Only local connections are accepted.
+     */
+    public synchronized void start() {
+        if (port <= 0 || server != null) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            log.error("Unable to serve metrics on port {}", port, e);
+            return;
+        }
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        log.info("Serving metrics at http://localhost:{}/metrics", port);
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return register(name, help, labels, Counter.class, Counter::new);
+    }
+
+    /**
+     * Returns a gauge that holds the value it was last set to.
+     */
+    public Gauge gauge(String name, String help, String... labels) {
+        return register(name, help, labels, Gauge.class, () -> new Gauge(null));
+    }
+
+    /**
+     * Returns a gauge that is read from the given supplier whenever it is collected. If the series exists already, it
+     * keeps its supplier.
+     */
+    public Gauge gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        return register(name, help, labels, Gauge.class, () -> new Gauge(supplier));
+    }
+
+    /**
+     * @param bounds the upper bounds of the buckets, e.g. {@link Histogram#LATENCY_SECONDS}
+     */
+    public Histogram histogram(String name, String help, double[] bounds, String... labels) {
+        return register(name, help, labels, Histogram.class, () -> new Histogram(bounds));
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text format.
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        families.forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.series.forEach((labels, metric) -> metric.writeSamples(out, name, labels));
+        });
+        return out.toString();
+    }
+
+    private <T extends Metric> T register(String name, String help, String[] labels, Class<T> cls, Supplier<T> factory) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels of " + name + " must be name and value pairs");
+        }
+        String labelText = toLabelText(labels);
+        T created = factory.get();
+        Family family = families.computeIfAbsent(name, n -> new Family(help, created.getType()));
+        if (!family.type.equals(created.getType())) {
+            throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + created.getType());
+        }
+
+        Metric existing = family.series.putIfAbsent(labelText, created);
+        if (existing != null) {
+            return cls.cast(existing);
+        }
+        registerMBean(name, help, labels, created);
+        return created;
+    }
+
+    private void registerMBean(String name, String help, String[] labels, Metric metric) {
+        StringBuilder objectName = new StringBuilder(DOMAIN).append(":type=Metrics,name=").append(name);
+        for (int i = 0; i < labels.length; i += 2) {
+            objectName.append(',').append(labels[i]).append('=').append(ObjectName.quote(labels[i + 1]));
+        }
+        try {
+            mBeanServer.registerMBean(new MetricMBean(metric, help), new ObjectName(objectName.toString()));
+        } catch (JMException e) {
+            // e.g. a second engine in the same JVM, the series is still served over HTTP
+            log.debug("Unable to register the MBean {}", objectName, e);
+        }
+    }
+
+    private static String toLabelText(String[] labels) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return text.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -1,8 +1,13 @@
 package com.dazito.cloudsync.engine.model;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
 
 import javax.persistence.*;
+import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
@@ -12,9 +17,13 @@ import java.util.TreeSet;
 
 @Entity
 @Data
+@EqualsAndHashCode(exclude = "objectKeyPrefix")
 @Table(name="backup")
 public class Backup {
 
+    // the version of the way the records of a backup are stored that this code writes, see JPADataStore
+    public static final int SCHEMA_VERSION = 1;
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -27,12 +36,21 @@ public class Backup {
     @Column(unique=true)
     private String rootDirectoryString;
 
+    // the version the records of this backup are stored in, null for backups from before versions were recorded
+    private Integer schemaVersion;
+
     @OneToMany(mappedBy = "backup", cascade = CascadeType.ALL)
     private Collection<LocalRecord> records;
 
     @Transient
     private final Map<String, Object> runtimeProperties;
 
+    // the name of the root directory followed by '/', which every object key of the backup starts with
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private String objectKeyPrefix;
+
     public Backup() {
         records = new TreeSet<>();
         runtimeProperties = new HashMap<>();
@@ -40,8 +58,10 @@ public class Backup {
 
     public Backup(String name, Path rootDirectory) {
         this();
-        setBackupName(name);
-        setRootDirectory(rootDirectory);
+        this.backupName = name;
+        this.rootDirectory = rootDirectory;
+        this.rootDirectoryString = rootDirectory != null ? rootDirectory.toString() : null;
+        this.schemaVersion = SCHEMA_VERSION;
     }
 
     public Path getRootDirectory() {
@@ -54,6 +74,47 @@ public class Backup {
     public void setRootDirectory(Path rootDirectory) {
         this.rootDirectory = rootDirectory;
         this.rootDirectoryString = rootDirectory != null ? rootDirectory.toString() : null;
+        this.objectKeyPrefix = null;
+    }
+
+    /**
+     * Returns the path of the given file relative to the root directory, as it is stored in its {@link LocalRecord}.
+     */
+    public String getRelativePath(Path path) {
+        String pathString = path.toString();
+        int start = getRelativePathStart();
+        if (pathString.length() > start && pathString.startsWith(rootDirectoryString)
+                && (start == rootDirectoryString.length() || pathString.charAt(start - 1) == File.separatorChar)) {
+            return pathString.substring(start);
+        }
+        // the path is not spelled the way the root is, e.g. it is the root itself
+        return getRootDirectory().relativize(path).toString();
+    }
+
+    /**
+     * Returns the offset in the {@link String} form of the paths below the root directory at which their relative
+     * path starts.
+     */
+    public int getRelativePathStart() {
+        // a root such as '/' or 'C:\' already ends with a separator
+        return rootDirectoryString.endsWith(File.separator) ? rootDirectoryString.length() : rootDirectoryString.length() + 1;
+    }
+
+    /**
+     * Returns the object key of the given file: the name of the root directory and the relative path of the file,
+     * separated by '/'. The file 'F:\cloud-sync\folder1\subfolder1\file.txt' of the backup of 'F:\cloud-sync\folder1'
+     * has the key 'folder1/subfolder1/file.txt'.
+     */
+    public String getObjectKey(Path path) {
+        return getObjectKeyPrefix() + getRelativePath(path).replace('\\', '/');
+    }
+
+    public String getObjectKeyPrefix() {
+        if (objectKeyPrefix == null) {
+            Path name = getRootDirectory().getFileName();
+            objectKeyPrefix = name != null ? name.toString().replace('\\', '/') + '/' : "";
+        }
+        return objectKeyPrefix;
     }
 
     public boolean addRecord(LocalRecord record) {
@@ -1,55 +1,101 @@
 package com.dazito.cloudsync.engine.model;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Setter;
 
 import javax.persistence.*;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Optional;
 
 @Entity
 @Data
-@Table(name = "record")
+@Access(AccessType.FIELD)
+@Table(name = "record", indexes = @Index(columnList = "packId"))
 public class LocalRecord implements Comparable {
 
+    private static final String RECORD_ID_GENERATOR = "record_id";
+
+    // ids are handed out from a table in blocks, so new records can be inserted in JDBC batches - an identity column
+    // has the database assign the id of every record on its own insert
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @TableGenerator(name = RECORD_ID_GENERATOR, table = "id_sequence", pkColumnName = "name", valueColumnName = "next_id",
+            pkColumnValue = "record", allocationSize = 1000)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = RECORD_ID_GENERATOR)
     private Long id;
 
     @ManyToOne
     private Backup backup;
 
-    private String filePath;
+    // the path of the file relative to the backup root, kept as the directory, which is shared by all of its records,
+    // and the file name - they are stored together in the filePath column, see getRelativePath()
+    @Transient
+    @Setter(AccessLevel.NONE)
+    private RecordDirectory directory;
+    @Transient
+    @Setter(AccessLevel.NONE)
+    private String fileName;
+
     private long lastModifiedTime;
     private long size;
 
+    // hex encoded SHA-256 of the content that was uploaded, null for records from before it was recorded
+    @Column(length = 64)
+    private String contentHash;
+
+    // the pack holding the content of a small file, and where in the unencrypted pack it is - null if the file was
+    // uploaded as an object of its own
+    @Column(length = 36)
+    private String packId;
+    private long packOffset;
+    private long packLength;
+
     protected LocalRecord() { }
 
     public static Optional<LocalRecord> create(Backup backup, Path p) {
         try {
-            LocalRecord localRecord = new LocalRecord();
-            configure(localRecord, backup, p);
-            return Optional.of(localRecord);
+            return Optional.of(create(backup, p, Files.readAttributes(p, BasicFileAttributes.class)));
         } catch (IOException e) {
             e.printStackTrace();
             return Optional.empty();
         }
     }
 
+    /**
+     * Creates the record of a file as it was when the given attributes were read, e.g. right before it was hashed.
+     */
+    public static LocalRecord create(Backup backup, Path p, BasicFileAttributes attributes) {
+        LocalRecord localRecord = new LocalRecord();
+        localRecord.update(backup, p, attributes);
+        return localRecord;
+    }
+
     public void update(Backup backup, Path path) {
         try {
-            configure(this, backup, path);
+            update(backup, path, Files.readAttributes(path, BasicFileAttributes.class));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Same as {@link #update(Backup, Path)}, but recording the attributes the file had when they were read.
+     */
+    public void update(Backup backup, Path path, BasicFileAttributes attributes) {
+        this.backup = backup;
+        setRelativePath(backup.getRelativePath(path));
+        this.lastModifiedTime = attributes.lastModifiedTime().toMillis();
+        this.size = attributes.size();
+    }
+
     public boolean matches(Path path) {
         try {
             return path != null &&
-                    path.toString().equals(filePath) &&
+                    backup.getRelativePath(path).contentEquals(relativePath()) &&
                     Files.getLastModifiedTime(path).toMillis() == lastModifiedTime &&
                     Files.size(path) == size;
         } catch (IOException e) {
@@ -58,19 +104,50 @@ public class LocalRecord implements Comparable {
         }
     }
 
-    private static void configure(LocalRecord localRecord, Backup backup, Path path) throws IOException {
-        localRecord.backup = backup;
-        localRecord.filePath = path.toString();
-        localRecord.lastModifiedTime = Files.getLastModifiedTime(path).toMillis();
-        localRecord.size = Files.size(path);
+    /**
+     * Same as {@link #matches(Path)}, but using attributes that have already been read, e.g. during a directory walk.
+     */
+    public boolean matches(BasicFileAttributes attributes) {
+        return attributes != null &&
+                attributes.lastModifiedTime().toMillis() == lastModifiedTime &&
+                attributes.size() == size;
+    }
+
+    /**
+     * Points the record at the content of its file in a pack, or at an object of its own if the pack id is null.
+     */
+    public void setPack(String packId, long offset, long length) {
+        this.packId = packId;
+        this.packOffset = offset;
+        this.packLength = length;
+    }
+
+    @Access(AccessType.PROPERTY)
+    @Column(name = "FILEPATH")
+    public String getRelativePath() {
+        return directory.resolve(fileName);
+    }
+
+    protected void setRelativePath(String relativePath) {
+        int separator = relativePath.lastIndexOf(File.separatorChar);
+        this.directory = separator < 0 ? RecordDirectory.ROOT : RecordDirectory.of(relativePath.substring(0, separator));
+        this.fileName = relativePath.substring(separator + 1);
+    }
+
+    /**
+     * Returns the relative path as a view of the directory and the file name, for comparing or hashing it without
+     * building the string that {@link #getRelativePath()} does.
+     */
+    public CharSequence relativePath() {
+        return directory.view(fileName);
     }
 
     public Path getPath() {
-        return Paths.get(filePath);
+        return backup.getRootDirectory().resolve(getRelativePath());
     }
 
     @Override
     public int compareTo(Object o) {
-        return filePath.compareTo(((LocalRecord)o).filePath);
+        return CharSequence.compare(relativePath(), ((LocalRecord)o).relativePath());
     }
 }
@@ -0,0 +1,34 @@
+package com.dazito.cloudsync.engine.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/**
+ * An object in the cloud store that holds the content of many small files back to back. The records of the packed
+ * files point into it with their pack id, offset and length.
+ */
+@Entity
+@Data
+@Table(name = "pack")
+public class Pack {
+
+    // random, so that it is known before the pack is uploaded
+    @Id
+    @Column(length = 36)
+    private String id;
+
+    @ManyToOne
+    private Backup backup;
+
+    // size of the unencrypted pack in bytes, including the entries that have been superseded since
+    private long size;
+
+    protected Pack() { }
+
+    public Pack(String id, Backup backup, long size) {
+        this.id = id;
+        this.backup = backup;
+        this.size = size;
+    }
+}
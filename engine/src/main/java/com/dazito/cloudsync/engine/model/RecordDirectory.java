@@ -0,0 +1,138 @@
+package com.dazito.cloudsync.engine.model;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A directory that {@link LocalRecord}s are in, relative to the root of their backup. Directories are interned, so
+ * the records of a directory all share one instance instead of each holding the full path of their file.
+ *
+ * <p>The table holds its directories weakly: a directory is dropped once no record refers to it anymore. It is a
+ * concurrent map, as records are loaded on several threads at once and every one of them looks up its directory.
+ */
+public final class RecordDirectory {
+
+    public static final RecordDirectory ROOT = new RecordDirectory("");
+
+    private static final ConcurrentMap<String, Entry> TABLE = new ConcurrentHashMap<>();
+
+    // the entries of the directories that have been collected, to be removed from the table
+    private static final ReferenceQueue<RecordDirectory> COLLECTED = new ReferenceQueue<>();
+
+    // the path relative to the backup root with the separators of the platform, empty for the root itself
+    private final String path;
+
+    private RecordDirectory(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns the shared instance of the given relative directory path.
+     */
+    public static RecordDirectory of(String path) {
+        if (path.isEmpty()) {
+            return ROOT;
+        }
+        Entry entry = TABLE.get(path);
+        RecordDirectory directory = entry != null ? entry.get() : null;
+        if (directory != null) {
+            return directory;
+        }
+
+        removeCollected();
+        RecordDirectory[] result = new RecordDirectory[1];
+        TABLE.compute(path, (key, existing) -> {
+            // another thread may have put the directory in the meantime
+            result[0] = existing != null ? existing.get() : null;
+            if (result[0] != null) {
+                return existing;
+            }
+            // keyed by the directory's own string, so the table doesn't hold a second copy of it
+            result[0] = new RecordDirectory(key);
+            return new Entry(result[0]);
+        });
+        return result[0];
+    }
+
+    private static void removeCollected() {
+        Reference<? extends RecordDirectory> collected;
+        while ((collected = COLLECTED.poll()) != null) {
+            Entry entry = (Entry) collected;
+            TABLE.remove(entry.path, entry);
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the relative path of the file of the given name in this directory.
+     */
+    public String resolve(String fileName) {
+        return path.isEmpty() ? fileName : path + File.separatorChar + fileName;
+    }
+
+    /**
+     * Returns the relative path of the file of the given name in this directory as a view of the two, rather than as
+     * a string of its own.
+     */
+    public CharSequence view(String fileName) {
+        return new FilePath(path, fileName);
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    private static final class FilePath implements CharSequence {
+        private final String directory;
+        private final String fileName;
+        // where the file name starts, after the directory and its separator
+        private final int nameStart;
+
+        FilePath(String directory, String fileName) {
+            this.directory = directory;
+            this.fileName = fileName;
+            this.nameStart = directory.isEmpty() ? 0 : directory.length() + 1;
+        }
+
+        @Override
+        public int length() {
+            return nameStart + fileName.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index >= nameStart) {
+                return fileName.charAt(index - nameStart);
+            }
+            return index < directory.length() ? directory.charAt(index) : File.separatorChar;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return nameStart == 0 ? fileName : directory + File.separatorChar + fileName;
+        }
+    }
+
+    private static final class Entry extends WeakReference<RecordDirectory> {
+        // the key of the entry, which the directory itself can't be asked for anymore once it has been collected
+        private final String path;
+
+        Entry(RecordDirectory directory) {
+            super(directory, COLLECTED);
+            this.path = directory.path;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.dazito.cloudsync.engine.pack;
+
+import com.dazito.cloudsync.engine.db.DataStore;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.model.LocalRecord;
+import com.dazito.cloudsync.engine.model.Pack;
+import com.dazito.cloudsync.engine.util.Task;
+import com.dazito.cloudsync.engine.util.TaskQueue;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reclaims the space of pack entries that have been superseded or deleted. Once no record refers to a pack anymore,
+ * its object is deleted. A pack whose live entries take up less than the compaction threshold is rewritten: its live
+ * entries are packed again, from the local files rather than by downloading the pack, which leaves the old pack
+ * without references, so it is deleted by a later run.
+ */
+@Slf4j
+@Singleton
+public class PackCompactor {
+
+    private final DataStore dataStore;
+    private final SmallFilePacker packer;
+    private final TaskQueue taskQueue;
+    private final double threshold;
+    private final long intervalMinutes;
+
+    private final ScheduledExecutorService compactionThread = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pack-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    public PackCompactor(DataStore dataStore, SmallFilePacker packer, TaskQueue taskQueue, Config config) {
+        this.dataStore = dataStore;
+        this.packer = packer;
+        this.taskQueue = taskQueue;
+        this.threshold = config.getPackCompactionThreshold();
+        this.intervalMinutes = config.getPackCompactionIntervalMinutes();
+    }
+
+    /**
+     * Compacts the packs of the given backups periodically, on a background thread.
+     */
+    public void start(List<Backup> backups) {
+        compactionThread.scheduleWithFixedDelay(() -> backups.forEach(backup -> {
+            try {
+                compact(backup);
+            } catch (RuntimeException e) {
+                log.error("Compaction of the packs of backup ::{}:: failed", backup.getBackupName(), e);
+            }
+        }), intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /*
+     * The packs are listed before their live bytes are summed up. The row of a pack is only written after the records
+     * of its files, so the records of every listed pack are counted, while packs written in between are not listed.
+     */
+    private void compact(Backup backup) {
+        List<Pack> packs = dataStore.getPacks(backup);
+        Map<String, Long> liveBytes = dataStore.getPackLiveBytes(backup);
+        int deleted = 0;
+        int rewritten = 0;
+        for (Pack pack : packs) {
+            long live = liveBytes.getOrDefault(pack.getId(), 0L);
+            if (live == 0) {
+                taskQueue.send(Task.create(Task.Type.DELETE_FILE, backup, packer.getPackPath(backup, pack.getId()), () -> {
+                    dataStore.deletePack(pack);
+                }));
+                deleted++;
+            } else if (live < pack.getSize() * threshold) {
+                rewrite(backup, pack);
+                rewritten++;
+            }
+        }
+        if (deleted > 0 || rewritten > 0) {
+            log.info("Compacted the packs of backup ::{}::: {} deleted, {} rewritten", backup.getBackupName(), deleted, rewritten);
+        }
+    }
+
+    private void rewrite(Backup backup, Pack pack) {
+        List<LocalRecord> records;
+        try (Stream<LocalRecord> packed = dataStore.getPackedRecords(pack)) {
+            records = packed.collect(Collectors.toList());
+        }
+        for (LocalRecord record : records) {
+            // files that have changed or gone away since are taken care of by their own events
+            if (Files.isRegularFile(record.getPath()) && record.matches(record.getPath())) {
+                packer.add(backup, record.getPath(), record.getContentHash(), record);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.dazito.cloudsync.engine.pack;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.model.LocalRecord;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Packs small files of a backup back to back into pack objects of several MB, so that they cost one upload request
+ * per pack instead of one per file. Every file's record keeps the pack id, offset and length of its content, so a
+ * single file can still be restored with a ranged read of its pack.
+ *
+ * <p>A pack is sealed once it has reached the pack size, or once the pack delay has passed since its first file, and
+ * is then handed over to be uploaded. The content of a file is read when it is added, so that the offsets and the
+ * uploaded content match even if the file changes in the meantime - such a change is picked up by its own event.
+ */
+@Slf4j
+@Singleton
+public class SmallFilePacker {
+
+    // the directory below a backup's root whose paths the pack objects are stored under
+    private static final String PACK_DIRECTORY = ".cloudsync-packs";
+
+    private final boolean enabled;
+    private final int threshold;
+    private final int packSize;
+    private final long delayMillis;
+
+    // sealed packs that are held in memory until their upload has ended - packing waits once all are taken
+    private final Semaphore inFlight;
+
+    // the pack that is being filled for each backup, keyed by backup id, guarded by this
+    private final Map<Long, OpenPack> open = new HashMap<>();
+
+    private final ScheduledExecutorService sealThread = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pack-sealer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Consumer<SealedPack> onSealed;
+
+    /**
+     * A file in a pack.
+     */
+    @Getter
+    public static final class Entry {
+        private final Path path;
+        // the file's existing record, null for a new file
+        private final LocalRecord record;
+        private final String contentHash;
+        private final long lastModifiedTime;
+        private final long offset;
+        private final int length;
+
+        private Entry(Path path, LocalRecord record, String contentHash, long lastModifiedTime, long offset, int length) {
+            this.path = path;
+            this.record = record;
+            this.contentHash = contentHash;
+            this.lastModifiedTime = lastModifiedTime;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A pack that is complete and ready to be uploaded.
+     */
+    @Getter
+    public final class SealedPack {
+        private final String id;
+        private final Backup backup;
+        private final Path path;
+        private final ByteBuffer data;
+        private final List<Entry> entries;
+        @Getter(AccessLevel.NONE)
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private SealedPack(String id, Backup backup, Path path, ByteBuffer data, List<Entry> entries) {
+            this.id = id;
+            this.backup = backup;
+            this.path = path;
+            this.data = data;
+            this.entries = entries;
+        }
+
+        public List<Path> getPaths() {
+            return entries.stream().map(Entry::getPath).collect(Collectors.toList());
+        }
+
+        /**
+         * Tells the packer that the upload of this pack has ended, whether it succeeded or not, so that it no longer
+         * counts against the packs in flight.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                inFlight.release();
+            }
+        }
+    }
+
+    // hands out its buffer instead of copying it, as the pack is not written to anymore once it is sealed
+    private static final class PackBuffer extends ByteArrayOutputStream {
+        PackBuffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final class OpenPack {
+        private final String id = UUID.randomUUID().toString();
+        private final Backup backup;
+        private final PackBuffer content;
+        // by path, so that a file that is added again replaces its earlier entry
+        private final Map<Path, Entry> entries = new LinkedHashMap<>();
+
+        OpenPack(Backup backup) {
+            this.backup = backup;
+            this.content = new PackBuffer(packSize + threshold);
+        }
+
+        void add(Path path, LocalRecord record, String contentHash, long lastModifiedTime, byte[] bytes) {
+            // the bytes of a replaced entry stay in the pack, unreferenced
+            entries.put(path, new Entry(path, record, contentHash, lastModifiedTime, content.size(), bytes.length));
+            content.write(bytes, 0, bytes.length);
+        }
+
+        SealedPack seal() {
+            return new SealedPack(id, backup, getPackPath(backup, id), content.toByteBuffer(),
+                    new ArrayList<>(entries.values()));
+        }
+    }
+
+    @Inject
+    public SmallFilePacker(Config config) {
+        this.enabled = config.isPackingEnabled();
+        this.threshold = config.getPackThreshold();
+        this.packSize = config.getPackSize();
+        this.delayMillis = config.getPackDelayMillis();
+        this.inFlight = new Semaphore(config.getPacksInFlight());
+    }
+
+    /**
+     * Starts packing, handing sealed packs over to the given callback. Packs that are sealed by the pack delay are
+     * handed over on a background thread. The callback must {@link SealedPack#release() release} each pack once its
+     * upload has ended, and is not called while the most packs that may be in flight are.
+     */
+    public void start(Consumer<SealedPack> onSealed) {
+        this.onSealed = onSealed;
+        if (enabled) {
+            log.info("Packing files smaller than {} bytes into packs of {} bytes", threshold, packSize);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds a file to the pack that is being filled for its backup, if it is small enough to be packed. Returns false
+     * if it is not, in which case it has to be uploaded as an object of its own.
+     *
+     * @param record the file's existing record, null for a new file
+     */
+    public boolean add(Backup backup, Path path, String contentHash, LocalRecord record) {
+        if (!enabled) {
+            return false;
+        }
+
+        BasicFileAttributes attributes;
+        byte[] bytes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile() || attributes.size() >= threshold) {
+                return false;
+            }
+            bytes = Files.readAllBytes(path);
+        } catch (IOException e) {
+            log.debug("Unable to read {} into a pack: {}", path, e.getMessage());
+            return false;
+        }
+        if (bytes.length >= threshold) {
+            return false;
+        }
+
+        SealedPack full = null;
+        synchronized (this) {
+            OpenPack pack = open.get(backup.getId());
+            if (pack == null) {
+                OpenPack created = new OpenPack(backup);
+                open.put(backup.getId(), created);
+                sealThread.schedule(() -> sealIfOpen(created), delayMillis, TimeUnit.MILLISECONDS);
+                pack = created;
+            }
+            pack.add(path, record, contentHash, attributes.lastModifiedTime().toMillis(), bytes);
+            if (pack.content.size() >= packSize) {
+                open.remove(backup.getId());
+                full = pack.seal();
+            }
+        }
+        if (full != null) {
+            handOver(full);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the path whose object key a pack is stored under. No file exists at this path.
+     */
+    public Path getPackPath(Backup backup, String packId) {
+        return backup.getRootDirectory().resolve(PACK_DIRECTORY).resolve(packId + ".pack");
+    }
+
+    /**
+     * Removes the packs that are still being filled, e.g. on shutdown, and returns the paths of their files, so that
+     * they are not lost.
+     */
+    public synchronized Map<Backup, List<Path>> drainPending() {
+        Map<Backup, List<Path>> paths = new HashMap<>();
+        for (OpenPack pack : open.values()) {
+            paths.put(pack.backup, new ArrayList<>(pack.entries.keySet()));
+        }
+        open.clear();
+        return paths;
+    }
+
+    private void sealIfOpen(OpenPack pack) {
+        SealedPack sealed;
+        synchronized (this) {
+            // a pack that filled up has already been sealed
+            if (!open.remove(pack.backup.getId(), pack)) {
+                return;
+            }
+            sealed = pack.seal();
+        }
+        handOver(sealed);
+    }
+
+    // waits for a pack in flight to be released if there are too many, which in turn holds up hashing and packing
+    private void handOver(SealedPack pack) {
+        inFlight.acquireUninterruptibly();
+        onSealed.accept(pack);
+    }
+}
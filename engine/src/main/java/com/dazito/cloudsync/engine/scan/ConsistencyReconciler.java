@@ -0,0 +1,118 @@
+package com.dazito.cloudsync.engine.scan;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.model.LocalRecord;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Iterator;
+
+/**
+ * Reconciles the local database against the file system with a merge-join. Both inputs must be ordered by the
+ * {@link String} form of the file path - records as returned by
+ * {@link com.dazito.cloudsync.engine.db.DataStore#getBackupRecords}, files as returned by {@link FileScanner}. Every
+ * record and every file is looked at exactly once, and no additional queries or stat calls are made.
+ *
+ * <p>Records hold the path relative to the backup root, files the full path. As all of the full paths start with the
+ * root, they are ordered the same way as the relative paths, and are compared from where the relative path starts.
+ */
+public final class ConsistencyReconciler {
+
+    /**
+     * Receives the decisions made while reconciling.
+     */
+    public interface Listener {
+
+        // the file exists on the file system, but we have no record of it
+        void onNewFile(ScannedFile file);
+
+        // the file exists and we have a record of it, but size or last modified time differ
+        void onChangedFile(LocalRecord record, ScannedFile file);
+
+        // we have a record of the file, but it no longer exists on the file system
+        void onMissingFile(LocalRecord record);
+    }
+
+    @Getter
+    @ToString
+    public static class Result {
+        private long newFiles;
+        private long changedFiles;
+        private long missingFiles;
+        private long unchangedFiles;
+    }
+
+    private ConsistencyReconciler() { }
+
+    public static Result reconcile(Backup backup, Iterator<LocalRecord> records, Iterator<ScannedFile> files, Listener listener) {
+        Result result = new Result();
+        int relativeStart = backup.getRelativePathStart();
+
+        LocalRecord record = next(records);
+        ScannedFile file = next(files);
+
+        while (record != null || file != null) {
+            int cmp = file == null ? 1 : record == null ? -1 : compare(file.getSortKey(), relativeStart, record.relativePath());
+            if (cmp <= 0 && file.isUnreadable()) {
+                // we can't tell what happened below this directory, so leave all of its records alone
+                String prefix = relativize(file.getSortKey(), relativeStart);
+                while (record != null && startsWith(record.relativePath(), prefix)) {
+                    record = next(records);
+                }
+                file = next(files);
+            } else if (cmp < 0) {
+                listener.onNewFile(file);
+                result.newFiles++;
+                file = next(files);
+            } else if (cmp > 0) {
+                listener.onMissingFile(record);
+                result.missingFiles++;
+                record = next(records);
+            } else {
+                if (record.matches(file.getAttributes())) {
+                    result.unchangedFiles++;
+                } else {
+                    listener.onChangedFile(record, file);
+                    result.changedFiles++;
+                }
+                record = next(records);
+                file = next(files);
+            }
+        }
+        return result;
+    }
+
+    // compares the part of the sort key from the given offset on with the relative path, as String.compareTo does
+    private static int compare(String sortKey, int offset, CharSequence relativePath) {
+        int length = Math.min(sortKey.length() - offset, relativePath.length());
+        for (int i = 0; i < length; i++) {
+            char a = sortKey.charAt(offset + i);
+            char b = relativePath.charAt(i);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return (sortKey.length() - offset) - relativePath.length();
+    }
+
+    private static boolean startsWith(CharSequence relativePath, String prefix) {
+        if (relativePath.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (relativePath.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the sort key of an unreadable backup root is the root itself followed by a separator
+    private static String relativize(String sortKey, int offset) {
+        return sortKey.length() > offset ? sortKey.substring(offset) : "";
+    }
+
+    private static <T> T next(Iterator<T> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
@@ -0,0 +1,89 @@
+package com.dazito.cloudsync.engine.scan;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps track of directories whose file system events may have been lost, e.g. because the kernel event queue
+ * overflowed, and has them rescanned. Rescans are rate limited: dirty directories are collected and rescanned
+ * together at most once per interval, and a directory whose parent is dirty as well is only rescanned as part of
+ * its parent. A storm of overflows therefore results in one rescan of the affected sub trees per interval, rather
+ * than in one scan per overflow.
+ */
+@Slf4j
+@Singleton
+public class DirtyDirectoryTracker {
+
+    private final long rescanIntervalMillis;
+
+    private final Map<Path, Backup> dirty = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService rescanThread = Executors.newSingleThreadScheduledExecutor();
+
+    private BiConsumer<Backup, Path> rescan;
+
+    @Inject
+    public DirtyDirectoryTracker(Config config) {
+        this.rescanIntervalMillis = config.getOverflowRescanIntervalMillis();
+    }
+
+    /**
+     * Starts rescanning dirty directories with the given callback, which is run on a single background thread.
+     */
+    public void start(BiConsumer<Backup, Path> rescan) {
+        this.rescan = rescan;
+        rescanThread.scheduleWithFixedDelay(this::rescanDirty, rescanIntervalMillis, rescanIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void markDirty(Backup backup, Path directory) {
+        if (dirty.putIfAbsent(directory, backup) == null) {
+            log.debug("Marked {} as dirty, it will be rescanned within {} ms", directory, rescanIntervalMillis);
+        }
+    }
+
+    public boolean hasDirtyDirectories() {
+        return !dirty.isEmpty();
+    }
+
+    private void rescanDirty() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        Set<Path> directories = new HashSet<>(dirty.keySet());
+        for (Path directory : directories) {
+            Backup backup = dirty.remove(directory);
+            if (backup == null || hasDirtyAncestor(directory, directories)) {
+                continue;
+            }
+
+            log.info("Rescanning {} of backup ::{}:: because file system events were lost", directory, backup.getBackupName());
+            try {
+                rescan.accept(backup, directory);
+            } catch (RuntimeException e) {
+                log.error("Rescan of {} failed", directory, e);
+            }
+        }
+    }
+
+    private static boolean hasDirtyAncestor(Path directory, Set<Path> directories) {
+        for (Path parent = directory.getParent(); parent != null; parent = parent.getParent()) {
+            if (directories.contains(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
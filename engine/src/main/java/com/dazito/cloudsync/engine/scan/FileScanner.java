@@ -0,0 +1,251 @@
+package com.dazito.cloudsync.engine.scan;
+
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * Walks directory trees and returns every regular file in them, ordered by the {@link String} form of its path. This
+ * is the same order the {@link com.dazito.cloudsync.engine.db.DataStore} returns records in, which is what allows the
+ * {@link ConsistencyReconciler} to merge the two in a single pass.
+ *
+ * <p>Sorting siblings by name alone is not enough: for the entries {@code a/} (a directory) and {@code a-c} the full
+ * paths {@code root/a-c} sorts before {@code root/a/x}, because {@code '-'} comes before {@code '/'}. Siblings are
+ * therefore sorted by name, with a trailing separator appended to directory names.
+ *
+ * <p>Walks run on a work-stealing {@link ForkJoinPool}: every directory is listed by its own task, and the stat calls
+ * of large directories are split into chunks that other workers can steal. A listing starts the listings of its sub
+ * directories ahead of the walk, up to a number of directories per walk, so that the workers have more than the
+ * current directory to work on. Fast storage only reaches full throughput with many outstanding requests, but too
+ * many requests against a single disk just queue up in the kernel, so the number of concurrent I/O operations is
+ * limited per device, which every directory is looked up on, shared by all walks.
+ */
+@Slf4j
+@Singleton
+public class FileScanner {
+
+    static final Comparator<Entry> SIBLING_ORDER = Comparator.comparing(entry -> entry.sortName);
+
+    // directories with more children than this have their stat calls split into chunks of this size
+    private static final int STAT_CHUNK_SIZE = 256;
+    // listings of a walk that are started ahead of it, besides those of the sub directories of the current directory
+    private static final int MAX_PREFETCHED_DIRECTORIES = 256;
+
+    private final ForkJoinPool pool;
+    private final int concurrencyPerDevice;
+    // by device id, or by file store where there are no device ids
+    private final Map<Object, Semaphore> deviceLimits = new ConcurrentHashMap<>();
+
+    @Inject
+    public FileScanner(Config config) {
+        this.pool = new ForkJoinPool(config.getScanParallelism());
+        this.concurrencyPerDevice = config.getScanConcurrencyPerDevice();
+    }
+
+    /**
+     * Returns the walk of the given root. The walk is streamed: the root is listed once the result is iterated, and
+     * sub directories are listed in the background once the iteration enters their parent. Only the directories
+     * along the path of the iteration and the listings of their sub directories are held in memory, never the whole
+     * tree.
+     */
+    public ScanResult scan(Path root) {
+        Semaphore rootLimit = deviceLimitFor(root, null);
+        Semaphore prefetched = new Semaphore(MAX_PREFETCHED_DIRECTORIES);
+        return new ScanResult(root, dir -> pool.submit(new DirectoryTask(this, dir, rootLimit, prefetched)), prefetched);
+    }
+
+    /*
+     * Returns the limit of the device the directory is on. Where there are no device ids, sub trees that are mounted
+     * from another device share the limit of the backup root.
+     */
+    private Semaphore deviceLimitFor(Path dir, Semaphore rootLimit) {
+        Object device;
+        try {
+            try {
+                device = Files.getAttribute(dir, "unix:dev", NOFOLLOW_LINKS);
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                if (rootLimit != null) {
+                    return rootLimit;
+                }
+                device = Files.getFileStore(dir);
+            }
+        } catch (IOException e) {
+            log.debug("Unable to determine the device of {}: {}", dir, e.getMessage());
+            return rootLimit != null ? rootLimit : new Semaphore(concurrencyPerDevice);
+        }
+        return deviceLimits.computeIfAbsent(device, d -> {
+            log.debug("Limiting scans of device {} to {} concurrent operations", d, concurrencyPerDevice);
+            return new Semaphore(concurrencyPerDevice);
+        });
+    }
+
+    static final class Entry {
+        final Path path;
+        final BasicFileAttributes attributes;
+        final String sortName;
+
+        Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+            String name = path.getFileName().toString();
+            this.sortName = attributes.isDirectory() ? name + File.separator : name;
+        }
+    }
+
+    /*
+     * Lists a single directory and reads the attributes of every child exactly once. The result holds the
+     * ScannedFiles of the directory and its sub directories, in walk order. Sub directories are listed by tasks of
+     * their own: as long as the walk has permits left, the task forks them right away and holds them as Prefetched,
+     * otherwise it holds their paths, and the ScanResult starts them as its consumer walks into their parent.
+     *
+     * Tasks are never serialized, so their fields are transient.
+     */
+    private static final class DirectoryTask extends RecursiveTask<List<Object>> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileScanner scanner;
+        private final transient Path dir;
+        private final transient Semaphore rootLimit;
+        private final transient Semaphore prefetched;
+
+        DirectoryTask(FileScanner scanner, Path dir, Semaphore rootLimit, Semaphore prefetched) {
+            this.scanner = scanner;
+            this.dir = dir;
+            this.rootLimit = rootLimit;
+            this.prefetched = prefetched;
+        }
+
+        @Override
+        protected List<Object> compute() {
+            Semaphore deviceLimit = scanner.deviceLimitFor(dir, rootLimit);
+            Path[] children;
+            try {
+                children = list(deviceLimit);
+            } catch (IOException e) {
+                log.warn("Unable to list directory {}, its contents will not be reconciled: {}", dir, e.getMessage());
+                List<Object> unreadable = new ArrayList<>(1);
+                unreadable.add(ScannedFile.unreadableDirectory(dir));
+                return unreadable;
+            }
+
+            Entry[] entries = new Entry[children.length];
+            if (children.length > STAT_CHUNK_SIZE) {
+                List<StatTask> chunks = new ArrayList<>();
+                for (int from = 0; from < children.length; from += STAT_CHUNK_SIZE) {
+                    chunks.add(new StatTask(children, entries, from, Math.min(from + STAT_CHUNK_SIZE, children.length), deviceLimit));
+                }
+                invokeAll(chunks);
+            } else {
+                new StatTask(children, entries, 0, children.length, deviceLimit).compute();
+            }
+
+            Entry[] sorted = Arrays.stream(entries).filter(Objects::nonNull).sorted(SIBLING_ORDER).toArray(Entry[]::new);
+
+            List<Object> items = new ArrayList<>(sorted.length);
+            for (Entry entry : sorted) {
+                if (entry.attributes.isDirectory() && prefetched.tryAcquire()) {
+                    items.add(new ScanResult.Prefetched(new DirectoryTask(scanner, entry.path, rootLimit, prefetched).fork()));
+                } else if (entry.attributes.isDirectory()) {
+                    items.add(entry.path);
+                } else if (entry.attributes.isRegularFile()) {
+                    items.add(ScannedFile.file(entry.path, entry.attributes));
+                }
+            }
+            return items;
+        }
+
+        private Path[] list(Semaphore deviceLimit) throws IOException {
+            acquire(deviceLimit);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                List<Path> children = new ArrayList<>();
+                stream.forEach(children::add);
+                return children.toArray(new Path[0]);
+            } finally {
+                deviceLimit.release();
+            }
+        }
+    }
+
+    private static final class StatTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path[] children;
+        private final transient Entry[] entries;
+        private final int from;
+        private final int to;
+        private final transient Semaphore deviceLimit;
+
+        StatTask(Path[] children, Entry[] entries, int from, int to, Semaphore deviceLimit) {
+            this.children = children;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.deviceLimit = deviceLimit;
+        }
+
+        @Override
+        protected void compute() {
+            acquire(deviceLimit);
+            try {
+                for (int i = from; i < to; i++) {
+                    try {
+                        entries[i] = new Entry(children[i], Files.readAttributes(children[i], BasicFileAttributes.class, NOFOLLOW_LINKS));
+                    } catch (IOException e) {
+                        // the file vanished between listing and stat - it will be picked up by the watcher instead
+                        log.debug("Unable to read attributes of {}: {}", children[i], e.getMessage());
+                    }
+                }
+            } finally {
+                deviceLimit.release();
+            }
+        }
+    }
+
+    /*
+     * Waiting for a device permit blocks the worker, so let the pool know - it can then start a spare thread to work
+     * on directories of other devices in the meantime.
+     */
+    private static void acquire(Semaphore deviceLimit) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean acquired;
+
+                @Override public boolean block() throws InterruptedException {
+                    if (!acquired) {
+                        deviceLimit.acquire();
+                        acquired = true;
+                    }
+                    return true;
+                }
+
+                @Override public boolean isReleasable() {
+                    return acquired || (acquired = deviceLimit.tryAcquire());
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to scan", e);
+        }
+    }
+}
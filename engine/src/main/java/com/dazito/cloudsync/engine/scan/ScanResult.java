@@ -0,0 +1,110 @@
+package com.dazito.cloudsync.engine.scan;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * The path ordered, streamed result of a {@link FileScanner} walk. Each iteration walks the tree anew.
+ */
+public class ScanResult implements Iterable<ScannedFile> {
+
+    @Getter
+    private final Path root;
+
+    // starts listing a directory, which yields its ScannedFiles and its sub directories in walk order, the latter as
+    // their paths or as Prefetched
+    private final Function<Path, ForkJoinTask<List<Object>>> lister;
+    // the permits of the listings that are started ahead of the walk, returned as the walk gets to them
+    private final Semaphore prefetched;
+
+    ScanResult(Path root, Function<Path, ForkJoinTask<List<Object>>> lister, Semaphore prefetched) {
+        this.root = root;
+        this.lister = lister;
+        this.prefetched = prefetched;
+    }
+
+    @Override
+    public Iterator<ScannedFile> iterator() {
+        return new Iterator<ScannedFile>() {
+            private final Deque<Level> stack = new ArrayDeque<>();
+            private ScannedFile next;
+
+            {
+                stack.push(new Level(lister.apply(root).join()));
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !stack.isEmpty()) {
+                    Level top = stack.peek();
+                    if (!top.items.hasNext()) {
+                        stack.pop();
+                        continue;
+                    }
+
+                    Object item = top.items.next();
+                    if (item instanceof ScannedFile) {
+                        next = (ScannedFile) item;
+                    } else {
+                        List<Object> listing = top.subDirectories.remove().join();
+                        if (item instanceof Prefetched) {
+                            prefetched.release();
+                        }
+                        stack.push(new Level(listing));
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public ScannedFile next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ScannedFile result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /*
+     * A sub directory whose listing was started by the listing of its parent, ahead of the walk.
+     */
+    static final class Prefetched {
+        private final ForkJoinTask<List<Object>> listing;
+
+        Prefetched(ForkJoinTask<List<Object>> listing) {
+            this.listing = listing;
+        }
+    }
+
+    /*
+     * A directory the iteration has walked into. The listings of all of its sub directories that were not prefetched
+     * are started right away, so that they are ready, or at least under way, by the time the iteration gets to them.
+     */
+    private final class Level {
+        private final Iterator<Object> items;
+        private final Deque<ForkJoinTask<List<Object>>> subDirectories = new ArrayDeque<>();
+
+        Level(List<Object> listing) {
+            for (Object item : listing) {
+                if (item instanceof Path) {
+                    subDirectories.add(lister.apply((Path) item));
+                } else if (item instanceof Prefetched) {
+                    subDirectories.add(((Prefetched) item).listing);
+                }
+            }
+            this.items = listing.iterator();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.dazito.cloudsync.engine.scan;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A single entry produced by a {@link FileScanner} walk. The attributes are the ones captured while walking the tree,
+ * so consumers never need to stat the file a second time.
+ */
+@Getter
+@ToString(of = "path")
+public class ScannedFile {
+
+    private final Path path;
+    private final BasicFileAttributes attributes;
+
+    // a directory that could not be listed - everything below it must be treated as unknown, not as deleted
+    private final boolean unreadable;
+
+    // the key this entry is ordered by, see FileScanner for why directories get a trailing separator
+    private final String sortKey;
+
+    private ScannedFile(Path path, BasicFileAttributes attributes, boolean unreadable) {
+        this.path = path;
+        this.attributes = attributes;
+        this.unreadable = unreadable;
+        this.sortKey = unreadable ? path.toString() + File.separator : path.toString();
+    }
+
+    static ScannedFile file(Path path, BasicFileAttributes attributes) {
+        return new ScannedFile(path, attributes, false);
+    }
+
+    static ScannedFile unreadableDirectory(Path path) {
+        return new ScannedFile(path, null, true);
+    }
+}
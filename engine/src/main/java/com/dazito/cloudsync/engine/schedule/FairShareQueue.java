@@ -0,0 +1,330 @@
+package com.dazito.cloudsync.engine.schedule;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * The work queue of an executor created by the {@link TaskScheduler}. Fast lane jobs are taken first, in order. The
+ * other jobs are queued in one lane per backup, and the lanes take turns by deficit round-robin: every turn a lane is
+ * granted its weight times the quantum in bytes, and runs jobs for as long as their cost is covered. Within a lane,
+ * interactive jobs go before bulk ones, and smaller ones before larger ones - but a job is only overtaken by jobs that
+ * are queued after it for as long as its size takes at the aging rate, so that a large file isn't starved by a steady
+ * stream of small ones.
+ *
+ * <p>Jobs are only taken while fewer jobs than the admission limit are running, so that they wait here, in order,
+ * rather than in the governor. A rise of the limit is noticed by the waiting threads within the recheck interval.
+ */
+class FairShareQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    // bytes a lane of weight 1 is granted per turn
+    private static final long QUANTUM = 1024 * 1024;
+
+    // a job can be overtaken by smaller jobs queued after it for its size divided by this rate, in bytes per second
+    private static final long AGING_BYTES_PER_SECOND = 4 * 1024 * 1024;
+
+    private static final long ADMISSION_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final Comparator<Job> LANE_ORDER = Comparator
+            .comparing((Job job) -> job.schedulingClass)
+            .thenComparingLong(job -> job.rank)
+            .thenComparingLong(job -> job.sequence);
+
+    private final TaskScheduler scheduler;
+    private final IntSupplier admissionLimit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // all guarded by lock
+    private final ArrayDeque<Job> fast = new ArrayDeque<>();
+    private final Map<Long, Lane> lanes = new HashMap<>();
+    // the lanes with queued jobs, the first one has the turn
+    private final ArrayDeque<Lane> active = new ArrayDeque<>();
+    private int count;
+    // jobs taken from the queue that have not ended yet
+    private int running;
+
+    private static final class Lane {
+        private final long key;
+        private final long quantum;
+        private final PriorityQueue<Job> jobs = new PriorityQueue<>(LANE_ORDER);
+        // bytes granted but not used yet
+        private long deficit;
+
+        Lane(long key, int weight) {
+            this.key = key;
+            this.quantum = QUANTUM * weight;
+        }
+    }
+
+    FairShareQueue(TaskScheduler scheduler, IntSupplier admissionLimit) {
+        this.scheduler = scheduler;
+        this.admissionLimit = admissionLimit;
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        Job job = scheduler.wrap(runnable);
+        lock.lock();
+        try {
+            job.queuedNanos = System.nanoTime();
+            // the time by which the job goes before any job queued later, however small
+            job.rank = job.queuedNanos + job.size * TimeUnit.SECONDS.toNanos(1) / AGING_BYTES_PER_SECOND;
+            if (job.schedulingClass == TaskScheduler.SchedulingClass.FAST) {
+                fast.add(job);
+            } else {
+                long key = job.backup != null ? job.backup.getId() : 0;
+                Lane lane = lanes.get(key);
+                if (lane == null) {
+                    lane = new Lane(key, scheduler.getWeight(job.backup));
+                    lanes.put(key, lane);
+                    active.addLast(lane);
+                }
+                lane.jobs.add(job);
+            }
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable runnable) {
+        offer(runnable);
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+        return offer(runnable);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return isAdmitting() ? admit(dequeue()) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0 || !isAdmitting()) {
+                if (count == 0) {
+                    notEmpty.await();
+                } else {
+                    notEmpty.awaitNanos(ADMISSION_RECHECK_NANOS);
+                }
+            }
+            return admit(dequeue());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0 || !isAdmitting()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                long waited = count == 0 ? nanos : Math.min(nanos, ADMISSION_RECHECK_NANOS);
+                nanos -= waited - notEmpty.awaitNanos(waited);
+            }
+            return admit(dequeue());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Called by a job that was taken from this queue once it has ended, which makes room for the next one.
+     */
+    void ended() {
+        lock.lock();
+        try {
+            running--;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isAdmitting() {
+        return running < admissionLimit.getAsInt();
+    }
+
+    // the wait is recorded here rather than in dequeue(), so that it includes the wait for the admission
+    private Job admit(Job job) {
+        if (job != null) {
+            running++;
+            job.admittedBy = this;
+            scheduler.recordWait(job.schedulingClass, System.nanoTime() - job.queuedNanos);
+        }
+        return job;
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            if (!fast.isEmpty()) {
+                return fast.peek();
+            }
+            return active.isEmpty() ? null : active.peekFirst().jobs.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            if (fast.remove(o)) {
+                count--;
+                return true;
+            }
+            for (Lane lane : active) {
+                if (lane.jobs.remove(o)) {
+                    count--;
+                    if (lane.jobs.isEmpty()) {
+                        retire(lane);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Job job;
+            while (drained < maxElements && (job = dequeue()) != null) {
+                c.add(job);
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the queued jobs, in no particular order.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(fast);
+            for (Lane lane : active) {
+                snapshot.addAll(lane.jobs);
+            }
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Job dequeue() {
+        Job job = fast.poll();
+        if (job == null && !active.isEmpty()) {
+            job = dequeueFairShare();
+        }
+        if (job != null) {
+            count--;
+        }
+        return job;
+    }
+
+    private Job dequeueFairShare() {
+        skipIdleTurns();
+        while (true) {
+            Lane lane = active.peekFirst();
+            Job head = lane.jobs.peek();
+            if (head.cost <= lane.deficit) {
+                lane.jobs.poll();
+                lane.deficit -= head.cost;
+                if (lane.jobs.isEmpty()) {
+                    retire(lane);
+                }
+                return head;
+            }
+            // the lane has used up its turn
+            active.pollFirst();
+            lane.deficit += lane.quantum;
+            active.addLast(lane);
+        }
+    }
+
+    /*
+     * Large jobs would take many turns before their lane is granted enough, so the turns in which no lane could run
+     * its next job are granted all at once.
+     */
+    private void skipIdleTurns() {
+        long turns = Long.MAX_VALUE;
+        for (Lane lane : active) {
+            long missing = lane.jobs.peek().cost - lane.deficit;
+            turns = Math.min(turns, missing <= 0 ? 0 : (missing + lane.quantum - 1) / lane.quantum);
+        }
+        if (turns > 1) {
+            for (Lane lane : active) {
+                lane.deficit += (turns - 1) * lane.quantum;
+            }
+        }
+    }
+
+    private void retire(Lane lane) {
+        // an idle lane doesn't keep its unused share
+        active.remove(lane);
+        lanes.remove(lane.key);
+    }
+}
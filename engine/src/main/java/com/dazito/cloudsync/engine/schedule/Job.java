@@ -0,0 +1,48 @@
+package com.dazito.cloudsync.engine.schedule;
+
+import com.dazito.cloudsync.engine.model.Backup;
+
+/**
+ * A job of a cloud store, with what the {@link TaskScheduler} orders it by.
+ */
+final class Job implements Runnable {
+
+    // jobs cost at least this many bytes, so that requests without content still use up a backup's share
+    private static final long MIN_COST = 64 * 1024;
+
+    final TaskScheduler.SchedulingClass schedulingClass;
+    // null for jobs that aren't tied to a backup
+    final Backup backup;
+    final long size;
+    final long cost;
+    // breaks ties in the order jobs were created
+    final long sequence;
+    private final Runnable work;
+
+    // set when the job is queued
+    long queuedNanos;
+    // orders the job within its class, see FairShareQueue
+    long rank;
+    // the queue that admitted the job to run, told once it has ended
+    FairShareQueue admittedBy;
+
+    Job(TaskScheduler.SchedulingClass schedulingClass, Backup backup, long size, long sequence, Runnable work) {
+        this.schedulingClass = schedulingClass;
+        this.backup = backup;
+        this.size = size;
+        this.cost = Math.max(size, MIN_COST);
+        this.sequence = sequence;
+        this.work = work;
+    }
+
+    @Override
+    public void run() {
+        try {
+            work.run();
+        } finally {
+            if (admittedBy != null) {
+                admittedBy.ended();
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.dazito.cloudsync.engine.schedule;
+
+import com.dazito.cloudsync.engine.metrics.Histogram;
+import com.dazito.cloudsync.engine.metrics.Metrics;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.util.Threads;
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Decides the order in which the cloud stores run their jobs, instead of first come, first served. Deletes and moves
+ * go on a fast lane ahead of everything else. Uploads are shared out across backups by weighted round-robin on their
+ * bytes, so that the seed of a large backup doesn't hold up the changes of the others, and within a backup small and
+ * recently modified files go first.
+ *
+ * <p>A store runs its jobs on an executor created by {@link #newExecutor}, wrapping each one with {@link #job} or
+ * {@link #uploadJob}, or runs them on the executor returned by {@link #fastLane}. Runnables that aren't wrapped are
+ * queued as bulk jobs not tied to a backup.
+ *
+ * <p>The executor only starts as many jobs as the store's governor currently allows requests in flight. The other
+ * jobs stay queued, in order, rather than being started by a thread only to wait for a request slot in no order at
+ * all - and the queue wait of a job includes its wait for a slot.
+ */
+@Slf4j
+@Singleton
+public class TaskScheduler {
+
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    // number of recent queue waits per class the percentiles are computed from
+    private static final int WAIT_SAMPLES = 1024;
+
+    public enum SchedulingClass {
+        // deletes and moves, which are cheap and make the cloud store reflect the local changes quickly
+        FAST,
+        // small and recently modified files
+        INTERACTIVE,
+        // everything else, e.g. the initial upload of a backup
+        BULK
+    }
+
+    private final Config config;
+    private final Metrics metrics;
+    private final Threads threads;
+    private final long interactiveFileSize;
+    private final long interactiveAgeMillis;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Long, Integer> weights = new ConcurrentHashMap<>();
+    private final Map<SchedulingClass, WaitTimes> waitTimes = new EnumMap<>(SchedulingClass.class);
+    private final Map<SchedulingClass, Histogram> waitHistograms = new EnumMap<>(SchedulingClass.class);
+    private final List<FairShareQueue> queues = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService reportThread = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "task-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean started;
+
+    /**
+     * The most recent queue waits of a class, in nanoseconds.
+     */
+    private static final class WaitTimes {
+        private final long[] samples = new long[WAIT_SAMPLES];
+        private int count;
+
+        synchronized void add(long waitNanos) {
+            samples[count++ % WAIT_SAMPLES] = waitNanos;
+        }
+
+        synchronized long percentile(double percentile) {
+            int size = Math.min(count, WAIT_SAMPLES);
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * size);
+            return sorted[Math.min(size, Math.max(rank, 1)) - 1];
+        }
+    }
+
+    @Inject
+    public TaskScheduler(Config config, Metrics metrics, Threads threads) {
+        this.config = config;
+        this.metrics = metrics;
+        this.threads = threads;
+        this.interactiveFileSize = config.getInteractiveFileSize();
+        this.interactiveAgeMillis = config.getInteractiveAgeMillis();
+        for (SchedulingClass schedulingClass : SchedulingClass.values()) {
+            waitTimes.put(schedulingClass, new WaitTimes());
+            waitHistograms.put(schedulingClass, metrics.histogram("cloudsync_scheduler_queue_wait_seconds",
+                    "Time jobs waited to be run by the cloud store", Histogram.LATENCY_SECONDS,
+                    "class", schedulingClass.name().toLowerCase()));
+        }
+    }
+
+    /**
+     * Exports the number of queued jobs and starts reporting the queue waits, once the scheduler is constructed. Does
+     * nothing if it has been started already.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        metrics.gauge("cloudsync_scheduler_queued_jobs", "Jobs of the cloud stores waiting to be run", this::getQueuedJobs);
+        reportThread.scheduleAtFixedRate(this::report, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates an executor that runs jobs in the order of this scheduler, never more at once than the given admission
+     * limit currently allows, e.g. the concurrency limit of the store's governor, and never more than the given
+     * maximum.
+     */
+    public ExecutorService newExecutor(String name, int limit, IntSupplier admissionLimit) {
+        FairShareQueue queue = new FairShareQueue(this, admissionLimit);
+        queues.add(queue);
+        return threads.newExecutor(name, limit, false, queue);
+    }
+
+    /**
+     * Returns an executor that runs everything on the fast lane of the given executor, e.g. delete batches.
+     */
+    public Executor fastLane(Executor executor) {
+        return work -> executor.execute(job(SchedulingClass.FAST, null, 0, work));
+    }
+
+    /**
+     * Wraps a job of the given class, which uploads the given number of bytes for the given backup.
+     */
+    public Runnable job(SchedulingClass schedulingClass, Backup backup, long size, Runnable work) {
+        return new Job(schedulingClass, backup, size, sequence.incrementAndGet(), work);
+    }
+
+    /**
+     * Wraps the upload of the given file, classifying it by its size and modification time.
+     */
+    public Runnable uploadJob(Backup backup, Path path, Runnable work) {
+        long size = 0;
+        SchedulingClass schedulingClass = SchedulingClass.BULK;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            size = attributes.size();
+            if (size <= interactiveFileSize
+                    || attributes.lastModifiedTime().toMillis() >= System.currentTimeMillis() - interactiveAgeMillis) {
+                schedulingClass = SchedulingClass.INTERACTIVE;
+            }
+        } catch (IOException e) {
+            // gone or unreadable, the upload itself will fail quickly
+            schedulingClass = SchedulingClass.INTERACTIVE;
+        }
+        return job(schedulingClass, backup, size, work);
+    }
+
+    /**
+     * The number of jobs waiting to be run.
+     */
+    public int getQueuedJobs() {
+        return queues.stream().mapToInt(FairShareQueue::size).sum();
+    }
+
+    /**
+     * The given percentile, e.g. 99, of the time the recent jobs of a class waited to be run, in milliseconds.
+     */
+    public long getQueueWaitMillis(SchedulingClass schedulingClass, double percentile) {
+        return TimeUnit.NANOSECONDS.toMillis(waitTimes.get(schedulingClass).percentile(percentile));
+    }
+
+    Job wrap(Runnable work) {
+        return work instanceof Job ? (Job) work : new Job(SchedulingClass.BULK, null, 0, sequence.incrementAndGet(), work);
+    }
+
+    int getWeight(Backup backup) {
+        if (backup == null) {
+            return 1;
+        }
+        return weights.computeIfAbsent(backup.getId(), id -> config.getBackupConfig(backup)
+                .map(Config.BackupConfig::getPriority)
+                .orElse(1));
+    }
+
+    void recordWait(SchedulingClass schedulingClass, long waitNanos) {
+        waitTimes.get(schedulingClass).add(waitNanos);
+        waitHistograms.get(schedulingClass).observeNanos(waitNanos);
+    }
+
+    private void report() {
+        int queued = getQueuedJobs();
+        if (queued > 0) {
+            StringBuilder waits = new StringBuilder();
+            for (SchedulingClass schedulingClass : SchedulingClass.values()) {
+                waits.append(", ").append(schedulingClass.name().toLowerCase())
+                        .append(' ').append(getQueueWaitMillis(schedulingClass, 50))
+                        .append('/').append(getQueueWaitMillis(schedulingClass, 99)).append(" ms");
+            }
+            log.info("{} jobs queued, queue wait p50/p99{}", queued, waits);
+        }
+    }
+}
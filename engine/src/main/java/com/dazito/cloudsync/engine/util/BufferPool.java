@@ -0,0 +1,54 @@
+package com.dazito.cloudsync.engine.util;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Buffers that are reused from one job to the next. A buffer per thread would be allocated for every job when jobs
+ * run on virtual threads, as these are never reused.
+ *
+ * <p>At most the given number of buffers exist at once, whatever the number of jobs: a job that needs a buffer while
+ * all of them are in use waits for one to be released. The number is set apart from the number of jobs that may run
+ * at once, so that raising the concurrency, e.g. into the thousands on virtual threads, doesn't raise the memory used
+ * for buffers with it.
+ */
+public final class BufferPool {
+
+    private final boolean direct;
+
+    // most recently released first, so that the buffers in use stay warm
+    private final ConcurrentLinkedDeque<ByteBuffer> pool = new ConcurrentLinkedDeque<>();
+    // the buffers that may still be handed out
+    private final Semaphore available;
+
+    public BufferPool(int maxBuffers, boolean direct) {
+        this.direct = direct;
+        this.available = new Semaphore(maxBuffers);
+    }
+
+    /**
+     * Returns a cleared buffer with the given length as its limit, waiting for one to be released if all of them are
+     * in use. Every buffer that is acquired must be released.
+     */
+    public ByteBuffer acquire(int length) throws InterruptedIOException {
+        try {
+            available.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+        ByteBuffer buffer = pool.pollFirst();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        pool.offerFirst(buffer);
+        available.release();
+    }
+}
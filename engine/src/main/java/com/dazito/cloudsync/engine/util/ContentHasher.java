@@ -0,0 +1,113 @@
+package com.dazito.cloudsync.engine.util;
+
+import com.dazito.cloudsync.engine.util.config.Config;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Computes SHA-256 hashes of file contents on a pool of threads, so that several files are hashed at the same time.
+ * Every file is read through a single large buffer, which is reused for the files hashed after it.
+ */
+@Slf4j
+@Singleton
+public class ContentHasher {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ExecutorService hashExecutor;
+
+    // one buffer and digest per file that is hashed at once
+    private final BufferPool buffers;
+    private final ObjectPool<MessageDigest> digests;
+
+    @Inject
+    public ContentHasher(Config config) {
+        this.buffers = new BufferPool(config.getHashThreads(), false);
+        this.digests = new ObjectPool<>(config.getHashThreads(), () -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.hashExecutor = Executors.newFixedThreadPool(config.getHashThreads(), r -> {
+            Thread thread = new Thread(r, "content-hasher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 hash of the file's content. Fails with an {@link UncheckedIOException} if the
+     * file can't be read.
+     */
+    public CompletableFuture<String> hash(Path path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return hashNow(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, hashExecutor);
+    }
+
+    /**
+     * Waits for the files that are queued to be hashed, e.g. on shutdown, so their tasks are not lost. Returns false
+     * if it gave up waiting, in which case the files still queued are never hashed and the caller has to record them.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        if (!Threads.stop(hashExecutor, timeout, unit)) {
+            log.warn("Gave up waiting for files to be hashed");
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isShutdown() {
+        return hashExecutor.isShutdown();
+    }
+
+    private String hashNow(Path path) throws IOException {
+        MessageDigest digest = digests.acquire();
+        ByteBuffer buffer = buffers.acquire(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            digest.reset();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+            return toHex(digest.digest());
+        } finally {
+            buffers.release(buffer);
+            digests.release(digest);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
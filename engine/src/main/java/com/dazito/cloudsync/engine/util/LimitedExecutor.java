@@ -0,0 +1,134 @@
+package com.dazito.cloudsync.engine.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs every job on a thread of its own, e.g. a virtual thread, with at most a given number of jobs running at once.
+ * Jobs beyond that wait in the queue, and are taken from it in its order as running jobs finish.
+ *
+ * <p>A job is started by whoever finds both a queued job and a free permit: the caller that queued it, or the job
+ * that just finished. As both publish before they check for the other, no job is left waiting while a permit is
+ * free.
+ */
+class LimitedExecutor extends AbstractExecutorService {
+
+    private final BlockingQueue<Runnable> queue;
+    private final int limit;
+    private final Semaphore permits;
+    private final ThreadFactory threadFactory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition terminated = lock.newCondition();
+    private volatile boolean shutdown;
+
+    LimitedExecutor(BlockingQueue<Runnable> queue, int limit, ThreadFactory threadFactory) {
+        this.queue = queue;
+        this.limit = limit;
+        this.permits = new Semaphore(limit);
+        this.threadFactory = threadFactory;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        queue.offer(command);
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (!queue.isEmpty() && permits.tryAcquire()) {
+            Runnable job = queue.poll();
+            if (job == null) {
+                // taken by another dispatch in the meantime, which carries on with the rest, or held back by a queue
+                // that admits no more jobs right now, which is dispatched again once a running job finishes
+                permits.release();
+                break;
+            }
+            threadFactory.newThread(() -> run(job)).start();
+        }
+    }
+
+    private void run(Runnable job) {
+        try {
+            job.run();
+        } finally {
+            permits.release();
+            dispatch();
+            if (shutdown && isTerminated()) {
+                signalTerminated();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting jobs. The queued jobs are still run.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        if (isTerminated()) {
+            signalTerminated();
+        }
+    }
+
+    /**
+     * Stops accepting jobs and returns the ones that are queued. Running jobs are not interrupted.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> queued = new ArrayList<>();
+        queue.drainTo(queued);
+        if (isTerminated()) {
+            signalTerminated();
+        }
+        return queued;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && queue.isEmpty() && permits.availablePermits() == limit;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!isTerminated()) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalTerminated() {
+        lock.lock();
+        try {
+            terminated.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.dazito.cloudsync.engine.util;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Objects that are expensive to create, e.g. a {@link javax.crypto.Cipher} or a {@link java.security.MessageDigest},
+ * reused from one job to the next. Like the buffers of a {@link BufferPool}, they are not kept per thread, as virtual
+ * threads are never reused. Up to the given number of objects are kept; objects released beyond that are left to the
+ * garbage collector.
+ */
+public final class ObjectPool<T> {
+
+    private final int maxPooled;
+    private final Supplier<T> factory;
+
+    // most recently released first
+    private final ConcurrentLinkedDeque<T> pool = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public ObjectPool(int maxPooled, Supplier<T> factory) {
+        this.maxPooled = maxPooled;
+        this.factory = factory;
+    }
+
+    /**
+     * Returns a pooled object, or a new one if there is none. The caller resets it before use if it needs to.
+     */
+    public T acquire() {
+        T object = pool.pollFirst();
+        if (object == null) {
+            return factory.get();
+        }
+        pooled.decrementAndGet();
+        return object;
+    }
+
+    public void release(T object) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            pool.offerFirst(object);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
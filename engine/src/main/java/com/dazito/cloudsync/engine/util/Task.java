@@ -1,9 +1,12 @@
 package com.dazito.cloudsync.engine.util;
 
+import com.dazito.cloudsync.engine.cloud.Transfer;
 import com.dazito.cloudsync.engine.model.Backup;
 import lombok.Getter;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.List;
 
 @Getter
 public class Task {
@@ -11,31 +14,97 @@ public class Task {
     public enum Type {
         UPLOAD_FILE,
         REPLACE_FILE,
-        DELETE_FILE
+        DELETE_FILE,
+        MOVE_FILE,
+        UPLOAD_PACK
     }
 
     public enum Status {
         QUEUED,
         IN_PROGRESS,
-        COMPLETE
+        COMPLETE,
+        CANCELLED,
+        FAILED
     }
 
     public static Task create(Type type, Backup backup, Path p, Runnable r) {
+        return create(type, backup, p, null, r);
+    }
+
+    public static Task create(Type type, Backup backup, Path p, String contentHash, Runnable r) {
         Task t = new Task();
         t.type = type;
         t.backup = backup;
         t.path = p;
+        t.contentHash = contentHash;
         t.runnable = r;
         return t;
     }
 
+    public static Task createMove(Backup backup, Path source, Path target, String contentHash, Runnable r) {
+        Task t = create(Type.MOVE_FILE, backup, target, contentHash, r);
+        t.sourcePath = source;
+        return t;
+    }
+
+    public static Task createPack(Backup backup, Path packPath, ByteBuffer data, List<Path> packedPaths, Runnable r) {
+        Task t = create(Type.UPLOAD_PACK, backup, packPath, null, r);
+        t.packData = data;
+        t.packedPaths = packedPaths;
+        return t;
+    }
+
     private Type type;
     private Backup backup;
     private Path path;
     private Runnable runnable;
 
-    // TODO update the task status as it occurs, in an observable way
-    private Status status = Status.QUEUED;
+    // SHA-256 of the file's content as it was hashed before the upload, null for deletes
+    private String contentHash;
+
+    // assigned by the TaskQueue, identifies the task in the TaskJournal
+    private long id;
+
+    // the path a moved file was moved from, the path being where it was moved to
+    private Path sourcePath;
+
+    // the content of a pack of small files and the files in it, the path being the pack's own path
+    private ByteBuffer packData;
+    private List<Path> packedPaths;
+
+    // the handle of the task's job, set by the cloud store that took the task
+    private Transfer transfer;
 
     private Task() { }
+
+    public void setTransfer(Transfer transfer) {
+        this.transfer = transfer;
+    }
+
+    /**
+     * Returns the status of the task as it is now, following the job of the store that took it.
+     */
+    public Status getStatus() {
+        return transfer == null ? Status.QUEUED : transfer.getStatus();
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    // cancels the task's job, returns false if it has completed already or no store took the task
+    boolean cancel() {
+        return transfer != null && transfer.cancel();
+    }
+
+    // runs the given runnable after the task's own success runnable
+    void andThen(Runnable after) {
+        Runnable onSuccess = runnable;
+        runnable = () -> {
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            after.run();
+        };
+    }
 }
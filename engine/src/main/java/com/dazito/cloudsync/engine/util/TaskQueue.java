@@ -1,12 +1,26 @@
 package com.dazito.cloudsync.engine.util;
 
 import com.dazito.cloudsync.engine.cloud.CloudStore;
+import com.dazito.cloudsync.engine.cloud.Transfer;
+import com.dazito.cloudsync.engine.journal.TaskJournal;
+import com.dazito.cloudsync.engine.metrics.Metrics;
 import io.reactivex.Observable;
 import io.reactivex.subjects.PublishSubject;
 import io.reactivex.subjects.Subject;
 import com.dazito.cloudsync.engine.BackupEngine;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Rather than have the {@link BackupEngine} push directly into the
@@ -17,10 +31,168 @@ import javax.inject.Singleton;
 @Singleton
 public class TaskQueue {
 
+    // an upload that has been running for longer than this has got too far to be thrown away for a newer change of
+    // its file, which is uploaded once this one is done instead
+    private static final long MAX_CANCELLED_RUNNING_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    // the running uploads of a file that may be cancelled in a row, so that a file that is written continuously still
+    // gets uploaded now and then
+    private static final int MAX_CONSECUTIVE_CANCELLATIONS = 3;
+
+    // tasks are emitted under the lock of the queue, so that a subscriber sees one at a time
     private final Subject<Task> bus = PublishSubject.create();
 
+    // records every task until it has completed, so that it can be resumed after a restart
+    private final TaskJournal journal;
+
+    // tasks that have been sent and not completed yet, by type - the map itself is never modified
+    private final Map<Task.Type, LongAdder> depth = new EnumMap<>(Task.Type.class);
+
+    // uploads of files that have been sent and not completed yet, by path, so that a newer change of a file can cancel
+    // the upload of its previous version - guarded by the lock of the queue, as are the two maps below
+    private final Map<Path, Task> uploads = new HashMap<>();
+
+    // uploads that wait for the upload of the same file in flight to end before they are sent, by path
+    private final Map<Path, Task> waiting = new HashMap<>();
+
+    // the running uploads of a file that have been cancelled since one last completed, by path
+    private final Map<Path, Integer> cancellations = new HashMap<>();
+
+    // the journal ids of cancelled uploads, by path - their intents stay open until the task of the newer change of
+    // the file has been journaled, so that the change is resumed after a crash in between
+    private final Map<Path, List<Long>> superseded = new ConcurrentHashMap<>();
+
+    @Inject
+    public TaskQueue(TaskJournal journal, Metrics metrics) {
+        this.journal = journal;
+        for (Task.Type type : Task.Type.values()) {
+            LongAdder pending = new LongAdder();
+            depth.put(type, pending);
+            metrics.gauge("cloudsync_task_queue_depth", "Tasks sent to the cloud store that have not completed yet",
+                    pending::sum, "type", type.name());
+        }
+    }
+
     public void send(Task task) {
-        bus.onNext(task);
+        long id = journal.logIntent(task);
+        task.setId(id);
+        closeSuperseded(task);
+        LongAdder pending = depth.get(task.getType());
+        pending.increment();
+        task.andThen(() -> {
+            journal.logCompletion(id);
+            pending.decrement();
+        });
+        boolean upload = task.getType() == Task.Type.UPLOAD_FILE || task.getType() == Task.Type.REPLACE_FILE;
+        if (upload) {
+            task.andThen(() -> uploaded(task));
+        }
+        synchronized (this) {
+            if (upload && !sendsNow(task)) {
+                return;
+            }
+            bus.onNext(task);
+        }
+    }
+
+    /**
+     * Cancels the upload of the given file that is in flight, if any, as the file has changed again and the change
+     * will be sent as a task of its own. An upload that has been running for a while, or after too many cancelled
+     * uploads of the file, is left to finish. Returns whether an upload was cancelled.
+     */
+    public synchronized boolean cancelUpload(Path path) {
+        if (waiting.containsKey(path)) {
+            // the upload in flight was left to finish already, and the one that waits for it is replaced by the newer
+            return false;
+        }
+        Task task = uploads.get(path);
+        if (task == null || task.getTransfer() == null || !cancelSuperseded(task)) {
+            return false;
+        }
+        uploads.remove(path);
+        return true;
+    }
+
+    // records the given upload, and returns whether it is to be sent right away rather than after the upload of the
+    // same file that is in flight, so that the newer content is the one that ends up in the cloud
+    private boolean sendsNow(Task task) {
+        Path path = task.getPath();
+        Task queued = waiting.put(path, task);
+        if (queued != null) {
+            // the upload that was waiting hasn't been sent, and this one waits in its place
+            supersede(queued);
+            closeSuperseded(task);
+            return false;
+        }
+        Task previous = uploads.get(path);
+        if (previous != null && previous.getTransfer() != null && !cancelSuperseded(previous)) {
+            previous.getTransfer().whenDone(() -> sendWaiting(path));
+            return false;
+        }
+        // this task has been journaled already, so a cancelled one can be closed right away
+        closeSuperseded(task);
+        waiting.remove(path);
+        uploads.put(path, task);
+        return true;
+    }
+
+    // sends the upload that waited for the one of the same file in flight, which has ended now
+    private synchronized void sendWaiting(Path path) {
+        Task task = waiting.remove(path);
+        if (task != null) {
+            uploads.put(path, task);
+            bus.onNext(task);
+        }
+    }
+
+    private synchronized void uploaded(Task task) {
+        uploads.remove(task.getPath(), task);
+        cancellations.remove(task.getPath());
+    }
+
+    // cancels an upload that a newer change of its file makes obsolete, unless it has got too far: an upload that
+    // hasn't started is always cancelled, one that runs only shortly after it started and so many times in a row
+    private boolean cancelSuperseded(Task task) {
+        Transfer transfer = task.getTransfer();
+        boolean running = transfer.getStatus() == Task.Status.IN_PROGRESS;
+        if (running && (transfer.getRunningNanos() > MAX_CANCELLED_RUNNING_NANOS
+                || cancellations.getOrDefault(task.getPath(), 0) >= MAX_CONSECUTIVE_CANCELLATIONS)) {
+            return false;
+        }
+        if (!task.cancel()) {
+            return false;
+        }
+        supersede(task);
+        if (running) {
+            cancellations.merge(task.getPath(), 1, Integer::sum);
+        }
+        return true;
+    }
+
+    // a superseded task never completes, it is replaced by the task of the newer change
+    private void supersede(Task task) {
+        superseded.computeIfAbsent(task.getPath(), path -> new CopyOnWriteArrayList<>()).add(task.getId());
+        depth.get(task.getType()).decrement();
+    }
+
+    // the intents of the cancelled uploads of the files the given, journaled task covers are complete now
+    private void closeSuperseded(Task task) {
+        List<Path> paths = task.getType() == Task.Type.UPLOAD_PACK ? task.getPackedPaths()
+                : Collections.singletonList(task.getPath());
+        for (Path path : paths) {
+            List<Long> ids = superseded.remove(path);
+            if (ids != null) {
+                ids.forEach(journal::logCompletion);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tasks of the given type that have been sent and not completed yet, including failed
+     * tasks, which are only retried after a restart.
+     */
+    public long getDepth(Task.Type type) {
+        return depth.get(type).sum();
     }
 
     public Observable<Task> toObserverable() {
@@ -0,0 +1,104 @@
+package com.dazito.cloudsync.engine.util;
+
+import com.dazito.cloudsync.engine.util.config.Config;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads that blocking work runs on: cloud store requests, local database writes and the handling of
+ * file system events. These are platform threads, or virtual threads if {@code virtualThreads} is set.
+ *
+ * <p>With virtual threads, an executor starts a thread per job and limits the number of jobs running at once with a
+ * semaphore instead of the size of a pool, see {@link LimitedExecutor}. A job blocked on the network then costs a
+ * few KB of heap rather than a platform thread, so the limits can be raised into the thousands.
+ */
+@Singleton
+public class Threads {
+
+    private final boolean virtual;
+
+    @Inject
+    public Threads(Config config) {
+        this.virtual = config.isVirtualThreads();
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Returns a factory of threads named after the given name and a number. Virtual threads are always daemon
+     * threads.
+     */
+    public ThreadFactory newThreadFactory(String name, boolean daemon) {
+        if (virtual) {
+            return Thread.ofVirtual().name(name + "-", 1).factory();
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(daemon);
+            return thread;
+        };
+    }
+
+    /**
+     * Creates an executor that runs at most the given number of jobs at once.
+     */
+    public ExecutorService newExecutor(String name, int limit, boolean daemon) {
+        return newExecutor(name, limit, daemon, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Same as {@link #newExecutor(String, int, boolean)}, with the jobs waiting in the given queue and run in its
+     * order.
+     */
+    public ExecutorService newExecutor(String name, int limit, boolean daemon, BlockingQueue<Runnable> queue) {
+        ThreadFactory threadFactory = newThreadFactory(name, daemon);
+        if (virtual) {
+            return new LimitedExecutor(queue, limit, threadFactory);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(limit, limit, 0, TimeUnit.MILLISECONDS, queue, threadFactory);
+        // otherwise the first jobs would go to new threads directly, without passing the queue
+        executor.prestartAllCoreThreads();
+        return executor;
+    }
+
+    /**
+     * Shuts the executor down and waits up to the given time for its jobs to end, the queued ones included. If they
+     * don't, the queued jobs are dropped and the running ones interrupted. Returns whether all jobs ended in time.
+     */
+    public static boolean stop(ExecutorService executor, long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeout, unit)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        return false;
+    }
+
+    /**
+     * Returns the scheduler that observers doing blocking work should observe on.
+     */
+    public Scheduler newScheduler(String name) {
+        if (virtual) {
+            return Schedulers.from(Executors.newThreadPerTaskExecutor(newThreadFactory(name, true)));
+        }
+        return Schedulers.computation();
+    }
+}
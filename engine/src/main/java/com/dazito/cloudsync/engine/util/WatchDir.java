@@ -3,13 +3,13 @@ package com.dazito.cloudsync.engine.util;
 import com.dazito.cloudsync.engine.event.BackupEvent;
 import com.dazito.cloudsync.engine.event.CloudSyncRxBus;
 import com.dazito.cloudsync.engine.model.Backup;
-import io.reactivex.Observable;
 import lombok.extern.slf4j.Slf4j;
 
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.nio.file.StandardWatchEventKinds.*;
 
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -19,21 +19,26 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class WatchDir {
 
     private final WatchService watcher;
     private final Map<WatchKey, Path> keys;
+    // the root directory of the backup each watched directory belongs to
+    private final Map<WatchKey, Path> backupRoots;
     private final boolean recursive;
     private final CloudSyncRxBus cloudSyncRxBus;
 
+    // upper bound on the number of events handed over at once, so that a storm is still passed on in chunks
+    private static final int MAX_BATCH_SIZE = 10_000;
+
     private ExecutorService watchService = Executors.newSingleThreadExecutor();
 
     /**
@@ -42,6 +47,7 @@ public class WatchDir {
     public WatchDir(List<Backup> backupList, boolean recursive, CloudSyncRxBus cloudSyncRxBus) throws IOException {
         this.watcher = FileSystems.getDefault().newWatchService();
         this.keys = new HashMap<>();
+        this.backupRoots = new HashMap<>();
         this.recursive = recursive;
         this.cloudSyncRxBus = cloudSyncRxBus;
 
@@ -55,32 +61,33 @@ public class WatchDir {
     }
 
 	/**
-	 * Overload method that will call {@link WatchDir#register(Path)} for each {@link Backup} in the list.
+	 * Overload method that will call {@link WatchDir#register(Path, Path)} for each {@link Backup} in the list.
 	 * @param backupList
 	 * @throws IOException
 	 */
 	private void register(List<Backup> backupList) throws IOException {
     	for(Backup backup : backupList) {
-    		register(backup.getRootDirectory());
+    		register(backup.getRootDirectory(), backup.getRootDirectory());
 		}
 	}
 
     /**
-     * Register the given directory with the WatchService
+     * Register the given directory of the given backup with the WatchService
      */
-    private void register(Path path) throws IOException {
+    private void register(Path path, Path backupRoot) throws IOException {
         WatchKey key = path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
         keys.put(key, path);
+        backupRoots.put(key, backupRoot);
     }
 
 	/**
-	 * Overload method that will call {@link WatchDir#registerAll(Path)} for each {@link Backup} in the list.
+	 * Overload method that will call {@link WatchDir#registerAll(Path, Path)} for each {@link Backup} in the list.
 	 * @param backupList
 	 * @throws IOException
 	 */
 	private void registerAll(final List<Backup>  backupList) throws IOException {
     	for(Backup backup : backupList) {
-    		registerAll(backup.getRootDirectory());
+    		registerAll(backup.getRootDirectory(), backup.getRootDirectory());
 		}
 	}
 
@@ -88,74 +95,139 @@ public class WatchDir {
 	 * Register the given directory, and all its sub-directories, with the
 	 * WatchService.
 	 */
-	private void registerAll(final Path start) throws IOException {
+	private void registerAll(final Path start, final Path backupRoot) throws IOException {
 		// register directory and sub-directories
 		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
 			@Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-				register(dir);
+				register(dir, backupRoot);
 				return FileVisitResult.CONTINUE;
 			}
 		});
 	}
 
+    /**
+     * Stops watching. The watch thread exits once it notices that the WatchService has been closed.
+     */
+    public void close() throws IOException {
+        watcher.close();
+        watchService.shutdown();
+    }
+
+    /*
+     * Runs on the dedicated watch thread: blocks until at least one directory has pending events, then drains every
+     * key that is ready in one go and hands all of their events over as a single batch.
+     */
     private void processEvents() {
 		log.debug("Process events on thread: {}", Thread.currentThread().toString());
 
-		Observable<Long> interval = Observable.interval(1, 3, TimeUnit.SECONDS);
+		while (!Thread.currentThread().isInterrupted()) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				log.debug("Watch service closed, stopping to watch for events");
+				return;
+			}
 
-		interval.subscribe(timeTick -> {
-			log.debug("Got a time tick on thread: {}", Thread.currentThread().toString());
+			List<BackupEvent> batch = new ArrayList<>();
+			// the directories whose events were lost, with the overflow event and their backup's root
+			Map<Path, BackupEvent> overflowed = new HashMap<>();
+			try {
+				do {
+					processKey(key, batch, overflowed);
+				} while (batch.size() + overflowed.size() < MAX_BATCH_SIZE && (key = watcher.poll()) != null);
+				processOverflows(overflowed, batch);
+			} catch (ClosedWatchServiceException e) {
+				return;
+			} finally {
+				// send events over to backup client to handle them appropriately
+				if (!batch.isEmpty()) {
+					cloudSyncRxBus.setBackupEvents(batch);
+				}
+			}
+		}
+	}
 
-			WatchKey key = watcher.poll();
+	/*
+	 * Lets the engine rescan the directories whose events were lost, and makes sure that any sub directory created in
+	 * the meantime is watched from now on. A rescan and a registration cover the whole tree below a directory, so a
+	 * directory below another one that overflowed is left out - otherwise an overflow reported on every key would walk
+	 * every tree once per directory in it.
+	 */
+	private void processOverflows(Map<Path, BackupEvent> overflowed, List<BackupEvent> batch) {
+		for (Map.Entry<Path, BackupEvent> entry : overflowed.entrySet()) {
+			Path dir = entry.getKey();
+			if (hasOverflowedAncestor(dir, overflowed)) {
+				continue;
+			}
+			log.info("Events lost for {}, requesting a rescan", dir);
+			batch.add(entry.getValue());
+			if (recursive) {
+				try {
+					registerAll(dir, entry.getValue().getBackupPath());
+				} catch (IOException x) {
+					log.error("Error while registering all, {}", dir, x);
+				}
+			}
+		}
+	}
 
-			if(key == null) {
-				return;
+	private static boolean hasOverflowedAncestor(Path dir, Map<Path, BackupEvent> overflowed) {
+		for (Path ancestor = dir.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+			if (overflowed.containsKey(ancestor)) {
+				return true;
 			}
+		}
+		return false;
+	}
 
-			Path dir = keys.get(key);
-			if (dir == null) {
-				log.info("Dir is null!");
-				return;
+	private void processKey(WatchKey key, List<BackupEvent> batch, Map<Path, BackupEvent> overflowed) {
+		Path dir = keys.get(key);
+		if (dir == null) {
+			log.info("Dir is null!");
+			key.cancel();
+			return;
+		}
+		Path backupRoot = backupRoots.get(key);
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			WatchEvent.Kind<?> kind = event.kind();
+
+			if (kind == OVERFLOW) {
+				// events of this directory were lost - handled once the batch is complete, as the watch service
+				// may report the overflow on the key of every directory at once
+				overflowed.putIfAbsent(dir, new BackupEvent(event, dir, backupRoot));
+				continue;
 			}
 
-			for (WatchEvent<?> event : key.pollEvents()) {
-				WatchEvent.Kind kind = event.kind();
+			Path name = (Path) event.context();
+			Path fullPath = dir.resolve(name);
 
-				if (kind == OVERFLOW) {
-					log.info("Kind is overflow");
-					continue;
-				}
+			batch.add(new BackupEvent(event, fullPath, backupRoot));
 
-				Path name = (Path) event.context();
-				Path fullPath = dir.resolve(name);
-
-				// send event over to backup client to handle it appropriately
-				cloudSyncRxBus.setBackupEvent(new BackupEvent(event, fullPath, dir));
-
-				// if directory is created, and watching recursively, then
-				// register it and its sub-directories
-				if (recursive && (kind == ENTRY_CREATE)) {
-					try {
-						if (Files.isDirectory(fullPath, NOFOLLOW_LINKS)) {
-							registerAll(fullPath);
-						}
-					} catch (IOException x) {
-						log.error("Error while registering all, {}, x");
-						// ignore to keep sample readable
+			// if directory is created, and watching recursively, then
+			// register it and its sub-directories
+			if (recursive && (kind == ENTRY_CREATE)) {
+				try {
+					if (Files.isDirectory(fullPath, NOFOLLOW_LINKS)) {
+						registerAll(fullPath, backupRoot);
 					}
+				} catch (IOException x) {
+					log.error("Error while registering all, {}", fullPath, x);
 				}
 			}
+		}
 
-			// reset key and remove from set if directory no longer accessible
-			boolean valid = key.reset();
-			if (!valid) {
-				keys.remove(key);
+		// reset key and remove from set if directory no longer accessible
+		boolean valid = key.reset();
+		if (!valid) {
+			keys.remove(key);
+			backupRoots.remove(key);
 
-				// all directories are inaccessible
-				if (keys.isEmpty()) {
-					log.info("keys is empty");
-				}
+			// all directories are inaccessible
+			if (keys.isEmpty()) {
+				log.info("keys is empty");
 			}
-		});
+		}
 	}
-}
\ No newline at end of file
+}
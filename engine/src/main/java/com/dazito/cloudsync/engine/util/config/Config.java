@@ -9,6 +9,7 @@ import com.dazito.cloudsync.engine.BackupEngineModule;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
@@ -43,13 +44,389 @@ public class Config {
     @Getter
     private String awsBucket;
 
+    // The cloud store backups are uploaded to: aws, azure or simulated
+    @InjectConfig
+    private String cloudStore;
+
+    // Directory the simulated cloud store keeps its objects in, objects are kept in memory if not set
+    @InjectConfig
+    @Getter
+    private String simulatedStoreDirectory;
+
+    // Time every request to the simulated cloud store takes before any content is transferred
+    @InjectConfig
+    private Long simulatedLatencyMillis;
+
+    // Random extra time of up to this many milliseconds added to every simulated request
+    @InjectConfig
+    private Long simulatedLatencyJitterMillis;
+
+    // Rate in bytes per second a single simulated request transfers its content at, 0 for no cap
+    @InjectConfig
+    private Long simulatedRequestBandwidth;
+
+    // Rate in bytes per second shared by all simulated requests, 0 for no cap
+    @InjectConfig
+    private Long simulatedBandwidth;
+
+    // Number of concurrent requests above which the simulated cloud store throttles requests, 0 for no limit
+    @InjectConfig
+    private Integer simulatedMaxRequests;
+
+    // Fraction of simulated requests that are throttled regardless of the load
+    @InjectConfig
+    private Double simulatedThrottleRate;
+
+    // Fraction of simulated requests that fail
+    @InjectConfig
+    private Double simulatedFailureRate;
+
+    // Number of threads used to scan the backup directories on startup
+    @InjectConfig
+    private Integer scanParallelism;
+
+    // Maximum number of concurrent directory listings / stat calls against a single storage device
+    @InjectConfig
+    private Integer scanConcurrencyPerDevice;
+
+    // File system events for the same path that arrive within this window are coalesced into one, 0 disables it
+    @InjectConfig
+    private Long eventQuietWindowMillis;
+
+    // Upper bound on how long coalescing may hold back the events of a file that keeps changing
+    @InjectConfig
+    private Long eventMaxDelayMillis;
+
+    // Maximum time a delete waits to be sent to the cloud store together with further deletes
+    @InjectConfig
+    private Long deleteBatchDelayMillis;
+
+    // How long deletes are held back to be paired with the creates of moved files
+    @InjectConfig
+    private Long moveDetectionWindowMillis;
+
+    // Minimum time between two rescans of directories whose events were lost to a watch queue overflow
+    @InjectConfig
+    private Long overflowRescanIntervalMillis;
+
+    // Location of the journal of pending tasks
+    @InjectConfig
+    private String taskJournalPath;
+
+    // Whether to skip the startup consistency check if the task journal shows that the previous run shut down cleanly,
+    // which misses the changes made while the engine was stopped
+    @InjectConfig
+    private Boolean skipScanAfterCleanShutdown;
+
+    // "object" uploads every file as a single object, "chunked" splits files into deduplicated chunks
+    @InjectConfig
+    private String uploadMode;
+
+    // Average chunk size in bytes of the chunked upload mode
+    @InjectConfig
+    private Integer chunkAverageSize;
+
+    // Directory of the local indexes of the chunks that have been uploaded
+    @InjectConfig
+    private String chunkIndexDirectory;
+
+    // Files of at least this many bytes are uploaded in parts
+    @InjectConfig
+    private Long multipartThreshold;
+
+    // Size in bytes of the parts of a file that is uploaded in parts
+    @InjectConfig
+    private Integer multipartPartSize;
+
+    // Maximum number of parts of a single file that are uploaded at the same time
+    @InjectConfig
+    private Integer multipartParallelism;
+
+    // Number of threads uploading parts, shared by all files
+    @InjectConfig
+    private Integer multipartThreads;
+
+    // Number of part buffers that exist at once, which bounds the memory used for parts whatever multipartThreads is
+    @InjectConfig
+    private Integer multipartBuffers;
+
+    // Number of times a failed part is retried before the upload of its file fails
+    @InjectConfig
+    private Integer multipartRetries;
+
+    // File holding the base64 encoded 256 bit key uploads are encrypted with, uploads are not encrypted without it
+    @InjectConfig
+    @Getter
+    private String encryptionKeyFile;
+
+    // Number of threads hashing file contents before they are uploaded
+    @InjectConfig
+    private Integer hashThreads;
+
+    // Whether blocking cloud store requests, local database writes and file system events run on virtual threads
+    @InjectConfig
+    private Boolean virtualThreads;
+
+    // Maximum number of record writes that are committed in one transaction
+    @InjectConfig
+    private Integer recordBatchSize;
+
+    // Maximum time a record write waits for more writes to be committed with
+    @InjectConfig
+    private Long recordBatchDelayMillis;
+
+    // Files smaller than this many bytes are packed together into pack objects, 0 disables packing
+    @InjectConfig
+    private Integer packThreshold;
+
+    // Size in bytes at which a pack is closed and uploaded
+    @InjectConfig
+    private Integer packSize;
+
+    // Maximum time a file waits in a pack that is still being filled
+    @InjectConfig
+    private Long packDelayMillis;
+
+    // Maximum number of sealed packs held in memory until they have been uploaded
+    @InjectConfig
+    private Integer packsInFlight;
+
+    // Packs whose still referenced entries take up less than this fraction of them are rewritten
+    @InjectConfig
+    private Double packCompactionThreshold;
+
+    // Time between two runs of the pack compactor
+    @InjectConfig
+    private Long packCompactionIntervalMinutes;
+
+    // Number of requests to the cloud store in flight at first, adapted to the throughput from there on
+    @InjectConfig
+    private Integer uploadConcurrency;
+
+    // Upper bound of the number of requests to the cloud store in flight
+    @InjectConfig
+    private Integer uploadConcurrencyMax;
+
+    // Cap on the upload rate in bytes per second across all backups, 0 for none
+    @InjectConfig
+    private Long bandwidthLimit;
+
+    // Daily windows with their own upload rate cap, e.g. "08:00-18:00=1000000"
+    @InjectConfig
+    @Getter
+    private String bandwidthSchedule;
+
+    // Whether large files that changed are uploaded as a delta of their previous version
+    @InjectConfig
+    private Boolean deltaUploads;
+
+    // Directory the block signatures of uploaded large files are kept in
+    @InjectConfig
+    private String deltaSignatureDirectory;
+
+    // Files up to this size are uploaded ahead of the bulk of their backup
+    @InjectConfig
+    private Long interactiveFileSize;
+
+    // Files modified within this many milliseconds are uploaded ahead of the bulk of their backup
+    @InjectConfig
+    private Long interactiveAgeMillis;
+
+    // Port the metrics are served on in the Prometheus format, on localhost only, 0 to not serve them
+    @InjectConfig
+    private Integer metricsPort;
+
     @InjectConfig("backups")
     private List<Map<String, String>> backups;
 
+    public int getScanParallelism() {
+        return scanParallelism != null ? scanParallelism : Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    public int getScanConcurrencyPerDevice() {
+        return scanConcurrencyPerDevice != null ? scanConcurrencyPerDevice : 16;
+    }
+
+    public long getEventQuietWindowMillis() {
+        return eventQuietWindowMillis != null ? eventQuietWindowMillis : 500;
+    }
+
+    public long getEventMaxDelayMillis() {
+        return eventMaxDelayMillis != null ? eventMaxDelayMillis : 30_000;
+    }
+
+    public long getDeleteBatchDelayMillis() {
+        return deleteBatchDelayMillis != null ? deleteBatchDelayMillis : 200;
+    }
+
+    public long getMoveDetectionWindowMillis() {
+        return moveDetectionWindowMillis != null ? moveDetectionWindowMillis : 2000;
+    }
+
+    public long getOverflowRescanIntervalMillis() {
+        return overflowRescanIntervalMillis != null ? overflowRescanIntervalMillis : 10_000;
+    }
+
+    public String getTaskJournalPath() {
+        return taskJournalPath != null ? taskJournalPath : "./db/tasks.journal";
+    }
+
+    public boolean isSkipScanAfterCleanShutdown() {
+        return skipScanAfterCleanShutdown != null ? skipScanAfterCleanShutdown : false;
+    }
+
+    public boolean isChunkedUploadMode() {
+        return "chunked".equalsIgnoreCase(uploadMode);
+    }
+
+    public int getChunkAverageSize() {
+        return chunkAverageSize != null ? chunkAverageSize : 1024 * 1024;
+    }
+
+    public String getChunkIndexDirectory() {
+        return chunkIndexDirectory != null ? chunkIndexDirectory : "./db/chunks";
+    }
+
+    public long getMultipartThreshold() {
+        return multipartThreshold != null ? multipartThreshold : 64L * 1024 * 1024;
+    }
+
+    public int getMultipartPartSize() {
+        return multipartPartSize != null ? multipartPartSize : 16 * 1024 * 1024;
+    }
+
+    public int getMultipartParallelism() {
+        return multipartParallelism != null ? multipartParallelism : 4;
+    }
+
+    public int getMultipartThreads() {
+        return multipartThreads != null ? multipartThreads : 16;
+    }
+
+    public int getMultipartBuffers() {
+        return multipartBuffers != null ? multipartBuffers : 16;
+    }
+
+    public int getMultipartRetries() {
+        return multipartRetries != null ? multipartRetries : 3;
+    }
+
+    public int getHashThreads() {
+        return hashThreads != null ? hashThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads != null ? virtualThreads : false;
+    }
+
+    public int getRecordBatchSize() {
+        return recordBatchSize != null ? recordBatchSize : 1000;
+    }
+
+    public long getRecordBatchDelayMillis() {
+        return recordBatchDelayMillis != null ? recordBatchDelayMillis : 50;
+    }
+
+    public boolean isPackingEnabled() {
+        return getPackThreshold() > 0 && !isChunkedUploadMode();
+    }
+
+    public int getPackThreshold() {
+        return packThreshold != null ? packThreshold : 0;
+    }
+
+    public int getPackSize() {
+        return packSize != null ? packSize : 8 * 1024 * 1024;
+    }
+
+    public long getPackDelayMillis() {
+        return packDelayMillis != null ? packDelayMillis : 5000;
+    }
+
+    public int getPacksInFlight() {
+        return packsInFlight != null ? packsInFlight : 4;
+    }
+
+    public double getPackCompactionThreshold() {
+        return packCompactionThreshold != null ? packCompactionThreshold : 0.5;
+    }
+
+    public long getPackCompactionIntervalMinutes() {
+        return packCompactionIntervalMinutes != null ? packCompactionIntervalMinutes : 60;
+    }
+
+    public int getUploadConcurrency() {
+        return uploadConcurrency != null ? uploadConcurrency : 8;
+    }
+
+    public int getUploadConcurrencyMax() {
+        return uploadConcurrencyMax != null ? uploadConcurrencyMax : 64;
+    }
+
+    public long getBandwidthLimit() {
+        return bandwidthLimit != null ? bandwidthLimit : 0;
+    }
+
+    public boolean isDeltaUploads() {
+        return deltaUploads != null ? deltaUploads : true;
+    }
+
+    public String getDeltaSignatureDirectory() {
+        return deltaSignatureDirectory != null ? deltaSignatureDirectory : "./db/signatures";
+    }
+
+    public long getInteractiveFileSize() {
+        return interactiveFileSize != null ? interactiveFileSize : 1024 * 1024;
+    }
+
+    public long getInteractiveAgeMillis() {
+        return interactiveAgeMillis != null ? interactiveAgeMillis : 10 * 60 * 1000;
+    }
+
+    public String getCloudStore() {
+        return cloudStore != null ? cloudStore : "aws";
+    }
+
+    public long getSimulatedLatencyMillis() {
+        return simulatedLatencyMillis != null ? simulatedLatencyMillis : 20;
+    }
+
+    public long getSimulatedLatencyJitterMillis() {
+        return simulatedLatencyJitterMillis != null ? simulatedLatencyJitterMillis : 0;
+    }
+
+    public long getSimulatedRequestBandwidth() {
+        return simulatedRequestBandwidth != null ? simulatedRequestBandwidth : 0;
+    }
+
+    public long getSimulatedBandwidth() {
+        return simulatedBandwidth != null ? simulatedBandwidth : 0;
+    }
+
+    public int getSimulatedMaxRequests() {
+        return simulatedMaxRequests != null ? simulatedMaxRequests : 0;
+    }
+
+    public double getSimulatedThrottleRate() {
+        return simulatedThrottleRate != null ? simulatedThrottleRate : 0;
+    }
+
+    public double getSimulatedFailureRate() {
+        return simulatedFailureRate != null ? simulatedFailureRate : 0;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort != null ? metricsPort : 0;
+    }
+
     public Stream<BackupConfig> getBackupConfig() {
         return backups.stream().map(BackupConfig::new);
     }
 
+    public Optional<BackupConfig> getBackupConfig(Backup backup) {
+        return getBackupConfig().filter(backupConfig -> BackupConfig.match(backupConfig, backup)).findFirst();
+    }
+
 
     public static class BackupConfig {
         private final Map<String,String> map;
@@ -66,6 +443,32 @@ public class Config {
             return map.get("root");
         }
 
+        // the codec uploads of this backup are compressed with, null if they are not compressed
+        public String getCompression() {
+            return map.get("compression");
+        }
+
+        public int getCompressionLevel() {
+            String level = map.get("compressionLevel");
+            return level != null ? Integer.parseInt(level) : 6;
+        }
+
+        // cap on the upload rate of this backup in bytes per second, 0 for none
+        public long getBandwidthLimit() {
+            String limit = map.get("bandwidthLimit");
+            return limit != null ? Long.parseLong(limit) : 0;
+        }
+
+        public String getBandwidthSchedule() {
+            return map.get("bandwidthSchedule");
+        }
+
+        // share of the uploads this backup gets relative to the other backups while they compete
+        public int getPriority() {
+            String priority = map.get("priority");
+            return priority != null ? Math.max(1, Integer.parseInt(priority)) : 1;
+        }
+
         public static boolean match(BackupConfig config, Backup backup) {
             return backup.getBackupName().equals(config.getName())
                     && backup.getRootDirectoryString().equals(config.getRoot());
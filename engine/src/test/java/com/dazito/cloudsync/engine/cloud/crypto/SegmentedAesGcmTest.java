@@ -0,0 +1,103 @@
+package com.dazito.cloudsync.engine.cloud.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SegmentedAesGcmTest {
+
+    private static final String KEY = "backup/file.bin";
+
+    // a single stream buffer, so that a stream that is not closed would block the next one
+    private final SegmentedAesGcm encryption = new SegmentedAesGcm(randomBytes(32, 1), 1);
+
+    @Test
+    void decryptsWhatWasEncrypted() throws IOException {
+        int segment = SegmentedAesGcm.SEGMENT_SIZE;
+        for (int length : new int[] { 0, 1, segment - 1, segment, segment + 1, 3 * segment }) {
+            byte[] plaintext = randomBytes(length, length);
+
+            byte[] ciphertext = encrypt(plaintext, KEY);
+
+            assertEquals(SegmentedAesGcm.getCiphertextSize(length), ciphertext.length);
+            assertArrayEquals(plaintext, decrypt(ciphertext, KEY));
+        }
+    }
+
+    @Test
+    void streamsAgreeWithParts() throws IOException {
+        byte[] plaintext = randomBytes(2 * SegmentedAesGcm.SEGMENT_SIZE + 100, 2);
+        ByteBuffer ciphertext = ByteBuffer.allocate((int) SegmentedAesGcm.getCiphertextSize(plaintext.length));
+
+        // as the parts of a multipart upload are encrypted, the first one a whole segment
+        SegmentedAesGcm.FileEncryptor encryptor = encryption.newEncryptor(KEY);
+        encryptor.encrypt(0, ByteBuffer.wrap(plaintext, 0, SegmentedAesGcm.SEGMENT_SIZE), false, ciphertext);
+        encryptor.encrypt(SegmentedAesGcm.SEGMENT_SIZE, ByteBuffer.wrap(plaintext, SegmentedAesGcm.SEGMENT_SIZE,
+                plaintext.length - SegmentedAesGcm.SEGMENT_SIZE), true, ciphertext);
+
+        assertArrayEquals(plaintext, decrypt(ciphertext.array(), KEY));
+    }
+
+    @Test
+    void rejectsAnObjectStoredUnderAnotherKey() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(100, 3), KEY);
+
+        assertThrows(IOException.class, () -> decrypt(ciphertext, "backup/other.bin"));
+    }
+
+    @Test
+    void rejectsATruncatedObject() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(2 * SegmentedAesGcm.SEGMENT_SIZE, 4), KEY);
+        // the first segment alone, which is not marked as the last one
+        byte[] truncated = Arrays.copyOf(ciphertext, SegmentedAesGcm.HEADER_SIZE + SegmentedAesGcm.SEGMENT_SIZE
+                + SegmentedAesGcm.TAG_SIZE);
+
+        assertThrows(IOException.class, () -> decrypt(truncated, KEY));
+    }
+
+    @Test
+    void rejectsAChangedObject() throws IOException {
+        byte[] ciphertext = encrypt(randomBytes(100, 5), KEY);
+        ciphertext[SegmentedAesGcm.HEADER_SIZE + 10] ^= 1;
+
+        assertThrows(IOException.class, () -> decrypt(ciphertext, KEY));
+    }
+
+    private byte[] encrypt(byte[] plaintext, String key) throws IOException {
+        try (InputStream in = encryption.encrypt(new ByteArrayInputStream(plaintext), key)) {
+            return readAll(in);
+        }
+    }
+
+    private byte[] decrypt(byte[] ciphertext, String key) throws IOException {
+        try (InputStream in = encryption.decrypt(new ByteArrayInputStream(ciphertext), key)) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
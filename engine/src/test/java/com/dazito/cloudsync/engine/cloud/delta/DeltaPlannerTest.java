@@ -0,0 +1,149 @@
+package com.dazito.cloudsync.engine.cloud.delta;
+
+import com.dazito.cloudsync.engine.cloud.part.PartUploader.Part;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaPlannerTest {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    private final DeltaPlanner planner = new DeltaPlanner();
+
+    @Test
+    void unchangedFileIsCopiedBlockByBlock() throws IOException {
+        byte[] previous = randomBytes(16 * BLOCK_SIZE, 1);
+
+        List<Part> parts = plan(previous, previous);
+
+        assertNotNull(parts);
+        assertEquals(16, parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            Part part = parts.get(i);
+            assertTrue(part.isCopy());
+            assertEquals((long) i * BLOCK_SIZE, part.getOffset());
+            assertEquals((long) i * BLOCK_SIZE, part.getSourceOffset());
+        }
+    }
+
+    @Test
+    void insertionOnlyUploadsTheBlockAroundIt() throws IOException {
+        byte[] previous = randomBytes(16 * BLOCK_SIZE, 2);
+        byte[] inserted = randomBytes(10, 3);
+        byte[] current = insert(previous, 5 * BLOCK_SIZE, inserted);
+
+        List<Part> parts = plan(previous, current);
+
+        assertNotNull(parts);
+        assertCovers(current, previous, parts);
+        List<Part> uploaded = new ArrayList<>();
+        for (Part part : parts) {
+            if (!part.isCopy()) {
+                uploaded.add(part);
+            }
+        }
+        // the inserted bytes go along with the block that follows them, which moved
+        assertEquals(1, uploaded.size());
+        assertEquals(5L * BLOCK_SIZE, uploaded.get(0).getOffset());
+        assertEquals(inserted.length + BLOCK_SIZE, uploaded.get(0).getLength());
+        // the blocks after the insertion are found where they moved to
+        Part last = parts.get(parts.size() - 1);
+        assertTrue(last.isCopy());
+        assertEquals(15L * BLOCK_SIZE + inserted.length, last.getOffset());
+        assertEquals(15L * BLOCK_SIZE, last.getSourceOffset());
+    }
+
+    @Test
+    void changedBlockIsUploaded() throws IOException {
+        byte[] previous = randomBytes(16 * BLOCK_SIZE, 4);
+        byte[] current = previous.clone();
+        current[7 * BLOCK_SIZE + 100] ^= 1;
+
+        List<Part> parts = plan(previous, current);
+
+        assertNotNull(parts);
+        assertCovers(current, previous, parts);
+        long uploaded = parts.stream().filter(part -> !part.isCopy()).mapToLong(Part::getLength).sum();
+        assertEquals(BLOCK_SIZE, uploaded);
+    }
+
+    @Test
+    void unrelatedFileIsUploadedAsAWhole() throws IOException {
+        assertNull(plan(randomBytes(16 * BLOCK_SIZE, 5), randomBytes(16 * BLOCK_SIZE, 6)));
+    }
+
+    @Test
+    void fileShorterThanABlockIsUploadedAsAWhole() throws IOException {
+        byte[] previous = randomBytes(16 * BLOCK_SIZE, 7);
+        assertNull(plan(previous, Arrays.copyOf(previous, BLOCK_SIZE - 1)));
+    }
+
+    private List<Part> plan(byte[] previous, byte[] current) throws IOException {
+        Path file = Files.write(directory.resolve("file"), current);
+        return planner.plan(file, signature(previous));
+    }
+
+    private static BlockSignature signature(byte[] data) {
+        MessageDigest sha256 = DeltaPlanner.newSha256();
+        List<BlockSignature.Block> blocks = new ArrayList<>();
+        for (int offset = 0, number = 1; offset < data.length; offset += BLOCK_SIZE, number++) {
+            int length = Math.min(BLOCK_SIZE, data.length - offset);
+            ByteBuffer block = ByteBuffer.wrap(data, offset, length);
+            int weak = RollingChecksum.of(block);
+            sha256.update(block);
+            blocks.add(new BlockSignature.Block(offset, length, number, weak, sha256.digest()));
+        }
+        return new BlockSignature("hash", null, BLOCK_SIZE, blocks);
+    }
+
+    // the parts follow each other without gaps, and every copied part holds the same bytes as the file
+    private static void assertCovers(byte[] current, byte[] previous, List<Part> parts) {
+        long offset = 0;
+        for (Part part : parts) {
+            assertEquals(offset, part.getOffset());
+            if (part.isCopy()) {
+                int from = (int) part.getOffset();
+                int source = (int) part.getSourceOffset();
+                assertArrayEquals(Arrays.copyOfRange(previous, source, source + part.getLength()),
+                        Arrays.copyOfRange(current, from, from + part.getLength()));
+            }
+            offset += part.getLength();
+        }
+        assertEquals(current.length, offset);
+        assertFalse(parts.isEmpty());
+    }
+
+    private static byte[] insert(byte[] data, int offset, byte[] inserted) {
+        byte[] result = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, result, 0, offset);
+        System.arraycopy(inserted, 0, result, offset, inserted.length);
+        System.arraycopy(data, offset, result, offset + inserted.length, data.length - offset);
+        return result;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
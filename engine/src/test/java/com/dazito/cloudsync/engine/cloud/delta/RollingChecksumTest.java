@@ -0,0 +1,56 @@
+package com.dazito.cloudsync.engine.cloud.delta;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class RollingChecksumTest {
+
+    @Test
+    void rollingEqualsChecksumOfEveryWindow() {
+        byte[] data = new byte[4096];
+        new Random(1).nextBytes(data);
+        int windowSize = 100;
+
+        RollingChecksum checksum = new RollingChecksum(windowSize);
+        for (int i = 0; i < windowSize; i++) {
+            checksum.add(data[i]);
+        }
+        for (int start = 0; ; start++) {
+            assertEquals(RollingChecksum.of(ByteBuffer.wrap(data, start, windowSize)), checksum.get(), "window at " + start);
+            if (start + windowSize == data.length) {
+                break;
+            }
+            checksum.roll(data[start], data[start + windowSize]);
+        }
+    }
+
+    @Test
+    void resetStartsAnEmptyWindow() {
+        byte[] data = {1, 2, 3, (byte) 0xff};
+        RollingChecksum checksum = new RollingChecksum(data.length);
+        checksum.add((byte) 42);
+        checksum.reset();
+        for (byte b : data) {
+            checksum.add(b);
+        }
+        assertEquals(RollingChecksum.of(ByteBuffer.wrap(data)), checksum.get());
+    }
+
+    @Test
+    void ofDoesNotMoveThePosition() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        buffer.position(1);
+        RollingChecksum.of(buffer);
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    void orderOfBytesMatters() {
+        assertNotEquals(RollingChecksum.of(ByteBuffer.wrap(new byte[]{1, 2})), RollingChecksum.of(ByteBuffer.wrap(new byte[]{2, 1})));
+    }
+}
@@ -0,0 +1,148 @@
+package com.dazito.cloudsync.engine.cloud.part;
+
+import com.dazito.cloudsync.engine.util.Threads;
+import com.dazito.cloudsync.engine.util.config.Config;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PartUploaderTest {
+
+    private static final int PART_SIZE = 128 * 1024;
+
+    private PartUploader uploader;
+
+    @BeforeEach
+    void setUp() throws ReflectiveOperationException {
+        Config config = new Config();
+        set(config, "multipartPartSize", PART_SIZE);
+        // fewer buffers than parts in flight, so that a buffer that is not released blocks the next upload
+        set(config, "multipartBuffers", 2);
+        set(config, "multipartRetries", 0);
+        uploader = new PartUploader(config, new Threads(config));
+    }
+
+    @Test
+    void smallStreamIsUploadedWholeFromABufferOfItsSize() throws IOException {
+        byte[] content = randomBytes(1000, 1);
+        RecordingTarget target = new RecordingTarget(0);
+
+        uploader.upload(new ByteArrayInputStream(content), target);
+
+        assertArrayEquals(content, target.whole);
+        assertEquals(content.length, target.wholeCapacity);
+    }
+
+    @Test
+    void largeStreamIsUploadedInParts() throws Exception {
+        byte[] content = randomBytes(5 * PART_SIZE / 2, 2);
+        RecordingTarget target = new RecordingTarget(0);
+
+        upload(content, target);
+
+        assertEquals(3, target.completed.size());
+        assertArrayEquals(content, target.assemble());
+    }
+
+    @Test
+    void buffersAreReleasedWhenAPartFails() throws Exception {
+        byte[] content = randomBytes(4 * PART_SIZE, 3);
+
+        assertThrows(IOException.class, () -> uploader.upload(new ByteArrayInputStream(content), new RecordingTarget(1)));
+
+        RecordingTarget target = new RecordingTarget(0);
+        upload(content, target);
+        assertArrayEquals(content, target.assemble());
+    }
+
+    private void upload(byte[] content, PartTarget target) throws Exception {
+        CompletableFuture<Void> upload = CompletableFuture.runAsync(() -> {
+            try {
+                uploader.upload(new ByteArrayInputStream(content), target);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        upload.get(10, TimeUnit.SECONDS);
+    }
+
+    private static void set(Config config, String name, Object value) throws ReflectiveOperationException {
+        Field field = Config.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(config, value);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /*
+     * Keeps the uploaded parts, and fails every attempt to upload the given part number, none if 0.
+     */
+    private static final class RecordingTarget implements PartTarget {
+        private final int failingPart;
+        private final Map<String, byte[]> parts = new ConcurrentHashMap<>();
+        private final List<String> completed = new ArrayList<>();
+        private byte[] whole;
+        private int wholeCapacity;
+
+        RecordingTarget(int failingPart) {
+            this.failingPart = failingPart;
+        }
+
+        @Override
+        public String uploadPart(int partNumber, ByteBuffer data) throws IOException {
+            if (partNumber == failingPart) {
+                throw new IOException("Part " + partNumber + " failed");
+            }
+            parts.put(String.valueOf(partNumber), copy(data));
+            return String.valueOf(partNumber);
+        }
+
+        @Override
+        public void uploadWhole(ByteBuffer data) {
+            wholeCapacity = data.capacity();
+            whole = copy(data);
+        }
+
+        @Override
+        public void complete(List<String> partIds) {
+            completed.addAll(partIds);
+        }
+
+        @Override
+        public void abort() {
+            parts.clear();
+        }
+
+        byte[] assemble() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            completed.forEach(partId -> out.writeBytes(parts.get(partId)));
+            return out.toByteArray();
+        }
+
+        private static byte[] copy(ByteBuffer data) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.dazito.cloudsync.engine.cloud.simulated;
+
+import com.dazito.cloudsync.engine.cloud.aws.AwsCloudStore;
+import com.dazito.cloudsync.engine.cloud.compress.CompressionStage;
+import com.dazito.cloudsync.engine.cloud.crypto.SegmentedAesGcm;
+import com.dazito.cloudsync.engine.cloud.part.PartUploader;
+import com.dazito.cloudsync.engine.journal.TaskJournal;
+import com.dazito.cloudsync.engine.metrics.Metrics;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.schedule.TaskScheduler;
+import com.dazito.cloudsync.engine.util.TaskQueue;
+import com.dazito.cloudsync.engine.util.Threads;
+import com.dazito.cloudsync.engine.util.config.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SimulatedCloudStoreTest {
+
+    @TempDir
+    Path root;
+
+    private final SegmentedAesGcm encryption = new SegmentedAesGcm(randomBytes(32, 1));
+    private Config config;
+    private Metrics metrics;
+    private Threads threads;
+    private Backup backup;
+    private SimulatedCloudStore store;
+
+    @BeforeEach
+    void setUp() throws ReflectiveOperationException {
+        config = new Config();
+        Field backups = Config.class.getDeclaredField("backups");
+        backups.setAccessible(true);
+        backups.set(config, Collections.emptyList());
+        metrics = new Metrics(config);
+        threads = new Threads(config);
+        backup = new Backup("backup", root);
+        backup.setId(1L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void movedFileIsCopiedAndTheOriginalDeletedBeforeItCompletes() throws Exception {
+        open(new SegmentedAesGcm((byte[]) null));
+        byte[] content = randomBytes(1000, 2);
+        Path source = Files.write(root.resolve("source.bin"), content);
+        upload(source);
+
+        Path target = Files.move(source, root.resolve("target.bin"));
+        String sourceKey = AwsCloudStore.getFileKey(backup, source);
+        AtomicReference<byte[]> sourceObject = new AtomicReference<>(content);
+        CountDownLatch moved = new CountDownLatch(1);
+        store.moveFile(backup, source, target, null, () -> {
+            try {
+                sourceObject.set(store.getObject(sourceKey));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            moved.countDown();
+        });
+        assertTrue(moved.await(10, TimeUnit.SECONDS));
+
+        assertNull(sourceObject.get());
+        assertArrayEquals(content, store.getObject(AwsCloudStore.getFileKey(backup, target)));
+    }
+
+    @Test
+    void encryptedFileCanBeRestoredAfterItMoved() throws Exception {
+        open(encryption);
+        byte[] content = randomBytes(3 * SegmentedAesGcm.SEGMENT_SIZE / 2, 3);
+        Path source = Files.write(root.resolve("source.bin"), content);
+        upload(source);
+
+        Path target = Files.move(source, root.resolve("target.bin"));
+        CountDownLatch moved = new CountDownLatch(1);
+        store.moveFile(backup, source, target, null, moved::countDown);
+        assertTrue(moved.await(10, TimeUnit.SECONDS));
+
+        assertNull(store.getObject(AwsCloudStore.getFileKey(backup, source)));
+        String targetKey = AwsCloudStore.getFileKey(backup, target);
+        assertArrayEquals(content, restore(store.getObject(targetKey), targetKey));
+    }
+
+    private void open(SegmentedAesGcm encryption) {
+        TaskScheduler scheduler = new TaskScheduler(config, metrics, threads);
+        store = new SimulatedCloudStore(new TaskQueue(new TaskJournal(config), metrics), new PartUploader(config, threads),
+                new CompressionStage(config, metrics), encryption, scheduler, metrics, config);
+        store.start();
+    }
+
+    private void upload(Path path) throws InterruptedException {
+        CountDownLatch uploaded = new CountDownLatch(1);
+        store.uploadFile(backup, path, null, uploaded::countDown);
+        assertTrue(uploaded.await(10, TimeUnit.SECONDS));
+    }
+
+    private byte[] restore(byte[] object, String key) throws IOException {
+        try (InputStream in = encryption.decrypt(new ByteArrayInputStream(object), key)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,103 @@
+package com.dazito.cloudsync.engine.db;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PathIndexTest {
+
+    @Test
+    void lookupComparesAttributes() {
+        PathIndex index = new PathIndex();
+        index.put("dir/file.txt", 7, 1000, 20);
+
+        assertEquals(PathIndex.UNCHANGED, index.lookup("dir/file.txt", 1000, 20));
+        assertEquals(7, index.lookup("dir/file.txt", 1001, 20));
+        assertEquals(7, index.lookup("dir/file.txt", 1000, 21));
+        assertEquals(PathIndex.NOT_FOUND, index.lookup("dir/other.txt", 1000, 20));
+        assertEquals(PathIndex.NOT_FOUND, index.lookup("dir/file.tx", 1000, 20));
+    }
+
+    @Test
+    void putReplacesTheEntryOfAPath() {
+        PathIndex index = new PathIndex();
+        index.put("file", 1, 1000, 20);
+        index.put("file", 2, 2000, 30);
+
+        assertEquals(1, index.size());
+        assertEquals(2, index.getRecordId("file"));
+        assertEquals(PathIndex.UNCHANGED, index.lookup("file", 2000, 30));
+    }
+
+    @Test
+    void acceptsAnyCharSequence() {
+        PathIndex index = new PathIndex();
+        index.put(new StringBuilder("a/b"), 3, 0, 0);
+
+        assertEquals(3, index.getRecordId("a/b"));
+    }
+
+    @Test
+    void encodesNonAsciiPaths() {
+        PathIndex index = new PathIndex();
+        String[] paths = {"café", "日本/語", "emoji-😀", "cafe"};
+        for (int i = 0; i < paths.length; i++) {
+            index.put(paths[i], i, i, i);
+        }
+
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(PathIndex.UNCHANGED, index.lookup(paths[i], i, i));
+        }
+        assertEquals(PathIndex.NOT_FOUND, index.getRecordId("emoji-\ud83d"));
+    }
+
+    @Test
+    void growsAndKeepsEntriesFoundAfterRemoves() {
+        PathIndex index = new PathIndex(16);
+        int count = 20_000;
+        for (int i = 0; i < count; i++) {
+            index.put("directory-" + i / 100 + "/file-" + i, i, i, i);
+        }
+        // removes shift the entries that follow in their probe sequence
+        for (int i = 0; i < count; i += 2) {
+            index.remove("directory-" + i / 100 + "/file-" + i);
+        }
+
+        assertEquals(count / 2, index.size());
+        for (int i = 0; i < count; i++) {
+            long expected = i % 2 == 0 ? PathIndex.NOT_FOUND : i;
+            assertEquals(expected, index.getRecordId("directory-" + i / 100 + "/file-" + i));
+        }
+
+        // freed entries are reused
+        for (int i = 0; i < count; i += 2) {
+            index.put("directory-" + i / 100 + "/file-" + i, count + i, i, i);
+        }
+        assertEquals(count, index.size());
+        assertEquals(count + 10, index.getRecordId("directory-0/file-10"));
+        assertEquals(11, index.getRecordId("directory-0/file-11"));
+    }
+
+    @Test
+    void arenaGrowsUpToTheLargestArrayAndNoFurther() {
+        assertEquals(3_000, PathIndex.arenaCapacity(2_000, 2_100));
+        assertEquals(5_000, PathIndex.arenaCapacity(2_000, 5_000));
+        // half as much again overflows an int here
+        assertEquals(PathIndex.MAX_ARENA_SIZE, PathIndex.arenaCapacity(1_500_000_000, 1_500_000_100));
+        assertEquals(PathIndex.MAX_ARENA_SIZE, PathIndex.arenaCapacity(PathIndex.MAX_ARENA_SIZE - 10,
+                PathIndex.MAX_ARENA_SIZE));
+
+        assertThrows(IllegalStateException.class,
+                () -> PathIndex.arenaCapacity(PathIndex.MAX_ARENA_SIZE, PathIndex.MAX_ARENA_SIZE + 1L));
+    }
+
+    @Test
+    void removeOfUnknownPathIsIgnored() {
+        PathIndex index = new PathIndex();
+        index.put("file", 1, 0, 0);
+        index.remove("other");
+
+        assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,88 @@
+package com.dazito.cloudsync.engine.journal;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.util.Task;
+import com.dazito.cloudsync.engine.util.config.Config;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TaskJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private Config config;
+    private Backup backup;
+
+    @BeforeEach
+    void setUp() throws ReflectiveOperationException {
+        config = new Config();
+        Field journalPath = Config.class.getDeclaredField("taskJournalPath");
+        journalPath.setAccessible(true);
+        journalPath.set(config, directory.resolve("tasks.journal").toString());
+        backup = new Backup("backup", directory.resolve("root"));
+        backup.setId(7L);
+    }
+
+    @Test
+    void pendingIntentsSurviveACleanShutdown() throws IOException {
+        TaskJournal journal = new TaskJournal(config);
+        assertFalse(journal.open().isCleanShutdown());
+        journal.logIntent(Task.create(Task.Type.UPLOAD_FILE, backup, path("uploaded"), null));
+        long completed = journal.logIntent(Task.create(Task.Type.DELETE_FILE, backup, path("deleted"), null));
+        journal.logIntent(Task.createMove(backup, path("source"), path("target"), "hash", null));
+        journal.logIntent(Task.createPack(backup, path("pack"), ByteBuffer.allocate(0),
+                Arrays.asList(path("a"), path("b")), null));
+        journal.logCompletion(completed);
+        journal.close(true);
+
+        TaskJournal.Recovery recovery = new TaskJournal(config).open();
+
+        assertTrue(recovery.isCleanShutdown());
+        List<TaskJournal.Intent> intents = new ArrayList<>(recovery.getPendingIntents());
+        assertEquals(3, intents.size());
+        assertEquals(Task.Type.UPLOAD_FILE, intents.get(0).getType());
+        assertEquals(7L, intents.get(0).getBackupId());
+        assertEquals(path("uploaded"), intents.get(0).getPath());
+        assertEquals(path("target"), intents.get(1).getPath());
+        assertEquals(path("source"), intents.get(1).getSourcePath());
+        assertEquals(Arrays.asList(path("a"), path("b")), intents.get(2).getPackedPaths());
+    }
+
+    @Test
+    void tornRecordEndsTheReplay() throws IOException {
+        TaskJournal journal = new TaskJournal(config);
+        journal.open();
+        journal.logIntent(Task.create(Task.Type.UPLOAD_FILE, backup, path("first"), null));
+        journal.logIntent(Task.create(Task.Type.UPLOAD_FILE, backup, path("second"), null));
+        journal.close(false);
+
+        // the end of the last record, the marker of an unclean shutdown, never reached the disk
+        try (FileChannel channel = FileChannel.open(directory.resolve("tasks.journal"), WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        TaskJournal.Recovery recovery = new TaskJournal(config).open();
+
+        assertFalse(recovery.isCleanShutdown());
+        assertEquals(2, recovery.getPendingIntents().size());
+    }
+
+    private Path path(String name) {
+        return backup.getRootDirectory().resolve(name);
+    }
+}
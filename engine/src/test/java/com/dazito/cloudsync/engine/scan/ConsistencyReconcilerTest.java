@@ -0,0 +1,116 @@
+package com.dazito.cloudsync.engine.scan;
+
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.model.LocalRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConsistencyReconcilerTest {
+
+    @TempDir
+    Path root;
+
+    private Backup backup;
+    private final List<String> decisions = new ArrayList<>();
+
+    private final ConsistencyReconciler.Listener listener = new ConsistencyReconciler.Listener() {
+        @Override
+        public void onNewFile(ScannedFile file) {
+            decisions.add("new " + root.relativize(file.getPath()));
+        }
+
+        @Override
+        public void onChangedFile(LocalRecord record, ScannedFile file) {
+            decisions.add("changed " + record.relativePath());
+        }
+
+        @Override
+        public void onMissingFile(LocalRecord record) {
+            decisions.add("missing " + record.relativePath());
+        }
+    };
+
+    @BeforeEach
+    void setUp() {
+        backup = new Backup("backup", root);
+    }
+
+    @Test
+    void reportsNewChangedAndMissingFiles() throws IOException {
+        LocalRecord unchanged = record(write("a.txt", 1));
+        LocalRecord changed = record(write("b.txt", 1));
+        LocalRecord missing = record(write("c.txt", 1));
+        write("b.txt", 2);
+        Files.delete(root.resolve("c.txt"));
+        write("d.txt", 1);
+
+        ConsistencyReconciler.Result result = reconcile(Arrays.asList(unchanged, changed, missing),
+                Arrays.asList(file("a.txt"), file("b.txt"), file("d.txt")));
+
+        assertEquals(Arrays.asList("changed b.txt", "missing c.txt", "new d.txt"), decisions);
+        assertEquals(1, result.getUnchangedFiles());
+        assertEquals(1, result.getChangedFiles());
+        assertEquals(1, result.getMissingFiles());
+        assertEquals(1, result.getNewFiles());
+    }
+
+    @Test
+    void mergesByPathAcrossDirectories() throws IOException {
+        Files.createDirectories(root.resolve("a"));
+        // 'a-c' sorts before 'a/x', as '-' comes before the separator
+        LocalRecord sibling = record(write("a-c", 1));
+        LocalRecord nested = record(write("a/x", 1));
+        LocalRecord last = record(write("b", 1));
+
+        ConsistencyReconciler.Result result = reconcile(Arrays.asList(sibling, nested, last),
+                Arrays.asList(file("a-c"), file("a/x"), file("b")));
+
+        assertEquals(Collections.emptyList(), decisions);
+        assertEquals(3, result.getUnchangedFiles());
+    }
+
+    @Test
+    void leavesRecordsBelowUnreadableDirectoriesAlone() throws IOException {
+        Files.createDirectories(root.resolve("locked"));
+        LocalRecord first = record(write("locked/first", 1));
+        LocalRecord second = record(write("locked/second", 1));
+        LocalRecord gone = record(write("z", 1));
+        Files.delete(root.resolve("z"));
+
+        ConsistencyReconciler.Result result = reconcile(Arrays.asList(first, second, gone),
+                Collections.singletonList(ScannedFile.unreadableDirectory(root.resolve("locked"))));
+
+        assertEquals(Collections.singletonList("missing z"), decisions);
+        assertEquals(0, result.getNewFiles());
+        assertEquals(1, result.getMissingFiles());
+    }
+
+    private ConsistencyReconciler.Result reconcile(List<LocalRecord> records, List<ScannedFile> files) {
+        return ConsistencyReconciler.reconcile(backup, records.iterator(), files.iterator(), listener);
+    }
+
+    private Path write(String name, int length) throws IOException {
+        return Files.write(root.resolve(name), new byte[length]);
+    }
+
+    private LocalRecord record(Path path) throws IOException {
+        return LocalRecord.create(backup, path, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    private ScannedFile file(String name) throws IOException {
+        Path path = root.resolve(name);
+        return ScannedFile.file(path, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+}
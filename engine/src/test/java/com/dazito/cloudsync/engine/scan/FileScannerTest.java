@@ -0,0 +1,78 @@
+package com.dazito.cloudsync.engine.scan;
+
+import com.dazito.cloudsync.engine.util.config.Config;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FileScannerTest {
+
+    @TempDir
+    Path root;
+
+    private final FileScanner scanner = new FileScanner(new Config());
+
+    @Test
+    void returnsFilesInPathOrder() throws IOException {
+        List<String> names = Arrays.asList("b", "a-c", "a/x", "a/y/z", "a/y-1", "c/d/e/f");
+        for (String name : names) {
+            Path path = root.resolve(name);
+            Files.createDirectories(path.getParent());
+            Files.write(path, new byte[1]);
+        }
+        Files.createDirectories(root.resolve("empty"));
+
+        List<String> expected = new ArrayList<>();
+        for (String name : names) {
+            expected.add(root.resolve(name).toString());
+        }
+        expected.sort(null);
+
+        ScanResult result = scanner.scan(root);
+        assertEquals(expected, paths(result));
+        // every iteration walks the tree anew
+        Files.write(root.resolve("0"), new byte[1]);
+        expected.add(0, root.resolve("0").toString());
+        assertEquals(expected, paths(result));
+    }
+
+    @Test
+    void walksTreesWithMoreDirectoriesThanArePrefetched() throws IOException {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 20; j++) {
+                Path path = root.resolve("d" + i).resolve("d" + j).resolve("f");
+                Files.createDirectories(path.getParent());
+                Files.write(path, new byte[1]);
+                expected.add(path.toString());
+            }
+        }
+        expected.sort(null);
+
+        ScanResult result = scanner.scan(root);
+        assertEquals(expected, paths(result));
+        // the listings prefetched by the first walk have all been returned to the second
+        assertEquals(expected, paths(result));
+    }
+
+    @Test
+    void returnsNothingForAnEmptyRoot() {
+        assertEquals(new ArrayList<>(), paths(scanner.scan(root)));
+    }
+
+    private static List<String> paths(ScanResult result) {
+        List<String> paths = new ArrayList<>();
+        for (ScannedFile file : result) {
+            paths.add(file.getPath().toString());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,145 @@
+package com.dazito.cloudsync.engine.schedule;
+
+import com.dazito.cloudsync.engine.metrics.Metrics;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.schedule.TaskScheduler.SchedulingClass;
+import com.dazito.cloudsync.engine.util.Threads;
+import com.dazito.cloudsync.engine.util.config.Config;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class FairShareQueueTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private final AtomicInteger admissionLimit = new AtomicInteger(Integer.MAX_VALUE);
+    private final Backup first = backup(1, "first");
+    private final Backup second = backup(2, "second");
+
+    private TaskScheduler scheduler;
+    private FairShareQueue queue;
+
+    @BeforeEach
+    void setUp() throws ReflectiveOperationException {
+        Map<String, String> prioritized = new HashMap<>();
+        prioritized.put("name", "second");
+        prioritized.put("root", second.getRootDirectoryString());
+        prioritized.put("priority", "3");
+        Config config = new Config();
+        Field backups = Config.class.getDeclaredField("backups");
+        backups.setAccessible(true);
+        backups.set(config, Arrays.asList(prioritized));
+
+        scheduler = new TaskScheduler(config, new Metrics(config), new Threads(config));
+        queue = new FairShareQueue(scheduler, admissionLimit::get);
+    }
+
+    @Test
+    void fastJobsGoFirst() {
+        Runnable bulk = job(SchedulingClass.BULK, first, MB);
+        Runnable interactive = job(SchedulingClass.INTERACTIVE, first, MB);
+        Runnable fast = job(SchedulingClass.FAST, null, 0);
+        queue.offer(bulk);
+        queue.offer(interactive);
+        queue.offer(fast);
+
+        assertEquals(Arrays.asList(fast, interactive, bulk), pollAll());
+    }
+
+    @Test
+    void smallerJobsOvertakeLargerOnes() {
+        Runnable large = job(SchedulingClass.BULK, first, 100 * MB);
+        Runnable small = job(SchedulingClass.BULK, first, 1024);
+        queue.offer(large);
+        queue.offer(small);
+
+        assertEquals(Arrays.asList(small, large), pollAll());
+    }
+
+    @Test
+    void backupsTakeTurnsByWeight() {
+        List<Runnable> firstJobs = new ArrayList<>();
+        List<Runnable> secondJobs = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            firstJobs.add(job(SchedulingClass.BULK, first, MB));
+            secondJobs.add(job(SchedulingClass.BULK, second, MB));
+        }
+        // the first backup queues all of its jobs before the second one
+        firstJobs.forEach(queue::offer);
+        secondJobs.forEach(queue::offer);
+
+        int fromFirst = 0;
+        for (int i = 0; i < 8; i++) {
+            if (firstJobs.contains(queue.poll())) {
+                fromFirst++;
+            }
+        }
+        // the second backup has a priority of 3
+        assertEquals(2, fromFirst);
+    }
+
+    @Test
+    void jobsWaitForAdmission() throws InterruptedException {
+        admissionLimit.set(1);
+        Runnable running = job(SchedulingClass.BULK, first, 0);
+        Runnable waiting = job(SchedulingClass.BULK, first, 0);
+        queue.offer(running);
+        queue.offer(waiting);
+
+        Runnable taken = queue.poll();
+        assertSame(running, taken);
+        assertNull(queue.poll());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+
+        // the job tells the queue once it has ended
+        taken.run();
+        assertSame(waiting, queue.poll());
+    }
+
+    @Test
+    void drainToEmptiesAllLanes() {
+        queue.offer(job(SchedulingClass.FAST, null, 0));
+        queue.offer(job(SchedulingClass.BULK, first, MB));
+        queue.offer(job(SchedulingClass.BULK, second, MB));
+        queue.offer(() -> { });
+
+        List<Runnable> drained = new ArrayList<>();
+        assertEquals(4, queue.drainTo(drained));
+        assertEquals(0, queue.size());
+        assertNull(queue.peek());
+    }
+
+    private Runnable job(SchedulingClass schedulingClass, Backup backup, long size) {
+        return scheduler.job(schedulingClass, backup, size, () -> { });
+    }
+
+    private List<Runnable> pollAll() {
+        List<Runnable> polled = new ArrayList<>();
+        Runnable job;
+        while ((job = queue.poll()) != null) {
+            polled.add(job);
+        }
+        return polled;
+    }
+
+    private static Backup backup(long id, String name) {
+        Backup backup = new Backup(name, Paths.get("/backups", name));
+        backup.setId(id);
+        return backup;
+    }
+}
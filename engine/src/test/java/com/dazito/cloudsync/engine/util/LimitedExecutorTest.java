@@ -0,0 +1,91 @@
+package com.dazito.cloudsync.engine.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LimitedExecutorTest {
+
+    @Test
+    void runsAllJobsWithinTheLimit() throws InterruptedException {
+        LimitedExecutor executor = new LimitedExecutor(new LinkedBlockingQueue<>(), 3, Thread::new);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+
+        for (int i = 0; i < 200; i++) {
+            executor.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.yield();
+                running.decrementAndGet();
+                done.incrementAndGet();
+            });
+        }
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(200, done.get());
+        assertTrue(maxRunning.get() <= 3, "ran " + maxRunning.get() + " jobs at once");
+    }
+
+    @Test
+    void runsQueuedJobsInOrder() throws InterruptedException {
+        LimitedExecutor executor = new LimitedExecutor(new LinkedBlockingQueue<>(), 1, Thread::new);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+
+        executor.execute(() -> await(release));
+        for (int i = 0; i < 10; i++) {
+            int number = i;
+            executor.execute(() -> order.add(number));
+        }
+        release.countDown();
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), order);
+    }
+
+    @Test
+    void shutdownNowReturnsQueuedJobs() throws InterruptedException {
+        LimitedExecutor executor = new LimitedExecutor(new LinkedBlockingQueue<>(), 1, Thread::new);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        executor.execute(() -> {
+            started.countDown();
+            await(release);
+        });
+        started.await();
+        executor.execute(() -> { });
+        executor.execute(() -> { });
+
+        assertEquals(2, executor.shutdownNow().size());
+        assertTrue(executor.isShutdown());
+        assertFalse(executor.isTerminated());
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+
+        release.countDown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.dazito.cloudsync.engine.util;
+
+import com.dazito.cloudsync.engine.cloud.Transfer;
+import com.dazito.cloudsync.engine.journal.TaskJournal;
+import com.dazito.cloudsync.engine.metrics.Metrics;
+import com.dazito.cloudsync.engine.model.Backup;
+import com.dazito.cloudsync.engine.util.config.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TaskQueueTest {
+
+    @TempDir
+    Path directory;
+
+    private TaskJournal journal;
+    private TaskQueue queue;
+    private Backup backup;
+    private Path path;
+
+    // the tasks the queue has sent to the store, in order
+    private final List<Task> sent = new CopyOnWriteArrayList<>();
+    private final List<Job> jobs = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws ReflectiveOperationException, IOException {
+        Config config = new Config();
+        Field journalPath = Config.class.getDeclaredField("taskJournalPath");
+        journalPath.setAccessible(true);
+        journalPath.set(config, directory.resolve("tasks.journal").toString());
+        journal = new TaskJournal(config);
+        journal.open();
+        queue = new TaskQueue(journal, new Metrics(config));
+        queue.toObserverable().subscribe(task -> {
+            task.setTransfer(new Transfer());
+            sent.add(task);
+        });
+        backup = new Backup("backup", directory);
+        backup.setId(1L);
+        path = directory.resolve("file");
+    }
+
+    @AfterEach
+    void tearDown() {
+        journal.close(true);
+    }
+
+    @Test
+    void uploadThatHasNotStartedIsReplacedByTheNewerChange() {
+        Task first = upload();
+        Task second = upload();
+
+        assertEquals(Task.Status.CANCELLED, first.getStatus());
+        assertEquals(2, sent.size());
+        assertSame(second, sent.get(1));
+        assertEquals(1, queue.getDepth(Task.Type.UPLOAD_FILE));
+    }
+
+    @Test
+    void fileThatIsWrittenContinuouslyStillGetsUploaded() throws InterruptedException {
+        Task first = upload();
+        start(first).awaitStart();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.cancelUpload(path));
+            start(upload()).awaitStart();
+        }
+        Task last = sent.get(sent.size() - 1);
+
+        // the running upload is left to finish, and the newer changes wait for it, the newest replacing the others
+        assertFalse(queue.cancelUpload(path));
+        upload();
+        Task newest = upload();
+        assertEquals(4, sent.size());
+
+        assertEquals(Task.Status.CANCELLED, first.getStatus());
+        assertEquals(Task.Status.IN_PROGRESS, last.getStatus());
+        jobs.get(jobs.size() - 1).finish();
+
+        assertEquals(Task.Status.COMPLETE, last.getStatus());
+        assertEquals(5, sent.size());
+        assertSame(newest, sent.get(4));
+        assertEquals(1, queue.getDepth(Task.Type.UPLOAD_FILE));
+
+        // the completed upload starts the count of cancellations over
+        start(newest).awaitStart();
+        assertTrue(queue.cancelUpload(path));
+    }
+
+    private Task upload() {
+        Task task = Task.create(Task.Type.UPLOAD_FILE, backup, path, "hash", null);
+        queue.send(task);
+        return task;
+    }
+
+    private Job start(Task task) {
+        Job job = new Job(task);
+        jobs.add(job);
+        job.thread = new Thread(task.getTransfer().guard(job));
+        job.thread.setDaemon(true);
+        job.thread.start();
+        return job;
+    }
+
+    /*
+     * The job of an upload, which runs until it is finished or cancelled.
+     */
+    private static final class Job implements Runnable {
+        private final Task task;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private Thread thread;
+
+        Job(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task.getTransfer().complete()) {
+                task.getRunnable().run();
+            }
+        }
+
+        void awaitStart() throws InterruptedException {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+        }
+
+        void finish() throws InterruptedException {
+            finished.countDown();
+            // what runs once the job has ended runs on its thread
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+            assertFalse(thread.isAlive());
+        }
+    }
+}